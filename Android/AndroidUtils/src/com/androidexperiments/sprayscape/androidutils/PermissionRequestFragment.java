@@ -0,0 +1,134 @@
+// Copyright 2016 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.androidexperiments.sprayscape.androidutils;
+
+import android.annotation.SuppressLint;
+import android.app.Fragment;
+import android.content.pm.PackageManager;
+import android.os.Bundle;
+import android.util.Log;
+
+import android.support.v13.app.FragmentCompat;
+
+import java.util.LinkedList;
+
+/**
+ * Headless fragment that makes every permission request for PermissionRequester. It is added once
+ * and kept, rather than a fragment transaction per request, and it is what tells
+ * PermissionRequester when its cached grant state may have gone stale.
+ *
+ * Android only shows one permission dialog at a time, so requests are queued and made one after
+ * the other. Only touched on the UI thread.
+ */
+public class PermissionRequestFragment extends Fragment implements FragmentCompat.OnRequestPermissionsResultCallback {
+	final static String FRAGMENT_TAG = "PermissionRequestFragment";
+
+	private final static String TAG = "PermissionRequester";
+	private final static int REQUEST_CODE = 1;
+
+	interface Callback {
+		// granted[i] is for permissions[i], in the order they were asked for
+		void onResult(String[] permissions, boolean[] granted);
+	}
+
+	private static class Request {
+		final String[] permissions;
+		final Callback callback;
+
+		Request(String[] permissions, Callback callback) {
+			this.permissions = permissions;
+			this.callback = callback;
+		}
+	}
+
+	private final LinkedList<Request> queue = new LinkedList<Request>();
+	private Request inFlight;
+	private boolean resumed;
+
+	@Override
+	public void onCreate(Bundle savedInstanceState) {
+		super.onCreate(savedInstanceState);
+		// keep the queue across configuration changes
+		setRetainInstance(true);
+	}
+
+	@Override
+	public void onResume() {
+		super.onResume();
+		// the user may have changed a permission in the settings app while we were away
+		PermissionRequester.setGrantCacheEnabled(true);
+		resumed = true;
+		requestNext();
+	}
+
+	@Override
+	public void onPause() {
+		super.onPause();
+		PermissionRequester.setGrantCacheEnabled(false);
+		resumed = false;
+	}
+
+	@Override
+	public void onDestroy() {
+		super.onDestroy();
+		// the activity is going away for good, nobody is going to answer these
+		if (inFlight != null) {
+			queue.addFirst(inFlight);
+			inFlight = null;
+		}
+		while (!queue.isEmpty()) {
+			Request request = queue.removeFirst();
+			request.callback.onResult(request.permissions, new boolean[request.permissions.length]);
+		}
+	}
+
+	void request(String[] permissions, Callback callback) {
+		queue.addLast(new Request(permissions, callback));
+		requestNext();
+	}
+
+	private void requestNext() {
+		if (inFlight != null || !resumed || queue.isEmpty()) {
+			return;
+		}
+		inFlight = queue.removeFirst();
+		Log.i(TAG, "Requesting " + inFlight.permissions.length + " permission(s)");
+		FragmentCompat.requestPermissions(this, inFlight.permissions, REQUEST_CODE);
+	}
+
+	@SuppressLint("Override")
+	@Override
+	public void onRequestPermissionsResult(int requestCode, String[] permissions, int[] grantResults) {
+		Request request = inFlight;
+		inFlight = null;
+		if (request == null) {
+			return;
+		}
+
+		// an empty result means the request was interrupted, which counts as denied
+		boolean[] granted = new boolean[request.permissions.length];
+		for (int i = 0; i < request.permissions.length; i++) {
+			for (int j = 0; j < permissions.length && j < grantResults.length; j++) {
+				if (request.permissions[i].equals(permissions[j])) {
+					granted[i] = grantResults[j] == PackageManager.PERMISSION_GRANTED;
+				}
+			}
+			Log.i(TAG, "Permission " + (granted[i] ? "granted: " : "denied: ") + request.permissions[i]);
+			PermissionRequester.cacheGrant(request.permissions[i], granted[i]);
+		}
+		request.callback.onResult(request.permissions, granted);
+		requestNext();
+	}
+}
@@ -15,12 +15,9 @@
 package com.androidexperiments.sprayscape.androidutils;
 
 import android.os.Build;
-import android.annotation.SuppressLint;
 import android.app.Activity;
 import android.app.AlertDialog;
-import android.app.Fragment;
 import android.app.FragmentManager;
-import android.app.FragmentTransaction;
 import android.util.Log;
 import android.content.DialogInterface;
 import android.content.DialogInterface.OnClickListener;
@@ -29,13 +26,23 @@ import android.content.pm.PackageManager;
 
 import com.unity3d.player.UnityPlayer;
 
-import android.support.v13.app.*;
 import android.support.v4.app.ActivityCompat;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
 public class PermissionRequester {
 	private final static String TAG = "PermissionRequester";
 	private final static String DEFAULT_UNITY_CALLBACK_GAMEOBJECT_NAME = "PermissionCallbackReceiver";
 	private final static String DEFAULT_UNITY_CALLBACK_METHOD_NAME = "PermissionCallback";
+	private final static String DEFAULT_UNITY_BATCH_CALLBACK_METHOD_NAME = "PermissionsCallback";
+
+	// grant state seen since the activity last resumed, the request fragment clears it on every resume
+	private final static Map<String, Boolean> grantCache = new ConcurrentHashMap<String, Boolean>();
+	private static volatile boolean grantCacheEnabled;
 	
 	private static void SendMessage(final String objectName, final String methodName) {
 		try {
@@ -53,10 +60,67 @@ public class PermissionRequester {
 		}
 	}
 	
+	// "permission,granted;permission,granted" in the order the permissions were asked for
+	private static void SendPermissionResults(final String[] permissions, final boolean[] granted, final String objectName, final String methodName) {
+		StringBuilder results = new StringBuilder();
+		for (int i = 0; i < permissions.length; i++) {
+			if (i > 0) {
+				results.append(';');
+			}
+			results.append(permissions[i]).append(',').append(granted[i]);
+		}
+		try {
+			UnityPlayer.UnitySendMessage(objectName, methodName, results.toString());
+		} catch (Exception err) {
+			Log.e(TAG, "Failed to send message to untiy method: " + objectName + "." + methodName + "(string)", err);
+		}
+	}
+
 	public static boolean hasPermission(final String permission) {
+		Boolean cached = grantCacheEnabled ? grantCache.get(permission) : null;
+		if (cached != null) {
+			return cached;
+		}
+
 		final Activity currentActivity = UnityPlayer.currentActivity;
 		int res = ActivityCompat.checkSelfPermission(currentActivity, permission);
-		return res == PackageManager.PERMISSION_GRANTED;
+		boolean granted = res == PackageManager.PERMISSION_GRANTED;
+		if (grantCacheEnabled) {
+			grantCache.put(permission, granted);
+		} else {
+			// nothing to keep the cache honest until the request fragment is in place
+			currentActivity.runOnUiThread(new Runnable() {
+				@Override
+				public void run() {
+					getRequestFragment(currentActivity);
+				}
+			});
+		}
+		return granted;
+	}
+
+	static void setGrantCacheEnabled(boolean enabled) {
+		grantCacheEnabled = enabled;
+		grantCache.clear();
+	}
+
+	static void cacheGrant(String permission, boolean granted) {
+		if (grantCacheEnabled) {
+			grantCache.put(permission, granted);
+		}
+	}
+
+	// the one request fragment, added the first time it's needed. UI thread only
+	private static PermissionRequestFragment getRequestFragment(final Activity activity) {
+		FragmentManager fragmentManager = activity.getFragmentManager();
+		PermissionRequestFragment fragment = (PermissionRequestFragment) fragmentManager.findFragmentByTag(PermissionRequestFragment.FRAGMENT_TAG);
+		if (fragment == null) {
+			fragment = new PermissionRequestFragment();
+			fragmentManager.beginTransaction().add(fragment, PermissionRequestFragment.FRAGMENT_TAG).commitAllowingStateLoss();
+			// so the next lookup finds it rather than adding another
+			fragmentManager.executePendingTransactions();
+		}
+		return fragment;
 	}
 	
 	public static boolean shouldShowRequestPermissionRationale(final String permission) {
@@ -125,61 +189,85 @@ public class PermissionRequester {
 	public static void requestPermission(final String permission, final String objectName, final String methodName) {
 		Log.i(TAG, "requestPermission() called for permission: " + permission);
 		
-		final Activity currentActivity = UnityPlayer.currentActivity;
-		boolean granted = ActivityCompat.checkSelfPermission(currentActivity, permission) == PackageManager.PERMISSION_GRANTED;
-		
-		if (granted) {
+		if (hasPermission(permission)) {
 			Log.i(TAG, "Permission already granted: " + permission);
 			SendPermissionResult(permission, true, objectName, methodName);
 			return;
 		}
-		
-		try {
-			// use a fragment here because we wouldn't be able to capture onRequestPermissionsResult() on the main activity unless we sub-classed it...
-			// final values so the fragment inner-class can access them
-			final FragmentManager fragmentManager = currentActivity.getFragmentManager();
-			final Fragment request = new Fragment() {
 
-				@Override
-				public void onStart() {
-					super.onStart();
-					Log.i(TAG, "Permission fragment onStart()");
-					FragmentCompat.requestPermissions(this,
-							new String[] { permission }, 0);
-				}
+		request(new String[] { permission }, new PermissionRequestFragment.Callback() {
+			@Override
+			public void onResult(String[] permissions, boolean[] granted) {
+				SendPermissionResult(permission, granted[0], objectName, methodName);
+			}
+		}, new Runnable() {
+			@Override
+			public void run() {
+				SendPermissionResult(permission, false, objectName, methodName);
+			}
+		});
+	}
+
+	public static void requestPermissions(final String[] permissions) {
+		requestPermissions(permissions, DEFAULT_UNITY_CALLBACK_GAMEOBJECT_NAME, DEFAULT_UNITY_BATCH_CALLBACK_METHOD_NAME);
+	}
+
+	/**
+	 * Ask for several permissions with a single dialog flow. Permissions already granted aren't
+	 * asked for again. The results come back in one message, "permission,granted;...", in the
+	 * order of permissions.
+	 */
+	public static void requestPermissions(final String[] permissions, final String objectName, final String methodName) {
+		Log.i(TAG, "requestPermissions() called for " + permissions.length + " permission(s)");
+
+		final boolean[] granted = new boolean[permissions.length];
+		List<String> missing = new ArrayList<String>();
+		for (int i = 0; i < permissions.length; i++) {
+			granted[i] = hasPermission(permissions[i]);
+			if (!granted[i]) {
+				missing.add(permissions[i]);
+			}
+		}
+
+		if (missing.isEmpty()) {
+			Log.i(TAG, "All permissions already granted");
+			SendPermissionResults(permissions, granted, objectName, methodName);
+			return;
+		}
 
-				@SuppressLint("Override")
-				@SuppressWarnings("unused")
-				public void onRequestPermissionsResult(int requestCode, String[] permissions, int[] grantResults) {
-					Log.i(TAG, "onRequestPermissionsResult(" + requestCode + ", " + permissions.toString() + ", " + grantResults.toString() + ")");
-
-					if (grantResults.length > 0) {
-						for (int i=0 ; i < grantResults.length; i++) {
-							if (grantResults[i] == PackageManager.PERMISSION_GRANTED) {
-								Log.i(TAG, "Permission granted: " + permissions[i]);
-								SendPermissionResult(permissions[i], true, objectName, methodName);
-							} else {
-								Log.i(TAG, "Permission denied: " + permissions[i]);
-								SendPermissionResult(permissions[i], false, objectName, methodName);
-							}
+		request(missing.toArray(new String[missing.size()]), new PermissionRequestFragment.Callback() {
+			@Override
+			public void onResult(String[] requested, boolean[] requestedGranted) {
+				for (int i = 0; i < requested.length; i++) {
+					for (int j = 0; j < permissions.length; j++) {
+						if (permissions[j].equals(requested[i])) {
+							granted[j] = requestedGranted[i];
 						}
-					} else {
-						Log.i(TAG, "Permission denied: " + permission);
-						SendPermissionResult(permission, false, objectName, methodName);
 					}
+				}
+				SendPermissionResults(permissions, granted, objectName, methodName);
+			}
+		}, new Runnable() {
+			@Override
+			public void run() {
+				SendPermissionResults(permissions, granted, objectName, methodName);
+			}
+		});
+	}
 
-					FragmentTransaction fragmentTransaction = fragmentManager.beginTransaction();
-					fragmentTransaction.remove(this);
-					fragmentTransaction.commit();
+	private static void request(final String[] permissions, final PermissionRequestFragment.Callback callback, final Runnable onError) {
+		final Activity currentActivity = UnityPlayer.currentActivity;
+		currentActivity.runOnUiThread(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					// use a fragment here because we wouldn't be able to capture onRequestPermissionsResult() on the main activity unless we sub-classed it...
+					getRequestFragment(currentActivity).request(permissions, callback);
+				} catch (Exception error) {
+					Log.e(TAG, "Permission request failed: " + Arrays.toString(permissions), error);
+					onError.run();
 				}
-			};
-
-			FragmentTransaction fragmentTransaction = fragmentManager.beginTransaction();
-			fragmentTransaction.add(0, request);
-			fragmentTransaction.commit();
-		} catch (Exception error) {
-			Log.e(TAG, "Permission request failed: '" + permission + "'", error);
-			SendPermissionResult(permission, false, objectName, methodName);
-		}
+			}
+		});
 	}
 }
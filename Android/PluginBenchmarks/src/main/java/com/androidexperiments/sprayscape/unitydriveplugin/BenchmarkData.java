@@ -0,0 +1,146 @@
+// Copyright 2016 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.androidexperiments.sprayscape.unitydriveplugin;
+
+import com.google.api.client.http.LowLevelHttpRequest;
+import com.google.api.client.http.LowLevelHttpResponse;
+import com.google.api.client.json.Json;
+import com.google.api.client.testing.http.MockHttpTransport;
+import com.google.api.client.testing.http.MockLowLevelHttpRequest;
+import com.google.api.client.testing.http.MockLowLevelHttpResponse;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Random;
+
+/**
+ * A spray sized jpg on disk, the Drive responses the upload path reads, and a transport that
+ * answers like Drive's resumable upload endpoint without going near the network.
+ */
+class BenchmarkData {
+
+    static final String FOLDER_ID = "0B3x9folderIdForBenchmarks";
+    static final String FILE_ID = "0B3x9fileIdForBenchmarks000";
+    static final String SESSION_URI = "https://www.googleapis.com/upload/drive/v3/files?uploadType=resumable&upload_id=benchmark";
+
+    // about what a 2048x1024 spray comes out at
+    static final int SPRAY_BYTES = 1200 * 1024;
+
+    static final String UPLOADED_FILE_JSON = "{\"kind\":\"drive#file\",\"id\":\"" + FILE_ID + "\",\"name\":\"Sprayscape 2016-08-22 12.00.00.jpg\","
+            + "\"mimeType\":\"image/jpeg\",\"parents\":[\"" + FOLDER_ID + "\"]}";
+    static final String FOLDER_LIST_JSON = "{\"kind\":\"drive#fileList\",\"files\":[{\"kind\":\"drive#file\",\"id\":\"" + FOLDER_ID + "\","
+            + "\"name\":\"Sprayscape\",\"mimeType\":\"application/vnd.google-apps.folder\"}]}";
+    static final String PERMISSION_LIST_JSON = "{\"kind\":\"drive#permissionList\",\"permissions\":["
+            + "{\"kind\":\"drive#permission\",\"id\":\"01234567890123456789\",\"type\":\"user\",\"role\":\"owner\"},"
+            + "{\"kind\":\"drive#permission\",\"id\":\"anyoneWithLink\",\"type\":\"anyone\",\"role\":\"reader\"},"
+            + "{\"kind\":\"drive#permission\",\"id\":\"98765432109876543210\",\"type\":\"user\",\"role\":\"writer\"}]}";
+
+    // stands in for the socket, chunk bodies are written here and thrown away
+    static final class NullOutputStream extends OutputStream {
+        long written;
+
+        @Override
+        public void write(int b) {
+            written++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+            written += len;
+        }
+    }
+
+    static File writeSpray() throws IOException {
+        File file = File.createTempFile("spray", ".jpg");
+        file.deleteOnExit();
+        byte[] body = new byte[SPRAY_BYTES];
+        new Random(42).nextBytes(body);
+        try (FileOutputStream out = new FileOutputStream(file)) {
+            // SOI and a JFIF APP0, which is what the metadata gets spliced in after
+            out.write(new byte[]{(byte) 0xff, (byte) 0xd8, (byte) 0xff, (byte) 0xe0, 0x00, 0x10,
+                    'J', 'F', 'I', 'F', 0x00, 0x01, 0x01, 0x00, 0x00, 0x01, 0x00, 0x01, 0x00, 0x00});
+            out.write(body);
+            out.write(new byte[]{(byte) 0xff, (byte) 0xd9});
+        }
+        return file;
+    }
+
+    // an actual 2048x1024 jpeg, for the benchmarks that decode it: gradients with a little noise, like paint on a camera feed
+    static File writeSprayImage(ImageCodec codec) throws IOException {
+        return writeSprayImage(codec, 42);
+    }
+
+    // a different seed for a spray with different bytes, so it doesn't deduplicate against the others
+    static File writeSprayImage(ImageCodec codec, long seed) throws IOException {
+        File file = File.createTempFile("spray", ".jpg");
+        file.deleteOnExit();
+        int width = 2048;
+        int height = 1024;
+        int[] argb = new int[width * height];
+        Random random = new Random(seed);
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                int noise = random.nextInt(16);
+                argb[y * width + x] = 0xff000000 | ((x * 255 / width + noise) & 0xff) << 16
+                        | ((y * 255 / height + noise) & 0xff) << 8 | ((x + y) / 12 & 0xff);
+            }
+        }
+        try (OutputStream out = new FileOutputStream(file)) {
+            codec.encode(new ImageCodec.Pixels(width, height, argb), 90, out);
+        }
+        return file;
+    }
+
+    /**
+     * Answers the session POST with a Location and each chunk PUT with a 308 (or the file once the
+     * last byte is in), after writing the chunk out the way the real transport would.
+     */
+    static MockHttpTransport driveTransport(final NullOutputStream sink) {
+        return new MockHttpTransport() {
+            @Override
+            public LowLevelHttpRequest buildRequest(final String method, String url) {
+                return new MockLowLevelHttpRequest(url) {
+                    @Override
+                    public LowLevelHttpResponse execute() throws IOException {
+                        MockLowLevelHttpResponse response = new MockLowLevelHttpResponse();
+                        if (!"PUT".equals(method)) {
+                            response.addHeader("Location", SESSION_URI);
+                            response.setContentType(Json.MEDIA_TYPE);
+                            response.setContent("{}");
+                            return response;
+                        }
+                        if (getStreamingContent() != null) {
+                            getStreamingContent().writeTo(sink);
+                        }
+                        // bytes <first>-<last>/<total>
+                        String range = getFirstHeaderValue("Content-Range");
+                        long last = Long.parseLong(range.substring(range.indexOf('-') + 1, range.indexOf('/')));
+                        long total = Long.parseLong(range.substring(range.indexOf('/') + 1));
+                        if (last + 1 < total) {
+                            response.setStatusCode(308);
+                            response.addHeader("Range", "bytes=0-" + last);
+                        } else {
+                            response.setContentType(Json.MEDIA_TYPE);
+                            response.setContent(UPLOADED_FILE_JSON);
+                        }
+                        return response;
+                    }
+                };
+            }
+        };
+    }
+}
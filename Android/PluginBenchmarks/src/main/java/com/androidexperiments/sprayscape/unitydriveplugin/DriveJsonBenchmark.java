@@ -0,0 +1,80 @@
+// Copyright 2016 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.androidexperiments.sprayscape.unitydriveplugin;
+
+import com.google.api.client.json.JsonObjectParser;
+import com.google.api.client.json.jackson2.JacksonFactory;
+import com.google.api.services.drive.model.File;
+import com.google.api.services.drive.model.FileList;
+import com.google.api.services.drive.model.PermissionList;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Parsing the Drive responses the upload and share path reads into the client's model classes,
+ * which goes through reflection on every field.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class DriveJsonBenchmark {
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private JsonObjectParser parser;
+    private byte[] uploadedFile;
+    private byte[] folderList;
+    private byte[] permissionList;
+
+    @Setup
+    public void setUp() {
+        parser = new JsonObjectParser(JacksonFactory.getDefaultInstance());
+        uploadedFile = BenchmarkData.UPLOADED_FILE_JSON.getBytes(UTF_8);
+        folderList = BenchmarkData.FOLDER_LIST_JSON.getBytes(UTF_8);
+        permissionList = BenchmarkData.PERMISSION_LIST_JSON.getBytes(UTF_8);
+    }
+
+    @Benchmark
+    public File parseUploadedFile() throws IOException {
+        return parser.parseAndClose(new ByteArrayInputStream(uploadedFile), UTF_8, File.class);
+    }
+
+    @Benchmark
+    public FileList parseFolderList() throws IOException {
+        return parser.parseAndClose(new ByteArrayInputStream(folderList), UTF_8, FileList.class);
+    }
+
+    @Benchmark
+    public PermissionList parsePermissionList() throws IOException {
+        return parser.parseAndClose(new ByteArrayInputStream(permissionList), UTF_8, PermissionList.class);
+    }
+}
@@ -0,0 +1,92 @@
+// Copyright 2016 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.androidexperiments.sprayscape.unitydriveplugin;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.GroupThreads;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The callback ring: a frame's worth of progress events offered and drained on one thread, and
+ * three producers (like the upload pool) offering against the main thread draining.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class EventQueueBenchmark {
+
+    private static final int BATCH = 64;
+    private static final String TARGET = "DriveReceiver";
+    private static final String METHOD = "DriveUploadProgress";
+    private static final String REQUEST_ID = "5f0c9a3e-7d1b-4e6a-9b2f-0a8c4d6e1f37";
+    private static final String PAYLOAD = REQUEST_ID + ":524288:1228800:262144";
+
+    @State(Scope.Thread)
+    public static class Local {
+        PluginEventQueue queue;
+
+        @Setup
+        public void setUp() {
+            queue = new PluginEventQueue(1024);
+        }
+    }
+
+    @State(Scope.Group)
+    public static class Shared {
+        PluginEventQueue queue;
+
+        @Setup
+        public void setUp() {
+            queue = new PluginEventQueue(1024);
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BATCH)
+    public byte[] offerAndDrain(Local local) {
+        for (int i = 0; i < BATCH; i++) {
+            local.queue.offer(TARGET, METHOD, REQUEST_ID, i, PAYLOAD);
+        }
+        return local.queue.drain();
+    }
+
+    @Benchmark
+    @Group("contended")
+    @GroupThreads(3)
+    public boolean offer(Shared shared) {
+        return shared.queue.offer(TARGET, METHOD, REQUEST_ID, 0, PAYLOAD);
+    }
+
+    @Benchmark
+    @Group("contended")
+    @GroupThreads(1)
+    public byte[] drain(Shared shared) {
+        return shared.queue.drain();
+    }
+}
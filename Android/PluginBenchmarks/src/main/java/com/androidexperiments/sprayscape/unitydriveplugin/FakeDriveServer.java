@@ -0,0 +1,675 @@
+// Copyright 2016 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.androidexperiments.sprayscape.unitydriveplugin;
+
+import com.google.api.client.json.JsonFactory;
+import com.google.api.client.json.jackson2.JacksonFactory;
+import com.google.api.client.util.DateTime;
+import com.google.api.services.drive.model.File;
+import com.google.api.services.drive.model.FileList;
+import com.google.api.services.drive.model.Permission;
+import com.google.api.services.drive.model.PermissionList;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.net.URLDecoder;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * A local stand-in for the parts of Drive v3 the plugin talks to: files.list (by name, mime type
+ * and appProperties), files.create
+ * (metadata only, multipart and resumable), files.get, files.update of appProperties,
+ * permissions.list/create and batch requests of those. Files live in memory and uploaded bytes are counted then dropped.
+ *
+ * {@link Faults} adds latency, a per-request bandwidth limit and random 503s and rate limit 403s,
+ * so the plugin's retries and circuit breaker can be driven on a Linux box without a Google
+ * account. Authorization headers are ignored.
+ */
+class FakeDriveServer {
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final String FOLDER_MIME_TYPE = "application/vnd.google-apps.folder";
+    private static final String BATCH_BOUNDARY = "batch_fake_drive";
+    private static final int STATUS_RESUME_INCOMPLETE = 308;
+
+    private static final Pattern NAME_QUERY = Pattern.compile("name\\s*=\\s*'((?:[^'\\\\]|\\\\.)*)'");
+    private static final Pattern MIME_TYPE_QUERY = Pattern.compile("mimeType\\s*=\\s*'([^']*)'");
+    private static final Pattern APP_PROPERTY_QUERY = Pattern.compile("appProperties has \\{ key='([^']*)' and value='([^']*)' \\}");
+    private static final Pattern BATCH_REQUEST_LINE = Pattern.compile("^(GET|POST|PUT|PATCH|DELETE) (\\S+)");
+
+    static class Faults {
+        // added before every request is answered, plus up to latencyJitterMs more
+        long latencyMs;
+        long latencyJitterMs;
+        // per request, in each direction, 0 for no limit
+        long bytesPerSecond;
+        // fraction of calls answered with a 503 backendError
+        double errorRate;
+        // fraction of calls answered with a 403 userRateLimitExceeded
+        double rateLimitRate;
+    }
+
+    private static class Response {
+        final int status;
+        final Map<String, String> headers = new LinkedHashMap<>();
+        final byte[] body;
+
+        Response(int status, byte[] body) {
+            this.status = status;
+            this.body = body;
+        }
+    }
+
+    private static class Session {
+        final File metadata;
+        final long total;
+        long received;
+
+        Session(File metadata, long total) {
+            this.metadata = metadata;
+            this.total = total;
+        }
+    }
+
+    private final Faults faults;
+    private final JsonFactory jsonFactory = JacksonFactory.getDefaultInstance();
+    private final Random random = new Random();
+    private final HttpServer server;
+    private final ExecutorService executor;
+
+    // guarded by this
+    private final Map<String, File> files = new LinkedHashMap<>();
+    private final Map<String, List<Permission>> permissions = new HashMap<>();
+    private final Map<String, Session> sessions = new HashMap<>();
+    private long nextId;
+
+    private final AtomicLong requests = new AtomicLong();
+    private final AtomicLong injectedErrors = new AtomicLong();
+    private final AtomicLong bytesReceived = new AtomicLong();
+    private final ConcurrentMap<String, AtomicLong> calls = new ConcurrentHashMap<>();
+
+    FakeDriveServer(int port, Faults faults) throws IOException {
+        this.faults = faults;
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", port), 128);
+        executor = Executors.newCachedThreadPool(DriveExecutors.newThreadFactory("fake-drive"));
+        server.setExecutor(executor);
+        server.createContext("/", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                try {
+                    serve(exchange);
+                } catch (IOException | RuntimeException ex) {
+                    // a bug in the fake, not something to hand the plugin as a drive error
+                    System.err.println("fake drive failed on " + exchange.getRequestMethod() + " " + exchange.getRequestURI());
+                    ex.printStackTrace();
+                    exchange.sendResponseHeaders(500, -1);
+                } finally {
+                    exchange.close();
+                }
+            }
+        });
+    }
+
+    void start() {
+        server.start();
+    }
+
+    void stop() {
+        server.stop(0);
+        executor.shutdownNow();
+    }
+
+    // what the Drive client and ResumableUpload should be given as their root url
+    String getRootUrl() {
+        return "http://127.0.0.1:" + server.getAddress().getPort() + "/";
+    }
+
+    // http requests, a batch counts once
+    long getRequestCount() {
+        return requests.get();
+    }
+
+    long getInjectedErrorCount() {
+        return injectedErrors.get();
+    }
+
+    long getBytesReceived() {
+        return bytesReceived.get();
+    }
+
+    // calls by name (files.list, upload.chunk, ...), calls inside a batch are counted here too
+    Map<String, Long> getCallCounts() {
+        Map<String, Long> counts = new TreeMap<>();
+        for (Map.Entry<String, AtomicLong> entry : calls.entrySet()) {
+            counts.put(entry.getKey(), entry.getValue().get());
+        }
+        return counts;
+    }
+
+    synchronized int getFileCount() {
+        return files.size();
+    }
+
+    private void serve(HttpExchange exchange) throws IOException {
+        requests.incrementAndGet();
+        long started = System.nanoTime();
+        byte[] body = readBody(exchange.getRequestBody(), started);
+        bytesReceived.addAndGet(body.length);
+        if ("gzip".equals(exchange.getRequestHeaders().getFirst("Content-Encoding"))) {
+            // the google client gzips json request bodies unless told not to
+            body = readBody(new GZIPInputStream(new ByteArrayInputStream(body)), 0);
+        }
+        sleep(faults.latencyMs + (faults.latencyJitterMs > 0 ? nextLong(faults.latencyJitterMs + 1) : 0));
+
+        URI uri = exchange.getRequestURI();
+        String contentType = exchange.getRequestHeaders().getFirst("Content-Type");
+        Response response;
+        if (uri.getPath().startsWith("/batch")) {
+            count("batch");
+            response = batch(body, contentType);
+        } else {
+            // the client sends PATCH as a POST, HttpURLConnection can't do PATCH
+            String method = exchange.getRequestHeaders().getFirst("X-HTTP-Method-Override");
+            response = route(method != null ? method : exchange.getRequestMethod(), uri, contentType,
+                    exchange.getRequestHeaders().getFirst("Content-Range"), body);
+        }
+
+        for (Map.Entry<String, String> header : response.headers.entrySet()) {
+            exchange.getResponseHeaders().set(header.getKey(), header.getValue());
+        }
+        exchange.sendResponseHeaders(response.status, response.body == null ? -1 : response.body.length);
+        if (response.body != null) {
+            OutputStream out = exchange.getResponseBody();
+            write(out, response.body, System.nanoTime());
+            out.flush();
+        }
+    }
+
+    private Response route(String method, URI uri, String contentType, String contentRange, byte[] body) throws IOException {
+        Map<String, String> query = parseQuery(uri.getRawQuery());
+        String path = uri.getPath();
+        String[] segments = path.split("/");
+
+        if (path.startsWith("/upload/drive/v3/files")) {
+            String uploadId = query.get("upload_id");
+            if (uploadId != null) {
+                // chunks are where an upload spends its time, so they fail as often as anything else
+                return injectFault("upload.chunk", uploadChunk(uploadId, contentRange, body));
+            }
+            if ("multipart".equals(query.get("uploadType"))) {
+                return injectFault("files.create.multipart", createMultipart(contentType, body));
+            }
+            return injectFault("files.create.resumable", startSession(body));
+        }
+
+        // /drive/v3/files[/<id>[/permissions]]
+        if (segments.length >= 4 && "drive".equals(segments[1]) && "files".equals(segments[3])) {
+            if (segments.length == 4) {
+                if ("GET".equals(method)) {
+                    return injectFault("files.list", listFiles(query.get("q"), "createdTime".equals(query.get("orderBy"))));
+                }
+                return injectFault("files.create", createFile(jsonFactory.fromInputStream(new ByteArrayInputStream(body), File.class)));
+            }
+            String fileId = segments[4];
+            if (segments.length == 5 && "GET".equals(method)) {
+                return injectFault("files.get", getFile(fileId));
+            }
+            if (segments.length == 5 && "PATCH".equals(method)) {
+                return injectFault("files.update", updateFile(fileId, jsonFactory.fromInputStream(new ByteArrayInputStream(body), File.class)));
+            }
+            if (segments.length == 6 && "permissions".equals(segments[5])) {
+                if ("GET".equals(method)) {
+                    return injectFault("permissions.list", listPermissions(fileId));
+                }
+                Permission permission = jsonFactory.fromInputStream(new ByteArrayInputStream(body), Permission.class);
+                return injectFault("permissions.create", createPermission(fileId, permission));
+            }
+        }
+        count("unknown");
+        return error(404, "notFound", "No fake for " + method + " " + path);
+    }
+
+    // the call happens either way, the fault only replaces what the client hears back
+    private Response injectFault(String call, Response response) {
+        count(call);
+        double roll;
+        synchronized (random) {
+            roll = random.nextDouble();
+        }
+        if (roll < faults.errorRate) {
+            injectedErrors.incrementAndGet();
+            return error(503, "backendError", "Backend Error");
+        }
+        if (roll < faults.errorRate + faults.rateLimitRate) {
+            injectedErrors.incrementAndGet();
+            return error(403, "userRateLimitExceeded", "User Rate Limit Exceeded");
+        }
+        return response;
+    }
+
+    private synchronized Response listFiles(String q, boolean oldestFirst) {
+        String name = null;
+        String mimeType = null;
+        Map<String, String> appProperties = new HashMap<>();
+        if (q != null) {
+            Matcher matcher = NAME_QUERY.matcher(q);
+            if (matcher.find()) {
+                name = matcher.group(1).replace("\\'", "'");
+            }
+            matcher = MIME_TYPE_QUERY.matcher(q);
+            if (matcher.find()) {
+                mimeType = matcher.group(1);
+            }
+            matcher = APP_PROPERTY_QUERY.matcher(q);
+            while (matcher.find()) {
+                appProperties.put(matcher.group(1), matcher.group(2));
+            }
+        }
+        List<File> matches = new ArrayList<>();
+        for (File file : files.values()) {
+            if ((name == null || name.equals(file.getName())) && (mimeType == null || mimeType.equals(file.getMimeType()))
+                    && hasAppProperties(file, appProperties)) {
+                matches.add(file);
+            }
+        }
+        if (!oldestFirst) {
+            // drive's default order is by modification, newest first is close enough here
+            Collections.reverse(matches);
+        }
+        return json(200, new FileList().setFiles(matches));
+    }
+
+    private static boolean hasAppProperties(File file, Map<String, String> wanted) {
+        for (Map.Entry<String, String> property : wanted.entrySet()) {
+            if (file.getAppProperties() == null || !property.getValue().equals(file.getAppProperties().get(property.getKey()))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private synchronized Response createFile(File metadata) {
+        File file = new File()
+                .setId(newId())
+                .setName(metadata.getName())
+                .setMimeType(metadata.getMimeType() == null ? "application/octet-stream" : metadata.getMimeType())
+                .setParents(metadata.getParents())
+                .setAppProperties(metadata.getAppProperties())
+                .setSize(metadata.getSize())
+                .setTrashed(false)
+                .setCreatedTime(new DateTime(System.currentTimeMillis()));
+        files.put(file.getId(), file);
+        List<Permission> owner = new ArrayList<>();
+        owner.add(new Permission().setId("owner").setType("user").setRole("owner"));
+        permissions.put(file.getId(), owner);
+        return json(200, file);
+    }
+
+    private synchronized Response getFile(String fileId) {
+        File file = files.get(fileId);
+        return file == null ? error(404, "notFound", "File not found: " + fileId) : json(200, file);
+    }
+
+    // only appProperties, merged into what the file has, the way drive does
+    private synchronized Response updateFile(String fileId, File update) {
+        File file = files.get(fileId);
+        if (file == null) {
+            return error(404, "notFound", "File not found: " + fileId);
+        }
+        if (update.getAppProperties() != null) {
+            Map<String, String> properties = new HashMap<>();
+            if (file.getAppProperties() != null) {
+                properties.putAll(file.getAppProperties());
+            }
+            properties.putAll(update.getAppProperties());
+            file.setAppProperties(properties);
+        }
+        return json(200, file);
+    }
+
+    private synchronized Response listPermissions(String fileId) {
+        List<Permission> list = permissions.get(fileId);
+        if (list == null) {
+            return error(404, "notFound", "File not found: " + fileId);
+        }
+        return json(200, new PermissionList().setPermissions(new ArrayList<>(list)));
+    }
+
+    private synchronized Response createPermission(String fileId, Permission requested) {
+        List<Permission> list = permissions.get(fileId);
+        if (list == null) {
+            return error(404, "notFound", "File not found: " + fileId);
+        }
+        Permission permission = new Permission()
+                .setId("anyone".equals(requested.getType()) ? "anyoneWithLink" : newId())
+                .setType(requested.getType())
+                .setRole(requested.getRole());
+        list.add(permission);
+        return json(200, permission);
+    }
+
+    private Response startSession(byte[] body) throws IOException {
+        File metadata = body.length == 0 ? new File() : jsonFactory.fromInputStream(new ByteArrayInputStream(body), File.class);
+        Response response = new Response(200, null);
+        synchronized (this) {
+            String uploadId = newId();
+            // the total comes with the first chunk's Content-Range, X-Upload-Content-Length is optional
+            sessions.put(uploadId, new Session(metadata, -1));
+            response.headers.put("Location", getRootUrl() + "upload/drive/v3/files?uploadType=resumable&upload_id=" + uploadId);
+        }
+        return response;
+    }
+
+    private Response uploadChunk(String uploadId, String contentRange, byte[] body) {
+        // bytes <first>-<last>/<total>, or bytes */<total> to ask how much arrived
+        if (contentRange == null || !contentRange.startsWith("bytes ") || contentRange.indexOf('/') < 0) {
+            return error(400, "badContentRange", "Bad Content-Range: " + contentRange);
+        }
+        String range = contentRange.substring("bytes ".length(), contentRange.indexOf('/'));
+        long total = Long.parseLong(contentRange.substring(contentRange.indexOf('/') + 1));
+
+        File metadata;
+        long received;
+        synchronized (this) {
+            Session session = sessions.get(uploadId);
+            if (session == null) {
+                return error(404, "notFound", "Upload session not found: " + uploadId);
+            }
+            if (!"*".equals(range)) {
+                long first = Long.parseLong(range.substring(0, range.indexOf('-')));
+                // a chunk that doesn't start where the last one stopped is dropped, the 308 tells the client where to go from
+                if (first == session.received) {
+                    session.received += body.length;
+                }
+            }
+            received = session.received;
+            metadata = session.metadata;
+            if (received < total) {
+                Response response = new Response(STATUS_RESUME_INCOMPLETE, null);
+                if (received > 0) {
+                    response.headers.put("Range", "bytes=0-" + (received - 1));
+                }
+                return response;
+            }
+            sessions.remove(uploadId);
+        }
+        return createFile(metadata.setSize(received));
+    }
+
+    // multipart/related: the metadata json, then the media
+    private Response createMultipart(String contentType, byte[] body) throws IOException {
+        List<byte[]> parts = splitMultipart(body, boundary(contentType));
+        if (parts.size() < 2) {
+            return error(400, "badContent", "Expected metadata and media parts, got " + parts.size());
+        }
+        File metadata = jsonFactory.fromInputStream(new ByteArrayInputStream(partBody(parts.get(0))), File.class);
+        return createFile(metadata.setSize((long) partBody(parts.get(1)).length));
+    }
+
+    // multipart/mixed of application/http parts, each routed as its own call and answered in order
+    private Response batch(byte[] body, String contentType) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        int part = 0;
+        for (byte[] request : splitMultipart(body, boundary(contentType))) {
+            part++;
+            // the part headers, then the wrapped request line, its headers and its body
+            byte[] http = partBody(request);
+            String head = new String(http, 0, headerEnd(http), UTF_8);
+            Matcher matcher = BATCH_REQUEST_LINE.matcher(head);
+            Response response;
+            if (!matcher.find()) {
+                response = error(400, "badRequest", "Bad batch part");
+            } else {
+                String partContentType = null;
+                for (String line : head.split("\r\n")) {
+                    if (line.toLowerCase().startsWith("content-type:")) {
+                        partContentType = line.substring("content-type:".length()).trim();
+                    }
+                }
+                response = route(matcher.group(1), URI.create(matcher.group(2)), partContentType, null, partBody(http));
+            }
+
+            out.write(("--" + BATCH_BOUNDARY + "\r\nContent-Type: application/http\r\nContent-ID: response-" + part + "\r\n\r\n"
+                    + "HTTP/1.1 " + response.status + " " + reason(response.status) + "\r\n").getBytes(UTF_8));
+            for (Map.Entry<String, String> header : response.headers.entrySet()) {
+                out.write((header.getKey() + ": " + header.getValue() + "\r\n").getBytes(UTF_8));
+            }
+            byte[] partBody = response.body == null ? new byte[0] : response.body;
+            out.write(("Content-Length: " + partBody.length + "\r\n\r\n").getBytes(UTF_8));
+            out.write(partBody);
+            out.write("\r\n".getBytes(UTF_8));
+        }
+        out.write(("--" + BATCH_BOUNDARY + "--\r\n").getBytes(UTF_8));
+
+        Response response = new Response(200, out.toByteArray());
+        response.headers.put("Content-Type", "multipart/mixed; boundary=" + BATCH_BOUNDARY);
+        return response;
+    }
+
+    private Response json(int status, Object item) {
+        try {
+            Response response = new Response(status, jsonFactory.toByteArray(item));
+            response.headers.put("Content-Type", "application/json; charset=UTF-8");
+            return response;
+        } catch (IOException ex) {
+            throw new IllegalStateException(ex);
+        }
+    }
+
+    // the shape GoogleJsonResponseException parses, so the plugin sees the same reasons it would from drive
+    private static Response error(int status, String reason, String message) {
+        String json = "{\"error\":{\"errors\":[{\"domain\":\"global\",\"reason\":\"" + reason + "\",\"message\":\""
+                + message.replace("\"", "'") + "\"}],\"code\":" + status + ",\"message\":\"" + message.replace("\"", "'") + "\"}}";
+        Response response = new Response(status, json.getBytes(UTF_8));
+        response.headers.put("Content-Type", "application/json; charset=UTF-8");
+        return response;
+    }
+
+    private static String reason(int status) {
+        switch (status) {
+            case 200:
+                return "OK";
+            case 308:
+                return "Resume Incomplete";
+            case 403:
+                return "Forbidden";
+            case 404:
+                return "Not Found";
+            case 503:
+                return "Service Unavailable";
+            default:
+                return "Error";
+        }
+    }
+
+    private void count(String call) {
+        AtomicLong counter = calls.get(call);
+        if (counter == null) {
+            calls.putIfAbsent(call, new AtomicLong());
+            counter = calls.get(call);
+        }
+        counter.incrementAndGet();
+    }
+
+    // guarded by this
+    private String newId() {
+        return "fake" + Long.toString(++nextId, 36) + Long.toHexString(System.nanoTime() & 0xffffff);
+    }
+
+    private long nextLong(long bound) {
+        synchronized (random) {
+            return (long) (random.nextDouble() * bound);
+        }
+    }
+
+    private byte[] readBody(InputStream in, long startNanos) throws IOException {
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        byte[] buffer = new byte[16 * 1024];
+        int n;
+        while ((n = in.read(buffer)) != -1) {
+            body.write(buffer, 0, n);
+            throttle(body.size(), startNanos);
+        }
+        return body.toByteArray();
+    }
+
+    private void write(OutputStream out, byte[] body, long startNanos) throws IOException {
+        int slice = 16 * 1024;
+        for (int offset = 0; offset < body.length; offset += slice) {
+            out.write(body, offset, Math.min(slice, body.length - offset));
+            throttle(offset + slice, startNanos);
+        }
+    }
+
+    // sleeps until bytes could have moved through the bandwidth limit since startNanos, 0 for no limit
+    private void throttle(long bytes, long startNanos) throws IOException {
+        if (faults.bytesPerSecond <= 0 || startNanos == 0) {
+            return;
+        }
+        long dueNanos = bytes * 1000000000L / faults.bytesPerSecond;
+        long elapsedNanos = System.nanoTime() - startNanos;
+        if (dueNanos > elapsedNanos) {
+            sleep((dueNanos - elapsedNanos) / 1000000);
+        }
+    }
+
+    private static void sleep(long ms) throws IOException {
+        if (ms <= 0) {
+            return;
+        }
+        try {
+            Thread.sleep(ms);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted", ex);
+        }
+    }
+
+    private static Map<String, String> parseQuery(String rawQuery) throws IOException {
+        Map<String, String> query = new HashMap<>();
+        if (rawQuery == null) {
+            return query;
+        }
+        for (String pair : rawQuery.split("&")) {
+            int equals = pair.indexOf('=');
+            String key = URLDecoder.decode(equals < 0 ? pair : pair.substring(0, equals), "UTF-8");
+            query.put(key, equals < 0 ? "" : URLDecoder.decode(pair.substring(equals + 1), "UTF-8"));
+        }
+        return query;
+    }
+
+    private static String boundary(String contentType) throws IOException {
+        int at = contentType == null ? -1 : contentType.indexOf("boundary=");
+        if (at < 0) {
+            throw new IOException("No multipart boundary in " + contentType);
+        }
+        String boundary = contentType.substring(at + "boundary=".length());
+        int end = boundary.indexOf(';');
+        boundary = end < 0 ? boundary : boundary.substring(0, end);
+        return boundary.replace("\"", "").trim();
+    }
+
+    // the parts between --boundary lines, each still with its own headers
+    private static List<byte[]> splitMultipart(byte[] body, String boundary) {
+        byte[] delimiter = ("--" + boundary).getBytes(UTF_8);
+        List<byte[]> parts = new ArrayList<>();
+        int start = indexOf(body, delimiter, 0);
+        while (start >= 0) {
+            int partStart = start + delimiter.length;
+            if (partStart + 1 < body.length && body[partStart] == '-' && body[partStart + 1] == '-') {
+                break;
+            }
+            // skip the line break after the delimiter
+            while (partStart < body.length && (body[partStart] == '\r' || body[partStart] == '\n')) {
+                partStart++;
+            }
+            int next = indexOf(body, delimiter, partStart);
+            if (next < 0) {
+                break;
+            }
+            int partEnd = next;
+            // and the one before the next delimiter
+            if (partEnd > partStart && body[partEnd - 1] == '\n') {
+                partEnd--;
+            }
+            if (partEnd > partStart && body[partEnd - 1] == '\r') {
+                partEnd--;
+            }
+            byte[] part = new byte[partEnd - partStart];
+            System.arraycopy(body, partStart, part, 0, part.length);
+            parts.add(part);
+            start = next;
+        }
+        return parts;
+    }
+
+    private static int headerEnd(byte[] part) {
+        for (int i = 0; i + 1 < part.length; i++) {
+            if (part[i] == '\n' && part[i + 1] == '\n') {
+                return i;
+            }
+            if (i + 3 < part.length && part[i] == '\r' && part[i + 1] == '\n' && part[i + 2] == '\r' && part[i + 3] == '\n') {
+                return i;
+            }
+        }
+        return part.length;
+    }
+
+    // what comes after the first blank line
+    private static byte[] partBody(byte[] part) {
+        int end = headerEnd(part);
+        int start = Math.min(part.length, end + (end + 1 < part.length && part[end] == '\r' ? 4 : 2));
+        byte[] body = new byte[part.length - start];
+        System.arraycopy(part, start, body, 0, body.length);
+        return body;
+    }
+
+    private static int indexOf(byte[] data, byte[] pattern, int from) {
+        outer:
+        for (int i = from; i <= data.length - pattern.length; i++) {
+            for (int j = 0; j < pattern.length; j++) {
+                if (data[i + j] != pattern[j]) {
+                    continue outer;
+                }
+            }
+            return i;
+        }
+        return -1;
+    }
+}
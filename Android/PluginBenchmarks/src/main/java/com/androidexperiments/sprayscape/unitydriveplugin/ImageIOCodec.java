@@ -0,0 +1,69 @@
+// Copyright 2016 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.androidexperiments.sprayscape.unitydriveplugin;
+
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Iterator;
+
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.ImageWriter;
+import javax.imageio.stream.ImageOutputStream;
+
+/**
+ * {@link ImageCodec} on javax.imageio, so {@link RenditionBuilder} can be run and measured on a
+ * plain JDK. ImageIO can't decode at a reduced size the way BitmapFactory can, so it always
+ * decodes the whole image.
+ */
+class ImageIOCodec implements ImageCodec {
+
+    @Override
+    public Pixels decode(File jpeg, int minWidth, int minHeight) throws IOException {
+        BufferedImage image = ImageIO.read(jpeg);
+        if (image == null) {
+            throw new IOException("Not a readable image: " + jpeg);
+        }
+        int width = image.getWidth();
+        int height = image.getHeight();
+        return new Pixels(width, height, image.getRGB(0, 0, width, height, null, 0, width));
+    }
+
+    @Override
+    public void encode(Pixels pixels, int quality, OutputStream out) throws IOException {
+        BufferedImage image = new BufferedImage(pixels.width, pixels.height, BufferedImage.TYPE_INT_RGB);
+        image.setRGB(0, 0, pixels.width, pixels.height, pixels.argb, 0, pixels.width);
+
+        Iterator<ImageWriter> writers = ImageIO.getImageWritersByFormatName("jpeg");
+        if (!writers.hasNext()) {
+            throw new IOException("No JPEG writer");
+        }
+        ImageWriter writer = writers.next();
+        ImageWriteParam param = writer.getDefaultWriteParam();
+        param.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
+        param.setCompressionQuality(quality / 100f);
+        ImageOutputStream stream = ImageIO.createImageOutputStream(out);
+        try {
+            writer.setOutput(stream);
+            writer.write(null, new IIOImage(image, null, null), param);
+        } finally {
+            stream.close();
+            writer.dispose();
+        }
+    }
+}
@@ -0,0 +1,85 @@
+// Copyright 2016 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.androidexperiments.sprayscape.unitydriveplugin;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * What instrumenting a Drive call costs: recording a latency and bumping a counter, from one
+ * thread and from as many threads as the upload and metadata pools run together.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MetricsBenchmark {
+
+    private PluginMetrics metrics;
+    private PluginMetrics.Histogram histogram;
+    private PluginMetrics.Counter counter;
+
+    @State(Scope.Thread)
+    public static class Latency {
+        // spread over the buckets a real call lands in, 1ms to about 4s
+        long nanos = 1000000;
+
+        long next() {
+            nanos = nanos < 4000000000L ? nanos * 3 / 2 : 1000000;
+            return nanos;
+        }
+    }
+
+    @Setup
+    public void setUp() {
+        metrics = new PluginMetrics();
+        histogram = metrics.histogram("drive.file.upload");
+        counter = metrics.counter("upload.succeeded");
+    }
+
+    @Benchmark
+    public void recordLatency(Latency latency) {
+        histogram.recordNanos(latency.next());
+    }
+
+    @Benchmark
+    @Threads(4)
+    public void recordLatencyContended(Latency latency) {
+        histogram.recordNanos(latency.next());
+    }
+
+    @Benchmark
+    public void incrementCounter() {
+        counter.increment();
+    }
+
+    @Benchmark
+    public String snapshot() {
+        return metrics.snapshot();
+    }
+}
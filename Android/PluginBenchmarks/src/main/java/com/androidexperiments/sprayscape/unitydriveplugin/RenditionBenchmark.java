@@ -0,0 +1,106 @@
+// Copyright 2016 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.androidexperiments.sprayscape.unitydriveplugin;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Building a spray's renditions with the sizes one after the other on a single thread, against
+ * side by side on a pool the size of the plugin's rendition lane, and the box scale on its own.
+ * The parallel build only pulls ahead on a machine with 2 or more cores.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class RenditionBenchmark {
+
+    private static final int QUALITY = 85;
+
+    private final ImageCodec codec = new ImageIOCodec();
+    private ExecutorService pool;
+    private RenditionBuilder serial;
+    private RenditionBuilder parallel;
+    private File spray;
+    private File dir;
+    private ImageCodec.Pixels pixels;
+
+    @Setup
+    public void setUp() throws IOException {
+        spray = BenchmarkData.writeSprayImage(codec);
+        dir = new File(spray.getParentFile(), "renditions-" + System.nanoTime());
+        pixels = codec.decode(spray, 2048, 1024);
+        pool = Executors.newFixedThreadPool(2);
+        parallel = new RenditionBuilder(codec, pool, QUALITY);
+        serial = new RenditionBuilder(codec, new Executor() {
+            @Override
+            public void execute(Runnable command) {
+                command.run();
+            }
+        }, QUALITY);
+    }
+
+    @TearDown
+    public void tearDown() {
+        pool.shutdown();
+        spray.delete();
+        dir.delete();
+    }
+
+    @Benchmark
+    public int buildSerial() throws InterruptedException {
+        return build(serial);
+    }
+
+    @Benchmark
+    public int buildParallel() throws InterruptedException {
+        return build(parallel);
+    }
+
+    @Benchmark
+    public ImageCodec.Pixels scaleHalf() {
+        return RenditionBuilder.scale(pixels, 1024, 512);
+    }
+
+    private int build(RenditionBuilder builder) throws InterruptedException {
+        RenditionBuilder.Build build = builder.start(spray, dir, RenditionBuilder.SPRAY_RENDITIONS);
+        List<RenditionBuilder.Rendition> renditions = build.await(60 * 1000);
+        if (renditions.size() != RenditionBuilder.SPRAY_RENDITIONS.length) {
+            throw new IllegalStateException("Only built " + renditions.size() + " renditions");
+        }
+        build.delete();
+        return renditions.size();
+    }
+}
@@ -0,0 +1,89 @@
+// Copyright 2016 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.androidexperiments.sprayscape.unitydriveplugin;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Reading a spray through the streamed EXIF/XMP splice, against reading the same file straight
+ * off disk, which is the floor the splice is meant to sit on.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SpliceBenchmark {
+
+    private final byte[] buffer = new byte[64 * 1024];
+    private File spray;
+    private byte[] xmp;
+
+    @Setup
+    public void setUp() throws IOException {
+        spray = BenchmarkData.writeSpray();
+        xmp = SphericalJpegContent.gpanoXmp(2048, 1024);
+    }
+
+    @TearDown
+    public void tearDown() {
+        spray.delete();
+    }
+
+    @Benchmark
+    public long readSpliced() throws IOException {
+        return drain(new SphericalJpegContent(spray, SphericalJpegContent.RICOH_EXIF, xmp).getInputStream());
+    }
+
+    @Benchmark
+    public long readPlain() throws IOException {
+        return drain(new FileInputStream(spray));
+    }
+
+    @Benchmark
+    public byte[] buildXmp() {
+        return SphericalJpegContent.gpanoXmp(2048, 1024);
+    }
+
+    private long drain(InputStream in) throws IOException {
+        long total = 0;
+        try {
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                total += read;
+            }
+        } finally {
+            in.close();
+        }
+        return total;
+    }
+}
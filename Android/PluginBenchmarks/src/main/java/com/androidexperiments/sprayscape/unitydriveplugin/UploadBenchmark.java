@@ -0,0 +1,124 @@
+// Copyright 2016 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.androidexperiments.sprayscape.unitydriveplugin;
+
+import com.google.api.client.http.HttpRequest;
+import com.google.api.client.http.HttpRequestFactory;
+import com.google.api.client.json.JsonFactory;
+import com.google.api.client.json.jackson2.JacksonFactory;
+import com.google.api.services.drive.Drive;
+import com.google.api.services.drive.model.File;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Building the Drive requests an upload makes, and a whole resumable upload of a spray against a
+ * mock transport, in one chunk (wifi sized) and in 256 KiB chunks (slow cellular sized).
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class UploadBenchmark {
+
+    private final BenchmarkData.NullOutputStream sink = new BenchmarkData.NullOutputStream();
+    private java.io.File spray;
+    private byte[] xmp;
+    private HttpRequestFactory requestFactory;
+    private JsonFactory jsonFactory;
+    private Drive drive;
+
+    private final ResumableUpload.CheckpointListener checkpoints = new ResumableUpload.CheckpointListener() {
+        @Override
+        public void onCheckpoint(String sessionUri, long confirmedBytes) {
+        }
+    };
+
+    private final UploadProgressThrottle.Sink progress = new UploadProgressThrottle.Sink() {
+        @Override
+        public void onProgress(long sentBytes, long totalBytes, long bytesPerSecond) {
+        }
+    };
+
+    @Setup
+    public void setUp() throws IOException {
+        spray = BenchmarkData.writeSpray();
+        xmp = SphericalJpegContent.gpanoXmp(2048, 1024);
+        jsonFactory = JacksonFactory.getDefaultInstance();
+        requestFactory = BenchmarkData.driveTransport(sink).createRequestFactory();
+        drive = new Drive.Builder(BenchmarkData.driveTransport(sink), jsonFactory, null)
+                .setApplicationName("Sprayscape benchmarks")
+                .build();
+    }
+
+    @TearDown
+    public void tearDown() {
+        spray.delete();
+    }
+
+    @Benchmark
+    public HttpRequest buildFolderQuery() throws IOException {
+        return drive.files().list()
+                .setQ("mimeType='application/vnd.google-apps.folder' and name = 'Sprayscape' and trashed=false")
+                .setOrderBy("createdTime")
+                .setFields("files(id)")
+                .buildHttpRequest();
+    }
+
+    @Benchmark
+    public HttpRequest buildPermissionCreate() throws IOException {
+        return drive.permissions().create(BenchmarkData.FILE_ID, DrivePermissionBatcher.anyoneReader())
+                .setFields("id")
+                .buildHttpRequest();
+    }
+
+    @Benchmark
+    public File uploadOneChunk() throws IOException {
+        return upload(8 * ResumableUpload.CHUNK_GRANULARITY);
+    }
+
+    @Benchmark
+    public File uploadSmallChunks() throws IOException {
+        return upload(ResumableUpload.CHUNK_GRANULARITY);
+    }
+
+    private File upload(int chunkSize) throws IOException {
+        File metadata = new File();
+        metadata.setName("Sprayscape 2016-08-22 12.00.00.jpg");
+        metadata.setMimeType("image/jpeg");
+        metadata.setParents(Collections.singletonList(BenchmarkData.FOLDER_ID));
+        SphericalJpegContent content = new SphericalJpegContent(spray, SphericalJpegContent.RICOH_EXIF, xmp)
+                .setType("image/jpeg");
+        ResumableUpload upload = new ResumableUpload(requestFactory, jsonFactory, chunkSize);
+        upload.setProgressListener(new UploadProgressThrottle(250, progress));
+        return upload.execute(metadata, content, "id", null, 0, checkpoints);
+    }
+}
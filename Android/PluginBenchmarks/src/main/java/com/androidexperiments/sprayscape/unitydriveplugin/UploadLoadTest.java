@@ -0,0 +1,396 @@
+// Copyright 2016 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.androidexperiments.sprayscape.unitydriveplugin;
+
+import android.content.SharedPreferences;
+
+import com.google.api.client.googleapis.json.GoogleJsonResponseException;
+import com.google.api.client.http.HttpTransport;
+import com.google.api.client.http.javanet.NetHttpTransport;
+import com.google.api.client.json.JsonFactory;
+import com.google.api.client.json.jackson2.JacksonFactory;
+import com.google.api.services.drive.Drive;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Runs simulated users through the plugin's share flow against a {@link FakeDriveServer}, with the
+ * same {@link DriveUploader} the activity uses: hash and look for an earlier upload, resolve the
+ * folder, resumable upload with checkpoints in a journal, share the folder or the file, then build,
+ * upload and link the renditions. Each user is one device, with its own Drive client, connections,
+ * policy, journal, caches and rendition lane. Once its shares are done a user checks all of its
+ * files the way the library view does.
+ *
+ * Reports shares per second, upload bandwidth, share latency percentiles and Drive requests per
+ * share, then the plugin's metrics snapshot for the whole run.
+ *
+ * Every share is a different spray, so deduplication only costs its hash. Building renditions is
+ * real decoding and encoding on this machine's cores, shared by all the users, so --no-renditions
+ * is closer to many devices when the box has few cores.
+ *
+ * ./gradlew loadTest -PloadTestArgs="--users 32 --shares 10 --latency 120 --bandwidth 256 --error-rate 0.02"
+ */
+public class UploadLoadTest {
+
+    // only for the journal, nothing is called back
+    private static final String CALLBACK_OBJECT_NAME = "UploadLoadTest";
+    private static final int RENDITION_QUALITY = 85;
+    // what DriveExecutors gives the rendition lane
+    private static final int RENDITION_THREADS = 2;
+
+    static class Options {
+        int users = 8;
+        int shares = 5;
+        // uploads in flight per user, what DriveExecutors allows on a fast unmetered network
+        int concurrency = 1;
+        int chunkSize = ResumableUpload.DEFAULT_CHUNK_SIZE;
+        boolean shareFolder;
+        boolean deduplicate = true;
+        boolean renditions = true;
+        int port;
+        FakeDriveServer.Faults faults = new FakeDriveServer.Faults();
+
+        Options() {
+            faults.latencyMs = 50;
+            faults.latencyJitterMs = 25;
+        }
+
+        static Options parse(String[] args) {
+            Options options = new Options();
+            for (int i = 0; i < args.length; i++) {
+                String arg = args[i];
+                if ("--share-folder".equals(arg)) {
+                    options.shareFolder = true;
+                    continue;
+                }
+                if ("--no-dedup".equals(arg)) {
+                    options.deduplicate = false;
+                    continue;
+                }
+                if ("--no-renditions".equals(arg)) {
+                    options.renditions = false;
+                    continue;
+                }
+                if (i + 1 >= args.length) {
+                    throw new IllegalArgumentException("Missing value for " + arg);
+                }
+                String value = args[++i];
+                switch (arg) {
+                    case "--users":
+                        options.users = Integer.parseInt(value);
+                        break;
+                    case "--shares":
+                        options.shares = Integer.parseInt(value);
+                        break;
+                    case "--concurrency":
+                        options.concurrency = Integer.parseInt(value);
+                        break;
+                    case "--chunk-size":
+                        options.chunkSize = Integer.parseInt(value);
+                        break;
+                    case "--port":
+                        options.port = Integer.parseInt(value);
+                        break;
+                    case "--latency":
+                        options.faults.latencyMs = Long.parseLong(value);
+                        break;
+                    case "--jitter":
+                        options.faults.latencyJitterMs = Long.parseLong(value);
+                        break;
+                    case "--bandwidth":
+                        // KiB/s
+                        options.faults.bytesPerSecond = Long.parseLong(value) * 1024;
+                        break;
+                    case "--error-rate":
+                        options.faults.errorRate = Double.parseDouble(value);
+                        break;
+                    case "--rate-limit-rate":
+                        options.faults.rateLimitRate = Double.parseDouble(value);
+                        break;
+                    default:
+                        throw new IllegalArgumentException("Unknown option " + arg);
+                }
+            }
+            return options;
+        }
+
+        @Override
+        public String toString() {
+            return users + " users x " + shares + " shares, " + concurrency + " in flight per user, "
+                    + (chunkSize / 1024) + " KiB chunks, " + (shareFolder ? "folder" : "file") + " sharing, "
+                    + (deduplicate ? "" : "no ") + "dedup, " + (renditions ? "" : "no ") + "renditions, latency "
+                    + faults.latencyMs + "+" + faults.latencyJitterMs + "ms, bandwidth "
+                    + (faults.bytesPerSecond == 0 ? "unlimited" : faults.bytesPerSecond / 1024 + " KiB/s")
+                    + ", errors " + faults.errorRate + ", rate limits " + faults.rateLimitRate;
+        }
+    }
+
+    // SharedPreferences for the folder cache, in memory and gone with the run
+    private static class MemoryPreferences implements SharedPreferences, SharedPreferences.Editor {
+        private final Map<String, String> values = new ConcurrentHashMap<>();
+
+        @Override
+        public String getString(String key, String defValue) {
+            String value = values.get(key);
+            return value == null ? defValue : value;
+        }
+
+        @Override
+        public Editor edit() {
+            return this;
+        }
+
+        @Override
+        public Editor putString(String key, String value) {
+            values.put(key, value);
+            return this;
+        }
+
+        @Override
+        public Editor remove(String key) {
+            values.remove(key);
+            return this;
+        }
+
+        @Override
+        public void apply() {
+        }
+    }
+
+    private static class SimulatedUser {
+        final String accountName;
+        final String folderName;
+        final Drive drive;
+        final Options options;
+        final DriveCallPolicy policy;
+        final java.io.File journalFile;
+        final UploadJournal journal;
+        final java.io.File renditionDir;
+        final ExecutorService renditionLane;
+        final DrivePermissionBatcher permissionBatcher = new DrivePermissionBatcher();
+        final DriveFileChecker fileChecker = new DriveFileChecker();
+        final DriveUploader uploader;
+        final List<String> fileIds = Collections.synchronizedList(new ArrayList<String>());
+        final ExecutorService uploads;
+
+        // a device on a fast unmetered network with nobody watching progress
+        final DriveUploader.Listener listener = new DriveUploader.Listener() {
+            @Override
+            public int getChunkSize() {
+                return options.chunkSize;
+            }
+
+            @Override
+            public void onTransferStarted() {
+            }
+
+            @Override
+            public void onTransferFinished() {
+            }
+
+            @Override
+            public void onProgress(long sentBytes, long totalBytes) {
+            }
+
+            @Override
+            public void onPermissionDenied(GoogleJsonResponseException ex) {
+            }
+
+            @Override
+            public void onShared(String fileId) {
+            }
+
+            @Override
+            public void onRenditionProgress() {
+            }
+        };
+
+        SimulatedUser(int index, String rootUrl, JsonFactory jsonFactory, Options options, PluginMetrics metrics) throws IOException {
+            this.accountName = "user" + index + "@example.com";
+            // every user is their own drive account, so their own folder
+            this.folderName = "Sprayscape " + index;
+            this.options = options;
+            // one client per device, the way the activity builds it
+            HttpTransport transport = new NetHttpTransport();
+            this.drive = new Drive.Builder(transport, jsonFactory, null)
+                    .setRootUrl(rootUrl)
+                    .setApplicationName("Sprayscape load test")
+                    .build();
+            this.policy = new DriveCallPolicy(metrics);
+            this.journalFile = java.io.File.createTempFile("journal", null);
+            this.journal = new UploadJournal(journalFile);
+            this.renditionDir = java.io.File.createTempFile("renditions", null);
+            renditionDir.delete();
+            this.renditionLane = Executors.newFixedThreadPool(RENDITION_THREADS, DriveExecutors.newThreadFactory("user" + index + "-rendition"));
+            this.uploader = new DriveUploader(policy, journal, new DriveFolderCache(new MemoryPreferences()),
+                    new DriveContentIndex(new MemoryPreferences()), permissionBatcher, fileChecker,
+                    new RenditionBuilder(new ImageIOCodec(), renditionLane, RENDITION_QUALITY), renditionDir, metrics);
+            uploader.setShareFolder(options.shareFolder);
+            uploader.setDeduplication(options.deduplicate, true);
+            uploader.setRenditions(options.renditions);
+            this.uploads = Executors.newFixedThreadPool(options.concurrency, DriveExecutors.newThreadFactory("user" + index + "-upload"));
+        }
+
+        // journaled the way uploadFile() does, then the activity's upload task
+        void share(java.io.File spray, String fileName) throws IOException {
+            UploadJournal.Entry entry = journal.append(null, folderName, fileName, spray.getPath(), CALLBACK_OBJECT_NAME);
+            try {
+                fileIds.add(uploader.upload(drive, accountName, entry, listener).fileId);
+            } catch (IOException ex) {
+                // nothing drains the journal here
+                journal.remove(entry);
+                throw ex;
+            }
+        }
+
+        // how many of this user's files the check says aren't there, and how many it couldn't tell about
+        int[] checkLibrary() throws IOException {
+            // as if the app had restarted, nothing is known yet
+            fileChecker.clear();
+            final String[] ids = fileIds.toArray(new String[fileIds.size()]);
+            Map<String, Boolean> results = policy.execute("drive.files.check", new DriveCallPolicy.Call<Map<String, Boolean>>() {
+                @Override
+                public Map<String, Boolean> execute() throws IOException {
+                    return fileChecker.checkAll(drive, ids);
+                }
+            });
+            int missing = 0;
+            int unknown = 0;
+            for (Boolean exists : results.values()) {
+                if (exists == null) {
+                    unknown++;
+                } else if (!exists) {
+                    missing++;
+                }
+            }
+            return new int[]{missing, unknown};
+        }
+
+        void shutdown() {
+            permissionBatcher.shutdown();
+            renditionLane.shutdown();
+            journal.close();
+            journalFile.delete();
+            renditionDir.delete();
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        Options options = Options.parse(args);
+        // every user talks to the same host, the jvm would otherwise keep only 5 idle connections to it
+        System.setProperty("http.keepAlive", "true");
+        System.setProperty("http.maxConnections", String.valueOf(Math.max(5, options.users * options.concurrency * 2)));
+
+        FakeDriveServer server = new FakeDriveServer(options.port, options.faults);
+        server.start();
+        // real jpegs, the renditions decode them
+        final java.io.File[] sprays = new java.io.File[options.shares];
+        ImageCodec codec = new ImageIOCodec();
+        for (int i = 0; i < sprays.length; i++) {
+            sprays[i] = BenchmarkData.writeSprayImage(codec, i);
+        }
+        PluginMetrics metrics = new PluginMetrics();
+        JsonFactory jsonFactory = JacksonFactory.getDefaultInstance();
+        System.out.println("fake drive at " + server.getRootUrl() + ", " + options);
+
+        final List<SimulatedUser> users = new ArrayList<>();
+        for (int i = 0; i < options.users; i++) {
+            users.add(new SimulatedUser(i, server.getRootUrl(), jsonFactory, options, metrics));
+        }
+
+        final AtomicLong succeeded = new AtomicLong();
+        final AtomicLong failed = new AtomicLong();
+        final ConcurrentMap<String, AtomicLong> failures = new ConcurrentHashMap<>();
+        long start = System.nanoTime();
+        // share-major order, so every user has shares in flight from the start
+        for (int share = 0; share < options.shares; share++) {
+            for (final SimulatedUser user : users) {
+                final java.io.File file = sprays[share];
+                final String fileName = "Sprayscape " + share + ".jpg";
+                user.uploads.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            user.share(file, fileName);
+                            succeeded.incrementAndGet();
+                        } catch (IOException ex) {
+                            failed.incrementAndGet();
+                            String kind = ex instanceof GoogleJsonResponseException
+                                    ? "http " + ((GoogleJsonResponseException) ex).getStatusCode()
+                                    : ex.getClass().getSimpleName();
+                            failures.putIfAbsent(kind, new AtomicLong());
+                            failures.get(kind).incrementAndGet();
+                        }
+                    }
+                });
+            }
+        }
+        for (SimulatedUser user : users) {
+            user.uploads.shutdown();
+        }
+        for (SimulatedUser user : users) {
+            user.uploads.awaitTermination(1, TimeUnit.HOURS);
+        }
+        double seconds = (System.nanoTime() - start) / 1e9;
+        long requestsForShares = server.getRequestCount();
+
+        int missing = 0;
+        int unknown = 0;
+        int checkFailures = 0;
+        for (SimulatedUser user : users) {
+            try {
+                int[] check = user.checkLibrary();
+                missing += check[0];
+                unknown += check[1];
+            } catch (IOException ex) {
+                checkFailures++;
+                System.out.println(user.accountName + " library check failed: " + ex);
+            }
+            user.shutdown();
+        }
+
+        PluginMetrics.Histogram shareLatency = metrics.histogram("share.total");
+        long shares = succeeded.get();
+        System.out.println();
+        System.out.printf("shares        %d ok, %d failed%s in %.1fs%n", shares, failed.get(), failures.isEmpty() ? "" : " " + failures, seconds);
+        System.out.printf("throughput    %.2f shares/s, %.2f MiB/s received by drive%n",
+                shares / seconds, server.getBytesReceived() / seconds / (1024 * 1024));
+        System.out.printf("share latency p50 %.0fms, p90 %.0fms, p99 %.0fms, max %.0fms%n",
+                shareLatency.percentileMicros(0.5) / 1000.0, shareLatency.percentileMicros(0.9) / 1000.0,
+                shareLatency.percentileMicros(0.99) / 1000.0, shareLatency.percentileMicros(1) / 1000.0);
+        System.out.printf("requests      %d, %.2f per share, %d faults injected%n",
+                requestsForShares, shares == 0 ? 0.0 : (double) requestsForShares / shares, server.getInjectedErrorCount());
+        System.out.println("calls         " + server.getCallCounts() + " (with the library check)");
+        System.out.println("library check " + missing + " of " + shares + " files reported missing, " + unknown + " unknown, "
+                + checkFailures + " of " + users.size() + " checks failed");
+        System.out.println("metrics       " + metrics.snapshot());
+
+        for (java.io.File spray : sprays) {
+            spray.delete();
+        }
+        server.stop();
+        System.exit(failed.get() == 0 ? 0 : 1);
+    }
+}
@@ -0,0 +1,6 @@
+package android.content;
+
+// stands in for android's BroadcastReceiver on the jvm
+public abstract class BroadcastReceiver {
+    public abstract void onReceive(Context context, Intent intent);
+}
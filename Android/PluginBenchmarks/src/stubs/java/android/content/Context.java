@@ -0,0 +1,11 @@
+package android.content;
+
+// stands in for android's Context on the jvm, only what the plugin classes built here use
+public abstract class Context {
+    public static final String CONNECTIVITY_SERVICE = "connectivity";
+
+    public abstract Context getApplicationContext();
+    public abstract Object getSystemService(String name);
+    public abstract Intent registerReceiver(BroadcastReceiver receiver, IntentFilter filter);
+    public abstract void unregisterReceiver(BroadcastReceiver receiver);
+}
@@ -0,0 +1,5 @@
+package android.content;
+
+// stands in for android's Intent on the jvm
+public class Intent {
+}
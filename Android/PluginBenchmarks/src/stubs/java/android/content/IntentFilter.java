@@ -0,0 +1,7 @@
+package android.content;
+
+// stands in for android's IntentFilter on the jvm
+public class IntentFilter {
+    public IntentFilter(String action) {
+    }
+}
@@ -0,0 +1,13 @@
+package android.content;
+
+// stands in for android's SharedPreferences on the jvm, only what the plugin classes built here use
+public interface SharedPreferences {
+    interface Editor {
+        Editor putString(String key, String value);
+        Editor remove(String key);
+        void apply();
+    }
+
+    String getString(String key, String defValue);
+    Editor edit();
+}
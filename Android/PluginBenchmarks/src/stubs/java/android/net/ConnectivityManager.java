@@ -0,0 +1,12 @@
+package android.net;
+
+// stands in for android's ConnectivityManager on the jvm, offline and unmetered unless a test overrides it
+public class ConnectivityManager {
+    public static final String CONNECTIVITY_ACTION = "android.net.conn.CONNECTIVITY_CHANGE";
+    public static final int TYPE_MOBILE = 0;
+    public static final int TYPE_WIFI = 1;
+    public static final int TYPE_ETHERNET = 9;
+
+    public NetworkInfo getActiveNetworkInfo() { return null; }
+    public boolean isActiveNetworkMetered() { return false; }
+}
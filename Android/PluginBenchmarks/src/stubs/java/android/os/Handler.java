@@ -0,0 +1,11 @@
+package android.os;
+
+// stands in for android's Handler on the jvm, nothing here runs a looper so posts are dropped
+public class Handler {
+    public Handler(Looper looper) {
+    }
+
+    public boolean post(Runnable r) { return true; }
+    public boolean postDelayed(Runnable r, long delayMillis) { return true; }
+    public void removeCallbacks(Runnable r) { }
+}
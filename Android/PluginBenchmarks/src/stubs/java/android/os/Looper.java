@@ -0,0 +1,8 @@
+package android.os;
+
+// stands in for android's Looper on the jvm
+public final class Looper {
+    private static final Looper main = new Looper();
+
+    public static Looper getMainLooper() { return main; }
+}
@@ -0,0 +1,20 @@
+package android.telephony;
+
+// stands in for android's TelephonyManager on the jvm, the network type constants only
+public class TelephonyManager {
+    public static final int NETWORK_TYPE_GPRS = 1;
+    public static final int NETWORK_TYPE_EDGE = 2;
+    public static final int NETWORK_TYPE_UMTS = 3;
+    public static final int NETWORK_TYPE_CDMA = 4;
+    public static final int NETWORK_TYPE_EVDO_0 = 5;
+    public static final int NETWORK_TYPE_EVDO_A = 6;
+    public static final int NETWORK_TYPE_1xRTT = 7;
+    public static final int NETWORK_TYPE_HSDPA = 8;
+    public static final int NETWORK_TYPE_HSUPA = 9;
+    public static final int NETWORK_TYPE_HSPA = 10;
+    public static final int NETWORK_TYPE_IDEN = 11;
+    public static final int NETWORK_TYPE_EVDO_B = 12;
+    public static final int NETWORK_TYPE_LTE = 13;
+    public static final int NETWORK_TYPE_EHRPD = 14;
+    public static final int NETWORK_TYPE_HSPAP = 15;
+}
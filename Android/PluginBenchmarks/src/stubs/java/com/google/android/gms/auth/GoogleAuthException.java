@@ -0,0 +1,8 @@
+package com.google.android.gms.auth;
+
+// play services isn't on the jvm, GoogleAuthIOException only needs the type to exist
+public class GoogleAuthException extends Exception {
+    public GoogleAuthException(String message) {
+        super(message);
+    }
+}
@@ -0,0 +1,10 @@
+package com.unity3d.player;
+
+// counts what would have gone to unity, so a benchmark can consume it
+public class UnityPlayer {
+    public static volatile int messages;
+
+    public static void UnitySendMessage(String gameObject, String method, String payload) {
+        messages++;
+    }
+}
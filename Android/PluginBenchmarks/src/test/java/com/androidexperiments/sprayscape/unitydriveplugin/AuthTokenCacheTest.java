@@ -0,0 +1,214 @@
+// Copyright 2016 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.androidexperiments.sprayscape.unitydriveplugin;
+
+import com.google.android.gms.auth.GoogleAuthException;
+import com.google.api.client.http.LowLevelHttpRequest;
+import com.google.api.client.http.LowLevelHttpResponse;
+import com.google.api.client.json.Json;
+import com.google.api.client.json.jackson2.JacksonFactory;
+import com.google.api.client.testing.http.MockHttpTransport;
+import com.google.api.client.testing.http.MockLowLevelHttpRequest;
+import com.google.api.client.testing.http.MockLowLevelHttpResponse;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class AuthTokenCacheTest {
+
+    // hands out token-1, token-2, ... once released, remembering which token each call replaced
+    private static class BlockingSource implements AuthTokenCache.TokenSource {
+        final CountDownLatch release = new CountDownLatch(1);
+        final CountDownLatch fetching = new CountDownLatch(1);
+        final AtomicInteger fetches = new AtomicInteger();
+        final List<String> staleTokens = new ArrayList<>();
+
+        @Override
+        public String fetchToken(String staleToken) throws IOException, GoogleAuthException {
+            int fetch = fetches.incrementAndGet();
+            synchronized (staleTokens) {
+                staleTokens.add(staleToken);
+            }
+            fetching.countDown();
+            try {
+                if (!release.await(10, TimeUnit.SECONDS)) {
+                    throw new IOException("never released");
+                }
+            } catch (InterruptedException ex) {
+                throw new IOException("fetch interrupted", ex);
+            }
+            return "token-" + fetch;
+        }
+    }
+
+    private ScheduledThreadPoolExecutor executor;
+    private ExecutorService callers;
+    private BlockingSource source;
+    private AuthTokenCache cache;
+
+    @Before
+    public void setUp() {
+        executor = new ScheduledThreadPoolExecutor(1);
+        callers = Executors.newCachedThreadPool();
+        source = new BlockingSource();
+        cache = new AuthTokenCache(executor, source, tokenInfo("{\"expires_in\": \"3600\"}").createRequestFactory(),
+                JacksonFactory.getDefaultInstance());
+    }
+
+    @After
+    public void tearDown() {
+        callers.shutdownNow();
+        executor.shutdownNow();
+    }
+
+    // answers every token info lookup with json
+    private static MockHttpTransport tokenInfo(final String json) {
+        return new MockHttpTransport() {
+            @Override
+            public LowLevelHttpRequest buildRequest(String method, String url) {
+                return new MockLowLevelHttpRequest(url) {
+                    @Override
+                    public LowLevelHttpResponse execute() {
+                        return new MockLowLevelHttpResponse().setContentType(Json.MEDIA_TYPE).setContent(json);
+                    }
+                };
+            }
+        };
+    }
+
+    private Future<String> get() {
+        return callers.submit(new Callable<String>() {
+            @Override
+            public String call() throws Exception {
+                return cache.get();
+            }
+        });
+    }
+
+    @Test
+    public void concurrentRequestsShareOneFetch() throws Exception {
+        List<Future<String>> results = new ArrayList<>();
+        for (int i = 0; i < 8; i++) {
+            results.add(get());
+        }
+        assertTrue(source.fetching.await(10, TimeUnit.SECONDS));
+        source.release.countDown();
+
+        for (Future<String> result : results) {
+            assertEquals("token-1", result.get(10, TimeUnit.SECONDS));
+        }
+        assertEquals(1, source.fetches.get());
+        assertNull(source.staleTokens.get(0));
+
+        // and from then on straight from the cache
+        assertEquals("token-1", cache.getCached());
+        assertEquals("token-1", cache.get());
+        assertEquals(1, source.fetches.get());
+    }
+
+    @Test
+    public void prefetchIsSharedWithGet() throws Exception {
+        cache.prefetch();
+        assertTrue(source.fetching.await(10, TimeUnit.SECONDS));
+        cache.prefetch();
+        Future<String> result = get();
+        source.release.countDown();
+
+        assertEquals("token-1", result.get(10, TimeUnit.SECONDS));
+        assertEquals(1, source.fetches.get());
+    }
+
+    @Test
+    public void interruptedBackgroundCallerLeavesFetchRunning() throws Exception {
+        final CountDownLatch interrupted = new CountDownLatch(1);
+        Thread waiter = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    cache.getInBackground();
+                } catch (InterruptedException ex) {
+                    interrupted.countDown();
+                } catch (IOException | GoogleAuthException ex) {
+                    // fails the test below by never counting down
+                }
+            }
+        });
+        waiter.start();
+        assertTrue(source.fetching.await(10, TimeUnit.SECONDS));
+        Future<String> other = get();
+        waiter.interrupt();
+        assertTrue(interrupted.await(10, TimeUnit.SECONDS));
+
+        // the fetch on the executor carries on for everyone else
+        source.release.countDown();
+        assertEquals("token-1", other.get(10, TimeUnit.SECONDS));
+        assertEquals(1, source.fetches.get());
+    }
+
+    @Test
+    public void clearDropsTokenFromFetchInFlight() throws Exception {
+        Future<String> result = get();
+        assertTrue(source.fetching.await(10, TimeUnit.SECONDS));
+        // the account changed while the old one's token was being fetched
+        cache.clear();
+        source.release.countDown();
+
+        assertEquals("token-1", result.get(10, TimeUnit.SECONDS));
+        assertNull(cache.getCached());
+        assertEquals("token-2", cache.get());
+        assertEquals(2, source.fetches.get());
+    }
+
+    @Test
+    public void failedFetchIsRetriedByTheNextCaller() throws Exception {
+        final AtomicInteger fetches = new AtomicInteger();
+        AuthTokenCache failingOnce = new AuthTokenCache(executor, new AuthTokenCache.TokenSource() {
+            @Override
+            public String fetchToken(String staleToken) throws IOException, GoogleAuthException {
+                if (fetches.incrementAndGet() == 1) {
+                    throw new GoogleAuthException("not yet");
+                }
+                return "token-" + fetches.get();
+            }
+        }, tokenInfo("").createRequestFactory(), JacksonFactory.getDefaultInstance());
+
+        try {
+            failingOnce.get();
+            fail("expected the first fetch to fail");
+        } catch (GoogleAuthException expected) {
+        }
+        // an empty token info response falls back to a short lifetime, still long enough to cache
+        assertEquals("token-2", failingOnce.get());
+        assertEquals("token-2", failingOnce.getCached());
+    }
+}
@@ -0,0 +1,181 @@
+// Copyright 2016 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.androidexperiments.sprayscape.unitydriveplugin;
+
+import com.google.android.gms.auth.GoogleAuthException;
+import com.google.api.client.googleapis.extensions.android.gms.auth.GoogleAuthIOException;
+import com.google.api.client.googleapis.json.GoogleJsonError;
+import com.google.api.client.googleapis.json.GoogleJsonResponseException;
+import com.google.api.client.http.HttpHeaders;
+import com.google.api.client.http.HttpResponseException;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.net.ConnectException;
+import java.net.SocketTimeoutException;
+import java.net.UnknownHostException;
+import java.util.Collections;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.fail;
+
+public class DriveCallPolicyTest {
+
+    // already passed, so a failed call is never retried
+    private static final long NO_RETRIES = -1;
+
+    private PluginMetrics metrics;
+    private DriveCallPolicy policy;
+
+    @Before
+    public void setUp() {
+        metrics = new PluginMetrics();
+        policy = new DriveCallPolicy(metrics);
+    }
+
+    private static HttpResponseException status(int status) {
+        return new HttpResponseException.Builder(status, null, new HttpHeaders()).build();
+    }
+
+    private static GoogleJsonResponseException forbidden(String reason) {
+        GoogleJsonError.ErrorInfo info = new GoogleJsonError.ErrorInfo();
+        info.setReason(reason);
+        GoogleJsonError details = new GoogleJsonError();
+        details.setErrors(Collections.singletonList(info));
+        return new GoogleJsonResponseException(new HttpResponseException.Builder(403, null, new HttpHeaders()), details);
+    }
+
+    // fails with ex every time, counting how often drive was actually called
+    private static class FailingCall implements DriveCallPolicy.Call<String> {
+        final IOException ex;
+        int calls;
+
+        FailingCall(IOException ex) {
+            this.ex = ex;
+        }
+
+        @Override
+        public String execute() throws IOException {
+            calls++;
+            throw ex;
+        }
+    }
+
+    private void failOnce(FailingCall call) {
+        try {
+            policy.execute("test", NO_RETRIES, call);
+            fail("expected " + call.ex);
+        } catch (IOException ex) {
+            assertSame(call.ex, ex);
+        }
+    }
+
+    @Test
+    public void classifiesFailures() {
+        assertEquals(DriveCallPolicy.ErrorClass.RATE_LIMITED, DriveCallPolicy.classify(status(429)));
+        assertEquals(DriveCallPolicy.ErrorClass.RATE_LIMITED, DriveCallPolicy.classify(forbidden("userRateLimitExceeded")));
+        assertEquals(DriveCallPolicy.ErrorClass.RATE_LIMITED, DriveCallPolicy.classify(forbidden("sharingRateLimitExceeded")));
+        assertEquals(DriveCallPolicy.ErrorClass.PERMANENT, DriveCallPolicy.classify(forbidden("insufficientFilePermissions")));
+        assertEquals(DriveCallPolicy.ErrorClass.PERMANENT, DriveCallPolicy.classify(status(403)));
+        assertEquals(DriveCallPolicy.ErrorClass.PERMANENT, DriveCallPolicy.classify(status(404)));
+        assertEquals(DriveCallPolicy.ErrorClass.AUTH, DriveCallPolicy.classify(status(401)));
+        assertEquals(DriveCallPolicy.ErrorClass.AUTH,
+                DriveCallPolicy.classify(new GoogleAuthIOException(new GoogleAuthException("revoked"))));
+        assertEquals(DriveCallPolicy.ErrorClass.TRANSIENT, DriveCallPolicy.classify(status(408)));
+        assertEquals(DriveCallPolicy.ErrorClass.TRANSIENT, DriveCallPolicy.classify(status(503)));
+        assertEquals(DriveCallPolicy.ErrorClass.TRANSIENT, DriveCallPolicy.classify(new SocketTimeoutException()));
+        assertEquals(DriveCallPolicy.ErrorClass.NETWORK, DriveCallPolicy.classify(new UnknownHostException("www.googleapis.com")));
+        assertEquals(DriveCallPolicy.ErrorClass.NETWORK, DriveCallPolicy.classify(new ConnectException()));
+        assertEquals(DriveCallPolicy.ErrorClass.PERMANENT, DriveCallPolicy.classify(new FileNotFoundException("/sdcard/a.jpg")));
+    }
+
+    @Test
+    public void retriesTransientFailures() throws IOException {
+        final int[] calls = new int[1];
+        String result = policy.execute("test", new DriveCallPolicy.Call<String>() {
+            @Override
+            public String execute() throws IOException {
+                if (++calls[0] < 3) {
+                    throw status(503);
+                }
+                return "ok";
+            }
+        });
+        assertEquals("ok", result);
+        assertEquals(3, calls[0]);
+        assertEquals(2, metrics.counter("drive.retries").get());
+    }
+
+    @Test
+    public void doesNotRetryPermanentFailures() {
+        FailingCall call = new FailingCall(status(404));
+        try {
+            policy.execute("test", call);
+            fail("expected a 404");
+        } catch (IOException ex) {
+            assertSame(call.ex, ex);
+        }
+        assertEquals(1, call.calls);
+    }
+
+    @Test
+    public void opensCircuitAfterRepeatedFailures() {
+        FailingCall failing = new FailingCall(status(503));
+        for (int i = 0; i < 5; i++) {
+            failOnce(failing);
+        }
+        assertEquals(1, metrics.counter("drive.circuit.opened").get());
+
+        FailingCall rejected = new FailingCall(status(503));
+        try {
+            policy.execute("test", NO_RETRIES, rejected);
+            fail("expected the circuit to be open");
+        } catch (DriveCallPolicy.CircuitOpenException expected) {
+        } catch (IOException ex) {
+            fail("expected the circuit to be open, got " + ex);
+        }
+        assertEquals(0, rejected.calls);
+        assertEquals(1, metrics.counter("drive.circuit.rejected").get());
+    }
+
+    @Test
+    public void answerFromDriveResetsFailureCount() {
+        FailingCall failing = new FailingCall(status(503));
+        for (int i = 0; i < 4; i++) {
+            failOnce(failing);
+        }
+        // a 404 is still drive answering
+        failOnce(new FailingCall(status(404)));
+        for (int i = 0; i < 4; i++) {
+            failOnce(failing);
+        }
+        assertEquals(0, metrics.counter("drive.circuit.opened").get());
+    }
+
+    @Test
+    public void networkFailuresDoNotOpenCircuit() {
+        FailingCall offline = new FailingCall(new UnknownHostException("www.googleapis.com"));
+        for (int i = 0; i < 10; i++) {
+            failOnce(offline);
+        }
+        assertEquals(10, offline.calls);
+        assertEquals(0, metrics.counter("drive.circuit.opened").get());
+        assertEquals(10, metrics.counter("drive.failures.network").get());
+    }
+}
@@ -0,0 +1,166 @@
+// Copyright 2016 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.androidexperiments.sprayscape.unitydriveplugin;
+
+import com.unity3d.player.UnityPlayer;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class PluginEventQueueTest {
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    // what drain() wrote, in the order unity would read it
+    private static class Drained {
+        final List<Integer> types = new ArrayList<>();
+        final List<Integer> targets = new ArrayList<>();
+        final List<Integer> codes = new ArrayList<>();
+        final List<String> requestIds = new ArrayList<>();
+        final List<String> payloads = new ArrayList<>();
+
+        Drained(byte[] events) throws IOException {
+            DataInputStream in = new DataInputStream(new ByteArrayInputStream(events));
+            int count = in.readInt();
+            for (int i = 0; i < count; i++) {
+                types.add((int) in.readShort());
+                targets.add((int) in.readShort());
+                codes.add(in.readInt());
+                requestIds.add(readString(in));
+                payloads.add(readString(in));
+            }
+            assertEquals(-1, in.read());
+        }
+
+        private static String readString(DataInputStream in) throws IOException {
+            byte[] bytes = new byte[in.readInt()];
+            in.readFully(bytes);
+            return new String(bytes, UTF_8);
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsCapacityThatIsNotAPowerOfTwo() {
+        new PluginEventQueue(6);
+    }
+
+    @Test
+    public void drainsNothingWhenEmpty() {
+        assertNull(new PluginEventQueue(4).drain());
+    }
+
+    @Test
+    public void encodesEvents() throws IOException {
+        PluginEventQueue queue = new PluginEventQueue(4);
+        assertTrue(queue.offer("DriveReceiver", "DriveUploadComplete", "req-1", 7, "file-id"));
+        assertTrue(queue.offer("DriveReceiver", "DriveUploadFailed", null, 0, null));
+        assertTrue(queue.offer("Other", "DriveUploadComplete", "", 0, "\u00e9"));
+
+        Drained drained = new Drained(queue.drain());
+        assertEquals(3, drained.types.size());
+        assertEquals(0, (int) drained.types.get(0));
+        assertEquals(1, (int) drained.types.get(1));
+        assertEquals(0, (int) drained.types.get(2));
+        assertEquals(0, (int) drained.targets.get(0));
+        assertEquals(1, (int) drained.targets.get(2));
+        assertEquals(7, (int) drained.codes.get(0));
+        assertEquals("req-1", drained.requestIds.get(0));
+        assertEquals("file-id", drained.payloads.get(0));
+        // no request id or payload goes out as an empty string
+        assertEquals("", drained.requestIds.get(1));
+        assertEquals("", drained.payloads.get(1));
+        assertEquals("\u00e9", drained.payloads.get(2));
+        assertNull(queue.drain());
+    }
+
+    @Test
+    public void wrapsAroundTheRing() throws IOException {
+        PluginEventQueue queue = new PluginEventQueue(4);
+        int sent = 0;
+        // uneven batches, so head and tail cross the end of the ring at different points
+        for (int lap = 0; lap < 10; lap++) {
+            int batch = 1 + lap % 4;
+            for (int i = 0; i < batch; i++) {
+                assertTrue(queue.offer("DriveReceiver", "DriveUploadProgress", null, sent + i, null));
+            }
+            Drained drained = new Drained(queue.drain());
+            assertEquals(batch, drained.codes.size());
+            for (int i = 0; i < batch; i++) {
+                assertEquals(sent + i, (int) drained.codes.get(i));
+            }
+            sent += batch;
+        }
+    }
+
+    @Test
+    public void offerFailsWhenFull() throws IOException {
+        PluginEventQueue queue = new PluginEventQueue(4);
+        for (int i = 0; i < 4; i++) {
+            assertTrue(queue.offer("DriveReceiver", "DriveUploadProgress", null, i, null));
+        }
+        assertFalse(queue.offer("DriveReceiver", "DriveUploadProgress", null, 4, null));
+
+        assertEquals(4, new Drained(queue.drain()).codes.size());
+        // every slot is free again
+        for (int i = 0; i < 4; i++) {
+            assertTrue(queue.offer("DriveReceiver", "DriveUploadProgress", null, i, null));
+        }
+    }
+
+    @Test
+    public void overflowKeepsOrder() throws IOException {
+        PluginEventQueue queue = new PluginEventQueue(4);
+        for (int i = 0; i < 6; i++) {
+            queue.add("DriveReceiver", "DriveUploadProgress", null, i, null);
+        }
+        Drained first = new Drained(queue.drain());
+        assertEquals(4, first.codes.size());
+        for (int i = 0; i < 4; i++) {
+            assertEquals(i, (int) first.codes.get(i));
+        }
+
+        // the ring has room again, but this has to wait behind what is in the overflow
+        queue.add("DriveReceiver", "DriveUploadProgress", null, 6, null);
+        Drained second = new Drained(queue.drain());
+        assertEquals(3, second.codes.size());
+        for (int i = 0; i < 3; i++) {
+            assertEquals(4 + i, (int) second.codes.get(i));
+        }
+
+        // caught up, back to the ring
+        queue.add("DriveReceiver", "DriveUploadProgress", null, 7, null);
+        assertEquals(7, (int) new Drained(queue.drain()).codes.get(0));
+        assertNull(queue.drain());
+    }
+
+    @Test
+    public void dropsEventsWithNowhereToGo() {
+        int before = UnityPlayer.messages;
+        PluginEventQueue.send(null, "DriveUploadFailed", "failed");
+        PluginEventQueue.send("DriveReceiver", null, "failed");
+        assertEquals(before, UnityPlayer.messages);
+    }
+}
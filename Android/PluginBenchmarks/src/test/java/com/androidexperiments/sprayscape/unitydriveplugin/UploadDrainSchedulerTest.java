@@ -0,0 +1,175 @@
+// Copyright 2016 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.androidexperiments.sprayscape.unitydriveplugin;
+
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.net.ConnectivityManager;
+import android.net.NetworkInfo;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class UploadDrainSchedulerTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    // a context on a connected wifi network
+    private static class OnlineContext extends Context {
+        @Override
+        public Context getApplicationContext() {
+            return this;
+        }
+
+        @Override
+        public Object getSystemService(String name) {
+            return new ConnectivityManager() {
+                @Override
+                public NetworkInfo getActiveNetworkInfo() {
+                    return new NetworkInfo();
+                }
+            };
+        }
+
+        @Override
+        public Intent registerReceiver(BroadcastReceiver receiver, IntentFilter filter) {
+            return null;
+        }
+
+        @Override
+        public void unregisterReceiver(BroadcastReceiver receiver) {
+        }
+    }
+
+    // records what the scheduler asked for, uploads finish only when the test says so
+    private static class RecordingUploader implements UploadDrainScheduler.Uploader {
+        final List<Long> uploaded = new ArrayList<>();
+        final List<Boolean> drained = new ArrayList<>();
+        final List<Long> awaited = new ArrayList<>();
+
+        @Override
+        public boolean isReady() {
+            return true;
+        }
+
+        @Override
+        public void upload(UploadJournal.Entry entry, boolean drained) {
+            uploaded.add(entry.id);
+            this.drained.add(drained);
+        }
+
+        @Override
+        public void await(UploadJournal.Entry entry) {
+            awaited.add(entry.id);
+        }
+    }
+
+    private UploadJournal journal;
+    private RecordingUploader uploader;
+    private UploadDrainScheduler scheduler;
+
+    @Before
+    public void setUp() throws IOException {
+        journal = new UploadJournal(new File(folder.getRoot(), "uploads.journal"));
+        uploader = new RecordingUploader();
+        NetworkMonitor network = new NetworkMonitor(new OnlineContext(), new PluginMetrics.Counter());
+        scheduler = new UploadDrainScheduler(network, journal, uploader);
+    }
+
+    @After
+    public void tearDown() {
+        scheduler.stop();
+        journal.close();
+    }
+
+    private UploadJournal.Entry append(String name) throws IOException {
+        return journal.append(null, "Sprayscape", name, new File(folder.getRoot(), name).getPath(), "DriveReceiver");
+    }
+
+    @Test
+    public void submitAfterDrainAwaitsTheDrainedUpload() throws IOException {
+        // journaled on a background thread, then a drain runs before submit is posted to the main thread
+        UploadJournal.Entry entry = append("a.jpg");
+        scheduler.drain();
+        scheduler.submit(entry);
+
+        assertEquals(1, uploader.uploaded.size());
+        assertEquals(entry.id, (long) uploader.uploaded.get(0));
+        assertTrue(uploader.drained.get(0));
+        assertEquals(1, uploader.awaited.size());
+        assertEquals(entry.id, (long) uploader.awaited.get(0));
+    }
+
+    @Test
+    public void drainAfterSubmitSkipsTheSubmittedUpload() throws IOException {
+        UploadJournal.Entry submitted = append("a.jpg");
+        UploadJournal.Entry queued = append("b.jpg");
+        scheduler.submit(submitted);
+        scheduler.drain();
+
+        assertEquals(2, uploader.uploaded.size());
+        assertEquals(submitted.id, (long) uploader.uploaded.get(0));
+        assertEquals(false, uploader.drained.get(0));
+        assertEquals(queued.id, (long) uploader.uploaded.get(1));
+        assertEquals(true, uploader.drained.get(1));
+        assertTrue(uploader.awaited.isEmpty());
+    }
+
+    @Test
+    public void finishedUploadCanBeSubmittedAgain() throws IOException {
+        UploadJournal.Entry entry = append("a.jpg");
+        scheduler.submit(entry);
+        scheduler.onUploadFinished(entry, false);
+        scheduler.submit(entry);
+
+        assertEquals(2, uploader.uploaded.size());
+        assertTrue(uploader.awaited.isEmpty());
+    }
+
+    @Test
+    public void drainsInBatchesUntilTheJournalIsEmpty() throws IOException {
+        List<UploadJournal.Entry> entries = new ArrayList<>();
+        for (int i = 0; i < 6; i++) {
+            entries.add(append(i + ".jpg"));
+        }
+        scheduler.drain();
+        assertEquals(4, uploader.uploaded.size());
+
+        // a second drain while the batch is running doesn't start more
+        scheduler.drain();
+        assertEquals(4, uploader.uploaded.size());
+
+        for (int i = 0; i < 4; i++) {
+            journal.remove(entries.get(i));
+            scheduler.onUploadFinished(entries.get(i), true);
+        }
+        assertEquals(6, uploader.uploaded.size());
+        assertEquals(entries.get(5).id, (long) uploader.uploaded.get(5));
+    }
+}
@@ -0,0 +1,173 @@
+// Copyright 2016 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.androidexperiments.sprayscape.unitydriveplugin;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class UploadJournalTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private File file() {
+        return new File(folder.getRoot(), "uploads.journal");
+    }
+
+    @Test
+    public void replaysEntriesAfterReopen() throws IOException {
+        UploadJournal journal = new UploadJournal(file());
+        UploadJournal.Entry first = journal.append("req-1", "Sprayscape", "a.jpg", "/sdcard/a.jpg", "DriveReceiver");
+        UploadJournal.Entry second = journal.append(null, "Sprayscape", "b.jpg", "/sdcard/b.jpg", "DriveReceiver");
+        UploadJournal.Entry third = journal.append("req-3", "Sprayscape", "c.jpg", "/sdcard/c.jpg", "DriveReceiver");
+        journal.recordAttempt(first);
+        journal.recordAttempt(first);
+        journal.checkpoint(first, "https://upload/session-1", 262144);
+        journal.recordAttempt(second);
+        journal.remove(third);
+        journal.close();
+
+        UploadJournal reopened = new UploadJournal(file());
+        List<UploadJournal.Entry> pending = reopened.pending();
+        assertEquals(2, pending.size());
+
+        UploadJournal.Entry a = pending.get(0);
+        assertEquals(first.id, a.id);
+        assertEquals("req-1", a.requestId);
+        assertEquals("Sprayscape", a.driveFolderName);
+        assertEquals("a.jpg", a.driveFileName);
+        assertEquals("/sdcard/a.jpg", a.localPath);
+        assertEquals("DriveReceiver", a.callbackObjectName);
+        assertEquals(2, a.getAttempts());
+        assertEquals("https://upload/session-1", a.getUploadSessionUri());
+        assertEquals(262144, a.getUploadedBytes());
+
+        UploadJournal.Entry b = pending.get(1);
+        assertEquals(second.id, b.id);
+        assertNull(b.requestId);
+        assertEquals(1, b.getAttempts());
+        assertNull(b.getUploadSessionUri());
+
+        // ids keep going up past the removed entry, a new one can't be confused with it
+        UploadJournal.Entry next = reopened.append(null, "Sprayscape", "d.jpg", "/sdcard/d.jpg", "DriveReceiver");
+        assertTrue(next.id > third.id);
+        reopened.close();
+    }
+
+    @Test
+    public void checkpointWithoutSessionForgetsIt() throws IOException {
+        UploadJournal journal = new UploadJournal(file());
+        UploadJournal.Entry entry = journal.append(null, "Sprayscape", "a.jpg", "/sdcard/a.jpg", "DriveReceiver");
+        journal.checkpoint(entry, "https://upload/session-1", 262144);
+        journal.checkpoint(entry, null, 524288);
+        journal.close();
+
+        UploadJournal.Entry replayed = new UploadJournal(file()).pending().get(0);
+        assertNull(replayed.getUploadSessionUri());
+        assertEquals(0, replayed.getUploadedBytes());
+    }
+
+    @Test
+    public void compactsOnOpen() throws IOException {
+        UploadJournal journal = new UploadJournal(file());
+        UploadJournal.Entry kept = journal.append(null, "Sprayscape", "kept.jpg", "/sdcard/kept.jpg", "DriveReceiver");
+        for (int i = 0; i < 50; i++) {
+            UploadJournal.Entry entry = journal.append(null, "Sprayscape", i + ".jpg", "/sdcard/" + i + ".jpg", "DriveReceiver");
+            journal.recordAttempt(entry);
+            journal.remove(entry);
+        }
+        journal.checkpoint(kept, "https://upload/session-1", 262144);
+        journal.close();
+        long before = file().length();
+
+        UploadJournal reopened = new UploadJournal(file());
+        reopened.close();
+        assertTrue(file().length() < before);
+        assertFalse(new File(file().getPath() + ".tmp").exists());
+
+        // and what was compacted replays the same
+        UploadJournal.Entry replayed = new UploadJournal(file()).pending().get(0);
+        assertEquals(kept.id, replayed.id);
+        assertEquals("https://upload/session-1", replayed.getUploadSessionUri());
+        assertEquals(262144, replayed.getUploadedBytes());
+    }
+
+    @Test
+    public void removingEverythingEmptiesTheFile() throws IOException {
+        UploadJournal journal = new UploadJournal(file());
+        UploadJournal.Entry first = journal.append(null, "Sprayscape", "a.jpg", "/sdcard/a.jpg", "DriveReceiver");
+        UploadJournal.Entry second = journal.append(null, "Sprayscape", "b.jpg", "/sdcard/b.jpg", "DriveReceiver");
+        journal.remove(first);
+        journal.remove(second);
+        assertEquals(0, file().length());
+
+        // still usable after the compaction closed the file
+        journal.append(null, "Sprayscape", "c.jpg", "/sdcard/c.jpg", "DriveReceiver");
+        journal.close();
+        assertEquals(1, new UploadJournal(file()).size());
+    }
+
+    @Test
+    public void ignoresTornTrailingRecord() throws IOException {
+        UploadJournal journal = new UploadJournal(file());
+        UploadJournal.Entry first = journal.append(null, "Sprayscape", "a.jpg", "/sdcard/a.jpg", "DriveReceiver");
+        journal.append(null, "Sprayscape", "b.jpg", "/sdcard/b.jpg", "DriveReceiver");
+        journal.close();
+
+        // the process died halfway through writing the second entry
+        try (RandomAccessFile raf = new RandomAccessFile(file(), "rw")) {
+            raf.setLength(raf.length() - 5);
+        }
+
+        UploadJournal reopened = new UploadJournal(file());
+        List<UploadJournal.Entry> pending = reopened.pending();
+        assertEquals(1, pending.size());
+        assertEquals(first.id, pending.get(0).id);
+
+        // the torn bytes were compacted away, so records appended now replay too
+        UploadJournal.Entry next = reopened.append(null, "Sprayscape", "c.jpg", "/sdcard/c.jpg", "DriveReceiver");
+        reopened.recordAttempt(next);
+        reopened.close();
+        List<UploadJournal.Entry> replayed = new UploadJournal(file()).pending();
+        assertEquals(2, replayed.size());
+        assertEquals(next.id, replayed.get(1).id);
+        assertEquals(1, replayed.get(1).getAttempts());
+    }
+
+    @Test
+    public void rejectsUnknownOp() throws IOException {
+        try (FileOutputStream out = new FileOutputStream(file())) {
+            out.write(new byte[] { 42, 0, 0, 0, 0, 0, 0, 0, 1 });
+        }
+        try {
+            new UploadJournal(file());
+            fail("expected an IOException for a corrupt journal");
+        } catch (IOException expected) {
+        }
+    }
+}
@@ -0,0 +1,75 @@
+// Copyright 2016 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.androidexperiments.sprayscape.unitydriveplugin;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * {@link ImageCodec} on BitmapFactory and Bitmap.compress. Decoding goes through inSampleSize, so
+ * a spray the renditions only need half of is decoded at half size in the first place.
+ */
+public class AndroidImageCodec implements ImageCodec {
+
+    @Override
+    public Pixels decode(File jpeg, int minWidth, int minHeight) throws IOException {
+        BitmapFactory.Options bounds = new BitmapFactory.Options();
+        bounds.inJustDecodeBounds = true;
+        BitmapFactory.decodeFile(jpeg.getPath(), bounds);
+        if (bounds.outWidth <= 0 || bounds.outHeight <= 0) {
+            throw new IOException("Not a readable image: " + jpeg);
+        }
+
+        // the decoder only scales by powers of two
+        int sampleSize = 1;
+        while (bounds.outWidth / (sampleSize * 2) >= minWidth && bounds.outHeight / (sampleSize * 2) >= minHeight) {
+            sampleSize *= 2;
+        }
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inSampleSize = sampleSize;
+        options.inPreferredConfig = Bitmap.Config.ARGB_8888;
+        Bitmap bitmap = BitmapFactory.decodeFile(jpeg.getPath(), options);
+        if (bitmap == null) {
+            throw new IOException("Failed to decode " + jpeg);
+        }
+        try {
+            int width = bitmap.getWidth();
+            int height = bitmap.getHeight();
+            int[] argb = new int[width * height];
+            bitmap.getPixels(argb, 0, width, 0, 0, width, height);
+            return new Pixels(width, height, argb);
+        } finally {
+            bitmap.recycle();
+        }
+    }
+
+    @Override
+    public void encode(Pixels pixels, int quality, OutputStream out) throws IOException {
+        Bitmap bitmap = Bitmap.createBitmap(pixels.argb, pixels.width, pixels.height, Bitmap.Config.ARGB_8888);
+        try {
+            // sprays are opaque, and skia would un-premultiply with the alpha otherwise
+            bitmap.setHasAlpha(false);
+            if (!bitmap.compress(Bitmap.CompressFormat.JPEG, quality, out)) {
+                throw new IOException("JPEG encode failed");
+            }
+        } finally {
+            bitmap.recycle();
+        }
+    }
+}
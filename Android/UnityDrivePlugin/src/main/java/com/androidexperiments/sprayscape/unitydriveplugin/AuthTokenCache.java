@@ -0,0 +1,245 @@
+// Copyright 2016 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.androidexperiments.sprayscape.unitydriveplugin;
+
+import android.util.Log;
+
+import com.google.android.gms.auth.GoogleAuthException;
+import com.google.api.client.http.GenericUrl;
+import com.google.api.client.http.HttpRequest;
+import com.google.api.client.http.HttpRequestFactory;
+import com.google.api.client.json.GenericJson;
+import com.google.api.client.json.JsonFactory;
+import com.google.api.client.json.JsonObjectParser;
+
+import java.io.IOException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Keeps the current OAuth access token along with when it expires, so Unity can be handed a token
+ * straight away instead of going back to Play Services every time.
+ *
+ * The token is refreshed in the background shortly before it expires, and concurrent requests for a
+ * token while none is cached share a single fetch.
+ */
+public class AuthTokenCache {
+
+    private static final String TAG = "AuthTokenCache";
+
+    private static final String TOKEN_INFO_URL = "https://www.googleapis.com/oauth2/v3/tokeninfo";
+    private static final long REFRESH_MARGIN_MS = 5 * 60 * 1000;
+    // don't hand out a token that will be dead before the caller gets to use it
+    private static final long MIN_REMAINING_MS = 60 * 1000;
+    // used when the token info lookup fails, short so we refresh early rather than late
+    private static final long FALLBACK_LIFETIME_MS = 10 * 60 * 1000;
+
+    public interface TokenSource {
+        // staleToken is the token being replaced (or null), it must be invalidated so a fresh one is issued
+        String fetchToken(String staleToken) throws IOException, GoogleAuthException;
+    }
+
+    private final ScheduledExecutorService executor;
+    private final TokenSource source;
+    private final HttpRequestFactory requestFactory;
+    private final JsonFactory jsonFactory;
+
+    private String token;
+    private long expiresAt;
+    private int generation;
+    private FutureTask<String> inFlight;
+    private ScheduledFuture<?> refresh;
+
+    public AuthTokenCache(ScheduledExecutorService executor, TokenSource source, HttpRequestFactory requestFactory, JsonFactory jsonFactory) {
+        this.executor = executor;
+        this.source = source;
+        this.requestFactory = requestFactory;
+        this.jsonFactory = jsonFactory;
+    }
+
+    // the cached token if it is still good for a while, never blocks
+    public synchronized String getCached() {
+        if (token != null && System.currentTimeMillis() < expiresAt - MIN_REMAINING_MS) {
+            return token;
+        }
+        return null;
+    }
+
+    // the cached token, or wait for a fetch (shared with anyone else asking at the same time)
+    public String get() throws IOException, GoogleAuthException {
+        String cached = getCached();
+        if (cached != null) {
+            return cached;
+        }
+        FutureTask<String> fetch;
+        synchronized (this) {
+            fetch = startFetch();
+        }
+        // a no-op if someone else is already running it, and saves waiting behind a prefetch still queued on the executor
+        fetch.run();
+        return await(fetch);
+    }
+
+    /**
+     * Like get(), but the fetch runs on the executor rather than the calling thread, so an interrupt
+     * only stops this caller waiting. Interrupting a fetch that others are waiting on would fail it
+     * for all of them.
+     */
+    public String getInBackground() throws IOException, GoogleAuthException, InterruptedException {
+        String cached = getCached();
+        if (cached != null) {
+            return cached;
+        }
+        FutureTask<String> fetch;
+        synchronized (this) {
+            boolean running = inFlight != null;
+            fetch = startFetch();
+            if (!running) {
+                executor.execute(fetch);
+            }
+        }
+        return awaitInterruptibly(fetch);
+    }
+
+    // start fetching a token in the background if we don't have a good one
+    public void prefetch() {
+        synchronized (this) {
+            if (getCached() != null || inFlight != null) {
+                return;
+            }
+            executor.execute(startFetch());
+        }
+    }
+
+    // forget the token, e.g. when the account changes
+    public synchronized void clear() {
+        token = null;
+        expiresAt = 0;
+        generation++;
+        inFlight = null;
+        if (refresh != null) {
+            refresh.cancel(false);
+            refresh = null;
+        }
+    }
+
+    private FutureTask<String> startFetch() {
+        if (inFlight != null) {
+            return inFlight;
+        }
+        final String staleToken = token;
+        final int fetchGeneration = generation;
+        inFlight = new FutureTask<>(new Callable<String>() {
+            @Override
+            public String call() throws Exception {
+                try {
+                    String fresh = source.fetchToken(staleToken);
+                    long lifetime = lookupLifetime(fresh);
+                    store(fetchGeneration, fresh, lifetime);
+                    return fresh;
+                } finally {
+                    synchronized (AuthTokenCache.this) {
+                        if (fetchGeneration == generation) {
+                            inFlight = null;
+                        }
+                    }
+                }
+            }
+        });
+        return inFlight;
+    }
+
+    private synchronized void store(int fetchGeneration, String fresh, long lifetime) {
+        if (fetchGeneration != generation) {
+            // the account changed while we were fetching, this token belongs to the old one
+            return;
+        }
+        token = fresh;
+        expiresAt = System.currentTimeMillis() + lifetime;
+        Log.i(TAG, "token cached, expires in " + (lifetime / 1000) + "s");
+
+        if (refresh != null) {
+            refresh.cancel(false);
+        }
+        refresh = executor.schedule(new Runnable() {
+            @Override
+            public void run() {
+                FutureTask<String> fetch;
+                synchronized (AuthTokenCache.this) {
+                    refresh = null;
+                    if (inFlight != null) {
+                        return;
+                    }
+                    fetch = startFetch();
+                }
+                fetch.run();
+                try {
+                    await(fetch);
+                } catch (IOException | GoogleAuthException ex) {
+                    // the old token is still good for a few minutes, get() will try again if it runs out
+                    Log.w(TAG, "Background token refresh failed", ex);
+                }
+            }
+        }, Math.max(0, lifetime - REFRESH_MARGIN_MS), TimeUnit.MILLISECONDS);
+    }
+
+    private long lookupLifetime(String accessToken) {
+        // play services doesn't tell us when the token expires, and may hand back one it already had
+        try {
+            GenericUrl url = new GenericUrl(TOKEN_INFO_URL);
+            url.set("access_token", accessToken);
+            HttpRequest request = requestFactory.buildGetRequest(url);
+            request.setParser(new JsonObjectParser(jsonFactory));
+            GenericJson info = request.execute().parseAs(GenericJson.class);
+            Object expiresIn = info.get("expires_in");
+            if (expiresIn != null) {
+                return Long.parseLong(String.valueOf(expiresIn)) * 1000;
+            }
+        } catch (IOException | RuntimeException ex) {
+            // including a response that isn't the json we expect, the token itself is still good
+            Log.w(TAG, "Failed to look up token expiry", ex);
+        }
+        return FALLBACK_LIFETIME_MS;
+    }
+
+    private static String await(FutureTask<String> fetch) throws IOException, GoogleAuthException {
+        try {
+            return awaitInterruptibly(fetch);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while fetching auth token", ex);
+        }
+    }
+
+    private static String awaitInterruptibly(FutureTask<String> fetch) throws IOException, GoogleAuthException, InterruptedException {
+        try {
+            return fetch.get();
+        } catch (ExecutionException ex) {
+            Throwable cause = ex.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            } else if (cause instanceof GoogleAuthException) {
+                throw (GoogleAuthException) cause;
+            } else if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            throw new IOException("Failed to fetch auth token", cause);
+        }
+    }
+}
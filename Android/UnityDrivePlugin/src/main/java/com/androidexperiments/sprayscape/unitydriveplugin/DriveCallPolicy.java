@@ -0,0 +1,323 @@
+// Copyright 2016 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.androidexperiments.sprayscape.unitydriveplugin;
+
+import android.util.Log;
+
+import com.google.api.client.googleapis.extensions.android.gms.auth.GoogleAuthIOException;
+import com.google.api.client.googleapis.json.GoogleJsonError;
+import com.google.api.client.googleapis.json.GoogleJsonResponseException;
+import com.google.api.client.http.HttpResponseException;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.ConnectException;
+import java.net.NoRouteToHostException;
+import java.net.UnknownHostException;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * The one place Drive calls are retried. Every call goes through {@link #execute}, which sorts
+ * failures into rate limits, transient errors, lost connectivity, auth problems and permanent
+ * errors, retries the first three with jittered exponential backoff until the operation's deadline,
+ * and stops calling Drive at all for a while once it keeps failing (a circuit breaker), rather than
+ * every upload and check hammering a service that is already struggling. Lost connectivity says
+ * nothing about Drive, so it doesn't count towards the breaker.
+ *
+ * Calls must not be nested, each level would retry on its own. The operation name is also the
+ * name of the {@link PluginMetrics} histogram its latency (retries included) is recorded in.
+ */
+public class DriveCallPolicy {
+
+    private static final String TAG = "DriveCallPolicy";
+
+    public static final long METADATA_DEADLINE_MS = 20 * 1000;
+    public static final long UPLOAD_DEADLINE_MS = 2 * 60 * 1000;
+
+    private static final long BASE_BACKOFF_MS = 500;
+    private static final long MAX_BACKOFF_MS = 16 * 1000;
+    // rate limits want more room than a flaky connection
+    private static final long RATE_LIMIT_BASE_BACKOFF_MS = 2 * 1000;
+
+    // this many retryable failures in a row, with no success in between, and the circuit opens
+    private static final int TRIP_FAILURES = 5;
+    private static final long MIN_OPEN_MS = 30 * 1000;
+    private static final long MAX_OPEN_MS = 5 * 60 * 1000;
+
+    public enum ErrorClass {
+        RATE_LIMITED,
+        TRANSIENT,
+        // the device couldn't reach drive at all
+        NETWORK,
+        AUTH,
+        PERMANENT,
+    }
+
+    public interface Call<T> {
+        T execute() throws IOException;
+    }
+
+    /**
+     * When an operation stops being retried. A long call that is still getting somewhere, like a
+     * resumable upload at each checkpoint, calls {@link #extend()} so the time counts from its last
+     * progress, a retry after a long but healthy run resumes rather than giving up.
+     */
+    public static class Deadline {
+        private final long windowMs;
+        private volatile long expiresAt;
+
+        public Deadline(long windowMs) {
+            this.windowMs = windowMs;
+            extend();
+        }
+
+        public void extend() {
+            expiresAt = System.currentTimeMillis() + windowMs;
+        }
+
+        boolean passedBy(long delayMs) {
+            return System.currentTimeMillis() + delayMs > expiresAt;
+        }
+
+        long remainingMs() {
+            return expiresAt - System.currentTimeMillis();
+        }
+    }
+
+    // thrown instead of calling drive while the circuit is open
+    public static class CircuitOpenException extends IOException {
+        CircuitOpenException(long retryInMs) {
+            super("Drive is failing, not trying again for " + retryInMs + "ms");
+        }
+    }
+
+    private final Random random = new Random();
+    private final PluginMetrics metrics;
+    private final PluginMetrics.Counter retries;
+    private final PluginMetrics.Counter circuitOpened;
+    private final PluginMetrics.Counter circuitRejected;
+    private final PluginMetrics.Counter[] failures = new PluginMetrics.Counter[ErrorClass.values().length];
+
+    // guarded by this
+    private int consecutiveFailures;
+    private long openUntil;
+    private long openMs = MIN_OPEN_MS;
+    private boolean trialInFlight;
+
+    public DriveCallPolicy(PluginMetrics metrics) {
+        this.metrics = metrics;
+        retries = metrics.counter("drive.retries");
+        circuitOpened = metrics.counter("drive.circuit.opened");
+        circuitRejected = metrics.counter("drive.circuit.rejected");
+        for (ErrorClass errorClass : ErrorClass.values()) {
+            failures[errorClass.ordinal()] = metrics.counter("drive.failures." + errorClass.name().toLowerCase());
+        }
+    }
+
+    public <T> T execute(String operation, Call<T> call) throws IOException {
+        return execute(operation, METADATA_DEADLINE_MS, call);
+    }
+
+    public <T> T execute(String operation, long deadlineMs, Call<T> call) throws IOException {
+        return execute(operation, new Deadline(deadlineMs), call);
+    }
+
+    public <T> T execute(String operation, Deadline deadline, Call<T> call) throws IOException {
+        PluginMetrics.Histogram latency = metrics.histogram(operation);
+        long start = System.nanoTime();
+        for (int attempt = 0; ; attempt++) {
+            boolean trial = admit();
+            boolean settled = false;
+            try {
+                T result = call.execute();
+                settled = true;
+                onSuccess(trial);
+                latency.recordSince(start);
+                return result;
+            } catch (IOException ex) {
+                settled = true;
+                ErrorClass errorClass = classify(ex);
+                failures[errorClass.ordinal()].increment();
+                boolean retryable = errorClass == ErrorClass.RATE_LIMITED || errorClass == ErrorClass.TRANSIENT
+                        || errorClass == ErrorClass.NETWORK;
+                if (errorClass == ErrorClass.NETWORK) {
+                    // drive never got the call, its circuit stays as it was
+                    if (trial) {
+                        releaseTrial();
+                    }
+                } else if (retryable) {
+                    onFailure(trial);
+                } else {
+                    // drive answered, even if the answer was no
+                    onSuccess(trial);
+                }
+
+                long delay = retryable ? backoff(errorClass, attempt, ex) : 0;
+                if (!retryable || deadline.passedBy(delay)) {
+                    Log.w(TAG, operation + " failed (" + errorClass + ") after " + (attempt + 1) + " attempt(s)");
+                    latency.recordSince(start);
+                    throw ex;
+                }
+                retries.increment();
+                Log.i(TAG, operation + " failed (" + errorClass + "), retrying in " + delay + "ms: " + ex);
+                sleep(delay);
+            } finally {
+                if (trial && !settled) {
+                    // something other than drive failed the trial (a RuntimeException, the call's
+                    // executor shut down), let the next call be the trial instead
+                    releaseTrial();
+                }
+            }
+        }
+    }
+
+    public static ErrorClass classify(IOException ex) {
+        if (ex instanceof CircuitOpenException) {
+            return ErrorClass.TRANSIENT;
+        }
+        // covers UserRecoverableAuthIOException too
+        if (ex instanceof GoogleAuthIOException) {
+            return ErrorClass.AUTH;
+        }
+        if (ex instanceof FileNotFoundException) {
+            // the local file, not drive
+            return ErrorClass.PERMANENT;
+        }
+        if (ex instanceof UnknownHostException || ex instanceof ConnectException || ex instanceof NoRouteToHostException) {
+            // offline, or a network that doesn't go anywhere yet
+            return ErrorClass.NETWORK;
+        }
+        if (!(ex instanceof HttpResponseException)) {
+            // timeouts, resets, the kind of thing that goes away
+            return ErrorClass.TRANSIENT;
+        }
+
+        int status = ((HttpResponseException) ex).getStatusCode();
+        if (status == 429 || (status == 403 && isRateLimitReason(ex))) {
+            return ErrorClass.RATE_LIMITED;
+        }
+        if (status == 401) {
+            return ErrorClass.AUTH;
+        }
+        if (status == 408 || status >= 500) {
+            return ErrorClass.TRANSIENT;
+        }
+        return ErrorClass.PERMANENT;
+    }
+
+    public static boolean isRateLimited(IOException ex) {
+        return classify(ex) == ErrorClass.RATE_LIMITED;
+    }
+
+    private static boolean isRateLimitReason(IOException ex) {
+        if (!(ex instanceof GoogleJsonResponseException)) {
+            return false;
+        }
+        GoogleJsonError details = ((GoogleJsonResponseException) ex).getDetails();
+        if (details == null || details.getErrors() == null) {
+            return false;
+        }
+        for (GoogleJsonError.ErrorInfo info : details.getErrors()) {
+            String reason = info.getReason();
+            if ("rateLimitExceeded".equals(reason) || "userRateLimitExceeded".equals(reason)
+                    || "sharingRateLimitExceeded".equals(reason)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // full jitter, so a burst of failed uploads doesn't come back in lock step
+    private long backoff(ErrorClass errorClass, int attempt, IOException ex) {
+        long base = errorClass == ErrorClass.RATE_LIMITED ? RATE_LIMIT_BASE_BACKOFF_MS : BASE_BACKOFF_MS;
+        long ceiling = Math.min(MAX_BACKOFF_MS, base << Math.min(attempt, 10));
+        long delay;
+        synchronized (random) {
+            delay = (long) (random.nextDouble() * ceiling);
+        }
+        return Math.max(delay, retryAfterMs(ex));
+    }
+
+    private static long retryAfterMs(IOException ex) {
+        if (!(ex instanceof HttpResponseException)) {
+            return 0;
+        }
+        Object retryAfter = ((HttpResponseException) ex).getHeaders().get("retry-after");
+        if (retryAfter instanceof List && !((List<?>) retryAfter).isEmpty()) {
+            retryAfter = ((List<?>) retryAfter).get(0);
+        }
+        try {
+            return retryAfter == null ? 0 : Long.parseLong(retryAfter.toString().trim()) * 1000;
+        } catch (NumberFormatException e) {
+            // an http date, not worth parsing for how rarely drive sends one
+            return 0;
+        }
+    }
+
+    // true if this call is the one trial let through a half open circuit
+    private synchronized boolean admit() throws CircuitOpenException {
+        if (openUntil == 0) {
+            return false;
+        }
+        long now = System.currentTimeMillis();
+        if (now < openUntil || trialInFlight) {
+            circuitRejected.increment();
+            throw new CircuitOpenException(Math.max(0, openUntil - now));
+        }
+        trialInFlight = true;
+        return true;
+    }
+
+    private synchronized void onSuccess(boolean trial) {
+        if (trial || openUntil != 0) {
+            Log.i(TAG, "drive is answering again, circuit closed");
+        }
+        consecutiveFailures = 0;
+        openUntil = 0;
+        openMs = MIN_OPEN_MS;
+        trialInFlight = false;
+    }
+
+    private synchronized void releaseTrial() {
+        trialInFlight = false;
+    }
+
+    private synchronized void onFailure(boolean trial) {
+        consecutiveFailures++;
+        if (trial) {
+            // still failing, stay open for longer
+            trialInFlight = false;
+            openMs = Math.min(openMs * 2, MAX_OPEN_MS);
+            openUntil = System.currentTimeMillis() + openMs;
+            circuitOpened.increment();
+            Log.w(TAG, "trial call failed, circuit open for " + openMs + "ms");
+        } else if (openUntil == 0 && consecutiveFailures >= TRIP_FAILURES) {
+            openUntil = System.currentTimeMillis() + openMs;
+            circuitOpened.increment();
+            Log.w(TAG, consecutiveFailures + " failures in a row, circuit open for " + openMs + "ms");
+        }
+    }
+
+    private static void sleep(long ms) throws InterruptedIOException {
+        try {
+            Thread.sleep(ms);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted waiting to retry");
+        }
+    }
+}
@@ -0,0 +1,96 @@
+// Copyright 2016 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.androidexperiments.sprayscape.unitydriveplugin;
+
+import android.content.SharedPreferences;
+import android.util.Log;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * Remembers the Drive file each spray was uploaded as, keyed by (account, folder name, MD5 of the
+ * uploaded bytes), so sharing the same spray again can hand back the file that is already there
+ * instead of uploading it again.
+ *
+ * The hash is over the bytes as sent, 360 metadata included, which is what Drive reports as the
+ * file's md5Checksum, so a mapping can be checked against Drive before it is trusted.
+ */
+public class DriveContentIndex {
+
+    private static final String TAG = "DriveContentIndex";
+
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+    private final SharedPreferences prefs;
+
+    public DriveContentIndex(SharedPreferences prefs) {
+        this.prefs = prefs;
+    }
+
+    public String get(String accountName, String folderName, String contentHash) {
+        return prefs.getString(key(accountName, folderName, contentHash), null);
+    }
+
+    public void put(String accountName, String folderName, String contentHash, String fileId) {
+        prefs.edit().putString(key(accountName, folderName, contentHash), fileId).apply();
+    }
+
+    // forget a file drive no longer has, unless it was already replaced by a newer upload
+    public synchronized void invalidate(String accountName, String folderName, String contentHash, String staleFileId) {
+        String key = key(accountName, folderName, contentHash);
+        if (staleFileId.equals(prefs.getString(key, null))) {
+            Log.i(TAG, "file " + staleFileId + " is gone from drive, dropping it from the index");
+            prefs.edit().remove(key).apply();
+        }
+    }
+
+    // lowercase hex md5 of everything in the stream, which is closed afterwards
+    public static String md5(InputStream in) throws IOException {
+        byte[] hash = md5Bytes(in);
+        char[] hex = new char[hash.length * 2];
+        for (int i = 0; i < hash.length; i++) {
+            hex[i * 2] = HEX[(hash[i] >> 4) & 0xf];
+            hex[i * 2 + 1] = HEX[hash[i] & 0xf];
+        }
+        return new String(hex);
+    }
+
+    // the raw 16 byte md5 of everything in the stream, which is closed afterwards
+    public static byte[] md5Bytes(InputStream in) throws IOException {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("MD5");
+        } catch (NoSuchAlgorithmException ex) {
+            throw new IllegalStateException(ex);
+        }
+        try {
+            byte[] buffer = new byte[64 * 1024];
+            int n;
+            while ((n = in.read(buffer)) != -1) {
+                digest.update(buffer, 0, n);
+            }
+        } finally {
+            in.close();
+        }
+        return digest.digest();
+    }
+
+    private static String key(String accountName, String folderName, String contentHash) {
+        return accountName + "/" + folderName + "/" + contentHash;
+    }
+}
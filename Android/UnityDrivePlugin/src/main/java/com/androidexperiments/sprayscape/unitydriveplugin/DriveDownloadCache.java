@@ -0,0 +1,207 @@
+// Copyright 2016 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.androidexperiments.sprayscape.unitydriveplugin;
+
+import android.util.Log;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Files downloaded from Drive, kept on disk under a key of the file id and its modified time, so a
+ * file that changed on Drive is fetched again, and bounded in size by dropping whatever was used
+ * least recently.
+ *
+ * A download in progress goes to a .part file next to where it ends up, and is left there if it
+ * is cut off, so the next attempt can ask Drive for just the rest with a range request. Only one
+ * download per key runs at a time, anyone else asking for it waits with {@link #await}.
+ */
+public class DriveDownloadCache {
+
+    private static final String TAG = "DriveDownloadCache";
+
+    private static final String PART_SUFFIX = ".part";
+    // parts of downloads nobody came back for
+    private static final long MAX_PART_AGE_MS = 24 * 60 * 60 * 1000;
+
+    private final File dir;
+    private final long maxBytes;
+    // key to size, least recently used first
+    private final LinkedHashMap<String, Long> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private final Set<String> downloading = new HashSet<>();
+    private long totalBytes;
+
+    public DriveDownloadCache(File dir, long maxBytes) {
+        this.dir = dir;
+        this.maxBytes = maxBytes;
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            Log.w(TAG, "Failed to create download cache " + dir);
+        }
+
+        File[] files = dir.listFiles();
+        if (files == null) {
+            files = new File[0];
+        }
+        // a read touches the file's modified time, so this is the order they were last used in
+        Arrays.sort(files, new Comparator<File>() {
+            @Override
+            public int compare(File a, File b) {
+                return Long.compare(a.lastModified(), b.lastModified());
+            }
+        });
+        long now = System.currentTimeMillis();
+        for (File f : files) {
+            if (f.getName().endsWith(PART_SUFFIX)) {
+                if (now - f.lastModified() > MAX_PART_AGE_MS) {
+                    f.delete();
+                }
+                continue;
+            }
+            if (f.getName().indexOf('.') < 1) {
+                // not something we put here
+                continue;
+            }
+            entries.put(f.getName(), f.length());
+            totalBytes += f.length();
+        }
+        trim(null);
+        Log.i(TAG, "download cache has " + entries.size() + " file(s), " + totalBytes + " bytes");
+    }
+
+    // variant tells apart different things cached for the same file (a preview), null for the file itself
+    public static String key(String fileId, long modifiedTime, String variant) {
+        // '.' never shows up in a drive file id, so the id can be read back off the front
+        return fileId + "." + modifiedTime + (variant == null ? "" : "." + variant);
+    }
+
+    // the cached file for key, or null. Counts as a use
+    public synchronized File get(String key) {
+        if (entries.get(key) == null) {
+            return null;
+        }
+        File f = new File(dir, key);
+        if (!f.exists()) {
+            // cleared out from under us
+            totalBytes -= entries.remove(key);
+            return null;
+        }
+        f.setLastModified(System.currentTimeMillis());
+        return f;
+    }
+
+    // whichever version of fileId is cached, for when drive can't be asked which one is current
+    public synchronized File find(String fileId, String variant) {
+        for (String key : entries.keySet()) {
+            if (fileIdOf(key).equals(fileId) && variantOf(key).equals(variant == null ? "" : variant)) {
+                return get(key);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * The part file to download key into, possibly with some of it there already from an earlier
+     * attempt. Null if it is already being downloaded, then {@link #await} it instead. Must be
+     * followed by {@link #commit} or {@link #abort}.
+     */
+    public synchronized File begin(String key) {
+        if (!downloading.add(key)) {
+            return null;
+        }
+        return new File(dir, key + PART_SUFFIX);
+    }
+
+    // the part file is complete, move it into the cache, returns the cached file
+    public synchronized File commit(String key) {
+        try {
+            File part = new File(dir, key + PART_SUFFIX);
+            File f = new File(dir, key);
+            if (!part.renameTo(f)) {
+                Log.w(TAG, "Failed to move " + part + " to " + f);
+                part.delete();
+                return null;
+            }
+            Long previous = entries.put(key, f.length());
+            totalBytes += f.length() - (previous == null ? 0 : previous);
+
+            // older versions of the same file won't be asked for again
+            Iterator<Map.Entry<String, Long>> it = entries.entrySet().iterator();
+            while (it.hasNext()) {
+                Map.Entry<String, Long> entry = it.next();
+                if (!entry.getKey().equals(key) && fileIdOf(entry.getKey()).equals(fileIdOf(key))
+                        && variantOf(entry.getKey()).equals(variantOf(key))) {
+                    new File(dir, entry.getKey()).delete();
+                    totalBytes -= entry.getValue();
+                    it.remove();
+                }
+            }
+            trim(key);
+            return f;
+        } finally {
+            downloading.remove(key);
+            notifyAll();
+        }
+    }
+
+    // the download stopped, what was written stays in the part file for the next attempt
+    public synchronized void abort(String key) {
+        downloading.remove(key);
+        notifyAll();
+    }
+
+    // waits for someone else's download of key, then the cached file, or null if it failed or timed out
+    public synchronized File await(String key, long timeoutMs) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + timeoutMs;
+        long remaining;
+        while (downloading.contains(key) && (remaining = deadline - System.currentTimeMillis()) > 0) {
+            wait(remaining);
+        }
+        return get(key);
+    }
+
+    public synchronized long getTotalBytes() {
+        return totalBytes;
+    }
+
+    private static String fileIdOf(String key) {
+        return key.substring(0, key.indexOf('.'));
+    }
+
+    // "" for the file itself
+    private static String variantOf(String key) {
+        int end = key.indexOf('.', key.indexOf('.') + 1);
+        return end < 0 ? "" : key.substring(end + 1);
+    }
+
+    // drop the least recently used until under maxBytes, never keep
+    private void trim(String keep) {
+        Iterator<Map.Entry<String, Long>> it = entries.entrySet().iterator();
+        while (totalBytes > maxBytes && it.hasNext()) {
+            Map.Entry<String, Long> entry = it.next();
+            if (entry.getKey().equals(keep)) {
+                continue;
+            }
+            new File(dir, entry.getKey()).delete();
+            totalBytes -= entry.getValue();
+            it.remove();
+        }
+    }
+}
@@ -0,0 +1,132 @@
+// Copyright 2016 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.androidexperiments.sprayscape.unitydriveplugin;
+
+import android.os.Process;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Bounded thread pools for the plugin's Drive work, split into lanes so a slow upload can't hold
+ * up a token fetch or a metadata check the way the shared AsyncTask serial executor did.
+ */
+public class DriveExecutors {
+
+    private static final int AUTH_THREADS = 1;
+    private static final int UPLOAD_THREADS = 3;
+    private static final int METADATA_THREADS = 2;
+    private static final int DOWNLOAD_THREADS = 2;
+    // one per rendition size, they are built side by side
+    private static final int RENDITION_THREADS = 2;
+
+    // more than this waiting and new work is rejected, uploads stay in the journal and drain later
+    private static final int MAX_QUEUED = 64;
+
+    // scheduled so the token cache can refresh ahead of expiry on the same lane
+    private final ScheduledThreadPoolExecutor auth = new ScheduledThreadPoolExecutor(AUTH_THREADS, newThreadFactory("drive-auth"));
+    private final ThreadPoolExecutor uploads = newLane("drive-upload", UPLOAD_THREADS);
+    private final ThreadPoolExecutor metadata = newLane("drive-metadata", METADATA_THREADS);
+    // its own lane, someone waiting to look at a spray shouldn't queue behind their own uploads
+    private final ThreadPoolExecutor downloads = newLane("drive-download", DOWNLOAD_THREADS);
+    // cpu bound, not drive calls, but it feeds the uploads
+    private final ThreadPoolExecutor renditions = newLane("drive-rendition", RENDITION_THREADS);
+
+    public ScheduledExecutorService auth() {
+        return auth;
+    }
+
+    public Executor uploads() {
+        return uploads;
+    }
+
+    public Executor metadata() {
+        return metadata;
+    }
+
+    public Executor downloads() {
+        return downloads;
+    }
+
+    public Executor renditions() {
+        return renditions;
+    }
+
+    // how many uploads run at once, up to UPLOAD_THREADS, the rest wait in the queue
+    public void setUploadConcurrency(int threads) {
+        threads = Math.max(1, Math.min(UPLOAD_THREADS, threads));
+        synchronized (uploads) {
+            // the core size can't go above the maximum, so the order depends on the direction
+            if (threads > uploads.getMaximumPoolSize()) {
+                uploads.setMaximumPoolSize(threads);
+                uploads.setCorePoolSize(threads);
+            } else {
+                uploads.setCorePoolSize(threads);
+                uploads.setMaximumPoolSize(threads);
+            }
+        }
+    }
+
+    public int uploadQueueDepth() {
+        return uploads.getQueue().size() + uploads.getActiveCount();
+    }
+
+    public int metadataQueueDepth() {
+        return metadata.getQueue().size() + metadata.getActiveCount();
+    }
+
+    public int downloadQueueDepth() {
+        return downloads.getQueue().size() + downloads.getActiveCount();
+    }
+
+    public void shutdown() {
+        auth.shutdown();
+        uploads.shutdown();
+        metadata.shutdown();
+        downloads.shutdown();
+        renditions.shutdown();
+    }
+
+    private static ThreadPoolExecutor newLane(final String name, int threads) {
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(threads, threads, 30, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(MAX_QUEUED), newThreadFactory(name));
+        executor.allowCoreThreadTimeOut(true);
+        return executor;
+    }
+
+    static ThreadFactory newThreadFactory(final String name) {
+        return new ThreadFactory() {
+            private final AtomicInteger count = new AtomicInteger();
+
+            @Override
+            public Thread newThread(final Runnable r) {
+                return new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        // stay out of the way of the render thread
+                        Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                        r.run();
+                    }
+                }, name + "-" + count.incrementAndGet());
+            }
+        };
+    }
+}
@@ -0,0 +1,156 @@
+// Copyright 2016 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.androidexperiments.sprayscape.unitydriveplugin;
+
+import android.util.Log;
+
+import com.google.api.client.googleapis.batch.BatchRequest;
+import com.google.api.client.googleapis.batch.json.JsonBatchCallback;
+import com.google.api.client.googleapis.json.GoogleJsonError;
+import com.google.api.client.googleapis.json.GoogleJsonResponseException;
+import com.google.api.client.http.HttpHeaders;
+import com.google.api.services.drive.Drive;
+import com.google.api.services.drive.model.File;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Checks whether Drive files still exist (and aren't trashed), remembering the answers for a while
+ * so the library screen doesn't ask Drive about the same sprays every time it opens.
+ */
+public class DriveFileChecker {
+
+    private static final String TAG = "DriveFileChecker";
+
+    private static final String CHECK_FIELDS = "id,trashed";
+    private static final long TTL_MS = 5 * 60 * 1000;
+    private static final int MAX_BATCH_SIZE = 100;
+
+    private static class CachedCheck {
+        final boolean exists;
+        final long expiresAt;
+
+        CachedCheck(boolean exists, long expiresAt) {
+            this.exists = exists;
+            this.expiresAt = expiresAt;
+        }
+    }
+
+    private final Map<String, CachedCheck> cache = new ConcurrentHashMap<>();
+
+    public Boolean getCached(String fileId) {
+        CachedCheck check = cache.get(fileId);
+        if (check == null) {
+            return null;
+        }
+        if (check.expiresAt < System.currentTimeMillis()) {
+            cache.remove(fileId);
+            return null;
+        }
+        return check.exists;
+    }
+
+    public void put(String fileId, boolean exists) {
+        cache.put(fileId, new CachedCheck(exists, System.currentTimeMillis() + TTL_MS));
+    }
+
+    public void clear() {
+        cache.clear();
+    }
+
+    public boolean check(Drive drive, String fileId) throws IOException {
+        Boolean cached = getCached(fileId);
+        if (cached != null) {
+            return cached;
+        }
+        boolean exists;
+        try {
+            File f = drive.files().get(fileId).setFields(CHECK_FIELDS).execute();
+            exists = isLive(f);
+        } catch (GoogleJsonResponseException ex) {
+            if (ex.getStatusCode() != 404) {
+                throw ex;
+            }
+            exists = false;
+        }
+        put(fileId, exists);
+        return exists;
+    }
+
+    /**
+     * Answers in the same order as fileIds, anything not in the cache is looked up with as few batch
+     * requests as possible. A file drive answered with an error other than 404 for (a rate limit, a
+     * 5xx) is unknown, null, the same as check() throwing for it rather than calling it missing.
+     */
+    public Map<String, Boolean> checkAll(Drive drive, String[] fileIds) throws IOException {
+        final Map<String, Boolean> results = new LinkedHashMap<>();
+        List<String> misses = new ArrayList<>();
+        for (String fileId : fileIds) {
+            Boolean cached = getCached(fileId);
+            results.put(fileId, cached);
+            if (cached == null) {
+                misses.add(fileId);
+            }
+        }
+        Log.i(TAG, "checking " + fileIds.length + " file(s), " + misses.size() + " not cached");
+
+        for (int start = 0; start < misses.size(); start += MAX_BATCH_SIZE) {
+            List<String> chunk = misses.subList(start, Math.min(misses.size(), start + MAX_BATCH_SIZE));
+            if (chunk.size() == 1) {
+                String fileId = chunk.get(0);
+                try {
+                    results.put(fileId, check(drive, fileId));
+                } catch (GoogleJsonResponseException ex) {
+                    Log.w(TAG, "check of " + fileId + " failed: " + ex.getStatusCode());
+                }
+                continue;
+            }
+
+            BatchRequest batch = drive.batch();
+            for (final String fileId : chunk) {
+                drive.files().get(fileId).setFields(CHECK_FIELDS).queue(batch, new JsonBatchCallback<File>() {
+                    @Override
+                    public void onSuccess(File f, HttpHeaders responseHeaders) {
+                        boolean exists = isLive(f);
+                        put(fileId, exists);
+                        results.put(fileId, exists);
+                    }
+
+                    @Override
+                    public void onFailure(GoogleJsonError e, HttpHeaders responseHeaders) {
+                        if (e.getCode() == 404) {
+                            put(fileId, false);
+                            results.put(fileId, false);
+                        } else {
+                            // nothing is known about it, left null and not remembered
+                            Log.w(TAG, "check of " + fileId + " failed: " + e.getMessage());
+                        }
+                    }
+                });
+            }
+            batch.execute();
+        }
+        return results;
+    }
+
+    private static boolean isLive(File f) {
+        return f != null && !Boolean.TRUE.equals(f.getTrashed());
+    }
+}
@@ -0,0 +1,133 @@
+// Copyright 2016 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.androidexperiments.sprayscape.unitydriveplugin;
+
+import android.content.SharedPreferences;
+import android.util.Log;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+
+/**
+ * Remembers the Drive folder ID for each (account, folder name) pair so an upload doesn't have to
+ * look the folder up first.
+ *
+ * The cached ID is trusted until Drive says otherwise (a 404 when creating a file in it), and
+ * concurrent lookups for the same folder share a single request so racing uploads can't create
+ * duplicate folders.
+ */
+public class DriveFolderCache {
+
+    private static final String TAG = "DriveFolderCache";
+
+    public interface Resolver {
+        // find or create the folder on drive and return its id
+        String resolve(String folderName) throws IOException;
+    }
+
+    private final SharedPreferences prefs;
+    private final Map<String, FutureTask<String>> lookups = new HashMap<>();
+
+    public DriveFolderCache(SharedPreferences prefs) {
+        this.prefs = prefs;
+    }
+
+    public String get(String accountName, String folderName) {
+        return prefs.getString(key(accountName, folderName), null);
+    }
+
+    // return the cached folder id, or look it up with the resolver if there isn't one yet
+    public String resolve(String accountName, final String folderName, final Resolver resolver) throws IOException {
+        final String key = key(accountName, folderName);
+        String folderId = prefs.getString(key, null);
+        if (folderId != null) {
+            return folderId;
+        }
+
+        FutureTask<String> lookup;
+        boolean owner = false;
+        synchronized (lookups) {
+            lookup = lookups.get(key);
+            if (lookup == null) {
+                lookup = new FutureTask<>(new Callable<String>() {
+                    @Override
+                    public String call() throws Exception {
+                        String id = resolver.resolve(folderName);
+                        prefs.edit().putString(key, id).apply();
+                        return id;
+                    }
+                });
+                lookups.put(key, lookup);
+                owner = true;
+            }
+        }
+
+        if (owner) {
+            try {
+                lookup.run();
+            } finally {
+                synchronized (lookups) {
+                    lookups.remove(key);
+                }
+            }
+        } else {
+            Log.i(TAG, "waiting on lookup of '" + folderName + "' already in flight");
+        }
+
+        try {
+            return lookup.get();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while resolving drive folder '" + folderName + "'", ex);
+        } catch (ExecutionException ex) {
+            if (ex.getCause() instanceof IOException) {
+                throw (IOException) ex.getCause();
+            }
+            throw new IOException("Failed to resolve drive folder '" + folderName + "'", ex.getCause());
+        }
+    }
+
+    // forget a folder id drive no longer knows about, unless someone already replaced it
+    public void invalidate(String accountName, String folderName, String staleFolderId) {
+        String key = key(accountName, folderName);
+        synchronized (lookups) {
+            if (staleFolderId.equals(prefs.getString(key, null))) {
+                Log.i(TAG, "folder '" + folderName + "' (" + staleFolderId + ") is gone, dropping it from the cache");
+                prefs.edit().remove(key).apply();
+            }
+        }
+    }
+
+    public boolean isShared(String accountName, String folderName, String folderId) {
+        return folderId.equals(prefs.getString(sharedKey(accountName, folderName), null));
+    }
+
+    // remember the folder already has the anyone/reader permission, tied to the id so a recreated folder gets it again
+    public void markShared(String accountName, String folderName, String folderId) {
+        prefs.edit().putString(sharedKey(accountName, folderName), folderId).apply();
+    }
+
+    private static String sharedKey(String accountName, String folderName) {
+        return key(accountName, folderName) + "#shared";
+    }
+
+    private static String key(String accountName, String folderName) {
+        return accountName + "/" + folderName;
+    }
+}
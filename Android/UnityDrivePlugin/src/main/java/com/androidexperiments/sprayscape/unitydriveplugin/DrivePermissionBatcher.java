@@ -0,0 +1,182 @@
+// Copyright 2016 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.androidexperiments.sprayscape.unitydriveplugin;
+
+import android.util.Log;
+
+import com.google.api.client.googleapis.batch.BatchRequest;
+import com.google.api.client.googleapis.batch.json.JsonBatchCallback;
+import com.google.api.client.googleapis.json.GoogleJsonError;
+import com.google.api.client.googleapis.json.GoogleJsonResponseException;
+import com.google.api.client.http.HttpHeaders;
+import com.google.api.client.http.HttpResponseException;
+import com.google.api.services.drive.Drive;
+import com.google.api.services.drive.model.Permission;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Grants anyone/reader on freshly uploaded files, combining the grants of uploads that finish
+ * close together into a single Drive {@link BatchRequest}.
+ *
+ * New files can't have any permissions yet, so there is no permissions().list() first.
+ */
+public class DrivePermissionBatcher {
+
+    private static final String TAG = "DrivePermissionBatcher";
+
+    // Drive rejects batches of more than 100 calls
+    private static final int MAX_BATCH_SIZE = 100;
+    private static final long LINGER_MS = 50;
+
+    private static class Grant {
+        final String fileId;
+        final CountDownLatch done = new CountDownLatch(1);
+        IOException error;
+
+        Grant(String fileId) {
+            this.fileId = fileId;
+        }
+    }
+
+    private final ScheduledExecutorService flusher = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread t = new Thread(r, TAG);
+            t.setDaemon(true);
+            return t;
+        }
+    });
+
+    private Drive batchDrive;
+    private List<Grant> batch = new ArrayList<>();
+
+    public static Permission anyoneReader() {
+        Permission p = new Permission();
+        p.setType("anyone");
+        p.setRole("reader");
+        return p;
+    }
+
+    // blocks until the grant has been sent along with whatever else was waiting
+    public void grantAnyoneReader(Drive drive, String fileId) throws IOException {
+        Grant grant = new Grant(fileId);
+        Drive fullDrive = null;
+        List<Grant> full = null;
+        synchronized (this) {
+            if (batchDrive != drive && !batch.isEmpty()) {
+                // the account changed under us, don't mix the old and new credentials in one batch
+                fullDrive = batchDrive;
+                full = takeBatch();
+            }
+            batchDrive = drive;
+            batch.add(grant);
+            if (batch.size() == 1) {
+                flusher.schedule(new Runnable() {
+                    @Override
+                    public void run() {
+                        flush();
+                    }
+                }, LINGER_MS, TimeUnit.MILLISECONDS);
+            }
+        }
+        if (full != null) {
+            send(fullDrive, full);
+        }
+
+        try {
+            grant.done.await();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while granting permissions on " + fileId, ex);
+        }
+        if (grant.error != null) {
+            throw grant.error;
+        }
+    }
+
+    public void shutdown() {
+        flusher.shutdown();
+    }
+
+    private void flush() {
+        Drive drive;
+        List<Grant> grants;
+        synchronized (this) {
+            drive = batchDrive;
+            grants = takeBatch();
+        }
+        send(drive, grants);
+    }
+
+    private List<Grant> takeBatch() {
+        List<Grant> grants = batch;
+        batch = new ArrayList<>();
+        return grants;
+    }
+
+    private void send(Drive drive, List<Grant> grants) {
+        for (int start = 0; start < grants.size(); start += MAX_BATCH_SIZE) {
+            List<Grant> chunk = grants.subList(start, Math.min(grants.size(), start + MAX_BATCH_SIZE));
+            try {
+                if (chunk.size() == 1) {
+                    // a batch of one is just a more expensive way of sending the request
+                    Grant grant = chunk.get(0);
+                    drive.permissions().create(grant.fileId, anyoneReader()).setFields("id").execute();
+                } else {
+                    sendBatch(drive, chunk);
+                }
+                Log.i(TAG, "granted anyone/reader on " + chunk.size() + " file(s)");
+            } catch (IOException ex) {
+                for (Grant grant : chunk) {
+                    if (grant.error == null) {
+                        grant.error = ex;
+                    }
+                }
+            } finally {
+                for (Grant grant : chunk) {
+                    grant.done.countDown();
+                }
+            }
+        }
+    }
+
+    private void sendBatch(Drive drive, List<Grant> grants) throws IOException {
+        BatchRequest request = drive.batch();
+        for (final Grant grant : grants) {
+            drive.permissions().create(grant.fileId, anyoneReader()).setFields("id")
+                    .queue(request, new JsonBatchCallback<Permission>() {
+                        @Override
+                        public void onSuccess(Permission permission, HttpHeaders responseHeaders) {
+                        }
+
+                        @Override
+                        public void onFailure(GoogleJsonError e, HttpHeaders responseHeaders) {
+                            // surface it the same way a single request would have failed
+                            grant.error = new GoogleJsonResponseException(
+                                    new HttpResponseException.Builder(e.getCode(), e.getMessage(), responseHeaders), e);
+                        }
+                    });
+        }
+        request.execute();
+    }
+}
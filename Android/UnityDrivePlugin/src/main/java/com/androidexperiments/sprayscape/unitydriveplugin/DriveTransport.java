@@ -0,0 +1,115 @@
+// Copyright 2016 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.androidexperiments.sprayscape.unitydriveplugin;
+
+import android.util.Log;
+
+import com.google.api.client.http.GenericUrl;
+import com.google.api.client.http.HttpResponse;
+import com.google.api.client.http.HttpTransport;
+import com.google.api.client.http.javanet.NetHttpTransport;
+
+import java.io.IOException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * The one {@link HttpTransport} every Drive client, upload and token lookup in the plugin goes
+ * through, so they all share a single pool of keep-alive connections to googleapis.com instead of
+ * each new Drive client starting from scratch.
+ *
+ * The default is the platform HttpURLConnection, which pools and keeps connections alive itself and
+ * is asked for gzip on every request by google-http-client. A transport that can multiplex over
+ * HTTP/2 can be plugged in with {@link #setFactory(Factory)} before the first Drive client is built.
+ */
+public class DriveTransport {
+
+    private static final String TAG = "DriveTransport";
+
+    private static final String PREWARM_URL = "https://www.googleapis.com/drive/v3/about";
+
+    // enough idle connections to keep one per drive lane thread (auth + uploads + metadata) warm
+    private static final int MAX_IDLE_CONNECTIONS = 8;
+
+    public interface Factory {
+        HttpTransport create();
+    }
+
+    private static Factory factory = new Factory() {
+        @Override
+        public HttpTransport create() {
+            // read by the platform connection pool, it only keeps 5 idle connections by default
+            System.setProperty("http.keepAlive", "true");
+            System.setProperty("http.maxConnections", String.valueOf(MAX_IDLE_CONNECTIONS));
+            return new NetHttpTransport();
+        }
+    };
+
+    private static HttpTransport transport;
+
+    public static synchronized void setFactory(Factory f) {
+        if (transport != null) {
+            Log.w(TAG, "Transport already created, new factory only applies after it is reset");
+        }
+        factory = f;
+    }
+
+    public static synchronized HttpTransport get() {
+        if (transport == null) {
+            transport = factory.create();
+            Log.i(TAG, "created shared transport " + transport.getClass().getSimpleName());
+        }
+        return transport;
+    }
+
+    // drop the shared transport, e.g. after swapping the factory, existing clients keep using the old one
+    public static synchronized void reset() {
+        if (transport != null) {
+            try {
+                transport.shutdown();
+            } catch (IOException ex) {
+                Log.w(TAG, "Failed to shut down transport", ex);
+            }
+            transport = null;
+        }
+    }
+
+    // open a connection to the drive endpoint ahead of time so the first real call skips the dns + tls handshake
+    public static void prewarm(Executor executor) {
+        try {
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    long start = System.currentTimeMillis();
+                    try {
+                        HttpResponse response = get().createRequestFactory()
+                                .buildHeadRequest(new GenericUrl(PREWARM_URL))
+                                .setThrowExceptionOnExecuteError(false)
+                                .setNumberOfRetries(0)
+                                .execute();
+                        // ignore() rather than disconnect() so the connection goes back in the pool
+                        response.ignore();
+                        Log.i(TAG, "prewarmed connection in " + (System.currentTimeMillis() - start) + "ms");
+                    } catch (IOException ex) {
+                        // probably offline, the first real call will just pay for the handshake
+                        Log.w(TAG, "Failed to prewarm connection: " + ex.getMessage());
+                    }
+                }
+            });
+        } catch (RejectedExecutionException ex) {
+            Log.w(TAG, "Executor busy, skipping prewarm");
+        }
+    }
+}
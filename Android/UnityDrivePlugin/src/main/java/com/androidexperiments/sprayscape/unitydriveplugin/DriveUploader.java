@@ -0,0 +1,619 @@
+// Copyright 2016 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.androidexperiments.sprayscape.unitydriveplugin;
+
+import android.util.Log;
+
+import com.google.api.client.googleapis.json.GoogleJsonResponseException;
+import com.google.api.services.drive.Drive;
+import com.google.api.services.drive.model.File;
+import com.google.api.services.drive.model.Permission;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The Drive side of sharing a spray, from the journaled upload to a file anyone with the link can
+ * open: hash it and reuse an earlier upload of the same bytes, resolve the folder, upload the
+ * original resumably from its last checkpoint, grant access, then upload and link the renditions.
+ * Every call goes through the {@link DriveCallPolicy}.
+ *
+ * No android or unity in here, the activity runs it on an upload lane and turns the outcome into
+ * callbacks, and the load test runs it against a fake Drive.
+ */
+public class DriveUploader {
+
+    private static final String TAG = "DriveUploader";
+
+    // md5Checksum to check drive got the same bytes that were hashed for the content index
+    private static final String UPLOAD_FIELDS = "id,md5Checksum";
+    // appProperties for the renditions the original was uploaded with
+    private static final String CHECKSUM_FIELDS = "id,trashed,md5Checksum,appProperties";
+
+    // sprays are always saved at this size by PhotoIO.SaveToLocalStore
+    private static final int SPRAY_WIDTH = 2048;
+    private static final int SPRAY_HEIGHT = 1024;
+    // the whole rendition phase, from waiting on the build to linking. The share is done before it
+    // starts but the callback, which carries the rendition ids, waits on it
+    private static final long RENDITION_DEADLINE_MS = 15 * 1000;
+    // they are built while the original uploads, so this is only reached when the upload was quicker
+    private static final long RENDITION_WAIT_MS = 5 * 1000;
+    // on the original, RENDITION_PROPERTY_PREFIX + "1024x512" = the rendition's file id
+    private static final String RENDITION_PROPERTY_PREFIX = "rendition.";
+    // on each rendition, the original's file id and which size it is
+    private static final String RENDITION_OF_PROPERTY = "renditionOf";
+    private static final String RENDITION_SIZE_PROPERTY = "rendition";
+
+    /**
+     * What the caller hooks into an upload: the network it goes over and what to tell the user.
+     * Called on the uploading thread.
+     */
+    public interface Listener {
+        // asked again on every attempt, the link may have changed since the last one
+        int getChunkSize();
+
+        // around each attempt at sending the original
+        void onTransferStarted();
+
+        void onTransferFinished();
+
+        // the original's bytes, after they have been added to upload.bytes.sent
+        void onProgress(long sentBytes, long totalBytes);
+
+        // drive wouldn't let the account share the file or folder, and not because of a rate limit
+        void onPermissionDenied(GoogleJsonResponseException ex);
+
+        // the file is shared and out of the journal, only the renditions are left
+        void onShared(String fileId);
+
+        // between the steps of the rendition phase, nothing of the original is being sent any more
+        // but the upload isn't stuck either
+        void onRenditionProgress();
+    }
+
+    public static class Result {
+        public final String fileId;
+        // rendition name to file id, for those that made it
+        public final Map<String, String> renditionIds;
+
+        Result(String fileId, Map<String, String> renditionIds) {
+            this.fileId = fileId;
+            this.renditionIds = renditionIds;
+        }
+
+        // what an upload reports, "<fileId>;1024x512=<fileId>;512x256=<fileId>" with whichever renditions there are
+        public String ids() {
+            StringBuilder ids = new StringBuilder(fileId);
+            for (Map.Entry<String, String> rendition : renditionIds.entrySet()) {
+                ids.append(';').append(rendition.getKey()).append('=').append(rendition.getValue());
+            }
+            return ids.toString();
+        }
+    }
+
+    private final DriveCallPolicy policy;
+    private final UploadJournal journal;
+    private final DriveFolderCache folderCache;
+    private final DriveContentIndex contentIndex;
+    private final DrivePermissionBatcher permissionBatcher;
+    private final DriveFileChecker fileChecker;
+    private final RenditionBuilder renditionBuilder;
+    private final java.io.File renditionDir;
+
+    private final PluginMetrics.Histogram shareLatency;
+    private final PluginMetrics.Counter bytesSent;
+    private final PluginMetrics.Counter uploadsSucceeded;
+    private final PluginMetrics.Counter uploadsDeduplicated;
+    private final PluginMetrics.Histogram hashLatency;
+    // from the original being uploaded to its renditions being uploaded and linked
+    private final PluginMetrics.Histogram renditionLatency;
+    private final PluginMetrics.Counter renditionsUploaded;
+    private final PluginMetrics.Counter renditionsFailed;
+
+    private volatile boolean shareFolder;
+    private volatile boolean deduplicate = true;
+    private volatile boolean checkDriveChecksum = true;
+    private volatile boolean buildRenditions = true;
+
+    public DriveUploader(DriveCallPolicy policy, UploadJournal journal, DriveFolderCache folderCache,
+                         DriveContentIndex contentIndex, DrivePermissionBatcher permissionBatcher, DriveFileChecker fileChecker,
+                         RenditionBuilder renditionBuilder, java.io.File renditionDir, PluginMetrics metrics) {
+        this.policy = policy;
+        this.journal = journal;
+        this.folderCache = folderCache;
+        this.contentIndex = contentIndex;
+        this.permissionBatcher = permissionBatcher;
+        this.fileChecker = fileChecker;
+        this.renditionBuilder = renditionBuilder;
+        this.renditionDir = renditionDir;
+        shareLatency = metrics.histogram("share.total");
+        bytesSent = metrics.counter("upload.bytes.sent");
+        uploadsSucceeded = metrics.counter("upload.succeeded");
+        uploadsDeduplicated = metrics.counter("upload.deduplicated");
+        hashLatency = metrics.histogram("upload.hash");
+        renditionLatency = metrics.histogram("upload.renditions");
+        renditionsUploaded = metrics.counter("upload.renditions.uploaded");
+        renditionsFailed = metrics.counter("upload.renditions.failed");
+    }
+
+    public void setShareFolder(boolean enabled) {
+        shareFolder = enabled;
+    }
+
+    public void setDeduplication(boolean enabled, boolean checkDriveChecksum) {
+        deduplicate = enabled;
+        this.checkDriveChecksum = checkDriveChecksum;
+    }
+
+    public void setRenditions(boolean enabled) {
+        buildRenditions = enabled;
+    }
+
+    // rendition name to file id, from the appProperties of an original
+    public static Map<String, String> renditionIds(File original) {
+        Map<String, String> ids = new LinkedHashMap<>();
+        if (original.getAppProperties() != null) {
+            for (Map.Entry<String, String> property : original.getAppProperties().entrySet()) {
+                if (property.getKey().startsWith(RENDITION_PROPERTY_PREFIX)) {
+                    ids.put(property.getKey().substring(RENDITION_PROPERTY_PREFIX.length()), property.getValue());
+                }
+            }
+        }
+        return ids;
+    }
+
+    /**
+     * Share the journaled upload, taking it out of the journal once it is on drive. On failure it
+     * is left journaled, apart from when the local file is gone.
+     */
+    public Result upload(Drive drive, String accountName, UploadJournal.Entry entry, Listener listener) throws IOException {
+        return new Upload(drive, accountName, entry, listener).run();
+    }
+
+    private class Upload {
+        private final Drive drive;
+        private final String accountName;
+        private final UploadJournal.Entry entry;
+        private final Listener listener;
+        private final String driveFolderName;
+        private final String driveFileName;
+        // null when renditions are turned off
+        private RenditionBuilder.Build renditions;
+
+        private final DriveFolderCache.Resolver folderResolver = new DriveFolderCache.Resolver() {
+            @Override
+            public String resolve(String folderName) throws IOException {
+                return ensureDriveFolderExists(folderName).getId();
+            }
+        };
+
+        Upload(Drive drive, String accountName, UploadJournal.Entry entry, Listener listener) {
+            this.drive = drive;
+            this.accountName = accountName;
+            this.entry = entry;
+            this.listener = listener;
+            this.driveFolderName = entry.driveFolderName;
+            this.driveFileName = entry.driveFileName;
+        }
+
+        Result run() throws IOException {
+            long start = System.nanoTime();
+            java.io.File localFile = new java.io.File(entry.localPath);
+            try {
+                if (!localFile.exists()) {
+                    // the spray was deleted before we got to it, nothing left to upload
+                    Log.w(TAG, "Local file is gone, dropping upload: " + entry);
+                    journal.remove(entry);
+                    throw new IOException("File not found: " + entry.localPath);
+                }
+
+                // the 360 metadata goes in as the file is read rather than unity copying the whole image to add it
+                SphericalJpegContent content = new SphericalJpegContent(localFile,
+                        SphericalJpegContent.RICOH_EXIF, SphericalJpegContent.gpanoXmp(SPRAY_WIDTH, SPRAY_HEIGHT));
+
+                String contentHash = null;
+                if (deduplicate) {
+                    long hashStart = System.nanoTime();
+                    contentHash = DriveContentIndex.md5(content.getInputStream());
+                    hashLatency.recordSince(hashStart);
+                    File existing = findUploaded(contentHash);
+                    if (existing != null) {
+                        // shared before, and it was shared along with the upload, so there is nothing left to do
+                        Log.i(TAG, "'" + driveFolderName + "/" + driveFileName + "' is already on drive: " + existing.getId());
+                        journal.remove(entry);
+                        fileChecker.put(existing.getId(), true);
+                        shareLatency.recordSince(start);
+                        uploadsDeduplicated.increment();
+                        listener.onShared(existing.getId());
+                        return new Result(existing.getId(), renditionIds(existing));
+                    }
+                }
+
+                // built on the rendition lane while the original goes up on this thread
+                renditions = buildRenditions ? renditionBuilder.start(localFile, renditionDir, RenditionBuilder.SPRAY_RENDITIONS) : null;
+
+                // the folder id is normally cached, so the common case is a single create request
+                String folderId = folderCache.resolve(accountName, driveFolderName, folderResolver);
+                File file;
+                try {
+                    file = createImageFile(folderId, content);
+                } catch (GoogleJsonResponseException ex) {
+                    // an expired session is a SessionExpiredException, so a 404 here is drive not
+                    // finding the parent when the upload was started
+                    if (ex.getStatusCode() != 404) {
+                        throw ex;
+                    }
+                    // the cached folder was deleted from drive, look it up again and retry once
+                    folderCache.invalidate(accountName, driveFolderName, folderId);
+                    folderId = folderCache.resolve(accountName, driveFolderName, folderResolver);
+                    file = createImageFile(folderId, content);
+                }
+
+                Log.i(TAG, "Drive File Uploaded: '" + driveFolderName + "/" + driveFileName + "': " + file.getId());
+
+                if (shareFolder) {
+                    // files inherit the anyone/reader permission of the folder, granted once per folder
+                    if (!folderCache.isShared(accountName, driveFolderName, folderId)) {
+                        ensureFolderPermissions(folderId);
+                        folderCache.markShared(accountName, driveFolderName, folderId);
+                    }
+                } else {
+                    ensureFilePermissions(file);
+                }
+
+                if (contentHash != null) {
+                    if (file.getMd5Checksum() != null && !contentHash.equals(file.getMd5Checksum())) {
+                        // not what was hashed, so a later share of the same spray can't be matched to it
+                        Log.w(TAG, "Drive has checksum " + file.getMd5Checksum() + " for " + file.getId() + ", expected " + contentHash);
+                    } else {
+                        contentIndex.put(accountName, driveFolderName, contentHash, file.getId());
+                    }
+                }
+                // the original is shared and safe, renditions missing from here on only cost bandwidth
+                journal.remove(entry);
+                fileChecker.put(file.getId(), true);
+                // from the upload starting to the file being shared, what the user waits for
+                shareLatency.recordSince(start);
+                uploadsSucceeded.increment();
+                listener.onShared(file.getId());
+                return new Result(file.getId(), uploadRenditions(folderId, file.getId()));
+            } finally {
+                if (renditions != null) {
+                    renditions.delete();
+                }
+            }
+        }
+
+        /**
+         * Upload the renditions of the original that were built, each pointing back at it, and record
+         * them on the original so a viewer of it can find them. Rendition name to file id, for those
+         * that made it. Failures are only logged, the original is already shared without them.
+         */
+        private Map<String, String> uploadRenditions(String folderId, String originalId) {
+            Map<String, String> ids = new LinkedHashMap<>();
+            if (renditions == null) {
+                return ids;
+            }
+            long renditionStart = System.nanoTime();
+            // for the lot rather than per call, each call still gets one go but no more retries once it's passed
+            DriveCallPolicy.Deadline deadline = new DriveCallPolicy.Deadline(RENDITION_DEADLINE_MS);
+            try {
+                listener.onRenditionProgress();
+                for (RenditionBuilder.Rendition rendition : renditions.await(RENDITION_WAIT_MS)) {
+                    if (deadline.remainingMs() <= 0) {
+                        Log.w(TAG, "Out of time for renditions of " + originalId + ", skipping " + rendition.size.getName());
+                        renditionsFailed.increment();
+                        continue;
+                    }
+                    listener.onRenditionProgress();
+                    try {
+                        File file = createRenditionFile(folderId, originalId, rendition, deadline);
+                        if (!shareFolder) {
+                            grantRenditionAccess(file.getId(), deadline);
+                        }
+                        ids.put(rendition.size.getName(), file.getId());
+                        renditionsUploaded.increment();
+                    } catch (IOException ex) {
+                        Log.w(TAG, "Failed to upload " + rendition.size.getName() + " rendition of " + originalId + ": " + ex);
+                        renditionsFailed.increment();
+                    }
+                }
+                if (!ids.isEmpty()) {
+                    // even late, or the renditions that did go up can't be found from the original
+                    listener.onRenditionProgress();
+                    linkRenditions(originalId, ids, deadline);
+                }
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            } catch (IOException ex) {
+                // the renditions still point at the original, only the way back from it is missing
+                Log.w(TAG, "Failed to link renditions to " + originalId + ": " + ex);
+            } finally {
+                renditionLatency.recordSince(renditionStart);
+            }
+            return ids;
+        }
+
+        private File createRenditionFile(String folderId, final String originalId, final RenditionBuilder.Rendition rendition,
+                                         DriveCallPolicy.Deadline deadline) throws IOException {
+            Map<String, String> properties = new HashMap<>();
+            properties.put(RENDITION_OF_PROPERTY, originalId);
+            properties.put(RENDITION_SIZE_PROPERTY, rendition.size.getName());
+            String name = driveFileName;
+            int dot = name.lastIndexOf('.');
+            final File metadata = new File()
+                    .setName((dot > 0 ? name.substring(0, dot) : name) + " " + rendition.size.getName() + ".jpg")
+                    .setMimeType("image/jpeg")
+                    .setParents(Collections.singletonList(folderId))
+                    .setAppProperties(properties);
+            // small enough for a single multipart request, and still 360 to anything that looks
+            final SphericalJpegContent content = new SphericalJpegContent(rendition.file, SphericalJpegContent.RICOH_EXIF,
+                    SphericalJpegContent.gpanoXmp(rendition.size.width, rendition.size.height));
+            return policy.execute("drive.file.upload.rendition", deadline, new DriveCallPolicy.Call<File>() {
+                private boolean attempted;
+
+                @Override
+                public File execute() throws IOException {
+                    // a create that failed without an answer may have gone through anyway, look before making another
+                    if (attempted) {
+                        File existing = findRenditionFile(originalId, rendition.size.getName());
+                        if (existing != null) {
+                            return existing;
+                        }
+                    }
+                    attempted = true;
+                    Drive.Files.Create create = drive.files().create(metadata, content).setFields("id");
+                    create.getMediaHttpUploader().setDirectUploadEnabled(true);
+                    return create.execute();
+                }
+            });
+        }
+
+        private File findRenditionFile(String originalId, String size) throws IOException {
+            List<File> files = drive.files().list()
+                    .setQ("appProperties has { key='" + RENDITION_OF_PROPERTY + "' and value='" + originalId + "' }"
+                            + " and appProperties has { key='" + RENDITION_SIZE_PROPERTY + "' and value='" + size + "' } and trashed=false")
+                    .setFields("files(id)")
+                    .execute().getFiles();
+            return files.isEmpty() ? null : files.get(0);
+        }
+
+        // the same anyone-with-the-link access the original got, the original's grant already proved the account can
+        private void grantRenditionAccess(final String fileId, DriveCallPolicy.Deadline deadline) throws IOException {
+            policy.execute("drive.permission.create.file", deadline, new DriveCallPolicy.Call<Void>() {
+                @Override
+                public Void execute() throws IOException {
+                    permissionBatcher.grantAnyoneReader(drive, fileId);
+                    return null;
+                }
+            });
+        }
+
+        private void linkRenditions(final String originalId, Map<String, String> ids, DriveCallPolicy.Deadline deadline) throws IOException {
+            Map<String, String> properties = new HashMap<>();
+            for (Map.Entry<String, String> id : ids.entrySet()) {
+                properties.put(RENDITION_PROPERTY_PREFIX + id.getKey(), id.getValue());
+            }
+            final File update = new File().setAppProperties(properties);
+            policy.execute("drive.file.link", deadline, new DriveCallPolicy.Call<File>() {
+                @Override
+                public File execute() throws IOException {
+                    return drive.files().update(originalId, update).setFields("id").execute();
+                }
+            });
+        }
+
+        // the file this exact spray was uploaded to this folder as, if drive still has it. Only the id
+        // unless drive was asked for the checksum, which brings the appProperties with it
+        private File findUploaded(final String contentHash) throws IOException {
+            final String fileId = contentIndex.get(accountName, driveFolderName, contentHash);
+            if (fileId == null) {
+                return null;
+            }
+
+            boolean live;
+            File f = null;
+            if (checkDriveChecksum) {
+                try {
+                    f = policy.execute("drive.file.checksum", new DriveCallPolicy.Call<File>() {
+                        @Override
+                        public File execute() throws IOException {
+                            return drive.files().get(fileId).setFields(CHECKSUM_FIELDS).execute();
+                        }
+                    });
+                } catch (GoogleJsonResponseException ex) {
+                    if (ex.getStatusCode() != 404) {
+                        throw ex;
+                    }
+                    f = null;
+                }
+                live = f != null && !Boolean.TRUE.equals(f.getTrashed()) && contentHash.equals(f.getMd5Checksum());
+            } else {
+                // only that it's still there, usually straight from the file checker's cache
+                live = policy.execute("drive.file.check", new DriveCallPolicy.Call<Boolean>() {
+                    @Override
+                    public Boolean execute() throws IOException {
+                        return fileChecker.check(drive, fileId);
+                    }
+                });
+            }
+            if (!live) {
+                contentIndex.invalidate(accountName, driveFolderName, contentHash, fileId);
+                return null;
+            }
+            return f != null ? f : new File().setId(fileId);
+        }
+
+        private File createImageFile(String folderId, final SphericalJpegContent content) throws IOException {
+            final File imageFile = new File();
+            imageFile.setName(driveFileName);
+            imageFile.setMimeType("image/jpeg");
+            imageFile.setParents(Collections.singletonList(folderId));
+            // a retry picks up from the last checkpoint rather than starting again, so the deadline
+            // counts from the last checkpoint too
+            final DriveCallPolicy.Deadline deadline = new DriveCallPolicy.Deadline(DriveCallPolicy.UPLOAD_DEADLINE_MS);
+            return policy.execute("drive.file.upload", deadline, new DriveCallPolicy.Call<File>() {
+                @Override
+                public File execute() throws IOException {
+                    return uploadImageFile(imageFile, content, deadline);
+                }
+            });
+        }
+
+        private File uploadImageFile(File imageFile, SphericalJpegContent content, final DriveCallPolicy.Deadline deadline) throws IOException {
+            if (entry.getUploadSessionUri() != null) {
+                Log.i(TAG, "Resuming upload of '" + driveFileName + "' from byte " + entry.getUploadedBytes());
+            }
+            ResumableUpload upload = new ResumableUpload(drive.getRequestFactory(), drive.getJsonFactory(), listener.getChunkSize())
+                    .setRootUrl(drive.getRootUrl());
+            upload.setProgressListener(new ResumableUpload.ProgressListener() {
+                private long lastSent = -1;
+
+                @Override
+                public void onProgress(long sentBytes, long totalBytes) {
+                    // the first report is where the upload starts from, not something sent
+                    if (lastSent >= 0 && sentBytes > lastSent) {
+                        bytesSent.add(sentBytes - lastSent);
+                    }
+                    lastSent = sentBytes;
+                    listener.onProgress(sentBytes, totalBytes);
+                }
+            });
+            listener.onTransferStarted();
+            try {
+                return upload.execute(imageFile, content, UPLOAD_FIELDS,
+                        entry.getUploadSessionUri(), entry.getUploadedBytes(), new ResumableUpload.CheckpointListener() {
+                            @Override
+                            public void onCheckpoint(String sessionUri, long confirmedBytes) throws IOException {
+                                journal.checkpoint(entry, sessionUri, confirmedBytes);
+                                if (sessionUri != null) {
+                                    deadline.extend();
+                                }
+                            }
+                        });
+            } finally {
+                listener.onTransferFinished();
+            }
+        }
+
+        private File ensureDriveFolderExists(final String driveFolderName) throws IOException {
+            File existing = policy.execute("drive.folder.find", new DriveCallPolicy.Call<File>() {
+                @Override
+                public File execute() throws IOException {
+                    return findDriveFolder(driveFolderName);
+                }
+            });
+            if (existing != null) {
+                Log.i(TAG, "Drive Folder: '" + driveFolderName + "' already exists: " + existing.getId());
+                return existing;
+            }
+            // else folder doesn't exist yet
+            Log.i(TAG, "Drive Folder: '" + driveFolderName + "' does not exist yet, creating now");
+
+            final File folder = new File();
+            folder.setName(driveFolderName);
+            folder.setMimeType("application/vnd.google-apps.folder");
+
+            File f = policy.execute("drive.folder.create", new DriveCallPolicy.Call<File>() {
+                private boolean attempted;
+
+                @Override
+                public File execute() throws IOException {
+                    // as with renditions, a timed out create may still have made the folder
+                    if (attempted) {
+                        File created = findDriveFolder(driveFolderName);
+                        if (created != null) {
+                            return created;
+                        }
+                    }
+                    attempted = true;
+                    return drive.files().create(folder).setFields("id").execute();
+                }
+            });
+            Log.i(TAG, "Drive Folder: '" + driveFolderName + "' created: " + f.getId());
+            return f;
+        }
+
+        // oldest first, so every device settles on the same folder if duplicates were ever created
+        private File findDriveFolder(String driveFolderName) throws IOException {
+            List<File> files = drive.files().list()
+                    .setQ("mimeType='application/vnd.google-apps.folder' and name = '" + driveFolderName + "' and trashed=false")
+                    .setOrderBy("createdTime")
+                    .setFields("files(id)")
+                    .execute().getFiles();
+            return files.isEmpty() ? null : files.get(0);
+        }
+
+        private void ensureFolderPermissions(final String folderId) throws IOException {
+            List<Permission> permissions = policy.execute("drive.permission.list", new DriveCallPolicy.Call<List<Permission>>() {
+                @Override
+                public List<Permission> execute() throws IOException {
+                    return drive.permissions().list(folderId).execute().getPermissions();
+                }
+            });
+            for (Permission p : permissions) {
+                if (p.getType().equals("anyone") && p.getRole().equals("reader")) {
+                    Log.i(TAG, "anyone/reader permission already found on folder");
+                    return;
+                }
+            }
+            // reader permission not found, adding...
+            try {
+                Permission p = policy.execute("drive.permission.create.folder", new DriveCallPolicy.Call<Permission>() {
+                    @Override
+                    public Permission execute() throws IOException {
+                        return drive.permissions().create(folderId, DrivePermissionBatcher.anyoneReader()).execute();
+                    }
+                });
+                Log.i(TAG, "added permission to top-level folder: " + p.toPrettyString());
+            } catch (GoogleJsonResponseException ex) {
+                checkPermissionDenied(ex);
+                throw ex;
+            }
+        }
+
+        private void ensureFilePermissions(final File file) throws IOException {
+            // the file was just created so it can't have the permission yet, no need to list first
+            try {
+                policy.execute("drive.permission.create.file", new DriveCallPolicy.Call<Void>() {
+                    @Override
+                    public Void execute() throws IOException {
+                        permissionBatcher.grantAnyoneReader(drive, file.getId());
+                        return null;
+                    }
+                });
+                Log.i(TAG, "added permission to file: " + file.getId());
+            } catch (GoogleJsonResponseException ex) {
+                checkPermissionDenied(ex);
+                throw ex;
+            }
+        }
+
+        // a 403 on the permission change is our signal that the account is probably a google.com
+        // account, which will likely never be allowed to share (a rate limit 403 is only drive asking
+        // us to slow down, the account is fine)
+        private void checkPermissionDenied(GoogleJsonResponseException ex) {
+            int errorCode = ex.getStatusCode();
+            Log.w(TAG, "GoogleJsonResponseException.getStatusCode() == " + errorCode);
+            if (errorCode == 403 && !DriveCallPolicy.isRateLimited(ex)) {
+                listener.onPermissionDenied(ex);
+            }
+        }
+    }
+}
@@ -0,0 +1,161 @@
+// Copyright 2016 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.androidexperiments.sprayscape.unitydriveplugin;
+
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Gets the Drive stack ready in the background once Unity is up, so that neither startup nor the
+ * first share pays for it. The steps run in order on one background priority thread, and each
+ * one's time is recorded in the "warmup.<step>" histogram.
+ *
+ * A step returns false when there's nothing left worth warming up, e.g. no account has been
+ * linked. pause() stops after the current step and start() picks up from there. cancel() stops for
+ * good.
+ */
+public class DriveWarmup {
+
+    private static final String TAG = "DriveWarmup";
+
+    public interface Step {
+        // false to skip the remaining steps
+        boolean run() throws Exception;
+    }
+
+    private final ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor(
+            DriveExecutors.newThreadFactory("drive-warmup"));
+    private final PluginMetrics metrics;
+    private final List<String> names = new ArrayList<>();
+    private final List<Step> steps = new ArrayList<>();
+
+    // guarded by this
+    private Future<?> task;
+    private int generation;
+    private int nextStep;
+    private boolean done;
+    private boolean cancelled;
+
+    public DriveWarmup(PluginMetrics metrics) {
+        this.metrics = metrics;
+    }
+
+    public DriveWarmup add(String name, Step step) {
+        names.add(name);
+        steps.add(step);
+        return this;
+    }
+
+    // start after delayMs, or pick up where a paused warm-up stopped, a no-op if running or done
+    public synchronized void start(long delayMs) {
+        if (done || task != null) {
+            return;
+        }
+        final int startedGeneration = generation;
+        task = executor.schedule(new Runnable() {
+            @Override
+            public void run() {
+                runSteps(startedGeneration);
+            }
+        }, delayMs, TimeUnit.MILLISECONDS);
+    }
+
+    // interrupts the step in progress, it runs again on the next start()
+    public synchronized void pause() {
+        if (task != null) {
+            Log.i(TAG, "pausing warm-up before " + names.get(Math.min(nextStep, names.size() - 1)));
+            task.cancel(true);
+            task = null;
+            generation++;
+        }
+    }
+
+    public synchronized void cancel() {
+        pause();
+        done = true;
+        cancelled = true;
+    }
+
+    /**
+     * For a step that hands what it built to another thread: runs action there unless the warm-up
+     * has been cancelled, and holds off cancel() until it has, so nothing a step posted can land
+     * after cancel() returns. False if it was cancelled.
+     */
+    public synchronized boolean runUnlessCancelled(Runnable action) {
+        if (cancelled) {
+            return false;
+        }
+        action.run();
+        return true;
+    }
+
+    public void shutdown() {
+        cancel();
+        executor.shutdownNow();
+    }
+
+    private void runSteps(int startedGeneration) {
+        while (true) {
+            String name;
+            Step step;
+            synchronized (this) {
+                if (startedGeneration != generation) {
+                    return;
+                }
+                if (nextStep >= steps.size()) {
+                    Log.i(TAG, "warm-up done");
+                    done = true;
+                    task = null;
+                    return;
+                }
+                name = names.get(nextStep);
+                step = steps.get(nextStep);
+            }
+
+            long start = System.nanoTime();
+            boolean more;
+            try {
+                more = step.run();
+            } catch (InterruptedException ex) {
+                // paused, the step goes again next time
+                return;
+            } catch (Exception ex) {
+                // whatever went wrong will come up again when the user shares, and be dealt with there
+                Log.w(TAG, "warm-up step " + name + " failed, skipping the rest", ex);
+                more = false;
+            }
+            metrics.histogram("warmup." + name).recordSince(start);
+
+            synchronized (this) {
+                if (startedGeneration != generation) {
+                    return;
+                }
+                nextStep++;
+                if (!more) {
+                    Log.i(TAG, "warm-up stopped after " + name);
+                    done = true;
+                    task = null;
+                    return;
+                }
+            }
+        }
+    }
+}
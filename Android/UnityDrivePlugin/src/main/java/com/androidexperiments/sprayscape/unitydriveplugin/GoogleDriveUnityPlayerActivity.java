@@ -16,13 +16,10 @@ package com.androidexperiments.sprayscape.unitydriveplugin;
 
 import android.accounts.Account;
 import android.accounts.AccountManager;
-import android.content.Context;
 import android.content.Intent;
 import android.content.SharedPreferences;
 import android.content.res.Configuration;
 import android.graphics.PixelFormat;
-import android.net.ConnectivityManager;
-import android.net.NetworkInfo;
 import android.os.AsyncTask;
 import android.os.Bundle;
 import android.support.v4.app.FragmentActivity;
@@ -35,24 +32,33 @@ import com.google.android.gms.auth.GoogleAuthException;
 import com.google.android.gms.auth.GoogleAuthUtil;
 import com.google.android.gms.auth.UserRecoverableAuthException;
 import com.google.android.gms.common.AccountPicker;
-import com.google.api.client.extensions.android.http.AndroidHttp;
 import com.google.api.client.extensions.android.json.AndroidJsonFactory;
 import com.google.api.client.googleapis.extensions.android.gms.auth.GoogleAccountCredential;
 import com.google.api.client.googleapis.extensions.android.gms.auth.UserRecoverableAuthIOException;
 import com.google.api.client.googleapis.json.GoogleJsonResponseException;
-import com.google.api.client.http.FileContent;
+import com.google.api.client.http.GenericUrl;
+import com.google.api.client.http.HttpResponse;
 import com.google.api.client.http.HttpTransport;
 import com.google.api.client.json.JsonFactory;
 import com.google.api.client.util.ExponentialBackOff;
+import com.google.api.client.util.IOUtils;
 import com.google.api.services.drive.Drive;
 import com.google.api.services.drive.model.File;
-import com.google.api.services.drive.model.Permission;
 import com.unity3d.player.UnityPlayer;
 
+import java.io.FileOutputStream;
+import java.io.FilterOutputStream;
 import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.Executor;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
 
 public class GoogleDriveUnityPlayerActivity extends FragmentActivity {
     protected UnityPlayer mUnityPlayer; // don't change the name of this variable; referenced from native code
@@ -73,6 +79,31 @@ public class GoogleDriveUnityPlayerActivity extends FragmentActivity {
     private static final String CALLBACK_METHOD_DRIVE_PERMISSION_CHANGE_FAILED = "DrivePermissionChangeFailed";
     private static final String CALLBACK_METHOD_NOT_ONLINE = "DriveNotOnline";
     private static final String CALLBACK_METHOD_DRIVE_UPLOAD_FAILED = "DriveUploadFailed";
+    private static final String CALLBACK_METHOD_DRIVE_QUEUED_FILE_UPLOADED = "DriveQueuedFileUploaded";
+    private static final String CALLBACK_METHOD_DRIVE_REQUEST_UPLOADED = "DriveRequestUploaded";
+    private static final String CALLBACK_METHOD_DRIVE_REQUEST_FAILED = "DriveRequestFailed";
+    private static final String CALLBACK_METHOD_DRIVE_FILES_CHECKED = "DriveFilesChecked";
+    private static final String CALLBACK_METHOD_DRIVE_FILES_CHECK_FAILED = "DriveFilesCheckFailed";
+    private static final String CALLBACK_METHOD_JPEG_SAVED = "JpegSaved";
+    private static final String CALLBACK_METHOD_JPEG_SAVE_FAILED = "JpegSaveFailed";
+    private static final String CALLBACK_METHOD_DRIVE_UPLOAD_STARTED = "DriveUploadStarted";
+    private static final String CALLBACK_METHOD_DRIVE_UPLOAD_PROGRESS = "DriveUploadProgress";
+    private static final String CALLBACK_METHOD_DRIVE_DOWNLOAD_PREVIEW = "DriveDownloadPreview";
+    private static final String CALLBACK_METHOD_DRIVE_DOWNLOAD_PROGRESS = "DriveDownloadProgress";
+    private static final String CALLBACK_METHOD_DRIVE_DOWNLOADED = "DriveDownloaded";
+    private static final String CALLBACK_METHOD_DRIVE_DOWNLOAD_FAILED = "DriveDownloadFailed";
+
+    private static final int DEFAULT_UPLOAD_PROGRESS_INTERVAL_MS = 250;
+    // after the first frame, so the warm-up doesn't compete with unity loading its first scene
+    private static final long WARMUP_DELAY_MS = 1000;
+
+    // must match the DriveFailureType names on the unity side
+    private static final String FAILURE_GENERIC = "GenericFailure";
+    private static final String FAILURE_AUTH_CANCELED = "AuthCanceled";
+    private static final String FAILURE_PERMISSION_ISSUE = "DrivePermissionIssue";
+    private static final String FAILURE_NO_CONNECTION = "NoConnection";
+    private static final String FAILURE_RATE_LIMITED = "RateLimited";
+    private static final String FAILURE_DRIVE_UNAVAILABLE = "DriveUnavailable";
 
     private static final String DRIVE_FILE_SCOPE = "https://www.googleapis.com/auth/drive.file";
     private static final String DRIVE_APPFOLDER_SCOPE = "https://www.googleapis.com/auth/drive.appfolder";
@@ -82,15 +113,62 @@ public class GoogleDriveUnityPlayerActivity extends FragmentActivity {
     private static final String GOOGLE_ACCOUNT_NAME = "GOOGLE_ACCOUNT_NAME";
     private static final String GOOGLE_ACCOUNT_ID = "GOOGLE_ACCOUNT_ID";
 
+    private static final String UPLOAD_JOURNAL_FILE_NAME = "drive_upload_journal";
+    private static final int MAX_UPLOAD_ATTEMPTS = 5;
+    private static final String DRIVE_FOLDER_CACHE_PREFS = "drive_folder_ids";
+    private static final String DRIVE_CONTENT_INDEX_PREFS = "drive_content_index";
+    private static final String DOWNLOAD_FIELDS = "id,modifiedTime,size,thumbnailLink,appProperties";
+    private static final String DOWNLOAD_CACHE_DIR = "drive_downloads";
+    // a couple of dozen full size sprays
+    private static final long DOWNLOAD_CACHE_BYTES = 64 * 1024 * 1024;
+    // long side of the preview asked for from drive's thumbnail service, a spray is 2:1 so 1024x512
+    private static final int PREVIEW_SIZE = 1024;
+    private static final String PREVIEW_VARIANT = "preview";
+    private static final String RENDITION_DIR = "renditions";
+    private static final int RENDITION_QUALITY = 85;
+    // what in-app previews load, the largest rendition
+    private static final String PREVIEW_RENDITION = RenditionBuilder.SPRAY_RENDITIONS[0].getName();
+
     public static GoogleDriveUnityPlayerActivity activityInstance;
 
-    private GoogleAccountCredential credential;
-    private Drive driveService;
-    private Account account;
-    private String lastDriveFolderName;
-    private String lastDriveFileName;
-    private String lastLocalPath;
+    // built on first use, by the warm-up if an account has been linked. Set from the main thread and
+    // unity's, and cleared by clearAccount() from upload and auth workers too
+    private volatile GoogleAccountCredential credential;
+    private volatile Drive driveService;
+    private volatile Account account;
     private String lastCallbackObjectName;
+    // uploads waiting on the user to fix their account, they all go again once they have
+    private final List<UploadJournal.Entry> authRecoveryEntries = new ArrayList<>();
+    private DriveExecutors driveExecutors;
+    private UploadJournal uploadJournal;
+    private UploadDrainScheduler uploadDrainScheduler;
+    // by journal entry id, main thread only
+    private final Map<Long, UploadFileToDrive> runningUploads = new HashMap<>();
+    private DriveUploader uploader;
+    private NetworkMonitor networkMonitor;
+    private DriveFolderCache driveFolderCache;
+    private DrivePermissionBatcher permissionBatcher;
+    private DriveDownloadCache downloadCache;
+    // opened by unity with openLibraryIndex(), null until then
+    private volatile LibraryIndex libraryIndex;
+    private final DriveFileChecker fileChecker = new DriveFileChecker();
+    private final PluginMetrics metrics = new PluginMetrics();
+    private final PluginMetrics.Histogram tokenFetchLatency = metrics.histogram("auth.token.fetch");
+    private final PluginMetrics.Counter bytesSent = metrics.counter("upload.bytes.sent");
+    private final PluginMetrics.Counter uploadsFailed = metrics.counter("upload.failed");
+    private final PluginMetrics.Histogram downloadLatency = metrics.histogram("download.total");
+    private final PluginMetrics.Counter bytesReceived = metrics.counter("download.bytes.received");
+    private final PluginMetrics.Counter downloadCacheHits = metrics.counter("download.cache.hit");
+    private final PluginMetrics.Counter downloadCacheMisses = metrics.counter("download.cache.miss");
+    private final PluginMetrics.Counter downloadsFailed = metrics.counter("download.failed");
+    // every drive call goes through this for retries and the circuit breaker
+    private final DriveCallPolicy drivePolicy = new DriveCallPolicy(metrics);
+    private final JpegSaveService jpegSaveService = new JpegSaveService();
+    private AuthTokenCache tokenCache;
+    private DriveWarmup warmup;
+    // 0 to size chunks from the network monitor's throughput estimate
+    private volatile int uploadChunkSize;
+    private volatile int uploadProgressIntervalMs = DEFAULT_UPLOAD_PROGRESS_INTERVAL_MS;
 
     public GoogleDriveUnityPlayerActivity()    {
         activityInstance = this;
@@ -108,15 +186,120 @@ public class GoogleDriveUnityPlayerActivity extends FragmentActivity {
         setContentView(mUnityPlayer);
         mUnityPlayer.requestFocus();
 
-        credential = GoogleAccountCredential.usingOAuth2(
-            getApplicationContext(),
-            Arrays.asList(DRIVE_FILE_SCOPE, DRIVE_APPFOLDER_SCOPE, PLUS_EMAIL_SCOPE))
-            .setBackOff(new ExponentialBackOff());
+        driveFolderCache = new DriveFolderCache(getSharedPreferences(DRIVE_FOLDER_CACHE_PREFS, MODE_PRIVATE));
+        driveExecutors = new DriveExecutors();
+        permissionBatcher = new DrivePermissionBatcher();
+        downloadCache = new DriveDownloadCache(new java.io.File(getCacheDir(), DOWNLOAD_CACHE_DIR), DOWNLOAD_CACHE_BYTES);
+        tokenCache = new AuthTokenCache(driveExecutors.auth(), new AuthTokenCache.TokenSource() {
+            @Override
+            public String fetchToken(String staleToken) throws IOException, GoogleAuthException {
+                long start = System.nanoTime();
+                try {
+                    if (staleToken != null) {
+                        // otherwise play services just hands the same token back
+                        GoogleAuthUtil.clearToken(getApplicationContext(), staleToken);
+                    }
+                    return getCredential().getToken();
+                } finally {
+                    tokenFetchLatency.recordSince(start);
+                }
+            }
+        }, DriveTransport.get().createRequestFactory(), AndroidJsonFactory.getDefaultInstance());
+        uploadJournal = openUploadJournal();
+        uploader = new DriveUploader(drivePolicy, uploadJournal, driveFolderCache,
+                new DriveContentIndex(getSharedPreferences(DRIVE_CONTENT_INDEX_PREFS, MODE_PRIVATE)), permissionBatcher, fileChecker,
+                new RenditionBuilder(new AndroidImageCodec(), driveExecutors.renditions(), RENDITION_QUALITY),
+                new java.io.File(getCacheDir(), RENDITION_DIR), metrics);
+        networkMonitor = new NetworkMonitor(this, bytesSent);
+        networkMonitor.addListener(new NetworkMonitor.Listener() {
+            @Override
+            public void onNetworkChanged(NetworkMonitor monitor) {
+                applyUploadConcurrency();
+            }
+        });
+        uploadDrainScheduler = new UploadDrainScheduler(networkMonitor, uploadJournal, new UploadDrainScheduler.Uploader() {
+            @Override
+            public boolean isReady() {
+                return account != null && driveService != null;
+            }
+
+            @Override
+            public void upload(UploadJournal.Entry entry, boolean drained) {
+                UploadFileToDrive upload = new UploadFileToDrive(entry, drained);
+                runningUploads.put(entry.id, upload);
+                try {
+                    upload.executeOnExecutor(driveExecutors.uploads());
+                } catch (RejectedExecutionException ex) {
+                    // the upload is still journaled, it will go out with a later drain
+                    runningUploads.remove(entry.id);
+                    Log.w(TAG, "Upload lane is full, leaving upload queued: " + entry);
+                    notifyUploadFailed(entry, drained, FAILURE_GENERIC, "Too many uploads in progress, upload queued");
+                    uploadDrainScheduler.onUploadFinished(entry, false);
+                }
+            }
+
+            @Override
+            public void await(UploadJournal.Entry entry) {
+                UploadFileToDrive upload = runningUploads.get(entry.id);
+                if (upload != null) {
+                    upload.await();
+                }
+            }
+        });
+        uploadDrainScheduler.start();
+        networkMonitor.start();
+        warmup = newWarmup();
+
+        metrics.gauge("queue.upload", new PluginMetrics.Gauge() {
+            @Override
+            public long value() {
+                return driveExecutors.uploadQueueDepth();
+            }
+        });
+        metrics.gauge("queue.metadata", new PluginMetrics.Gauge() {
+            @Override
+            public long value() {
+                return driveExecutors.metadataQueueDepth();
+            }
+        });
+        metrics.gauge("queue.download", new PluginMetrics.Gauge() {
+            @Override
+            public long value() {
+                return driveExecutors.downloadQueueDepth();
+            }
+        });
+        metrics.gauge("cache.download.bytes", new PluginMetrics.Gauge() {
+            @Override
+            public long value() {
+                return downloadCache.getTotalBytes();
+            }
+        });
+        metrics.gauge("queue.journal", new PluginMetrics.Gauge() {
+            @Override
+            public long value() {
+                return uploadJournal.size();
+            }
+        });
+        metrics.gauge("network.bytesPerSecond", new PluginMetrics.Gauge() {
+            @Override
+            public long value() {
+                return networkMonitor.getBytesPerSecond();
+            }
+        });
     }
 
     // Quit Unity
     @Override protected void onDestroy ()
     {
+        warmup.shutdown();
+        networkMonitor.stop();
+        uploadDrainScheduler.stop();
+        uploadJournal.close();
+        permissionBatcher.shutdown();
+        jpegSaveService.shutdown();
+        closeLibraryIndex();
+        metrics.shutdown();
+        driveExecutors.shutdown();
         mUnityPlayer.quit();
         super.onDestroy();
     }
@@ -126,6 +309,8 @@ public class GoogleDriveUnityPlayerActivity extends FragmentActivity {
     {
         super.onPause();
         mUnityPlayer.pause();
+        // picked up again when the window next gets focus
+        warmup.pause();
     }
 
     // Resume Unity
@@ -147,6 +332,10 @@ public class GoogleDriveUnityPlayerActivity extends FragmentActivity {
     {
         super.onWindowFocusChanged(hasFocus);
         mUnityPlayer.windowFocusChanged(hasFocus);
+        if (hasFocus) {
+            // the first frame is up by the time the window has focus
+            warmup.start(WARMUP_DELAY_MS);
+        }
     }
 
     // For some reason the multiple keyevent type is not supported by the ndk.
@@ -164,23 +353,64 @@ public class GoogleDriveUnityPlayerActivity extends FragmentActivity {
     @Override public boolean onTouchEvent(MotionEvent event)          { return mUnityPlayer.injectEvent(event); }
     /*API12*/ public boolean onGenericMotionEvent(MotionEvent event)  { return mUnityPlayer.injectEvent(event); }
 
-    public boolean isDeviceOnline() {
-        ConnectivityManager connMgr = (ConnectivityManager) getSystemService(Context.CONNECTIVITY_SERVICE);
-        NetworkInfo networkInfo = connMgr.getActiveNetworkInfo();
-        return (networkInfo != null && networkInfo.isConnected());
+    private UploadJournal openUploadJournal() {
+        java.io.File journalFile = new java.io.File(getFilesDir(), UPLOAD_JOURNAL_FILE_NAME);
+        try {
+            UploadJournal journal = new UploadJournal(journalFile);
+            Log.i(TAG, "upload journal opened, " + journal.size() + " upload(s) pending");
+            return journal;
+        } catch (IOException ex) {
+            // losing the queued uploads is better than never being able to upload again
+            Log.e(TAG, "Failed to open upload journal, starting a new one", ex);
+            journalFile.delete();
+            try {
+                return new UploadJournal(journalFile);
+            } catch (IOException ex2) {
+                throw new RuntimeException("Failed to create upload journal", ex2);
+            }
+        }
     }
 
-    private Account getLastUsedAccount() {
-        String accountName = getPreferences(MODE_PRIVATE).getString(GOOGLE_ACCOUNT_NAME, null);
-        if (accountName == null) {
-            account = null;
-            return null;
+    private void closeLibraryIndex() {
+        LibraryIndex index = libraryIndex;
+        libraryIndex = null;
+        if (index != null) {
+            try {
+                index.close();
+            } catch (IOException ex) {
+                Log.w(TAG, "Failed to close library index", ex);
+            }
+        }
+    }
+
+    private void indexUploadState(String localPath, int state, String driveFileId) {
+        LibraryIndex index = libraryIndex;
+        if (index != null) {
+            index.setUploadState(localPath, state, driveFileId);
         }
+    }
+
+    public boolean isDeviceOnline() {
+        return networkMonitor.isOnline();
+    }
 
-        account = getAccountByName(accountName);
+    private void applyUploadConcurrency() {
+        int concurrency = networkMonitor.getUploadConcurrency();
+        driveExecutors.setUploadConcurrency(concurrency);
+        Log.i(TAG, "upload concurrency " + concurrency + ", chunk size " + networkMonitor.getChunkSize());
+    }
+
+    private Account getLastUsedAccount() {
+        account = findSavedAccount();
         return account;
     }
 
+    // the account picked last time if it's still on the device, scans the AccountManager
+    private Account findSavedAccount() {
+        String accountName = getPreferences(MODE_PRIVATE).getString(GOOGLE_ACCOUNT_NAME, null);
+        return accountName == null ? null : getAccountByName(accountName);
+    }
+
     private Account getAccountByName(String name) {
         for (Account a: AccountManager.get(this).getAccountsByType("com.google")) {
             if (a.name.equals(name)) {
@@ -191,8 +421,12 @@ public class GoogleDriveUnityPlayerActivity extends FragmentActivity {
     }
 
     private void clearAccount()    {
+        // or it could bring the account straight back
+        warmup.cancel();
         account = null;
         driveService = null; // this also needs to be cleared out!
+        fileChecker.clear();
+        tokenCache.clear();
         SharedPreferences prefs = getPreferences(MODE_PRIVATE);
         SharedPreferences.Editor e = prefs.edit();
         e.remove(GOOGLE_ACCOUNT_NAME);
@@ -201,26 +435,134 @@ public class GoogleDriveUnityPlayerActivity extends FragmentActivity {
 
     private Drive initDriveServiceFromAccount(Account account, String callbackObjectName){
         Log.i(TAG, "initDriveServiceFromAccount");
-        credential.setSelectedAccountName(account.name);
+        getCredential().setSelectedAccountName(account.name);
 
         // Send account to unity app
-        UnityPlayer.UnitySendMessage(callbackObjectName, CALLBACK_METHOD_DRIVE_ACCOUNT_SELECTED, account.name);
-        HttpTransport transport = AndroidHttp.newCompatibleTransport();
-        JsonFactory jsonFactory = AndroidJsonFactory.getDefaultInstance();
-        driveService = new com.google.api.services.drive.Drive.Builder(transport, jsonFactory, credential)
-                .setApplicationName("Sprayscape")
-                .build();
+        PluginEventQueue.send(callbackObjectName, CALLBACK_METHOD_DRIVE_ACCOUNT_SELECTED, account.name);
+        driveService = buildDriveService();
+
+        PluginEventQueue.send(callbackObjectName, CALLBACK_METHOD_DRIVE_IS_READY, "");
 
-        UnityPlayer.UnitySendMessage(callbackObjectName, CALLBACK_METHOD_DRIVE_IS_READY, "");
+        // have a token ready before anyone asks for it
+        tokenCache.prefetch();
 
+        // anything left over from an earlier session can go out now
+        runOnUiThread(new Runnable() {
+            @Override
+            public void run() {
+                uploadDrainScheduler.drain();
+            }
+        });
 
         return driveService;
     }
 
+    private synchronized GoogleAccountCredential getCredential() {
+        if (credential == null) {
+            credential = GoogleAccountCredential.usingOAuth2(
+                getApplicationContext(),
+                Arrays.asList(DRIVE_FILE_SCOPE, DRIVE_APPFOLDER_SCOPE, PLUS_EMAIL_SCOPE))
+                .setBackOff(new ExponentialBackOff());
+        }
+        return credential;
+    }
+
+    private Drive buildDriveService() {
+        // shared so a new client reuses the connections the old one left open
+        HttpTransport transport = DriveTransport.get();
+        JsonFactory jsonFactory = AndroidJsonFactory.getDefaultInstance();
+        return new com.google.api.services.drive.Drive.Builder(transport, jsonFactory, getCredential())
+                .setApplicationName("Sprayscape")
+                .build();
+    }
+
+    /**
+     * Everything the first share would otherwise wait on, done off the main thread once unity is up:
+     * the credential, the AccountManager scan for the saved account, the drive client, a token and
+     * a connection to drive. Stops straight away if no account has been linked yet.
+     */
+    private DriveWarmup newWarmup() {
+        final Account[] saved = new Account[1];
+        final DriveWarmup thisWarmup = new DriveWarmup(metrics);
+        return thisWarmup
+                .add("credential", new DriveWarmup.Step() {
+                    @Override
+                    public boolean run() {
+                        getCredential();
+                        return true;
+                    }
+                })
+                .add("account", new DriveWarmup.Step() {
+                    @Override
+                    public boolean run() {
+                        saved[0] = findSavedAccount();
+                        return saved[0] != null;
+                    }
+                })
+                .add("client", new DriveWarmup.Step() {
+                    @Override
+                    public boolean run() throws Exception {
+                        final Drive drive = buildDriveService();
+                        // published on the main thread, where a picked account lands and the drain scheduler lives
+                        FutureTask<Void> publish = new FutureTask<>(new Runnable() {
+                            @Override
+                            public void run() {
+                                // the user may have got here first, or picked another account since
+                                Account current = account;
+                                if (driveService != null || (current != null && !current.name.equals(saved[0].name))) {
+                                    return;
+                                }
+                                // clearAccount() cancels the warm-up, maybe from an upload worker since this was posted
+                                boolean published = thisWarmup.runUnlessCancelled(new Runnable() {
+                                    @Override
+                                    public void run() {
+                                        getCredential().setSelectedAccountName(saved[0].name);
+                                        account = saved[0];
+                                        driveService = drive;
+                                    }
+                                });
+                                if (!published) {
+                                    Log.i(TAG, "warm-up cancelled, dropping its drive client");
+                                    return;
+                                }
+                                Log.i(TAG, "drive client ready from warm-up");
+                                // anything left over from an earlier session can go out now
+                                uploadDrainScheduler.drain();
+                            }
+                        }, null);
+                        runOnUiThread(publish);
+                        publish.get();
+                        return true;
+                    }
+                })
+                .add("token", new DriveWarmup.Step() {
+                    @Override
+                    public boolean run() throws Exception {
+                        // the fetch is shared, a share starting now waits on this one rather than starting another.
+                        // It runs on the auth executor, so pausing the warm-up can't fail it for the share
+                        tokenCache.getInBackground();
+                        return true;
+                    }
+                })
+                .add("connection", new DriveWarmup.Step() {
+                    @Override
+                    public boolean run() {
+                        // the dns lookup and tls handshake, on this thread so it can be paused like the rest
+                        DriveTransport.prewarm(new Executor() {
+                            @Override
+                            public void execute(Runnable command) {
+                                command.run();
+                            }
+                        });
+                        return true;
+                    }
+                });
+    }
+
     @Override
     protected void onActivityResult(final int requestCode, final int resultCode, final Intent data) {
         Log.i(TAG, "onActivityResult(" + requestCode + ", " + resultCode + ", " + data + ")");
-        UnityPlayer.UnitySendMessage("OnActivityResultListener", "OnActivityResult", requestCode + "," + resultCode + "," + data);
+        PluginEventQueue.send("OnActivityResultListener", "OnActivityResult", null, requestCode, requestCode + "," + resultCode + "," + data);
         switch (requestCode) {
             case REQUEST_CODE_ACCOUNT_SELECTED: {
                 if (resultCode == RESULT_OK) {
@@ -234,6 +576,7 @@ public class GoogleDriveUnityPlayerActivity extends FragmentActivity {
 
                     Log.i(TAG, "user selected account: " + accountName + " type: " + accountType + " saved to shared preferences");
                     account = new Account(accountName, accountType);
+                    tokenCache.clear();
                     // TODO: maybe don't assume the user was trying to upload?
                     // try uploading again
                     //uploadFile(lastDriveFolderName, lastDriveFileName, lastLocalPath, lastCallbackObjectName);
@@ -242,7 +585,7 @@ public class GoogleDriveUnityPlayerActivity extends FragmentActivity {
 
                 } else {
                     // user cancel the account picker without selecting....
-                    UnityPlayer.UnitySendMessage(lastCallbackObjectName, CALLBACK_METHOD_DRIVE_ACCOUNT_SELECTION_CANCELED, "" + resultCode);
+                    PluginEventQueue.send(lastCallbackObjectName, CALLBACK_METHOD_DRIVE_ACCOUNT_SELECTION_CANCELED, "" + resultCode);
                 }
                 break;
             }
@@ -251,19 +594,33 @@ public class GoogleDriveUnityPlayerActivity extends FragmentActivity {
                     fetchAuthToken(lastCallbackObjectName);
 //                } else {
 //                    clearAccount();
-//                    UnityPlayer.UnitySendMessage(lastCallbackObjectName, CALLBACK_METHOD_DRIVE_AUTH_CANCELED, "" + resultCode);
+//                    PluginEventQueue.send(lastCallbackObjectName, CALLBACK_METHOD_DRIVE_AUTH_CANCELED, "" + resultCode);
 //                }
                 break;
             }
             case REQUEST_CODE_RECOVER_FROM_DRIVE_UPLOAD_ERROR: {
                 if (resultCode == RESULT_OK) {
-                    // user fixed the authentication problem try upload again
-                    uploadFile(lastDriveFolderName, lastDriveFileName, lastLocalPath, lastCallbackObjectName);
+                    // user fixed the authentication problem try upload again, the uploads are still in the journal
+                    for (UploadJournal.Entry entry : takeAuthRecoveryEntries()) {
+                        if (uploadJournal.contains(entry)) {
+                            uploadDrainScheduler.submit(entry);
+                        }
+                    }
                 } else {
                     // this happens when the user deny's the authorization
                     // we will clear the auth data in-case they wanted to switch accounts on the next try
                     clearAccount();
-                    UnityPlayer.UnitySendMessage(lastCallbackObjectName, CALLBACK_METHOD_DRIVE_AUTH_CANCELED, "" + resultCode);
+                    for (UploadJournal.Entry entry : takeAuthRecoveryEntries()) {
+                        try {
+                            uploadJournal.remove(entry);
+                        } catch (IOException ex) {
+                            Log.e(TAG, "Failed to update upload journal", ex);
+                        }
+                        if (entry.requestId != null) {
+                            notifyUploadFailed(entry, false, FAILURE_AUTH_CANCELED, "" + resultCode);
+                        }
+                    }
+                    PluginEventQueue.send(lastCallbackObjectName, CALLBACK_METHOD_DRIVE_AUTH_CANCELED, "" + resultCode);
                 }
                 break;
             }
@@ -272,141 +629,220 @@ public class GoogleDriveUnityPlayerActivity extends FragmentActivity {
         }
     }
 
+    private List<UploadJournal.Entry> takeAuthRecoveryEntries() {
+        synchronized (authRecoveryEntries) {
+            List<UploadJournal.Entry> entries = new ArrayList<>(authRecoveryEntries);
+            authRecoveryEntries.clear();
+            return entries;
+        }
+    }
+
+    // uploads started with uploadFiles() get one tagged callback, uploadFile() keeps its old callbacks
+    private void notifyUploadFailed(UploadJournal.Entry entry, boolean drained, String failureType, String reason) {
+        // still journaled means it will go again
+        indexUploadState(entry.localPath, uploadJournal.contains(entry) ? LibraryIndex.UPLOAD_QUEUED : LibraryIndex.UPLOAD_FAILED, null);
+        if (drained) {
+            // nobody is waiting on a drained upload, it stays queued until it goes through or is given up on
+            return;
+        }
+        if (entry.requestId != null) {
+            PluginEventQueue.send(entry.callbackObjectName, CALLBACK_METHOD_DRIVE_REQUEST_FAILED, entry.requestId, 0, entry.requestId + ":" + failureType + ":" + reason);
+        } else {
+            PluginEventQueue.send(entry.callbackObjectName, CALLBACK_METHOD_DRIVE_UPLOAD_FAILED, reason);
+        }
+    }
+
     private class UploadFileToDrive extends AsyncTask<Void, Void, String> {
 
-        private String driveFolderName;
-        private String driveFileName;
+        private final UploadJournal.Entry entry;
+        // cleared by await(), the failure and result callbacks are sent from onPostExecute() so
+        // they see it however late the user asked
+        private volatile boolean drained;
+        private volatile boolean started;
         private String localPath;
         private String callbackObjectName;
+        private String failureType = FAILURE_GENERIC;
+        // set when the upload failed, null if it went through or is waiting on the account
+        private String failureReason;
+        private boolean offline;
+        private Intent authRecoveryIntent;
+
+        // "<requestId>:<sentBytes>:<totalBytes>:<bytesPerSecond>", the request id is empty for uploadFile()
+        private final UploadProgressThrottle.Sink progressSink = new UploadProgressThrottle.Sink() {
+            @Override
+            public void onProgress(long sentBytes, long totalBytes, long bytesPerSecond) {
+                String requestId = entry.requestId == null ? "" : entry.requestId;
+                PluginEventQueue.send(callbackObjectName, CALLBACK_METHOD_DRIVE_UPLOAD_PROGRESS, entry.requestId,
+                        (int) (sentBytes * 100 / totalBytes), requestId + ":" + sentBytes + ":" + totalBytes + ":" + bytesPerSecond);
+            }
+        };
 
-        public UploadFileToDrive(String driveFolderName, String driveFileName, String localPath, String callbackObjectName) {
-            this.driveFolderName = driveFolderName;
-            this.driveFileName = driveFileName;
-            this.localPath = localPath;
-            this.callbackObjectName = callbackObjectName;
-        }
+        private final DriveUploader.Listener uploadListener = new DriveUploader.Listener() {
+            private final UploadProgressThrottle throttle = new UploadProgressThrottle(uploadProgressIntervalMs, progressSink);
+            private long totalBytes;
 
-        @Override
-        protected String doInBackground(Void... params) {
-            try {
-                // first make sure we are online
-                if (!isDeviceOnline()) {
-                    UnityPlayer.UnitySendMessage(this.callbackObjectName, CALLBACK_METHOD_NOT_ONLINE, "no connection");
-                    // this will trigger the generic drive failure
-                    throw new Exception("Not online");
-                }
+            @Override
+            public int getChunkSize() {
+                return uploadChunkSize > 0 ? uploadChunkSize : networkMonitor.getChunkSize();
+            }
 
-                File topFolder = ensureDriveFolderExists(driveFolderName);
+            @Override
+            public void onTransferStarted() {
+                networkMonitor.uploadStarted();
+            }
 
-                //ensureFolderPermissions(topFolder);
+            @Override
+            public void onTransferFinished() {
+                networkMonitor.uploadFinished();
+            }
 
-                File imageFile = new File();
-                imageFile.setName(driveFileName);
-                imageFile.setMimeType("image/jpeg");
-                imageFile.setParents(Collections.singletonList(topFolder.getId()));
-                java.io.File filePath = new java.io.File(localPath);
-                FileContent mediaContent = new FileContent("image/jpeg", filePath);
-                File file = driveService.files().create(imageFile, mediaContent)
-                        .setFields("id")
-                        .execute();
+            @Override
+            public void onProgress(long sentBytes, long totalBytes) {
+                this.totalBytes = totalBytes;
+                if (networkMonitor.checkThroughput()) {
+                    applyUploadConcurrency();
+                }
+                if (!drained) {
+                    throttle.onProgress(sentBytes, totalBytes);
+                }
+            }
 
-                Log.i(TAG, "Drive File Uploaded: '" + driveFolderName + "/" + driveFileName + "': " + file.getId());
+            @Override
+            public void onPermissionDenied(GoogleJsonResponseException ex) {
+                // HACK: we clear out the account selection here as well to force account selection again
+                // since that account will likely never work
+                clearAccount();
+                failureType = FAILURE_PERMISSION_ISSUE;
+                if (entry.requestId == null) {
+                    PluginEventQueue.send(callbackObjectName, CALLBACK_METHOD_DRIVE_PERMISSION_CHANGE_FAILED, ex.toString());
+                }
+            }
 
-                ensureFilePermissions(file);
+            @Override
+            public void onShared(String fileId) {
+                indexUploadState(localPath, LibraryIndex.UPLOADED, fileId);
+            }
 
-                return file.getId();
-            } catch (UserRecoverableAuthIOException ex) {
-                ex.getIntent();
-                startActivityForResult(ex.getIntent(), REQUEST_CODE_RECOVER_FROM_DRIVE_UPLOAD_ERROR);
-                return null;
-            } catch (Exception ex) {
-                Log.e(TAG, "Failed to upload to drive", ex);
-                UnityPlayer.UnitySendMessage(this.callbackObjectName, CALLBACK_METHOD_DRIVE_UPLOAD_FAILED, ex.toString());
-                return null;
+            @Override
+            public void onRenditionProgress() {
+                // all of the original again, at 0 B/s, keeps unity's stall timer from going off while the renditions go up
+                if (!drained && totalBytes > 0) {
+                    throttle.onProgress(totalBytes, totalBytes);
+                }
             }
+        };
+
+        public UploadFileToDrive(UploadJournal.Entry entry, boolean drained) {
+            this.entry = entry;
+            this.drained = drained;
+            this.localPath = entry.localPath;
+            this.callbackObjectName = entry.callbackObjectName;
         }
 
-        private File ensureDriveFolderExists(String driveFolderName)throws IOException {
-            List<File> files = driveService.files().list().setQ("mimeType='application/vnd.google-apps.folder' and name = '" + driveFolderName + "' and trashed=false").execute().getFiles();
-            if (files.size() == 1) {
-                File f = files.get(0);
-                Log.i(TAG, "Drive Folder: '" + driveFolderName + "' already exists: " + f.getId());
-                return f;
+        // main thread only
+        public void await() {
+            drained = false;
+            if (started) {
+                notifyStarted();
             }
-            // else folder doesn't exist yet
-            Log.i(TAG, "Drive Folder: '" + driveFolderName + "' does not exist yet, creating now");
-
-            File f = new File();
-            f.setName(driveFolderName);
-            f.setMimeType("application/vnd.google-apps.folder");
+        }
 
-            f = driveService.files().create(f).setFields("id").execute();
-            Log.i(TAG, "Drive Folder: '" + driveFolderName + "' created: " + f.getId());
-            return f;
+        // "<requestId>", empty for uploadFile(). Unity only starts timing a stall from here, an upload
+        // queued behind others in the lane sends nothing until it gets this far
+        private void notifyStarted() {
+            String requestId = entry.requestId == null ? "" : entry.requestId;
+            PluginEventQueue.send(callbackObjectName, CALLBACK_METHOD_DRIVE_UPLOAD_STARTED, entry.requestId, 0, requestId);
         }
 
-        private void ensureFolderPermissions(File folder)throws IOException {
-            for (Permission p:  driveService.permissions().list(folder.getId()).execute().getPermissions()) {
-                if (p.getType().equals("anyone") && p.getRole().equals("reader")) {
-                    Log.i(TAG, "anyone/reader permission already found on folder");
-                    return;
-                }
+        @Override
+        protected String doInBackground(Void... params) {
+            // first make sure we are online
+            if (!isDeviceOnline()) {
+                // leave the upload in the journal, the drain scheduler will send it once we are back online
+                Log.i(TAG, "Not online, upload queued: " + entry);
+                offline = true;
+                failureType = FAILURE_NO_CONNECTION;
+                failureReason = "Not online, upload queued";
+                return null;
             }
-            // reader permission not found, adding...
+
+            started = true;
+            if (!drained) {
+                notifyStarted();
+            }
+            indexUploadState(localPath, LibraryIndex.UPLOADING, null);
             try {
-                Permission p = new Permission();
-                p.setType("anyone");
-                p.setRole("reader");
-                p = driveService.permissions().create(folder.getId(), p).execute();
-                Log.i(TAG, "added permission to top-level folder: " + p.toPrettyString());
-            } catch (GoogleJsonResponseException ex) {
-                // HACK: we specifically look for a 403 on the permission change, this our signal that the account is probably a google.com account
-                // we clear out the account selection here as well to force account selection again since that account will likely never work
-                int errorCode = ex.getDetails().getCode();
-                Log.w(TAG, "GoogleJsonResponseException.getDetails().getCode() == " + errorCode);
-                if (errorCode == 403) {
-                    clearAccount();
-                    UnityPlayer.UnitySendMessage(this.callbackObjectName, CALLBACK_METHOD_DRIVE_PERMISSION_CHANGE_FAILED, ex.toString());
+                return uploader.upload(driveService, getCredential().getSelectedAccountName(), entry, uploadListener).ids();
+            } catch (UserRecoverableAuthIOException ex) {
+                indexUploadState(localPath, LibraryIndex.UPLOAD_QUEUED, null);
+                authRecoveryIntent = ex.getIntent();
+                return null;
+            } catch (DriveCallPolicy.CircuitOpenException ex) {
+                // drive is down rather than anything wrong with this upload, don't count it against it
+                Log.w(TAG, "Not uploading while drive is failing: " + entry);
+                uploadsFailed.increment();
+                failureType = FAILURE_DRIVE_UNAVAILABLE;
+                failureReason = ex.toString();
+                return null;
+            } catch (Exception ex) {
+                Log.e(TAG, "Failed to upload to drive", ex);
+                if (ex instanceof IOException && DriveCallPolicy.isRateLimited((IOException) ex)) {
+                    failureType = FAILURE_RATE_LIMITED;
+                } else {
+                    recordFailedAttempt();
                 }
-                throw ex;
+                uploadsFailed.increment();
+                failureReason = ex.toString();
+                return null;
             }
         }
 
-
-        private void ensureFilePermissions(File file)throws IOException {
-            for (Permission p:  driveService.permissions().list(file.getId()).execute().getPermissions()) {
-                if (p.getType().equals("anyone") && p.getRole().equals("reader")) {
-                    Log.i(TAG, "anyone/reader permission already found on folder");
-                    return;
-                }
-            }
-            // reader permission not found, adding...
+        private void recordFailedAttempt() {
             try {
-                Permission p = new Permission();
-                p.setType("anyone");
-                p.setRole("reader");
-                p = driveService.permissions().create(file.getId(), p).execute();
-                Log.i(TAG, "added permission to file: " + p.toPrettyString());
-            } catch (GoogleJsonResponseException ex) {
-                // HACK: we specifically look for a 403 on the permission change, this our signal that the account is probably a google.com account
-                // we clear out the account selection here as well to force account selection again since that account will likely never work
-                int errorCode = ex.getDetails().getCode();
-                Log.w(TAG, "GoogleJsonResponseException.getDetails().getCode() == " + errorCode);
-                if (errorCode == 403) {
-                    clearAccount();
-                    UnityPlayer.UnitySendMessage(this.callbackObjectName, CALLBACK_METHOD_DRIVE_PERMISSION_CHANGE_FAILED, ex.toString());
+                uploadJournal.recordAttempt(entry);
+                if (entry.getAttempts() >= MAX_UPLOAD_ATTEMPTS) {
+                    Log.w(TAG, "Giving up on upload after " + entry.getAttempts() + " attempts: " + entry);
+                    uploadJournal.remove(entry);
                 }
-                throw ex;
+            } catch (IOException ex) {
+                Log.e(TAG, "Failed to update upload journal", ex);
             }
         }
 
-
         @Override
-        protected void onPostExecute(String fileId) {
+        protected void onPostExecute(String ids) {
             // force on the ui thread just in case...
-            if (fileId != null) {
-                UnityPlayer.UnitySendMessage(this.callbackObjectName, CALLBACK_METHOD_DRIVE_FILE_UPLOADED, fileId);
+            // the file id, then any renditions, see DriveUploader.Result.ids()
+            if (ids != null) {
+                if (entry.requestId != null) {
+                    PluginEventQueue.send(this.callbackObjectName, CALLBACK_METHOD_DRIVE_REQUEST_UPLOADED, entry.requestId, 0, entry.requestId + ":" + ids);
+                } else if (drained) {
+                    PluginEventQueue.send(this.callbackObjectName, CALLBACK_METHOD_DRIVE_QUEUED_FILE_UPLOADED, localPath + "," + ids);
+                } else {
+                    PluginEventQueue.send(this.callbackObjectName, CALLBACK_METHOD_DRIVE_FILE_UPLOADED, ids);
+                }
+            } else if (authRecoveryIntent != null) {
+                // a drained upload has nobody waiting on it, keep it queued until the user fixes the account
+                if (!drained) {
+                    boolean launch;
+                    synchronized (authRecoveryEntries) {
+                        // only one recovery prompt, however many uploads ran into the problem
+                        launch = authRecoveryEntries.isEmpty();
+                        authRecoveryEntries.add(entry);
+                    }
+                    if (launch) {
+                        startActivityForResult(authRecoveryIntent, REQUEST_CODE_RECOVER_FROM_DRIVE_UPLOAD_ERROR);
+                    }
+                }
+            } else if (failureReason != null) {
+                if (offline && !drained && entry.requestId == null) {
+                    PluginEventQueue.send(this.callbackObjectName, CALLBACK_METHOD_NOT_ONLINE, "no connection");
+                }
+                // this will trigger the generic drive failure
+                notifyUploadFailed(entry, drained, failureType, failureReason);
             }
+            runningUploads.remove(entry.id);
+            uploadDrainScheduler.onUploadFinished(entry, ids != null);
         }
     };
 
@@ -433,13 +869,24 @@ public class GoogleDriveUnityPlayerActivity extends FragmentActivity {
 
         // Everything is ready, call DriveIsReady in unity
         else {
-            UnityPlayer.UnitySendMessage(callbackObjectName, CALLBACK_METHOD_DRIVE_IS_READY, "");
+            // unity hasn't heard the account name yet if the warm-up set drive up
+            PluginEventQueue.send(callbackObjectName, CALLBACK_METHOD_DRIVE_ACCOUNT_SELECTED, account.name);
+            PluginEventQueue.send(callbackObjectName, CALLBACK_METHOD_DRIVE_IS_READY, "");
         }
         return true;
     }
 
     public boolean fetchAuthToken(final String optObjectName){
         Log.d(TAG,"fetchAuthToken()");
+
+        // most of the time we already have a good token, hand it over straight away
+        String cachedToken = tokenCache.getCached();
+        if (cachedToken != null) {
+            if (optObjectName != null)
+                PluginEventQueue.send(optObjectName, CALLBACK_METHOD_DRIVE_ACCOUNT_TOKEN_OBTAINED, cachedToken);
+            return true;
+        }
+
         AsyncTask t = new AsyncTask<Void, Void,Void>() {
             private String obtained_token;
             @Override
@@ -448,7 +895,7 @@ public class GoogleDriveUnityPlayerActivity extends FragmentActivity {
                 try {
 //                    String mScope = "oauth2:" + PLUS_EMAIL_SCOPE;
 //                    obtained_token = GoogleAuthUtil.getToken(getApplicationContext(), account, mScope);
-                    obtained_token = credential.getToken();
+                    obtained_token = tokenCache.get();
                     Log.d(TAG,"fetchAuthToken() token obtained: "+obtained_token);
 
                 } catch (UserRecoverableAuthException userRecoverableException) {
@@ -461,7 +908,7 @@ public class GoogleDriveUnityPlayerActivity extends FragmentActivity {
                     Log.e(TAG, "Exception " + e.getMessage());
 
                     clearAccount();
-                    UnityPlayer.UnitySendMessage(lastCallbackObjectName, CALLBACK_METHOD_DRIVE_AUTH_FAILED, "" + e.getMessage());
+                    PluginEventQueue.send(lastCallbackObjectName, CALLBACK_METHOD_DRIVE_AUTH_FAILED, "" + e.getMessage());
                 }
                 return null;
             }
@@ -469,42 +916,516 @@ public class GoogleDriveUnityPlayerActivity extends FragmentActivity {
             @Override
             protected void onPostExecute(Void o) {
                 if (optObjectName != null && obtained_token != null)
-                    UnityPlayer.UnitySendMessage(optObjectName, CALLBACK_METHOD_DRIVE_ACCOUNT_TOKEN_OBTAINED, obtained_token);
+                    PluginEventQueue.send(optObjectName, CALLBACK_METHOD_DRIVE_ACCOUNT_TOKEN_OBTAINED, obtained_token);
 
                 super.onPostExecute(o);
             }
-        }.execute();
+        }.executeOnExecutor(driveExecutors.auth());
         return true;
     }
 
-    public boolean checkFileId(String fileId){
+    public boolean checkFileId(final String fileId){
         Log.i(TAG, "checkFileId(\"" + fileId + "\")");
 
-        if(account == null) return false;
+        final Drive drive = driveService;
+        if(account == null || drive == null) return false;
 
         try {
-            File f = driveService.files().get(fileId).execute();
-            return f != null;
+            // unity's main thread is waiting on this one, so no retries, just the circuit breaker
+            return drivePolicy.execute("drive.file.check", 0, new DriveCallPolicy.Call<Boolean>() {
+                @Override
+                public Boolean execute() throws IOException {
+                    return fileChecker.check(drive, fileId);
+                }
+            });
         } catch (IOException e) {
             e.printStackTrace();
         }
         return false;
     }
 
+    // non-blocking version of checkFileId for many files at once, returns a request id (null if no account is set up yet)
+    // the answer comes back as a single DriveFilesChecked("<requestId>:<fileId>=True,<fileId>=False,...")
+    // or DriveFilesCheckFailed("<requestId>:<failureType>:<reason>"), files drive couldn't answer for are left out
+    public String checkFileIds(final String[] fileIds, final String callbackObjectName) {
+        Log.i(TAG, "checkFileIds(" + fileIds.length + " files, \"" + callbackObjectName + "\")");
+
+        final Drive drive = driveService;
+        if (account == null || drive == null) return null;
+
+        final String requestId = UUID.randomUUID().toString();
+        driveExecutors.metadata().execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    StringBuilder result = new StringBuilder(requestId).append(':');
+                    String separator = "";
+                    Map<String, Boolean> checks = drivePolicy.execute("drive.files.check", new DriveCallPolicy.Call<Map<String, Boolean>>() {
+                        @Override
+                        public Map<String, Boolean> execute() throws IOException {
+                            return fileChecker.checkAll(drive, fileIds);
+                        }
+                    });
+                    for (Map.Entry<String, Boolean> check : checks.entrySet()) {
+                        if (check.getValue() == null) {
+                            continue;
+                        }
+                        result.append(separator).append(check.getKey()).append('=').append(check.getValue() ? "True" : "False");
+                        separator = ",";
+                    }
+                    PluginEventQueue.send(callbackObjectName, CALLBACK_METHOD_DRIVE_FILES_CHECKED, requestId, 0, result.toString());
+                } catch (IOException ex) {
+                    Log.e(TAG, "Failed to check drive files", ex);
+                    PluginEventQueue.send(callbackObjectName, CALLBACK_METHOD_DRIVE_FILES_CHECK_FAILED, requestId, 0,
+                            requestId + ":" + failureType(ex) + ":" + ex);
+                }
+            }
+        });
+        return requestId;
+    }
+
+    /**
+     * Fetch a file from drive without holding up unity, from the download cache if this version of
+     * it has been fetched before. If it hasn't and preview is set, its 1024x512 rendition (or drive's
+     * thumbnail, for files uploaded without renditions) is fetched first and reported with
+     * DriveDownloadPreview("<requestId>:<path>").
+     * The file itself reports DriveDownloadProgress("<requestId>:<receivedBytes>:<totalBytes>:<bytesPerSecond>")
+     * as it comes in, then DriveDownloaded("<requestId>:<path>") or
+     * DriveDownloadFailed("<requestId>:<failureType>:<reason>"). A download that is cut off picks up
+     * where it stopped the next time the file is asked for.
+     *
+     * @return the request id, or null if no account is set up yet or too many downloads are waiting
+     */
+    public String downloadFile(final String fileId, final boolean preview, final String callbackObjectName) {
+        Log.i(TAG, "downloadFile(\"" + fileId + "\", " + preview + ", \"" + callbackObjectName + "\")");
+
+        final Drive drive = driveService;
+        if (account == null || drive == null) return null;
+
+        final String requestId = UUID.randomUUID().toString();
+        try {
+            driveExecutors.downloads().execute(new Runnable() {
+                @Override
+                public void run() {
+                    download(drive, requestId, fileId, preview, callbackObjectName);
+                }
+            });
+        } catch (RejectedExecutionException ex) {
+            Log.w(TAG, "Download lane is full, not downloading " + fileId);
+            return null;
+        }
+        return requestId;
+    }
+
+    private void download(final Drive drive, String requestId, final String fileId, boolean preview, String callbackObjectName) {
+        long start = System.nanoTime();
+        try {
+            File metadata;
+            try {
+                metadata = drivePolicy.execute("drive.file.metadata", new DriveCallPolicy.Call<File>() {
+                    @Override
+                    public File execute() throws IOException {
+                        return drive.files().get(fileId).setFields(DOWNLOAD_FIELDS).execute();
+                    }
+                });
+            } catch (IOException ex) {
+                // can't tell if it changed, but whatever version we have beats nothing
+                java.io.File cached = DriveCallPolicy.classify(ex) == DriveCallPolicy.ErrorClass.PERMANENT
+                        ? null : downloadCache.find(fileId, null);
+                if (cached == null) {
+                    throw ex;
+                }
+                Log.w(TAG, "Couldn't ask drive about " + fileId + ", using the cached copy: " + ex);
+                downloadCacheHits.increment();
+                PluginEventQueue.send(callbackObjectName, CALLBACK_METHOD_DRIVE_DOWNLOADED, requestId, 0, requestId + ":" + cached.getPath());
+                return;
+            }
+
+            long modifiedTime = metadata.getModifiedTime() == null ? 0 : metadata.getModifiedTime().getValue();
+            String key = DriveDownloadCache.key(fileId, modifiedTime, null);
+            java.io.File cached = downloadCache.get(key);
+            if (cached != null) {
+                downloadCacheHits.increment();
+                PluginEventQueue.send(callbackObjectName, CALLBACK_METHOD_DRIVE_DOWNLOADED, requestId, 0, requestId + ":" + cached.getPath());
+                return;
+            }
+            downloadCacheMisses.increment();
+
+            if (preview) {
+                java.io.File previewFile = downloadPreview(drive, fileId, modifiedTime, metadata);
+                if (previewFile != null) {
+                    PluginEventQueue.send(callbackObjectName, CALLBACK_METHOD_DRIVE_DOWNLOAD_PREVIEW, requestId, 0, requestId + ":" + previewFile.getPath());
+                }
+            }
+
+            java.io.File part = downloadCache.begin(key);
+            if (part == null) {
+                // another request is already fetching this one, share what it gets
+                cached = downloadCache.await(key, DriveCallPolicy.UPLOAD_DEADLINE_MS);
+            } else {
+                try {
+                    downloadMedia(drive, fileId, part, metadata.getSize() == null ? -1 : metadata.getSize(),
+                            new UploadProgressThrottle(uploadProgressIntervalMs, newDownloadProgressSink(requestId, callbackObjectName)));
+                } catch (IOException ex) {
+                    if (DriveCallPolicy.classify(ex) == DriveCallPolicy.ErrorClass.PERMANENT) {
+                        // whatever is in the part is no good to resume from either
+                        part.delete();
+                    }
+                    downloadCache.abort(key);
+                    throw ex;
+                } catch (RuntimeException ex) {
+                    downloadCache.abort(key);
+                    throw ex;
+                }
+                cached = downloadCache.commit(key);
+            }
+            if (cached == null) {
+                throw new IOException("Failed to cache " + fileId);
+            }
+            PluginEventQueue.send(callbackObjectName, CALLBACK_METHOD_DRIVE_DOWNLOADED, requestId, 0, requestId + ":" + cached.getPath());
+        } catch (Exception ex) {
+            Log.e(TAG, "Failed to download " + fileId, ex);
+            downloadsFailed.increment();
+            String failureType = FAILURE_GENERIC;
+            if (ex instanceof InterruptedException) {
+                Thread.currentThread().interrupt();
+            } else {
+                failureType = failureType(ex);
+            }
+            PluginEventQueue.send(callbackObjectName, CALLBACK_METHOD_DRIVE_DOWNLOAD_FAILED, requestId, 0, requestId + ":" + failureType + ":" + ex);
+        } finally {
+            downloadLatency.recordSince(start);
+        }
+    }
+
+    // the failure type a drive call that failed on a worker is reported to unity with
+    private String failureType(Exception ex) {
+        if (ex instanceof DriveCallPolicy.CircuitOpenException) {
+            return FAILURE_DRIVE_UNAVAILABLE;
+        }
+        if (ex instanceof IOException && DriveCallPolicy.isRateLimited((IOException) ex)) {
+            return FAILURE_RATE_LIMITED;
+        }
+        if (!isDeviceOnline()) {
+            return FAILURE_NO_CONNECTION;
+        }
+        return FAILURE_GENERIC;
+    }
+
+    // appends what is left of the file to part, with range requests from however much of it is already there
+    private void downloadMedia(final Drive drive, final String fileId, final java.io.File part, final long size,
+                               final ResumableUpload.ProgressListener listener) throws IOException {
+        drivePolicy.execute("drive.file.download", DriveCallPolicy.UPLOAD_DEADLINE_MS, new DriveCallPolicy.Call<Void>() {
+            @Override
+            public Void execute() throws IOException {
+                long received = part.length();
+                if (size >= 0 && received > size) {
+                    // not the start of this version of the file
+                    part.delete();
+                    received = 0;
+                }
+                if (size >= 0 && received == size) {
+                    return null;
+                }
+                if (received > 0) {
+                    Log.i(TAG, "Resuming download of " + fileId + " from byte " + received);
+                }
+
+                Drive.Files.Get get = drive.files().get(fileId);
+                get.set("alt", "media");
+                // chunked, so each request is a range and a dropped connection only loses the chunk in flight
+                get.getMediaHttpDownloader()
+                        .setDirectDownloadEnabled(false)
+                        .setBytesDownloaded(received);
+                OutputStream out = new ProgressOutputStream(new FileOutputStream(part, true), received, size, listener);
+                try {
+                    get.executeMediaAndDownloadTo(out);
+                } finally {
+                    out.close();
+                }
+                return null;
+            }
+        });
+    }
+
+    /**
+     * The file's PREVIEW_RENDITION if it was uploaded with one, or else drive's thumbnail of it at
+     * PREVIEW_SIZE. Null if there is neither or it couldn't be fetched, the full file is still coming.
+     */
+    private java.io.File downloadPreview(final Drive drive, String fileId, long modifiedTime, File metadata) {
+        final String renditionId = DriveUploader.renditionIds(metadata).get(PREVIEW_RENDITION);
+        final String thumbnailLink = metadata.getThumbnailLink();
+        if (renditionId == null && thumbnailLink == null) {
+            return null;
+        }
+        String key = DriveDownloadCache.key(fileId, modifiedTime, PREVIEW_VARIANT);
+        java.io.File cached = downloadCache.get(key);
+        if (cached != null) {
+            return cached;
+        }
+        final java.io.File part = downloadCache.begin(key);
+        if (part == null) {
+            // someone else is on it, no point waiting for a preview
+            return null;
+        }
+
+        try {
+            drivePolicy.execute("drive.file.preview", new DriveCallPolicy.Call<Void>() {
+                @Override
+                public Void execute() throws IOException {
+                    OutputStream out = new FileOutputStream(part);
+                    try {
+                        if (renditionId != null) {
+                            // still a 360 jpeg, so it can stand in for the spray until the rest is here
+                            Drive.Files.Get get = drive.files().get(renditionId);
+                            get.set("alt", "media");
+                            get.executeMediaAndDownloadTo(out);
+                        } else {
+                            // thumbnail links end in the size they were made for, "=s220"
+                            GenericUrl url = new GenericUrl(thumbnailLink.replaceFirst("=s\\d+$", "") + "=s" + PREVIEW_SIZE);
+                            HttpResponse response = drive.getRequestFactory().buildGetRequest(url).execute();
+                            try {
+                                IOUtils.copy(response.getContent(), out);
+                            } finally {
+                                response.disconnect();
+                            }
+                        }
+                    } finally {
+                        out.close();
+                    }
+                    bytesReceived.add(part.length());
+                    return null;
+                }
+            });
+        } catch (IOException | RuntimeException ex) {
+            Log.w(TAG, "Failed to download preview of " + fileId + ": " + ex);
+            downloadCache.abort(key);
+            part.delete();
+            return null;
+        }
+        return downloadCache.commit(key);
+    }
+
+    private UploadProgressThrottle.Sink newDownloadProgressSink(final String requestId, final String callbackObjectName) {
+        return new UploadProgressThrottle.Sink() {
+            @Override
+            public void onProgress(long receivedBytes, long totalBytes, long bytesPerSecond) {
+                PluginEventQueue.send(callbackObjectName, CALLBACK_METHOD_DRIVE_DOWNLOAD_PROGRESS, requestId,
+                        totalBytes > 0 ? (int) (receivedBytes * 100 / totalBytes) : 0,
+                        requestId + ":" + receivedBytes + ":" + totalBytes + ":" + bytesPerSecond);
+            }
+        };
+    }
+
+    // counts what a download writes, for progress and the metrics
+    private class ProgressOutputStream extends FilterOutputStream {
+        private final long totalBytes;
+        private final ResumableUpload.ProgressListener listener;
+        private long receivedBytes;
+
+        ProgressOutputStream(OutputStream out, long receivedBytes, long totalBytes, ResumableUpload.ProgressListener listener) {
+            super(out);
+            this.receivedBytes = receivedBytes;
+            this.totalBytes = totalBytes;
+            this.listener = listener;
+            onWritten(0);
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            out.write(b);
+            onWritten(1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+            onWritten(len);
+        }
+
+        private void onWritten(int bytes) {
+            receivedBytes += bytes;
+            bytesReceived.add(bytes);
+            // without a size there is nothing to show progress against
+            if (totalBytes > 0) {
+                listener.onProgress(receivedBytes, totalBytes);
+            }
+        }
+    }
+
+    /**
+     * Encode and write a spray without holding up unity's main thread. rgba is the raw data of an
+     * RGBA32 texture, bottom row first. Calls back with "requestId:path" or "requestId:reason".
+     *
+     * @return the request id, or null if too many saves are already waiting
+     */
+    public String saveJpeg(byte[] rgba, int width, int height, int quality, String localPath, final String callbackObjectName) {
+        Log.i(TAG, "saveJpeg(" + width + "x" + height + ", " + quality + ", \"" + localPath + "\", \"" + callbackObjectName + "\")");
+        return jpegSaveService.save(rgba, width, height, quality, new java.io.File(localPath), SphericalJpegContent.RICOH_EXIF,
+                new JpegSaveService.Listener() {
+                    @Override
+                    public void onSaved(String requestId, String path) {
+                        // still on the save worker, so the hash doesn't cost unity anything
+                        LibraryIndex index = libraryIndex;
+                        if (index != null) {
+                            index.updateFile(path);
+                        }
+                        PluginEventQueue.send(callbackObjectName, CALLBACK_METHOD_JPEG_SAVED, requestId, 0, requestId + ":" + path);
+                    }
+
+                    @Override
+                    public void onFailed(String requestId, String reason) {
+                        PluginEventQueue.send(callbackObjectName, CALLBACK_METHOD_JPEG_SAVE_FAILED, requestId, 0, requestId + ":" + reason);
+                    }
+                });
+    }
+
+    /**
+     * Open (or create) the library index at path, for unity to keep and call directly. The plugin
+     * records save and upload results in it from then on. Null if it can't be opened, the library
+     * is read from the filesystem instead.
+     */
+    public LibraryIndex openLibraryIndex(String path, int capacity) {
+        Log.i(TAG, "openLibraryIndex(\"" + path + "\", " + capacity + ")");
+        closeLibraryIndex();
+        try {
+            libraryIndex = new LibraryIndex(path, capacity);
+        } catch (IOException | RuntimeException ex) {
+            Log.e(TAG, "Failed to open library index " + path, ex);
+        }
+        return libraryIndex;
+    }
+
+    // for when unity needs a file it has only just asked to save, false if it is still going after the timeout
+    public boolean awaitJpegSave(String requestId, int timeoutMs) {
+        return jpegSaveService.await(requestId, timeoutMs);
+    }
+
+    // bytes sent per request of a resumable upload, rounded up to what drive accepts, 0 to follow the network
+    public void setUploadChunkSize(int bytes) {
+        uploadChunkSize = bytes > 0 ? ResumableUpload.roundChunkSize(bytes) : 0;
+        Log.i(TAG, "upload chunk size set to " + (uploadChunkSize > 0 ? uploadChunkSize : "adaptive"));
+    }
+
+    /**
+     * Latency histograms (count, mean, p50/p90/p99, max in ms), counters and queue gauges as JSON.
+     * Drive calls are recorded under drive.*, the whole upload-and-share under share.total.
+     */
+    public String getMetricsSnapshot() {
+        return metrics.snapshot();
+    }
+
+    // append a snapshot line to a local file every intervalSeconds, 0 to stop
+    public void setMetricsDump(String path, int intervalSeconds) {
+        Log.i(TAG, "setMetricsDump(\"" + path + "\", " + intervalSeconds + ")");
+        if (intervalSeconds <= 0 || path == null) {
+            metrics.stopDump();
+        } else {
+            metrics.startDump(new java.io.File(path), intervalSeconds * 1000L);
+        }
+    }
+
+    // queued uploads bigger than this wait for wifi (or any unmetered network), 0 sends them on any network
+    public void setUnmeteredOnlyBytes(final long bytes) {
+        Log.i(TAG, "setUnmeteredOnlyBytes(" + bytes + ")");
+        runOnUiThread(new Runnable() {
+            @Override
+            public void run() {
+                uploadDrainScheduler.setUnmeteredOnlyBytes(bytes);
+            }
+        });
+    }
+
+    // at most one DriveUploadProgress per upload in this many ms
+    public void setUploadProgressInterval(int intervalMs) {
+        uploadProgressIntervalMs = Math.max(0, intervalMs);
+        Log.i(TAG, "upload progress interval set to " + uploadProgressIntervalMs + "ms");
+    }
+
+    /**
+     * Sharing a spray that was already uploaded to the same folder hands back the existing file
+     * instead of uploading it again. With checkDriveChecksum the file's md5Checksum is checked
+     * against drive first, otherwise only that it still exists.
+     */
+    public void setDeduplication(boolean enabled, boolean checkDriveChecksum) {
+        uploader.setDeduplication(enabled, checkDriveChecksum);
+        Log.i(TAG, "deduplication " + (enabled ? "enabled" : "disabled") + (checkDriveChecksum ? ", checking drive's checksum" : ""));
+    }
+
+    // share the whole upload folder with anyone/reader instead of granting it on every file
+    public void setShareFolder(boolean enabled) {
+        uploader.setShareFolder(enabled);
+        Log.i(TAG, "folder level sharing " + (enabled ? "enabled" : "disabled"));
+    }
+
+    // upload 1024x512 and 512x256 renditions alongside each spray, on by default
+    public void setRenditions(boolean enabled) {
+        uploader.setRenditions(enabled);
+        Log.i(TAG, "renditions " + (enabled ? "enabled" : "disabled"));
+    }
+
     public boolean uploadFile(String driveFolderName, String driveFileName, String localPath, String callbackObjectName) {
         Log.i(TAG, "uploadFile(\"" + driveFileName +"\", \"" + driveFileName + "\", \"" + localPath + "\",\"" + callbackObjectName + "\")");
 
         // HACK: used if the authentication failed and the user needs to try on onActivityResult (UGH)
-        lastDriveFolderName = driveFolderName;
-        lastDriveFileName = driveFileName;
-        lastLocalPath = localPath;
         lastCallbackObjectName = callbackObjectName;
 
         if(account == null) return false;
 
-        UploadFileToDrive task = new UploadFileToDrive(driveFolderName, driveFileName, localPath, callbackObjectName);
-        task.execute();
+        // journal the upload first so it survives going offline or the app being killed
+        final UploadJournal.Entry entry;
+        try {
+            entry = uploadJournal.append(null, driveFolderName, driveFileName, localPath, callbackObjectName);
+            indexUploadState(localPath, LibraryIndex.UPLOAD_QUEUED, null);
+        } catch (IOException ex) {
+            Log.e(TAG, "Failed to journal upload", ex);
+            PluginEventQueue.send(callbackObjectName, CALLBACK_METHOD_DRIVE_UPLOAD_FAILED, ex.toString());
+            return true;
+        }
+
+        runOnUiThread(new Runnable() {
+            @Override
+            public void run() {
+                uploadDrainScheduler.submit(entry);
+            }
+        });
 
         return true;
     }
+
+    // upload several files in parallel, returns one request id per file (null if no account is set up yet)
+    // results come back as DriveRequestUploaded("<requestId>:<fileId>;<rendition>=<fileId>;...") or DriveRequestFailed("<requestId>:<failureType>:<reason>")
+    public String[] uploadFiles(String driveFolderName, String[] driveFileNames, String[] localPaths, String callbackObjectName) {
+        Log.i(TAG, "uploadFiles(\"" + driveFolderName + "\", " + driveFileNames.length + " files, \"" + callbackObjectName + "\")");
+        lastCallbackObjectName = callbackObjectName;
+
+        if (account == null) return null;
+        if (driveFileNames.length != localPaths.length) {
+            throw new IllegalArgumentException("driveFileNames and localPaths must be the same length");
+        }
+
+        String[] requestIds = new String[driveFileNames.length];
+        final List<UploadJournal.Entry> entries = new ArrayList<>(driveFileNames.length);
+        for (int i = 0; i < driveFileNames.length; i++) {
+            requestIds[i] = UUID.randomUUID().toString();
+            try {
+                entries.add(uploadJournal.append(requestIds[i], driveFolderName, driveFileNames[i], localPaths[i], callbackObjectName));
+                indexUploadState(localPaths[i], LibraryIndex.UPLOAD_QUEUED, null);
+            } catch (IOException ex) {
+                Log.e(TAG, "Failed to journal upload", ex);
+                PluginEventQueue.send(callbackObjectName, CALLBACK_METHOD_DRIVE_REQUEST_FAILED, requestIds[i], 0, requestIds[i] + ":" + FAILURE_GENERIC + ":" + ex);
+            }
+        }
+
+        runOnUiThread(new Runnable() {
+            @Override
+            public void run() {
+                for (UploadJournal.Entry entry : entries) {
+                    uploadDrainScheduler.submit(entry);
+                }
+            }
+        });
+
+        return requestIds;
+    }
 }
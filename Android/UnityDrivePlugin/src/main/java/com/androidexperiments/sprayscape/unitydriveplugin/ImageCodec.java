@@ -0,0 +1,47 @@
+// Copyright 2016 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.androidexperiments.sprayscape.unitydriveplugin;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * JPEG decoding and encoding for {@link RenditionBuilder}, which only deals in pixels so it runs
+ * the same on a device ({@link AndroidImageCodec}) and on a plain JVM.
+ */
+public interface ImageCodec {
+
+    // packed ARGB, top row first
+    class Pixels {
+        public final int width;
+        public final int height;
+        public final int[] argb;
+
+        public Pixels(int width, int height, int[] argb) {
+            this.width = width;
+            this.height = height;
+            this.argb = argb;
+        }
+    }
+
+    /**
+     * Decode jpeg, at a reduced size if the codec can do that cheaply, but never smaller than
+     * minWidth x minHeight. Safe to call from several threads at once.
+     */
+    Pixels decode(File jpeg, int minWidth, int minHeight) throws IOException;
+
+    void encode(Pixels pixels, int quality, OutputStream out) throws IOException;
+}
@@ -0,0 +1,208 @@
+// Copyright 2016 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.androidexperiments.sprayscape.unitydriveplugin;
+
+import android.graphics.Bitmap;
+import android.os.Process;
+import android.util.Log;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Encodes raw RGBA pixels read back from a Unity texture to JPEG and writes them to disk on a
+ * worker thread, so saving a spray only costs Unity the GPU readback.
+ *
+ * There is a single worker, so the pixel buffer, bitmap and output buffer are kept between saves
+ * and only reallocated when the image size changes.
+ */
+public class JpegSaveService {
+
+    private static final String TAG = "JpegSaveService";
+
+    // each waiting save holds a full copy of the pixels, don't let them pile up
+    private static final int MAX_PENDING = 2;
+
+    private static final int MARKER_APP0 = 0xe0;
+
+    public interface Listener {
+        void onSaved(String requestId, String path);
+
+        void onFailed(String requestId, String reason);
+    }
+
+    private final ThreadPoolExecutor executor = new ThreadPoolExecutor(1, 1, 30, TimeUnit.SECONDS,
+            new LinkedBlockingQueue<Runnable>(MAX_PENDING), new ThreadFactory() {
+        @Override
+        public Thread newThread(final Runnable r) {
+            return new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    // stay out of the way of the render thread
+                    Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                    r.run();
+                }
+            }, TAG);
+        }
+    });
+    private final Map<String, FutureTask<Void>> pending = new ConcurrentHashMap<>();
+
+    // only touched on the worker thread
+    private ByteBuffer pixels;
+    private Bitmap bitmap;
+    private final EncodeBuffer encoded = new EncodeBuffer();
+
+    public JpegSaveService() {
+        executor.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * Queue a save. rgba is bottom row first, the way Texture2D.GetRawTextureData lays it out.
+     * exifSegment (may be null) is written in after the JFIF header.
+     *
+     * @return the request id the listener will be called with, or null if too many saves are waiting
+     */
+    public String save(final byte[] rgba, final int width, final int height, final int quality,
+                       final File dest, final byte[] exifSegment, final Listener listener) {
+        if (rgba.length < width * height * 4) {
+            throw new IllegalArgumentException("Expected " + (width * height * 4) + " bytes of RGBA, got " + rgba.length);
+        }
+        final String requestId = UUID.randomUUID().toString();
+        FutureTask<Void> task = new FutureTask<>(new Runnable() {
+            @Override
+            public void run() {
+                long start = System.currentTimeMillis();
+                try {
+                    encode(rgba, width, height, quality);
+                    write(dest, exifSegment);
+                    Log.i(TAG, "saved " + width + "x" + height + " to " + dest + " in " + (System.currentTimeMillis() - start) + "ms");
+                    listener.onSaved(requestId, dest.getPath());
+                } catch (IOException | RuntimeException ex) {
+                    Log.e(TAG, "Failed to save " + dest, ex);
+                    listener.onFailed(requestId, ex.toString());
+                } finally {
+                    pending.remove(requestId);
+                }
+            }
+        }, null);
+
+        pending.put(requestId, task);
+        try {
+            executor.execute(task);
+        } catch (RejectedExecutionException ex) {
+            pending.remove(requestId);
+            Log.w(TAG, "Too many saves waiting, rejecting " + dest);
+            return null;
+        }
+        return requestId;
+    }
+
+    // block until a save has finished, for the rare case something needs the file straight away
+    public boolean await(String requestId, long timeoutMs) {
+        FutureTask<Void> task = pending.get(requestId);
+        if (task == null) {
+            return true;
+        }
+        try {
+            task.get(timeoutMs, TimeUnit.MILLISECONDS);
+            return true;
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            return false;
+        } catch (ExecutionException | TimeoutException ex) {
+            return false;
+        }
+    }
+
+    public void shutdown() {
+        // let queued saves finish, the sprays are already in unity's library
+        executor.shutdown();
+    }
+
+    private void encode(byte[] rgba, int width, int height, int quality) throws IOException {
+        int stride = width * 4;
+        if (bitmap == null || bitmap.getWidth() != width || bitmap.getHeight() != height) {
+            if (bitmap != null) {
+                bitmap.recycle();
+            }
+            bitmap = Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888);
+            pixels = ByteBuffer.allocateDirect(stride * height);
+        }
+
+        // flip while copying, unity's rows start at the bottom and a bitmap's at the top
+        pixels.clear();
+        for (int row = height - 1; row >= 0; row--) {
+            pixels.put(rgba, row * stride, stride);
+        }
+        pixels.flip();
+        bitmap.copyPixelsFromBuffer(pixels);
+        // the readback alpha means nothing, and skia would un-premultiply with it otherwise
+        bitmap.setHasAlpha(false);
+
+        encoded.reset();
+        if (!bitmap.compress(Bitmap.CompressFormat.JPEG, quality, encoded)) {
+            throw new IOException("JPEG encode failed");
+        }
+    }
+
+    private void write(File dest, byte[] exifSegment) throws IOException {
+        byte[] jpeg = encoded.buffer();
+        int length = encoded.size();
+        int insertAt = 2;
+        if (length > 6 && (jpeg[2] & 0xff) == 0xff && (jpeg[3] & 0xff) == MARKER_APP0) {
+            insertAt = 4 + (((jpeg[4] & 0xff) << 8) | (jpeg[5] & 0xff));
+        }
+
+        // write next to the destination and rename, so a half written file is never picked up as a spray
+        File tmp = new File(dest.getPath() + ".tmp");
+        try (FileOutputStream out = new FileOutputStream(tmp)) {
+            out.write(jpeg, 0, insertAt);
+            if (exifSegment != null) {
+                out.write(exifSegment);
+            }
+            out.write(jpeg, insertAt, length - insertAt);
+            out.getFD().sync();
+        }
+        if (!tmp.renameTo(dest)) {
+            tmp.delete();
+            throw new IOException("Failed to move " + tmp + " to " + dest);
+        }
+    }
+
+    // lets the encoded bytes be written out without toByteArray() copying them
+    private static class EncodeBuffer extends ByteArrayOutputStream {
+        EncodeBuffer() {
+            super(1024 * 1024);
+        }
+
+        byte[] buffer() {
+            return buf;
+        }
+    }
+}
@@ -0,0 +1,344 @@
+// Copyright 2016 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.androidexperiments.sprayscape.unitydriveplugin;
+
+import android.util.Log;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.zip.CRC32;
+
+/**
+ * Everything the library needs to know about each saved spray, as fixed-size records in one
+ * memory-mapped file, so opening the library is a single read instead of probing the filesystem
+ * for every possible spray.
+ *
+ * A spray's record lives at the slot of its id. Each slot holds two copies of the record, an
+ * update always writes the one that isn't current and stamps it with a sequence number and a
+ * checksum, so a crash part way through leaves the previous version in place rather than a torn
+ * record. The file is little endian so {@link #readAll()} can hand records to C#'s BinaryReader
+ * as they are.
+ *
+ * Record layout (RECORD_BYTES):
+ *  0 int crc32 of the rest of the record
+ *  4 int spray id, -1 once removed
+ *  8 long sequence
+ * 16 long timestamp, ms since the epoch
+ * 24 long byte size, -1 until the file has been written
+ * 32 int atlas slot
+ * 36 int upload state
+ * 40 16 bytes md5 of the local file, zeros if not known
+ * 56 short + PATH_BYTES of UTF-8 local path
+ * 198 short + FILE_ID_BYTES of UTF-8 drive file id
+ */
+public class LibraryIndex implements Closeable {
+
+    private static final String TAG = "LibraryIndex";
+
+    public static final int NOT_UPLOADED = 0;
+    public static final int UPLOAD_QUEUED = 1;
+    public static final int UPLOADING = 2;
+    public static final int UPLOADED = 3;
+    public static final int UPLOAD_FAILED = 4;
+
+    public static final int RECORD_BYTES = 256;
+    private static final int PATH_BYTES = 140;
+    private static final int FILE_ID_BYTES = 56;
+
+    private static final int MAGIC = 0x4c494258; // "LIBX"
+    private static final int VERSION = 1;
+    // a whole record's worth, so no copy straddles a page
+    private static final int HEADER_BYTES = RECORD_BYTES;
+
+    private static final int ID = 4;
+    private static final int SEQUENCE = 8;
+    private static final int TIMESTAMP = 16;
+    private static final int BYTE_SIZE = 24;
+    private static final int ATLAS_SLOT = 32;
+    private static final int UPLOAD_STATE = 36;
+    private static final int HASH = 40;
+    private static final int PATH = 56;
+    private static final int FILE_ID = PATH + 2 + PATH_BYTES;
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private final int capacity;
+    private final boolean fresh;
+    private final RandomAccessFile file;
+    private final MappedByteBuffer map;
+    // which copy of each slot is current, -1 for none
+    private final int[] current;
+    // the local path of each live record, so lookups by path don't decode every record
+    private final String[] paths;
+    private final byte[] scratch = new byte[RECORD_BYTES];
+    private final ByteBuffer record = ByteBuffer.wrap(scratch).order(ByteOrder.LITTLE_ENDIAN);
+    private final CRC32 crc = new CRC32();
+    private long sequence;
+
+    public LibraryIndex(String path, int capacity) throws IOException {
+        this.capacity = capacity;
+        this.current = new int[capacity];
+        this.paths = new String[capacity];
+        long length = HEADER_BYTES + 2L * RECORD_BYTES * capacity;
+
+        File f = new File(path);
+        boolean fresh = f.length() != length;
+        this.file = new RandomAccessFile(f, "rw");
+        try {
+            file.setLength(length);
+            map = file.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, length);
+        } catch (IOException ex) {
+            file.close();
+            throw ex;
+        }
+        map.order(ByteOrder.LITTLE_ENDIAN);
+
+        if (fresh || map.getInt(0) != MAGIC || map.getInt(4) != VERSION
+                || map.getInt(8) != capacity || map.getInt(12) != RECORD_BYTES) {
+            // a different layout (or nothing yet), the caller rebuilds it from the files on disk
+            Log.i(TAG, "initialising library index " + path + " for " + capacity + " sprays");
+            for (int i = HEADER_BYTES; i < length; i += 8) {
+                map.putLong(i, 0);
+            }
+            map.putInt(0, MAGIC).putInt(4, VERSION).putInt(8, capacity).putInt(12, RECORD_BYTES);
+            map.force();
+            fresh = true;
+        }
+        this.fresh = fresh;
+
+        for (int i = 0; i < capacity; i++) {
+            current[i] = -1;
+            long best = 0;
+            for (int copy = 0; copy < 2; copy++) {
+                int offset = copyOffset(i, copy);
+                long seq = map.getLong(offset + SEQUENCE);
+                if (seq > best && isIntact(offset)) {
+                    best = seq;
+                    current[i] = copy;
+                }
+                sequence = Math.max(sequence, seq);
+            }
+            if (current[i] >= 0 && map.getInt(copyOffset(i, current[i]) + ID) == i) {
+                paths[i] = readString(copyOffset(i, current[i]) + PATH);
+            }
+        }
+    }
+
+    // true if the index was created (or reset) by this open, and should be filled from what is on disk
+    public boolean isNew() {
+        return fresh;
+    }
+
+    public int getCapacity() {
+        return capacity;
+    }
+
+    /**
+     * Add the spray with the given id, replacing whatever was in its slot. If the file is already
+     * there its size and time are taken from it, otherwise the size stays unknown (-1) until
+     * {@link #updateFile} is called once it has been written.
+     */
+    public synchronized void put(int id, String localPath, int atlasSlot) {
+        checkId(id);
+        File f = new File(localPath);
+        boolean exists = f.exists();
+        clear();
+        record.putInt(ID, id)
+                .putLong(TIMESTAMP, exists ? f.lastModified() : System.currentTimeMillis())
+                .putLong(BYTE_SIZE, exists ? f.length() : -1)
+                .putInt(ATLAS_SLOT, atlasSlot)
+                .putInt(UPLOAD_STATE, NOT_UPLOADED);
+        writeString(PATH, PATH_BYTES, localPath);
+        commit(id);
+        paths[id] = localPath;
+    }
+
+    public synchronized void remove(int id) {
+        checkId(id);
+        if (paths[id] == null) {
+            return;
+        }
+        clear();
+        record.putInt(ID, -1);
+        commit(id);
+        paths[id] = null;
+    }
+
+    public synchronized boolean contains(int id) {
+        checkId(id);
+        return paths[id] != null;
+    }
+
+    // the id of the spray saved at localPath, -1 if there isn't one
+    public synchronized int find(String localPath) {
+        for (int i = 0; i < capacity; i++) {
+            if (localPath.equals(paths[i])) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Record the size, modification time and md5 of the spray at localPath now that it is on disk.
+     * Reads the whole file, so call it from a worker thread. False if the spray isn't in the index
+     * or the file can't be read.
+     */
+    public boolean updateFile(String localPath) {
+        if (find(localPath) < 0) {
+            return false;
+        }
+        File f = new File(localPath);
+        byte[] hash;
+        try {
+            hash = DriveContentIndex.md5Bytes(new FileInputStream(f));
+        } catch (IOException ex) {
+            Log.w(TAG, "Failed to hash " + localPath, ex);
+            return false;
+        }
+
+        synchronized (this) {
+            // it may have been deleted or replaced while it was being hashed
+            int id = find(localPath);
+            if (id < 0) {
+                return false;
+            }
+            load(id);
+            record.putLong(TIMESTAMP, f.lastModified()).putLong(BYTE_SIZE, f.length());
+            record.position(HASH);
+            record.put(hash);
+            commit(id);
+        }
+        return true;
+    }
+
+    // driveFileId null keeps the one already recorded. False if localPath isn't in the index
+    public synchronized boolean setUploadState(String localPath, int state, String driveFileId) {
+        int id = find(localPath);
+        if (id < 0) {
+            return false;
+        }
+        load(id);
+        record.putInt(UPLOAD_STATE, state);
+        if (driveFileId != null) {
+            writeString(FILE_ID, FILE_ID_BYTES, driveFileId);
+        }
+        commit(id);
+        return true;
+    }
+
+    /**
+     * Every live record in one go, for unity to load the library with a single call: an int count
+     * then count records of RECORD_BYTES laid out as in the class comment, in id order.
+     */
+    public synchronized byte[] readAll() {
+        int count = 0;
+        for (int i = 0; i < capacity; i++) {
+            if (paths[i] != null) {
+                count++;
+            }
+        }
+        byte[] all = new byte[4 + count * RECORD_BYTES];
+        ByteBuffer out = ByteBuffer.wrap(all).order(ByteOrder.LITTLE_ENDIAN);
+        out.putInt(count);
+        for (int i = 0; i < capacity; i++) {
+            if (paths[i] != null) {
+                map.position(copyOffset(i, current[i]));
+                map.get(all, out.position(), RECORD_BYTES);
+                out.position(out.position() + RECORD_BYTES);
+            }
+        }
+        return all;
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        map.force();
+        file.close();
+    }
+
+    // the current copy of id into the scratch record
+    private void load(int id) {
+        map.position(copyOffset(id, current[id]));
+        map.get(scratch);
+    }
+
+    private void clear() {
+        for (int i = 0; i < RECORD_BYTES; i++) {
+            scratch[i] = 0;
+        }
+    }
+
+    // write the scratch record over the copy of id that isn't current, then make it current
+    private void commit(int id) {
+        int copy = current[id] == 0 ? 1 : 0;
+        record.putLong(SEQUENCE, ++sequence);
+        crc.reset();
+        crc.update(scratch, 4, RECORD_BYTES - 4);
+        record.putInt(0, (int) crc.getValue());
+
+        map.position(copyOffset(id, copy));
+        map.put(scratch);
+        map.force();
+        current[id] = copy;
+    }
+
+    private boolean isIntact(int offset) {
+        map.position(offset);
+        map.get(scratch);
+        crc.reset();
+        crc.update(scratch, 4, RECORD_BYTES - 4);
+        return record.getInt(0) == (int) crc.getValue();
+    }
+
+    private void writeString(int offset, int maxBytes, String value) {
+        byte[] bytes = value.getBytes(UTF_8);
+        if (bytes.length > maxBytes) {
+            throw new IllegalArgumentException("'" + value + "' is longer than the " + maxBytes + " bytes a record has room for");
+        }
+        record.putShort(offset, (short) bytes.length);
+        record.position(offset + 2);
+        record.put(bytes);
+        for (int i = offset + 2 + bytes.length; i < offset + 2 + maxBytes; i++) {
+            scratch[i] = 0;
+        }
+    }
+
+    private String readString(int offset) {
+        int length = map.getShort(offset);
+        byte[] bytes = new byte[length];
+        map.position(offset + 2);
+        map.get(bytes);
+        return new String(bytes, UTF_8);
+    }
+
+    private void checkId(int id) {
+        if (id < 0 || id >= capacity) {
+            throw new IndexOutOfBoundsException("Spray " + id + " out of range, index has " + capacity);
+        }
+    }
+
+    private static int copyOffset(int id, int copy) {
+        return HEADER_BYTES + (2 * id + copy) * RECORD_BYTES;
+    }
+}
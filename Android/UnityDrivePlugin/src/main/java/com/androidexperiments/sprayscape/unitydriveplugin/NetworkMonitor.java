@@ -0,0 +1,241 @@
+// Copyright 2016 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.androidexperiments.sprayscape.unitydriveplugin;
+
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.net.ConnectivityManager;
+import android.net.NetworkInfo;
+import android.telephony.TelephonyManager;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Keeps track of the current network from connectivity broadcasts, so the upload path can ask
+ * whether it is online or metered without a binder call every time, and keeps a rolling estimate
+ * of upload throughput on it to size chunks and pick how many uploads to run at once.
+ *
+ * start(), stop() and the listeners are main thread only, the getters can be called from anywhere.
+ */
+public class NetworkMonitor {
+
+    private static final String TAG = "NetworkMonitor";
+
+    // aim for a chunk to take about this long, short enough that a stall is noticed and retried
+    // quickly, long enough that the per request overhead doesn't dominate on a fast link
+    private static final long TARGET_CHUNK_MS = 4000;
+    private static final int MIN_CHUNK_SIZE = ResumableUpload.CHUNK_GRANULARITY;
+    private static final int MAX_CHUNK_SIZE = 32 * ResumableUpload.CHUNK_GRANULARITY;
+
+    // below this only one upload at a time, parallel uploads would just split the same trickle
+    private static final long SLOW_BYTES_PER_SECOND = 64 * 1024;
+    private static final int MAX_CONCURRENCY = 3;
+    private static final int METERED_CONCURRENCY = 2;
+
+    // a couple of chunks, long enough to smooth over the gaps between one upload's requests
+    private static final long WINDOW_MS = 2 * TARGET_CHUNK_MS;
+    private static final double SAMPLE_WEIGHT = 0.3;
+
+    // starting estimates until the first uploads on a network have been measured
+    private static final long WIFI_BYTES_PER_SECOND = 1024 * 1024;
+    private static final long LTE_BYTES_PER_SECOND = 384 * 1024;
+    private static final long THREE_G_BYTES_PER_SECOND = 96 * 1024;
+    private static final long TWO_G_BYTES_PER_SECOND = 16 * 1024;
+    private static final long UNKNOWN_BYTES_PER_SECOND = 192 * 1024;
+
+    public interface Listener {
+        void onNetworkChanged(NetworkMonitor monitor);
+    }
+
+    private final Context context;
+    // every byte any upload has sent, the link's throughput comes from how fast this goes up
+    private final PluginMetrics.Counter sentCounter;
+    private final List<Listener> listeners = new ArrayList<>();
+    private boolean registered;
+
+    private volatile boolean online;
+    private volatile boolean metered;
+    private volatile String linkName = "none";
+    // guarded by this
+    private double bytesPerSecond = UNKNOWN_BYTES_PER_SECOND;
+    private int uploadsInFlight;
+    private long windowBytes;
+    private long windowStartMs;
+
+    private final BroadcastReceiver connectivityReceiver = new BroadcastReceiver() {
+        @Override
+        public void onReceive(Context context, Intent intent) {
+            update();
+            for (Listener listener : new ArrayList<>(listeners)) {
+                listener.onNetworkChanged(NetworkMonitor.this);
+            }
+        }
+    };
+
+    public NetworkMonitor(Context context, PluginMetrics.Counter sentCounter) {
+        this.context = context.getApplicationContext();
+        this.sentCounter = sentCounter;
+        update();
+    }
+
+    public void start() {
+        if (!registered) {
+            // the sticky broadcast is delivered straight away, so the state is fresh from here on
+            context.registerReceiver(connectivityReceiver, new IntentFilter(ConnectivityManager.CONNECTIVITY_ACTION));
+            registered = true;
+        }
+    }
+
+    public void stop() {
+        if (registered) {
+            context.unregisterReceiver(connectivityReceiver);
+            registered = false;
+        }
+    }
+
+    public void addListener(Listener listener) {
+        listeners.add(listener);
+    }
+
+    public void removeListener(Listener listener) {
+        listeners.remove(listener);
+    }
+
+    public boolean isOnline() {
+        return online;
+    }
+
+    public boolean isMetered() {
+        return metered;
+    }
+
+    public synchronized long getBytesPerSecond() {
+        return (long) bytesPerSecond;
+    }
+
+    // a chunk size that should take about TARGET_CHUNK_MS to send at the current estimate
+    public int getChunkSize() {
+        long target = getBytesPerSecond() * TARGET_CHUNK_MS / 1000;
+        int chunkSize = (int) Math.max(MIN_CHUNK_SIZE, Math.min(MAX_CHUNK_SIZE, target));
+        return chunkSize / ResumableUpload.CHUNK_GRANULARITY * ResumableUpload.CHUNK_GRANULARITY;
+    }
+
+    public int getUploadConcurrency() {
+        if (getBytesPerSecond() < SLOW_BYTES_PER_SECOND) {
+            return 1;
+        }
+        return metered ? METERED_CONCURRENCY : MAX_CONCURRENCY;
+    }
+
+    // call around each upload's transfer, the link is only measured while something is being sent
+    public synchronized void uploadStarted() {
+        if (uploadsInFlight++ == 0) {
+            windowBytes = sentCounter.get();
+            windowStartMs = System.nanoTime() / 1000000;
+        }
+    }
+
+    public synchronized void uploadFinished() {
+        // a partly filled window is dropped, the idle time after it would say nothing about the link
+        uploadsInFlight--;
+    }
+
+    /**
+     * Call whenever an upload reports progress. Once a window has passed, what all the uploads in
+     * flight sent between them goes into the estimate, so running several at once doesn't read as
+     * a slower link. Returns true if the estimate moved much.
+     */
+    public synchronized boolean checkThroughput() {
+        long now = System.nanoTime() / 1000000;
+        long elapsedMs = now - windowStartMs;
+        if (uploadsInFlight <= 0 || elapsedMs < WINDOW_MS) {
+            return false;
+        }
+        long sent = sentCounter.get();
+        double sample = (sent - windowBytes) * 1000.0 / elapsedMs;
+        windowBytes = sent;
+        windowStartMs = now;
+
+        double previous = bytesPerSecond;
+        bytesPerSecond = previous + SAMPLE_WEIGHT * (sample - previous);
+        Log.i(TAG, "upload throughput " + (long) sample + " B/s on " + linkName + " with " + uploadsInFlight
+                + " in flight, estimate " + (long) bytesPerSecond + " B/s");
+        return Math.abs(bytesPerSecond - previous) > previous / 4;
+    }
+
+    private void update() {
+        ConnectivityManager connMgr = (ConnectivityManager) context.getSystemService(Context.CONNECTIVITY_SERVICE);
+        NetworkInfo networkInfo = connMgr.getActiveNetworkInfo();
+        boolean wasOnline = online;
+        String wasLink = linkName;
+
+        online = networkInfo != null && networkInfo.isConnected();
+        metered = online && connMgr.isActiveNetworkMetered();
+        if (!online) {
+            linkName = "none";
+        } else if (networkInfo.getType() == ConnectivityManager.TYPE_MOBILE) {
+            linkName = "mobile-" + networkInfo.getSubtype();
+        } else {
+            linkName = "type-" + networkInfo.getType();
+        }
+
+        if (online && !linkName.equals(wasLink)) {
+            // a different link, what was measured on the last one says nothing about this one
+            synchronized (this) {
+                bytesPerSecond = initialEstimate(networkInfo);
+                windowBytes = sentCounter.get();
+                windowStartMs = System.nanoTime() / 1000000;
+            }
+        }
+        if (online != wasOnline || !linkName.equals(wasLink)) {
+            Log.i(TAG, "network " + linkName + (metered ? " (metered)" : "") + ", estimate " + getBytesPerSecond() + " B/s");
+        }
+    }
+
+    private static long initialEstimate(NetworkInfo networkInfo) {
+        if (networkInfo.getType() == ConnectivityManager.TYPE_WIFI || networkInfo.getType() == ConnectivityManager.TYPE_ETHERNET) {
+            return WIFI_BYTES_PER_SECOND;
+        }
+        if (networkInfo.getType() != ConnectivityManager.TYPE_MOBILE) {
+            return UNKNOWN_BYTES_PER_SECOND;
+        }
+        switch (networkInfo.getSubtype()) {
+            case TelephonyManager.NETWORK_TYPE_LTE:
+            case TelephonyManager.NETWORK_TYPE_HSPAP:
+                return LTE_BYTES_PER_SECOND;
+            case TelephonyManager.NETWORK_TYPE_UMTS:
+            case TelephonyManager.NETWORK_TYPE_HSDPA:
+            case TelephonyManager.NETWORK_TYPE_HSUPA:
+            case TelephonyManager.NETWORK_TYPE_HSPA:
+            case TelephonyManager.NETWORK_TYPE_EVDO_0:
+            case TelephonyManager.NETWORK_TYPE_EVDO_A:
+            case TelephonyManager.NETWORK_TYPE_EVDO_B:
+            case TelephonyManager.NETWORK_TYPE_EHRPD:
+                return THREE_G_BYTES_PER_SECOND;
+            case TelephonyManager.NETWORK_TYPE_GPRS:
+            case TelephonyManager.NETWORK_TYPE_EDGE:
+            case TelephonyManager.NETWORK_TYPE_CDMA:
+            case TelephonyManager.NETWORK_TYPE_1xRTT:
+            case TelephonyManager.NETWORK_TYPE_IDEN:
+                return TWO_G_BYTES_PER_SECOND;
+            default:
+                return UNKNOWN_BYTES_PER_SECOND;
+        }
+    }
+}
@@ -0,0 +1,282 @@
+// Copyright 2016 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.androidexperiments.sprayscape.unitydriveplugin;
+
+import android.util.Log;
+
+import com.unity3d.player.UnityPlayer;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Carries plugin callbacks to Unity through a fixed-size ring that Unity drains once a frame with
+ * {@link #drainEvents()}, instead of one UnitySendMessage (and GameObject lookup) per callback.
+ *
+ * Events come from whichever thread finished the work (upload lanes, auth, the UI thread), so the
+ * ring takes many producers and Unity's main thread as the single consumer. Slots are allocated up
+ * front and claimed with a CAS on the tail, in the style of Vyukov's bounded queue. Until Unity
+ * turns the ring on events go out through UnitySendMessage as before.
+ *
+ * If the ring ever fills up, events wait in an overflow list behind it rather than going straight
+ * to UnitySendMessage, which would deliver them ahead of the ones still in the ring. Callbacks
+ * from one thread reach Unity in the order they were sent, a DrivePermissionChangeFailed still
+ * comes before the DriveUploadFailed that follows it.
+ *
+ * Callback method and target object names are turned into small ids the first time they are seen,
+ * Unity fetches the names once with {@link #getTypeNames()} and {@link #getTargetNames()}.
+ */
+public class PluginEventQueue {
+
+    private static final String TAG = "PluginEventQueue";
+
+    // power of two, far more than the callbacks of a few hundred operations finishing in one frame
+    private static final int CAPACITY = 1024;
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final byte[] EMPTY = new byte[0];
+
+    private static final PluginEventQueue instance = new PluginEventQueue(CAPACITY);
+    private static volatile boolean enabled;
+
+    private static final class Event {
+        int type;
+        int target;
+        int code;
+        String requestId;
+        String payload;
+    }
+
+    private final int mask;
+    private final Event[] slots;
+    // slot i is free for the producer at position p when sequence == p, readable when sequence == p + 1
+    private final AtomicLongArray sequences;
+    private final AtomicLong tail = new AtomicLong();
+    // consumer only
+    private long head;
+    private final ByteArrayOutputStream drained = new ByteArrayOutputStream(16 * 1024);
+    private final DataOutputStream drainOut = new DataOutputStream(drained);
+    // what didn't fit in the ring, drained after it. Once anything is waiting here new events join
+    // it until unity has caught up, rather than taking ring slots that come free ahead of it
+    private final Queue<Event> overflow = new ConcurrentLinkedQueue<>();
+
+    private final Map<String, Integer> typeIds = new ConcurrentHashMap<>();
+    private final List<String> typeNames = new ArrayList<>();
+    private final Map<String, Integer> targetIds = new ConcurrentHashMap<>();
+    private final List<String> targetNames = new ArrayList<>();
+
+    PluginEventQueue(int capacity) {
+        if (Integer.bitCount(capacity) != 1) {
+            throw new IllegalArgumentException("Capacity must be a power of two: " + capacity);
+        }
+        mask = capacity - 1;
+        slots = new Event[capacity];
+        sequences = new AtomicLongArray(capacity);
+        for (int i = 0; i < capacity; i++) {
+            slots[i] = new Event();
+            sequences.set(i, i);
+        }
+    }
+
+    // called by unity once it is draining every frame
+    public static void setEnabled(boolean enable) {
+        Log.i(TAG, "setEnabled(" + enable + ")");
+        enabled = enable;
+    }
+
+    public static void send(String target, String method, String payload) {
+        send(target, method, null, 0, payload);
+    }
+
+    // the way plugin code hands a callback to unity, payload is what UnitySendMessage would have been given
+    public static void send(String target, String method, String requestId, int code, String payload) {
+        if (target == null || method == null) {
+            // nowhere to deliver it, like a failure before unity has said which object wants the callbacks
+            Log.w(TAG, "Dropping " + method + " for " + target + ": " + payload);
+            return;
+        }
+        if (enabled) {
+            instance.add(target, method, requestId, code, payload);
+        } else {
+            UnityPlayer.UnitySendMessage(target, method, payload);
+        }
+    }
+
+    /**
+     * Everything queued since the last call, or null if nothing was. Big-endian: an int count, then
+     * per event a short type, a short target, an int code and the request id and payload, each an
+     * int byte length and UTF-8 (empty for no request id). Only to be called from Unity's main thread.
+     */
+    public static byte[] drainEvents() {
+        return instance.drain();
+    }
+
+    public static String[] getTypeNames() {
+        return instance.names(instance.typeNames);
+    }
+
+    public static String[] getTargetNames() {
+        return instance.names(instance.targetNames);
+    }
+
+    // into the ring, or behind it if it's full or already has events waiting behind it
+    void add(String target, String method, String requestId, int code, String payload) {
+        if (overflow.isEmpty()) {
+            if (offer(target, method, requestId, code, payload)) {
+                return;
+            }
+            Log.w(TAG, "Event queue full, holding " + method + " and what follows until unity catches up");
+        }
+        Event event = new Event();
+        event.type = id(typeIds, typeNames, method);
+        event.target = id(targetIds, targetNames, target);
+        event.code = code;
+        event.requestId = requestId;
+        event.payload = payload;
+        overflow.add(event);
+    }
+
+    // false if the ring is full
+    boolean offer(String target, String method, String requestId, int code, String payload) {
+        int type = id(typeIds, typeNames, method);
+        int targetId = id(targetIds, targetNames, target);
+        while (true) {
+            long position = tail.get();
+            int index = (int) position & mask;
+            long difference = sequences.get(index) - position;
+            if (difference == 0) {
+                if (tail.compareAndSet(position, position + 1)) {
+                    Event event = slots[index];
+                    event.type = type;
+                    event.target = targetId;
+                    event.code = code;
+                    event.requestId = requestId;
+                    event.payload = payload;
+                    // publishes the fields above to the consumer
+                    sequences.lazySet(index, position + 1);
+                    return true;
+                }
+            } else if (difference < 0) {
+                // the consumer hasn't caught up with the slot a whole lap ago, full
+                return false;
+            }
+            // otherwise another producer took this position first, go again
+        }
+    }
+
+    byte[] drain() {
+        drained.reset();
+        int count = 0;
+        try {
+            drainOut.writeInt(0);
+            // at most one lap, producers that keep up with the drain would otherwise hold the frame
+            int taken = 0;
+            for (; taken <= mask; taken++) {
+                int index = (int) head & mask;
+                if (sequences.get(index) != head + 1) {
+                    break;
+                }
+                Event event = slots[index];
+                try {
+                    if (write(event)) {
+                        count++;
+                    }
+                } finally {
+                    event.requestId = null;
+                    event.payload = null;
+                    // hand the slot back to producers for the next lap, whatever happened to the event
+                    sequences.lazySet(index, head + mask + 1);
+                    head++;
+                }
+            }
+            // only once the ring is empty, everything in the overflow came after what was in it
+            if (taken <= mask) {
+                Event event;
+                for (taken = 0; taken <= mask && (event = overflow.poll()) != null; taken++) {
+                    if (write(event)) {
+                        count++;
+                    }
+                }
+            }
+        } catch (IOException ex) {
+            // ByteArrayOutputStream never throws
+            throw new IllegalStateException(ex);
+        }
+        if (count == 0) {
+            return null;
+        }
+        byte[] events = drained.toByteArray();
+        events[0] = (byte) (count >>> 24);
+        events[1] = (byte) (count >>> 16);
+        events[2] = (byte) (count >>> 8);
+        events[3] = (byte) count;
+        return events;
+    }
+
+    private boolean write(Event event) throws IOException {
+        try {
+            // encoded before anything is written, so an event that can't be leaves nothing behind
+            byte[] requestId = utf8(event.requestId);
+            byte[] payload = utf8(event.payload);
+            drainOut.writeShort(event.type);
+            drainOut.writeShort(event.target);
+            drainOut.writeInt(event.code);
+            drainOut.writeInt(requestId.length);
+            drainOut.write(requestId);
+            drainOut.writeInt(payload.length);
+            drainOut.write(payload);
+            return true;
+        } catch (RuntimeException | OutOfMemoryError ex) {
+            Log.e(TAG, "Dropping event " + event.type + " that couldn't be encoded: " + ex);
+            return false;
+        }
+    }
+
+    private static byte[] utf8(String s) {
+        return s == null || s.isEmpty() ? EMPTY : s.getBytes(UTF_8);
+    }
+
+    private static int id(Map<String, Integer> ids, List<String> names, String name) {
+        Integer id = ids.get(name);
+        if (id != null) {
+            return id;
+        }
+        // only the first time a name is seen
+        synchronized (names) {
+            id = ids.get(name);
+            if (id == null) {
+                id = names.size();
+                names.add(name);
+                ids.put(name, id);
+            }
+            return id;
+        }
+    }
+
+    private String[] names(List<String> names) {
+        synchronized (names) {
+            return names.toArray(new String[names.size()]);
+        }
+    }
+}
@@ -0,0 +1,247 @@
+// Copyright 2016 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.androidexperiments.sprayscape.unitydriveplugin;
+
+import android.util.Log;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Latency histograms, counters and gauges for the plugin's Drive work, read back as one JSON
+ * snapshot for Unity or dumped to a file every so often.
+ *
+ * Histograms and counters are created on first use and should be kept by the caller. Recording
+ * into them only touches atomics, so it doesn't allocate. Histograms use log-scale buckets, four
+ * per power of two microseconds, so a reported percentile is the top of its bucket: at most 25%
+ * above the true value.
+ */
+public class PluginMetrics {
+
+    private static final String TAG = "PluginMetrics";
+
+    public interface Gauge {
+        long value();
+    }
+
+    public static class Counter {
+        private final AtomicLong count = new AtomicLong();
+
+        public void increment() {
+            count.incrementAndGet();
+        }
+
+        public void add(long n) {
+            count.addAndGet(n);
+        }
+
+        public long get() {
+            return count.get();
+        }
+    }
+
+    public static class Histogram {
+        // 4 linear buckets below 4us, then 4 per power of two up to 2^40us (about 12 days)
+        private static final int BUCKETS = 160;
+
+        private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+        private final AtomicLong count = new AtomicLong();
+        private final AtomicLong sumMicros = new AtomicLong();
+        private final AtomicLong maxMicros = new AtomicLong();
+
+        // long start = System.nanoTime(); ...; histogram.recordSince(start)
+        public void recordSince(long startNanos) {
+            recordNanos(System.nanoTime() - startNanos);
+        }
+
+        public void recordNanos(long nanos) {
+            long micros = Math.max(0, nanos / 1000);
+            buckets.incrementAndGet(bucket(micros));
+            count.incrementAndGet();
+            sumMicros.addAndGet(micros);
+            long max;
+            while (micros > (max = maxMicros.get()) && !maxMicros.compareAndSet(max, micros)) {
+                // another thread raised it, check again
+            }
+        }
+
+        public long getCount() {
+            return count.get();
+        }
+
+        // the upper bound of the bucket the given fraction of values fall at or below, in microseconds
+        public long percentileMicros(double fraction) {
+            long total = count.get();
+            if (total == 0) {
+                return 0;
+            }
+            long rank = (long) Math.ceil(fraction * total);
+            long seen = 0;
+            for (int i = 0; i < BUCKETS; i++) {
+                seen += buckets.get(i);
+                if (seen >= rank) {
+                    return Math.min(lowerBound(i + 1) - 1, maxMicros.get());
+                }
+            }
+            return maxMicros.get();
+        }
+
+        static int bucket(long micros) {
+            if (micros < 4) {
+                return (int) micros;
+            }
+            int log2 = 63 - Long.numberOfLeadingZeros(micros);
+            int sub = (int) ((micros >>> (log2 - 2)) & 3);
+            return Math.min(BUCKETS - 1, log2 * 4 + sub - 4);
+        }
+
+        static long lowerBound(int bucket) {
+            if (bucket < 4) {
+                return bucket;
+            }
+            int log2 = (bucket + 4) / 4;
+            int sub = (bucket + 4) % 4;
+            return (long) (4 + sub) << (log2 - 2);
+        }
+
+        void appendJson(StringBuilder out) {
+            long n = count.get();
+            out.append("{\"count\":").append(n)
+                    .append(",\"meanMs\":").append(n == 0 ? 0 : sumMicros.get() / n / 1000.0)
+                    .append(",\"p50Ms\":").append(percentileMicros(0.5) / 1000.0)
+                    .append(",\"p90Ms\":").append(percentileMicros(0.9) / 1000.0)
+                    .append(",\"p99Ms\":").append(percentileMicros(0.99) / 1000.0)
+                    .append(",\"maxMs\":").append(maxMicros.get() / 1000.0)
+                    .append('}');
+        }
+    }
+
+    private final long createdAt = System.currentTimeMillis();
+    private final ConcurrentMap<String, Histogram> histograms = new ConcurrentHashMap<>();
+    private final ConcurrentMap<String, Counter> counters = new ConcurrentHashMap<>();
+    private final ConcurrentMap<String, Gauge> gauges = new ConcurrentHashMap<>();
+
+    private ScheduledExecutorService dumpExecutor;
+    private ScheduledFuture<?> dumpTask;
+
+    public Histogram histogram(String name) {
+        Histogram histogram = histograms.get(name);
+        if (histogram == null) {
+            histograms.putIfAbsent(name, new Histogram());
+            histogram = histograms.get(name);
+        }
+        return histogram;
+    }
+
+    public Counter counter(String name) {
+        Counter counter = counters.get(name);
+        if (counter == null) {
+            counters.putIfAbsent(name, new Counter());
+            counter = counters.get(name);
+        }
+        return counter;
+    }
+
+    public void gauge(String name, Gauge gauge) {
+        gauges.put(name, gauge);
+    }
+
+    public String snapshot() {
+        StringBuilder out = new StringBuilder(2048);
+        out.append("{\"timestamp\":").append(System.currentTimeMillis())
+                .append(",\"uptimeMs\":").append(System.currentTimeMillis() - createdAt);
+
+        out.append(",\"histograms\":{");
+        String separator = "";
+        for (Map.Entry<String, Histogram> entry : new TreeMap<>(histograms).entrySet()) {
+            out.append(separator).append('"').append(entry.getKey()).append("\":");
+            entry.getValue().appendJson(out);
+            separator = ",";
+        }
+
+        out.append("},\"counters\":{");
+        separator = "";
+        for (Map.Entry<String, Counter> entry : new TreeMap<>(counters).entrySet()) {
+            out.append(separator).append('"').append(entry.getKey()).append("\":").append(entry.getValue().get());
+            separator = ",";
+        }
+
+        out.append("},\"gauges\":{");
+        separator = "";
+        for (Map.Entry<String, Gauge> entry : new TreeMap<>(gauges).entrySet()) {
+            long value;
+            try {
+                value = entry.getValue().value();
+            } catch (RuntimeException ex) {
+                // a gauge on something already shut down, leave it out
+                continue;
+            }
+            out.append(separator).append('"').append(entry.getKey()).append("\":").append(value);
+            separator = ",";
+        }
+        return out.append("}}").toString();
+    }
+
+    /**
+     * Append a snapshot line to file every intervalMs, until stopDump(). One JSON object per line,
+     * so the file can be pulled off a device and fed straight to a script.
+     */
+    public synchronized void startDump(final File file, long intervalMs) {
+        stopDump();
+        if (dumpExecutor == null) {
+            dumpExecutor = Executors.newSingleThreadScheduledExecutor(DriveExecutors.newThreadFactory("metrics-dump"));
+        }
+        Log.i(TAG, "dumping metrics to " + file + " every " + intervalMs + "ms");
+        dumpTask = dumpExecutor.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                try (Writer out = new OutputStreamWriter(new FileOutputStream(file, true), "UTF-8")) {
+                    out.write(snapshot());
+                    out.write('\n');
+                } catch (IOException ex) {
+                    Log.w(TAG, "Failed to dump metrics to " + file, ex);
+                }
+            }
+        }, intervalMs, intervalMs, TimeUnit.MILLISECONDS);
+    }
+
+    public synchronized void stopDump() {
+        if (dumpTask != null) {
+            dumpTask.cancel(false);
+            dumpTask = null;
+        }
+    }
+
+    public synchronized void shutdown() {
+        stopDump();
+        if (dumpExecutor != null) {
+            dumpExecutor.shutdown();
+            dumpExecutor = null;
+        }
+    }
+}
@@ -0,0 +1,250 @@
+// Copyright 2016 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.androidexperiments.sprayscape.unitydriveplugin;
+
+import android.util.Log;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Smaller copies of a spray for the viewers that don't need the whole 2048x1024 of it. The spray
+ * is decoded once, as small as the largest rendition allows, then every size is scaled and encoded
+ * on its own worker, all while the upload of the original goes ahead on the calling thread.
+ *
+ * Renditions are a nice to have, a size that fails to build is logged and left out rather than
+ * failing the upload it belongs to.
+ */
+public class RenditionBuilder {
+
+    private static final String TAG = "RenditionBuilder";
+
+    public static class Size {
+        public final int width;
+        public final int height;
+
+        public Size(int width, int height) {
+            this.width = width;
+            this.height = height;
+        }
+
+        // what the rendition is known as in the appProperties and callbacks, "1024x512"
+        public String getName() {
+            return width + "x" + height;
+        }
+    }
+
+    // largest first, sprays are 2:1 equirectangular
+    public static final Size[] SPRAY_RENDITIONS = new Size[]{new Size(1024, 512), new Size(512, 256)};
+
+    public static class Rendition {
+        public final Size size;
+        public final File file;
+
+        Rendition(Size size, File file) {
+            this.size = size;
+            this.file = file;
+        }
+    }
+
+    // the renditions of one spray, being built
+    public class Build {
+        private final File source;
+        private final File dir;
+        private final Size[] sizes;
+        private final Rendition[] renditions;
+        private final CountDownLatch done;
+
+        Build(File source, File dir, Size[] sizes) {
+            this.source = source;
+            this.dir = dir;
+            this.sizes = sizes;
+            this.renditions = new Rendition[sizes.length];
+            this.done = new CountDownLatch(sizes.length);
+        }
+
+        // the renditions that were built in time, largest first
+        public List<Rendition> await(long timeoutMs) throws InterruptedException {
+            if (!done.await(timeoutMs, TimeUnit.MILLISECONDS)) {
+                Log.w(TAG, "Renditions of " + source + " still building after " + timeoutMs + "ms");
+            }
+            List<Rendition> built = new ArrayList<>();
+            synchronized (renditions) {
+                for (Rendition rendition : renditions) {
+                    if (rendition != null) {
+                        built.add(rendition);
+                    }
+                }
+            }
+            return built;
+        }
+
+        // once they are uploaded, or not needed after all
+        public void delete() {
+            synchronized (renditions) {
+                for (Rendition rendition : renditions) {
+                    if (rendition != null) {
+                        rendition.file.delete();
+                    }
+                }
+            }
+        }
+
+        private void decode() {
+            ImageCodec.Pixels pixels;
+            try {
+                long start = System.currentTimeMillis();
+                // the largest is first, the rest come out of the same pixels
+                pixels = codec.decode(source, sizes[0].width, sizes[0].height);
+                Log.i(TAG, "decoded " + source + " at " + pixels.width + "x" + pixels.height + " in " + (System.currentTimeMillis() - start) + "ms");
+            } catch (IOException | RuntimeException | OutOfMemoryError ex) {
+                Log.w(TAG, "Failed to decode " + source + ", no renditions for it: " + ex);
+                for (int i = 0; i < sizes.length; i++) {
+                    done.countDown();
+                }
+                return;
+            }
+
+            for (int i = 1; i < sizes.length; i++) {
+                scheduleEncode(pixels, i);
+            }
+            // this thread is free anyway
+            encode(pixels, 0);
+        }
+
+        private void scheduleEncode(final ImageCodec.Pixels pixels, final int index) {
+            try {
+                executor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        encode(pixels, index);
+                    }
+                });
+            } catch (RejectedExecutionException ex) {
+                Log.w(TAG, "Rendition lane is full, skipping " + sizes[index].getName() + " of " + source);
+                done.countDown();
+            }
+        }
+
+        private void encode(ImageCodec.Pixels pixels, int index) {
+            Size size = sizes[index];
+            String name = source.getName();
+            int dot = name.lastIndexOf('.');
+            File file = new File(dir, (dot > 0 ? name.substring(0, dot) : name) + "_" + size.getName() + ".jpg");
+            try {
+                OutputStream out = new BufferedOutputStream(new FileOutputStream(file));
+                try {
+                    codec.encode(scale(pixels, size.width, size.height), quality, out);
+                } finally {
+                    out.close();
+                }
+                synchronized (renditions) {
+                    renditions[index] = new Rendition(size, file);
+                }
+            } catch (IOException | RuntimeException | OutOfMemoryError ex) {
+                Log.w(TAG, "Failed to build " + size.getName() + " rendition of " + source + ": " + ex);
+                file.delete();
+            } finally {
+                done.countDown();
+            }
+        }
+    }
+
+    private final ImageCodec codec;
+    private final Executor executor;
+    private final int quality;
+
+    public RenditionBuilder(ImageCodec codec, Executor executor, int quality) {
+        this.codec = codec;
+        this.executor = executor;
+        this.quality = quality;
+    }
+
+    /**
+     * Start building sizes (largest first) of source into dir, returns straight away. If the
+     * executor won't take the work there are simply no renditions.
+     */
+    public Build start(File source, File dir, Size[] sizes) {
+        final Build build = new Build(source, dir, sizes);
+        if (sizes.length == 0) {
+            return build;
+        }
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            Log.w(TAG, "Failed to create " + dir);
+        }
+        try {
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    build.decode();
+                }
+            });
+        } catch (RejectedExecutionException ex) {
+            Log.w(TAG, "Rendition lane is full, no renditions for " + source);
+            for (int i = 0; i < sizes.length; i++) {
+                build.done.countDown();
+            }
+        }
+        return build;
+    }
+
+    /**
+     * src shrunk to width x height, each pixel the average of the block of src it covers. Box
+     * filtering is all a downscale by a whole factor needs, and the renditions are 2x and 4x.
+     */
+    public static ImageCodec.Pixels scale(ImageCodec.Pixels src, int width, int height) {
+        if (src.width == width && src.height == height) {
+            return src;
+        }
+        if (width > src.width || height > src.height) {
+            throw new IllegalArgumentException("Can't scale " + src.width + "x" + src.height + " up to " + width + "x" + height);
+        }
+        int[] argb = new int[width * height];
+        int[] x0 = new int[width + 1];
+        for (int x = 0; x <= width; x++) {
+            x0[x] = (int) ((long) x * src.width / width);
+        }
+        for (int y = 0; y < height; y++) {
+            int top = (int) ((long) y * src.height / height);
+            int bottom = (int) ((long) (y + 1) * src.height / height);
+            for (int x = 0; x < width; x++) {
+                int r = 0;
+                int g = 0;
+                int b = 0;
+                for (int sy = top; sy < bottom; sy++) {
+                    int row = sy * src.width;
+                    for (int sx = x0[x]; sx < x0[x + 1]; sx++) {
+                        int p = src.argb[row + sx];
+                        r += (p >> 16) & 0xff;
+                        g += (p >> 8) & 0xff;
+                        b += p & 0xff;
+                    }
+                }
+                int n = (bottom - top) * (x0[x + 1] - x0[x]);
+                argb[y * width + x] = 0xff000000 | ((r + n / 2) / n) << 16 | ((g + n / 2) / n) << 8 | ((b + n / 2) / n);
+            }
+        }
+        return new ImageCodec.Pixels(width, height, argb);
+    }
+}
@@ -0,0 +1,297 @@
+// Copyright 2016 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.androidexperiments.sprayscape.unitydriveplugin;
+
+import com.google.api.client.googleapis.json.GoogleJsonResponseException;
+import com.google.api.client.http.AbstractInputStreamContent;
+import com.google.api.client.http.AbstractHttpContent;
+import com.google.api.client.http.EmptyContent;
+import com.google.api.client.http.GenericUrl;
+import com.google.api.client.http.HttpContent;
+import com.google.api.client.http.HttpRequest;
+import com.google.api.client.http.HttpRequestFactory;
+import com.google.api.client.http.HttpResponse;
+import com.google.api.client.http.json.JsonHttpContent;
+import com.google.api.client.json.JsonFactory;
+import com.google.api.client.json.JsonObjectParser;
+import com.google.api.services.drive.model.File;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * Drive v3 resumable upload that can pick up from the last acknowledged chunk.
+ *
+ * The session URI and the confirmed byte offset are handed to a {@link CheckpointListener} after
+ * every chunk, so a caller that persists them can resume the upload after a dropped connection or
+ * a process restart instead of sending the whole file again. A {@link ProgressListener} also
+ * hears about bytes as they are written to the connection, not just once a chunk is acknowledged.
+ */
+public class ResumableUpload {
+
+    // Drive only accepts chunks that are a multiple of 256 KiB (except for the last one)
+    public static final int CHUNK_GRANULARITY = 256 * 1024;
+    public static final int DEFAULT_CHUNK_SIZE = 2 * CHUNK_GRANULARITY;
+
+    private static final String DEFAULT_ROOT_URL = "https://www.googleapis.com/";
+    private static final String UPLOAD_PATH = "upload/drive/v3/files?uploadType=resumable";
+    private static final int STATUS_RESUME_INCOMPLETE = 308;
+    private static final int STATUS_NOT_FOUND = 404;
+    private static final int STATUS_GONE = 410;
+    // how much of a chunk goes to the connection between progress reports
+    private static final int PROGRESS_SLICE = 16 * 1024;
+
+    public interface CheckpointListener {
+        // sessionUri is null when the session has expired and the upload has to start over
+        void onCheckpoint(String sessionUri, long confirmedBytes) throws IOException;
+    }
+
+    public interface ProgressListener {
+        // called on the uploading thread, often, so keep it cheap
+        void onProgress(long sentBytes, long totalBytes);
+    }
+
+    /**
+     * Drive has forgotten the session (404 or 410 on a chunk), nothing wrong with the file or its
+     * folder. The checkpoint has already been cleared, so trying again starts a new session.
+     */
+    public static class SessionExpiredException extends IOException {
+        SessionExpiredException(int statusCode) {
+            super("Resumable upload session expired (" + statusCode + ")");
+        }
+    }
+
+    private final HttpRequestFactory requestFactory;
+    private final JsonFactory jsonFactory;
+    private final int chunkSize;
+    private ProgressListener progressListener;
+    private String uploadUrl = DEFAULT_ROOT_URL + UPLOAD_PATH;
+
+    public ResumableUpload(HttpRequestFactory requestFactory, JsonFactory jsonFactory, int chunkSize) {
+        this.requestFactory = requestFactory;
+        this.jsonFactory = jsonFactory;
+        this.chunkSize = roundChunkSize(chunkSize);
+    }
+
+    public ResumableUpload setProgressListener(ProgressListener progressListener) {
+        this.progressListener = progressListener;
+        return this;
+    }
+
+    // the root url the Drive client was built with, so both talk to the same server
+    public ResumableUpload setRootUrl(String rootUrl) {
+        this.uploadUrl = rootUrl + UPLOAD_PATH;
+        return this;
+    }
+
+    public static int roundChunkSize(int chunkSize) {
+        int chunks = Math.max(1, (chunkSize + CHUNK_GRANULARITY - 1) / CHUNK_GRANULARITY);
+        return chunks * CHUNK_GRANULARITY;
+    }
+
+    // content has to give the same bytes every time it is opened, offsets are persisted across attempts
+    public File execute(File metadata, AbstractInputStreamContent content, String fields,
+                        String sessionUri, long confirmedBytes, CheckpointListener listener) throws IOException {
+        String mimeType = content.getType();
+        long total = content.getLength();
+        if (total <= 0) {
+            throw new IOException("Refusing to upload empty content: " + metadata.getName());
+        }
+
+        InputStream source = content.getInputStream();
+        long sourcePosition = 0;
+        try {
+            long offset = confirmedBytes;
+
+            if (sessionUri != null) {
+                // ask drive how much of the last attempt actually arrived
+                HttpResponse response = put(sessionUri, new EmptyContent(), "bytes */" + total);
+                try {
+                    if (response.isSuccessStatusCode()) {
+                        return parseFile(response);
+                    } else if (response.getStatusCode() == STATUS_RESUME_INCOMPLETE) {
+                        offset = confirmedOffset(response);
+                    } else if (isSessionExpired(response)) {
+                        sessionUri = null;
+                    } else {
+                        throw GoogleJsonResponseException.from(jsonFactory, response);
+                    }
+                } finally {
+                    response.disconnect();
+                }
+            }
+
+            if (sessionUri == null) {
+                sessionUri = initiate(metadata, mimeType, total, fields);
+                offset = 0;
+                listener.onCheckpoint(sessionUri, 0);
+            }
+
+            byte[] buffer = new byte[(int) Math.min(chunkSize, total)];
+            reportProgress(offset, total);
+            while (true) {
+                int length = (int) Math.min(chunkSize, total - offset);
+                if (offset < sourcePosition) {
+                    // drive kept less of the last chunk than we sent, start reading again from the top
+                    source.close();
+                    source = content.getInputStream();
+                    sourcePosition = 0;
+                }
+                skipFully(source, offset - sourcePosition);
+                readFully(source, buffer, length);
+                sourcePosition = offset + length;
+
+                String range = "bytes " + offset + "-" + (offset + length - 1) + "/" + total;
+                HttpResponse response = put(sessionUri, new ChunkContent(mimeType, buffer, length, offset, total), range);
+                try {
+                    if (response.isSuccessStatusCode()) {
+                        return parseFile(response);
+                    } else if (response.getStatusCode() == STATUS_RESUME_INCOMPLETE) {
+                        offset = confirmedOffset(response);
+                        listener.onCheckpoint(sessionUri, offset);
+                        // drive may have kept less than was written, go back to what it has
+                        reportProgress(offset, total);
+                    } else if (isSessionExpired(response)) {
+                        // forget the session so the next attempt starts a fresh one
+                        listener.onCheckpoint(null, 0);
+                        throw new SessionExpiredException(response.getStatusCode());
+                    } else {
+                        throw GoogleJsonResponseException.from(jsonFactory, response);
+                    }
+                } finally {
+                    response.disconnect();
+                }
+            }
+        } finally {
+            source.close();
+        }
+    }
+
+    private void reportProgress(long sentBytes, long totalBytes) {
+        if (progressListener != null) {
+            progressListener.onProgress(sentBytes, totalBytes);
+        }
+    }
+
+    private static void skipFully(InputStream in, long n) throws IOException {
+        while (n > 0) {
+            long skipped = in.skip(n);
+            if (skipped <= 0) {
+                throw new IOException("Upload content ended before the resume offset");
+            }
+            n -= skipped;
+        }
+    }
+
+    private static void readFully(InputStream in, byte[] buffer, int length) throws IOException {
+        int read = 0;
+        while (read < length) {
+            int n = in.read(buffer, read, length - read);
+            if (n < 0) {
+                throw new IOException("Upload content ended early");
+            }
+            read += n;
+        }
+    }
+
+    private String initiate(File metadata, String mimeType, long total, String fields) throws IOException {
+        GenericUrl url = new GenericUrl(uploadUrl);
+        if (fields != null) {
+            url.set("fields", fields);
+        }
+        HttpRequest request = requestFactory.buildPostRequest(url, new JsonHttpContent(jsonFactory, metadata));
+        request.getHeaders().set("X-Upload-Content-Type", mimeType);
+        request.getHeaders().set("X-Upload-Content-Length", total);
+        request.setThrowExceptionOnExecuteError(false);
+
+        HttpResponse response = request.execute();
+        try {
+            if (!response.isSuccessStatusCode()) {
+                throw GoogleJsonResponseException.from(jsonFactory, response);
+            }
+            String location = response.getHeaders().getLocation();
+            if (location == null) {
+                throw new IOException("Resumable upload session was not created, no Location header");
+            }
+            return location;
+        } finally {
+            response.disconnect();
+        }
+    }
+
+    private HttpResponse put(String sessionUri, HttpContent content, String contentRange) throws IOException {
+        HttpRequest request = requestFactory.buildPutRequest(new GenericUrl(sessionUri), content);
+        request.getHeaders().setContentRange(contentRange);
+        request.setThrowExceptionOnExecuteError(false);
+        request.setParser(new JsonObjectParser(jsonFactory));
+        return request.execute();
+    }
+
+    private File parseFile(HttpResponse response) throws IOException {
+        return response.parseAs(File.class);
+    }
+
+    private static boolean isSessionExpired(HttpResponse response) {
+        return response.getStatusCode() == STATUS_NOT_FOUND || response.getStatusCode() == STATUS_GONE;
+    }
+
+    private static long confirmedOffset(HttpResponse response) {
+        // Range: bytes=0-<last byte received>, missing when nothing has arrived yet
+        String range = response.getHeaders().getRange();
+        if (range == null) {
+            return 0;
+        }
+        int dash = range.lastIndexOf('-');
+        return Long.parseLong(range.substring(dash + 1).trim()) + 1;
+    }
+
+    // one chunk of the upload, written in slices so progress can be reported while it goes out
+    private class ChunkContent extends AbstractHttpContent {
+        private final byte[] buffer;
+        private final int length;
+        private final long offset;
+        private final long total;
+
+        ChunkContent(String mimeType, byte[] buffer, int length, long offset, long total) {
+            super(mimeType);
+            this.buffer = buffer;
+            this.length = length;
+            this.offset = offset;
+            this.total = total;
+        }
+
+        @Override
+        public long getLength() {
+            return length;
+        }
+
+        @Override
+        public boolean retrySupported() {
+            return true;
+        }
+
+        @Override
+        public void writeTo(OutputStream out) throws IOException {
+            for (int written = 0; written < length; ) {
+                int n = Math.min(PROGRESS_SLICE, length - written);
+                out.write(buffer, written, n);
+                written += n;
+                reportProgress(offset + written, total);
+            }
+            out.flush();
+        }
+    }
+}
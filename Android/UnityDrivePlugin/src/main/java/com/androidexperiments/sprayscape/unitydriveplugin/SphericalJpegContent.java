@@ -0,0 +1,256 @@
+// Copyright 2016 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.androidexperiments.sprayscape.unitydriveplugin;
+
+import com.google.api.client.http.AbstractInputStreamContent;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+
+/**
+ * A JPEG on disk with the 360 metadata viewers look for (the Ricoh Theta EXIF block and the GPano
+ * XMP packet) spliced in as it is read, so the image never has to be copied into a bigger array to
+ * add them.
+ *
+ * Segments the file already has are left alone, so sprays saved with the EXIF block already in them
+ * come out the same size they went in. The file is read through a {@link FileChannel} with
+ * positional reads, which lets {@link SplicedStream#skip(long)} jump straight to a resumed offset.
+ */
+public class SphericalJpegContent extends AbstractInputStreamContent {
+
+    private static final Charset US_ASCII = Charset.forName("US-ASCII");
+
+    private static final int MARKER_SOI = 0xd8;
+    private static final int MARKER_APP0 = 0xe0;
+    private static final int MARKER_APP1 = 0xe1;
+    private static final int MARKER_APP15 = 0xef;
+
+    private static final byte[] EXIF_ID = "Exif\0\0".getBytes(US_ASCII);
+    private static final byte[] XMP_ID = "http://ns.adobe.com/xap/1.0/\0".getBytes(US_ASCII);
+
+    // APP1 with make: RICOH, model: RICOH THETA S, what the old unity side spliced in after the JFIF header
+    public static final byte[] RICOH_EXIF = new byte[]{
+            (byte) 0xff, (byte) 0xe1, 0x00, 0x5a, 0x45, 0x78, 0x69, 0x66, 0x00, 0x00, 0x4d, 0x4d,
+            0x00, 0x2a, 0x00, 0x00, 0x00, 0x08, 0x00, 0x04, 0x01, 0x0f, 0x00, 0x02, 0x00, 0x00, 0x00, 0x06,
+            0x00, 0x00, 0x00, 0x3e, 0x01, 0x10, 0x00, 0x02, 0x00, 0x00, 0x00, 0x0e, 0x00, 0x00, 0x00, 0x44,
+            0x01, 0x28, 0x00, 0x03, 0x00, 0x00, 0x00, 0x01, 0x00, 0x01, 0x00, 0x00, 0x02, 0x13, 0x00, 0x03,
+            0x00, 0x00, 0x00, 0x01, 0x00, 0x01, 0x00, 0x00, 0x00, 0x00, 0x00, 0x00, 0x52, 0x49, 0x43, 0x4f,
+            0x48, 0x00, 0x52, 0x49, 0x43, 0x4f, 0x48, 0x20, 0x54, 0x48, 0x45, 0x54, 0x41, 0x20, 0x53, 0x00
+    };
+
+    private final File file;
+    private final byte[] exifSegment;
+    private final byte[] xmpSegment;
+
+    // worked out from the file header the first time it's needed
+    private long insertAt = -1;
+    private byte[] inserted;
+
+    // either segment may be null to leave that kind of metadata out
+    public SphericalJpegContent(File file, byte[] exifSegment, byte[] xmpSegment) {
+        super("image/jpeg");
+        this.file = file;
+        this.exifSegment = exifSegment;
+        this.xmpSegment = xmpSegment;
+    }
+
+    // the GPano packet for an equirectangular image covering the whole sphere
+    public static byte[] gpanoXmp(int width, int height) {
+        String xmp = "<x:xmpmeta xmlns:x=\"adobe:ns:meta/\">"
+                + "<rdf:RDF xmlns:rdf=\"http://www.w3.org/1999/02/22-rdf-syntax-ns#\">"
+                + "<rdf:Description rdf:about=\"\" xmlns:GPano=\"http://ns.google.com/photos/1.0/panorama/\""
+                + " GPano:ProjectionType=\"equirectangular\""
+                + " GPano:UsePanoramaViewer=\"True\""
+                + " GPano:FullPanoWidthPixels=\"" + width + "\""
+                + " GPano:FullPanoHeightPixels=\"" + height + "\""
+                + " GPano:CroppedAreaImageWidthPixels=\"" + width + "\""
+                + " GPano:CroppedAreaImageHeightPixels=\"" + height + "\""
+                + " GPano:CroppedAreaLeftPixels=\"0\""
+                + " GPano:CroppedAreaTopPixels=\"0\"/>"
+                + "</rdf:RDF></x:xmpmeta>";
+        byte[] packet = xmp.getBytes(Charset.forName("UTF-8"));
+        int length = 2 + XMP_ID.length + packet.length;
+        ByteBuffer segment = ByteBuffer.allocate(2 + length);
+        segment.put((byte) 0xff).put((byte) MARKER_APP1).putShort((short) length).put(XMP_ID).put(packet);
+        return segment.array();
+    }
+
+    @Override
+    public long getLength() throws IOException {
+        prepare();
+        return file.length() + inserted.length;
+    }
+
+    @Override
+    public boolean retrySupported() {
+        return true;
+    }
+
+    @Override
+    public InputStream getInputStream() throws IOException {
+        prepare();
+        return new SplicedStream(new RandomAccessFile(file, "r").getChannel(), insertAt, inserted, getLength());
+    }
+
+    @Override
+    public SphericalJpegContent setType(String type) {
+        return (SphericalJpegContent) super.setType(type);
+    }
+
+    @Override
+    public SphericalJpegContent setCloseInputStream(boolean closeInputStream) {
+        return (SphericalJpegContent) super.setCloseInputStream(closeInputStream);
+    }
+
+    private synchronized void prepare() throws IOException {
+        if (insertAt >= 0) {
+            return;
+        }
+        try (FileChannel channel = new RandomAccessFile(file, "r").getChannel()) {
+            ByteBuffer header = ByteBuffer.allocate(4 + XMP_ID.length);
+            header.limit(2);
+            readFully(channel, header, 0);
+            if ((header.get(0) & 0xff) != 0xff || (header.get(1) & 0xff) != MARKER_SOI) {
+                throw new IOException("Not a JPEG: " + file);
+            }
+
+            // walk the APPn segments at the front, new metadata goes after the JFIF header and any existing EXIF
+            long position = 2;
+            long insertPosition = 2;
+            boolean hasExif = false;
+            boolean hasXmp = false;
+            boolean first = true;
+            while (position + 4 <= channel.size()) {
+                header.clear();
+                header.limit((int) Math.min(header.capacity(), channel.size() - position));
+                readFully(channel, header, position);
+                int marker = header.get(1) & 0xff;
+                if ((header.get(0) & 0xff) != 0xff || marker < MARKER_APP0 || marker > MARKER_APP15) {
+                    break;
+                }
+                long next = position + 2 + (header.getShort(2) & 0xffff);
+                if (marker == MARKER_APP0 && first) {
+                    insertPosition = next;
+                } else if (marker == MARKER_APP1 && startsWith(header, EXIF_ID)) {
+                    hasExif = true;
+                    insertPosition = next;
+                } else if (marker == MARKER_APP1 && startsWith(header, XMP_ID)) {
+                    hasXmp = true;
+                }
+                first = false;
+                position = next;
+            }
+
+            byte[] exif = hasExif || exifSegment == null ? new byte[0] : exifSegment;
+            byte[] xmp = hasXmp || xmpSegment == null ? new byte[0] : xmpSegment;
+            inserted = Arrays.copyOf(exif, exif.length + xmp.length);
+            System.arraycopy(xmp, 0, inserted, exif.length, xmp.length);
+            insertAt = insertPosition;
+        }
+    }
+
+    private static boolean startsWith(ByteBuffer header, byte[] id) {
+        if (header.limit() < 4 + id.length) {
+            return false;
+        }
+        for (int i = 0; i < id.length; i++) {
+            if (header.get(4 + i) != id[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static void readFully(FileChannel channel, ByteBuffer dst, long position) throws IOException {
+        while (dst.hasRemaining()) {
+            int read = channel.read(dst, position);
+            if (read < 0) {
+                throw new IOException("Unexpected end of file");
+            }
+            position += read;
+        }
+    }
+
+    /**
+     * Reads [0, insertAt) of the file, then the inserted bytes, then the rest of the file.
+     */
+    private static class SplicedStream extends InputStream {
+        private final FileChannel channel;
+        private final long insertAt;
+        private final byte[] inserted;
+        private final long length;
+        private long position;
+
+        SplicedStream(FileChannel channel, long insertAt, byte[] inserted, long length) {
+            this.channel = channel;
+            this.insertAt = insertAt;
+            this.inserted = inserted;
+            this.length = length;
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] one = new byte[1];
+            return read(one, 0, 1) < 0 ? -1 : one[0] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0) {
+                return 0;
+            }
+            if (position >= length) {
+                return -1;
+            }
+            int read;
+            if (position < insertAt) {
+                read = channel.read(ByteBuffer.wrap(b, off, (int) Math.min(len, insertAt - position)), position);
+            } else if (position < insertAt + inserted.length) {
+                read = (int) Math.min(len, insertAt + inserted.length - position);
+                System.arraycopy(inserted, (int) (position - insertAt), b, off, read);
+            } else {
+                read = channel.read(ByteBuffer.wrap(b, off, len), position - inserted.length);
+            }
+            if (read < 0) {
+                return -1;
+            }
+            position += read;
+            return read;
+        }
+
+        @Override
+        public long skip(long n) {
+            long skipped = Math.max(0, Math.min(n, length - position));
+            position += skipped;
+            return skipped;
+        }
+
+        @Override
+        public int available() {
+            return (int) Math.min(Integer.MAX_VALUE, length - position);
+        }
+
+        @Override
+        public void close() throws IOException {
+            channel.close();
+        }
+    }
+}
@@ -0,0 +1,173 @@
+// Copyright 2016 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.androidexperiments.sprayscape.unitydriveplugin;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.os.Process;
+import android.util.Log;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Gets library thumbnail tiles ready in the background so the library can open straight away and
+ * fill in as tiles arrive.
+ *
+ * Tiles already in the {@link ThumbnailTileStore} are just announced. Missing ones are decoded from
+ * the spray's jpg at a reduced sample size, flipped to Unity's bottom-up row order in a pooled direct
+ * buffer and written to the store first, so Unity always picks the RGBA data up from the store
+ * ready for SetPixels32 / LoadRawTextureData.
+ */
+public class ThumbnailTileLoader {
+
+    private static final String TAG = "ThumbnailTileLoader";
+
+    private static final String CALLBACK_METHOD_TILE_READY = "ThumbnailTileReady";
+    private static final String CALLBACK_METHOD_TILE_FAILED = "ThumbnailTileFailed";
+    private static final String CALLBACK_METHOD_TILES_LOADED = "ThumbnailTilesLoaded";
+
+    private final ThumbnailTileStore store;
+    private final int tileWidth;
+    private final int tileHeight;
+    private final ExecutorService executor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(final Runnable r) {
+            Thread t = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    // stay out of the way of the render thread
+                    Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                    r.run();
+                }
+            }, TAG);
+            t.setDaemon(true);
+            return t;
+        }
+    });
+
+    // only touched on the worker thread, reused for every tile
+    private ByteBuffer pixels;
+    private byte[] rowA;
+    private byte[] rowB;
+    private Bitmap decoded;
+
+    public ThumbnailTileLoader(ThumbnailTileStore store, int tileWidth, int tileHeight) {
+        if (store.getTileBytes() != tileWidth * tileHeight * 4) {
+            throw new IllegalArgumentException("Store tiles are " + store.getTileBytes() + " bytes, not " + tileWidth + "x" + tileHeight + " RGBA");
+        }
+        this.store = store;
+        this.tileWidth = tileWidth;
+        this.tileHeight = tileHeight;
+    }
+
+    /**
+     * Calls back ThumbnailTileReady("index") for each tile as it becomes available in the store,
+     * ThumbnailTileFailed("index:reason") for any that couldn't be made, then ThumbnailTilesLoaded("").
+     * sprayPaths[i] is the jpg to make tile indices[i] from if the store doesn't have it.
+     */
+    public void load(final int[] indices, final String[] sprayPaths, final String callbackObjectName) {
+        if (indices.length != sprayPaths.length) {
+            throw new IllegalArgumentException("indices and sprayPaths must be the same length");
+        }
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                long start = System.currentTimeMillis();
+                int decodedCount = 0;
+                // the ones the store already has first, they are cheap and fill the screen quickly
+                for (int index : indices) {
+                    if (store.hasTile(index)) {
+                        PluginEventQueue.send(callbackObjectName, CALLBACK_METHOD_TILE_READY, null, index, String.valueOf(index));
+                    }
+                }
+                for (int i = 0; i < indices.length; i++) {
+                    if (store.hasTile(indices[i])) {
+                        continue;
+                    }
+                    try {
+                        decodeTile(indices[i], sprayPaths[i]);
+                        decodedCount++;
+                        PluginEventQueue.send(callbackObjectName, CALLBACK_METHOD_TILE_READY, null, indices[i], String.valueOf(indices[i]));
+                    } catch (IOException | RuntimeException ex) {
+                        Log.w(TAG, "Failed to make tile " + indices[i] + " from " + sprayPaths[i], ex);
+                        PluginEventQueue.send(callbackObjectName, CALLBACK_METHOD_TILE_FAILED, null, indices[i], indices[i] + ":" + ex);
+                    }
+                }
+                Log.i(TAG, "loaded " + indices.length + " tiles (" + decodedCount + " decoded) in " + (System.currentTimeMillis() - start) + "ms");
+                PluginEventQueue.send(callbackObjectName, CALLBACK_METHOD_TILES_LOADED, "");
+            }
+        });
+    }
+
+    public void shutdown() {
+        executor.shutdown();
+    }
+
+    private void decodeTile(int index, String sprayPath) throws IOException {
+        BitmapFactory.Options bounds = new BitmapFactory.Options();
+        bounds.inJustDecodeBounds = true;
+        BitmapFactory.decodeFile(sprayPath, bounds);
+        if (bounds.outWidth <= 0 || bounds.outHeight <= 0) {
+            throw new IOException("Can't decode " + sprayPath);
+        }
+
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inSampleSize = Math.max(1, Math.min(bounds.outWidth / tileWidth, bounds.outHeight / tileHeight));
+        options.inPreferredConfig = Bitmap.Config.ARGB_8888;
+        options.inMutable = true;
+        // sprays are 2048x1024, so this decodes straight into the same bitmap every time
+        options.inBitmap = decoded;
+        Bitmap bitmap = BitmapFactory.decodeFile(sprayPath, options);
+        if (bitmap == null) {
+            throw new IOException("Can't decode " + sprayPath);
+        }
+        decoded = bitmap;
+
+        Bitmap tile = bitmap;
+        if (bitmap.getWidth() != tileWidth || bitmap.getHeight() != tileHeight) {
+            tile = Bitmap.createScaledBitmap(bitmap, tileWidth, tileHeight, true);
+        }
+
+        int stride = tileWidth * 4;
+        if (pixels == null) {
+            pixels = ByteBuffer.allocateDirect(stride * tileHeight);
+            rowA = new byte[stride];
+            rowB = new byte[stride];
+        }
+        pixels.clear();
+        tile.copyPixelsToBuffer(pixels);
+        if (tile != bitmap) {
+            tile.recycle();
+        }
+
+        // bitmaps start at the top row, unity textures at the bottom
+        for (int top = 0, bottom = tileHeight - 1; top < bottom; top++, bottom--) {
+            pixels.position(top * stride);
+            pixels.get(rowA);
+            pixels.position(bottom * stride);
+            pixels.get(rowB);
+            pixels.position(bottom * stride);
+            pixels.put(rowA);
+            pixels.position(top * stride);
+            pixels.put(rowB);
+        }
+        pixels.clear();
+        store.putTile(index, pixels);
+    }
+}
@@ -0,0 +1,261 @@
+// Copyright 2016 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.androidexperiments.sprayscape.unitydriveplugin;
+
+import android.os.Process;
+import android.util.Log;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The library thumbnails as fixed-size raw tiles in one memory-mapped file, so saving a spray
+ * writes just its own tile instead of re-encoding the whole atlas.
+ *
+ * Layout: a header, then one long per tile (the generation it was last written at, 0 for no
+ * tile), then the tiles themselves at a fixed stride. A tile's index entry is cleared before its
+ * pixels are overwritten and set again once they are flushed, so a crash part way through leaves
+ * the tile missing (and regenerated from the spray's jpg) rather than torn.
+ *
+ * Unity writes through {@link #queuePutTile} and {@link #queueRemoveTile}, which flush on a worker
+ * in the order they were queued, so a save never waits on flash.
+ */
+public class ThumbnailTileStore implements Closeable {
+
+    private static final String TAG = "ThumbnailTileStore";
+
+    private static final int MAGIC = 0x54494c45; // "TILE"
+    private static final int VERSION = 1;
+    private static final int HEADER_BYTES = 16;
+    // tiles start on a page boundary so flushing one doesn't touch its neighbours' pages
+    private static final int PAGE_BYTES = 4096;
+    // each queued put holds a copy of the tile, past this the caller writes it itself
+    private static final int MAX_PENDING_WRITES = 4;
+
+    private final int tileCount;
+    private final int tileBytes;
+    private final long tilesOffset;
+    private final RandomAccessFile file;
+    private final MappedByteBuffer map;
+    private long generation;
+    // handed back by readTile every time, only unity's main thread reads tiles that way
+    private byte[] readBuffer;
+    private final ThreadPoolExecutor writer = new ThreadPoolExecutor(1, 1, 30, TimeUnit.SECONDS,
+            new ArrayBlockingQueue<Runnable>(MAX_PENDING_WRITES), new ThreadFactory() {
+        @Override
+        public Thread newThread(final Runnable r) {
+            Thread t = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    // stay out of the way of the render thread
+                    Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                    r.run();
+                }
+            }, TAG);
+            t.setDaemon(true);
+            return t;
+        }
+    }, new ThreadPoolExecutor.CallerRunsPolicy());
+
+    public ThumbnailTileStore(String path, int tileCount, int tileBytes) throws IOException {
+        this.tileCount = tileCount;
+        this.tileBytes = tileBytes;
+        long indexEnd = HEADER_BYTES + 8L * tileCount;
+        this.tilesOffset = (indexEnd + PAGE_BYTES - 1) / PAGE_BYTES * PAGE_BYTES;
+        long length = tilesOffset + (long) tileCount * tileBytes;
+        if (length > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("Tile store too big to map: " + length + " bytes");
+        }
+
+        File f = new File(path);
+        boolean fresh = f.length() != length;
+        this.file = new RandomAccessFile(f, "rw");
+        try {
+            file.setLength(length);
+            map = file.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, length);
+        } catch (IOException ex) {
+            file.close();
+            throw ex;
+        }
+
+        if (fresh || map.getInt(0) != MAGIC || map.getInt(4) != VERSION
+                || map.getInt(8) != tileCount || map.getInt(12) != tileBytes) {
+            // a different layout (or nothing yet), start with every tile missing
+            Log.i(TAG, "initialising tile store " + path + " for " + tileCount + " tiles of " + tileBytes + " bytes");
+            for (int i = 0; i < tileCount; i++) {
+                map.putLong(indexOffset(i), 0);
+            }
+            map.putInt(0, MAGIC).putInt(4, VERSION).putInt(8, tileCount).putInt(12, tileBytes);
+            map.force();
+        }
+
+        for (int i = 0; i < tileCount; i++) {
+            generation = Math.max(generation, map.getLong(indexOffset(i)));
+        }
+        writer.allowCoreThreadTimeOut(true);
+    }
+
+    public int getTileCount() {
+        return tileCount;
+    }
+
+    public int getTileBytes() {
+        return tileBytes;
+    }
+
+    // bumped by every put, compare with getDirtyTiles(since) to find what changed
+    public synchronized long getGeneration() {
+        return generation;
+    }
+
+    public synchronized boolean hasTile(int index) {
+        checkIndex(index);
+        return map.getLong(indexOffset(index)) != 0;
+    }
+
+    public synchronized void putTile(int index, byte[] pixels) {
+        putTile(index, ByteBuffer.wrap(pixels));
+    }
+
+    // copies the remaining bytes of pixels, so a direct buffer goes straight into the mapping
+    public synchronized void putTile(int index, ByteBuffer pixels) {
+        checkIndex(index);
+        if (pixels.remaining() != tileBytes) {
+            throw new IllegalArgumentException("Expected " + tileBytes + " bytes for a tile, got " + pixels.remaining());
+        }
+        map.putLong(indexOffset(index), 0);
+        map.position((int) tileOffset(index));
+        map.put(pixels);
+        // the cleared entry and about one tile's worth of pages, the only flush. The new entry goes
+        // out with the next one (or the kernel's writeback), losing it only loses the tile
+        map.force();
+
+        map.putLong(indexOffset(index), ++generation);
+    }
+
+    // putTile on the writer, for unity's main thread. pixels is unity's own copy, so it is kept as is
+    public void queuePutTile(final int index, final byte[] pixels) {
+        checkIndex(index);
+        if (pixels.length != tileBytes) {
+            throw new IllegalArgumentException("Expected " + tileBytes + " bytes for a tile, got " + pixels.length);
+        }
+        writer.execute(new Runnable() {
+            @Override
+            public void run() {
+                putTile(index, pixels);
+            }
+        });
+    }
+
+    public synchronized void removeTile(int index) {
+        checkIndex(index);
+        map.putLong(indexOffset(index), 0);
+        map.force();
+    }
+
+    // behind any puts already queued for it
+    public void queueRemoveTile(final int index) {
+        checkIndex(index);
+        writer.execute(new Runnable() {
+            @Override
+            public void run() {
+                removeTile(index);
+            }
+        });
+    }
+
+    // null if there is no tile at index
+    public synchronized byte[] getTile(int index) {
+        if (!hasTile(index)) {
+            return null;
+        }
+        return readTiles(index, 1);
+    }
+
+    // like getTile, but into the same array every time rather than a new one per tile, for unity to
+    // load straight into a texture. Only valid until the next call
+    public synchronized byte[] readTile(int index) {
+        if (!hasTile(index)) {
+            return null;
+        }
+        if (readBuffer == null) {
+            readBuffer = new byte[tileBytes];
+        }
+        map.position((int) tileOffset(index));
+        map.get(readBuffer);
+        return readBuffer;
+    }
+
+    // count tiles starting at first in one bulk read, missing tiles come back as whatever was last in their slot
+    public synchronized byte[] readTiles(int first, int count) {
+        checkIndex(first);
+        checkIndex(first + count - 1);
+        byte[] pixels = new byte[count * tileBytes];
+        map.position((int) tileOffset(first));
+        map.get(pixels);
+        return pixels;
+    }
+
+    // the tiles written since the given generation, in index order
+    public synchronized int[] getDirtyTiles(long sinceGeneration) {
+        int[] dirty = new int[tileCount];
+        int n = 0;
+        for (int i = 0; i < tileCount; i++) {
+            if (map.getLong(indexOffset(i)) > sinceGeneration) {
+                dirty[n++] = i;
+            }
+        }
+        return Arrays.copyOf(dirty, n);
+    }
+
+    @Override
+    public void close() throws IOException {
+        // whatever is queued still goes in
+        writer.shutdown();
+        try {
+            writer.awaitTermination(10, TimeUnit.SECONDS);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+        synchronized (this) {
+            map.force();
+            file.close();
+        }
+    }
+
+    private void checkIndex(int index) {
+        if (index < 0 || index >= tileCount) {
+            throw new IndexOutOfBoundsException("Tile " + index + " out of range, store has " + tileCount);
+        }
+    }
+
+    private static int indexOffset(int index) {
+        return HEADER_BYTES + 8 * index;
+    }
+
+    private long tileOffset(int index) {
+        return tilesOffset + (long) index * tileBytes;
+    }
+}
@@ -0,0 +1,184 @@
+// Copyright 2016 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.androidexperiments.sprayscape.unitydriveplugin;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+
+import java.io.File;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Pushes the uploads left in the {@link UploadJournal} through to Drive once the device is online.
+ * Large uploads can be held back until the device is on an unmetered network, see
+ * {@link #setUnmeteredOnlyBytes(long)}.
+ *
+ * All methods must be called on the main thread.
+ */
+public class UploadDrainScheduler {
+
+    private static final String TAG = "UploadDrainScheduler";
+
+    private static final int BATCH_SIZE = 4;
+    private static final long MIN_RETRY_DELAY_MS = 30 * 1000;
+    private static final long MAX_RETRY_DELAY_MS = 10 * 60 * 1000;
+
+    public interface Uploader {
+        // true when an account has been selected and the drive service is ready to use
+        boolean isReady();
+
+        // start the upload, the uploader must call onUploadFinished() when it is done
+        void upload(UploadJournal.Entry entry, boolean drained);
+
+        // the user asked for an upload a drain has already started, report that one back to them
+        // as if they had started it
+        void await(UploadJournal.Entry entry);
+    }
+
+    private final NetworkMonitor network;
+    private final UploadJournal journal;
+    private final Uploader uploader;
+    private final Handler handler = new Handler(Looper.getMainLooper());
+    private final Set<Long> inFlight = new HashSet<>();
+
+    private boolean registered;
+    private boolean draining;
+    private boolean batchSucceeded;
+    private long retryDelayMs = MIN_RETRY_DELAY_MS;
+    // 0 to send everything on any network
+    private long unmeteredOnlyBytes;
+
+    private final NetworkMonitor.Listener networkListener = new NetworkMonitor.Listener() {
+        @Override
+        public void onNetworkChanged(NetworkMonitor monitor) {
+            if (monitor.isOnline()) {
+                Log.i(TAG, "connectivity changed, " + journal.size() + " upload(s) pending");
+                retryDelayMs = MIN_RETRY_DELAY_MS;
+                drain();
+            }
+        }
+    };
+
+    private final Runnable retryDrain = new Runnable() {
+        @Override
+        public void run() {
+            drain();
+        }
+    };
+
+    public UploadDrainScheduler(NetworkMonitor network, UploadJournal journal, Uploader uploader) {
+        this.network = network;
+        this.journal = journal;
+        this.uploader = uploader;
+    }
+
+    public void start() {
+        if (!registered) {
+            network.addListener(networkListener);
+            registered = true;
+        }
+    }
+
+    public void stop() {
+        if (registered) {
+            network.removeListener(networkListener);
+            registered = false;
+        }
+        handler.removeCallbacks(retryDrain);
+    }
+
+    public boolean isOnline() {
+        return network.isOnline();
+    }
+
+    // queued uploads bigger than this wait for an unmetered network, 0 sends them on any network
+    public void setUnmeteredOnlyBytes(long bytes) {
+        unmeteredOnlyBytes = bytes;
+        if (bytes <= 0) {
+            drain();
+        }
+    }
+
+    // upload an entry the user just asked for, outside of any batch
+    public void submit(UploadJournal.Entry entry) {
+        if (!inFlight.add(entry.id)) {
+            // a drain picked it up from the journal before this was posted, don't send it twice
+            uploader.await(entry);
+            return;
+        }
+        uploader.upload(entry, false);
+    }
+
+    // push the next batch of pending uploads through, if we can
+    public void drain() {
+        if (draining || !uploader.isReady() || !isOnline()) {
+            return;
+        }
+        handler.removeCallbacks(retryDrain);
+
+        int started = 0;
+        for (UploadJournal.Entry entry : journal.pending()) {
+            if (started == BATCH_SIZE) {
+                break;
+            }
+            if (isHeldForUnmetered(entry)) {
+                continue;
+            }
+            if (inFlight.add(entry.id)) {
+                started++;
+                draining = true;
+                uploader.upload(entry, true);
+            }
+        }
+        if (started > 0) {
+            batchSucceeded = false;
+            Log.i(TAG, "draining " + started + " of " + journal.size() + " pending upload(s)");
+        }
+    }
+
+    private boolean isHeldForUnmetered(UploadJournal.Entry entry) {
+        return unmeteredOnlyBytes > 0 && network.isMetered() && new File(entry.localPath).length() > unmeteredOnlyBytes;
+    }
+
+    public void onUploadFinished(UploadJournal.Entry entry, boolean success) {
+        inFlight.remove(entry.id);
+        batchSucceeded |= success;
+        if (!draining) {
+            // a user upload succeeding is a good sign that the rest will too
+            if (success) {
+                drain();
+            }
+            return;
+        }
+        if (!inFlight.isEmpty()) {
+            return;
+        }
+        draining = false;
+
+        if (journal.size() == 0) {
+            retryDelayMs = MIN_RETRY_DELAY_MS;
+        } else if (batchSucceeded) {
+            retryDelayMs = MIN_RETRY_DELAY_MS;
+            drain();
+        } else {
+            // nothing in the batch went through, back off before trying again
+            Log.i(TAG, "batch failed, retrying in " + retryDelayMs + "ms");
+            handler.postDelayed(retryDrain, retryDelayMs);
+            retryDelayMs = Math.min(retryDelayMs * 2, MAX_RETRY_DELAY_MS);
+        }
+    }
+}
@@ -0,0 +1,266 @@
+// Copyright 2016 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.androidexperiments.sprayscape.unitydriveplugin;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Append-only journal of uploads that have been requested but not yet confirmed by Drive.
+ *
+ * Every change is a small record appended to a file in app-private storage, so a share made
+ * while offline (or interrupted by the process being killed) survives until the drain scheduler
+ * can push it through. The file is compacted down to the live entries whenever it is opened.
+ */
+public class UploadJournal {
+
+    private static final int OP_ADD = 1;
+    private static final int OP_ATTEMPT = 2;
+    private static final int OP_REMOVE = 3;
+    private static final int OP_CHECKPOINT = 4;
+
+    public static class Entry {
+        public final long id;
+        // correlation id handed back to unity for uploads started with uploadFiles(), null otherwise
+        public final String requestId;
+        public final String driveFolderName;
+        public final String driveFileName;
+        public final String localPath;
+        public final String callbackObjectName;
+        int attempts;
+        String uploadSessionUri;
+        long uploadedBytes;
+
+        Entry(long id, String requestId, String driveFolderName, String driveFileName, String localPath, String callbackObjectName) {
+            this.id = id;
+            this.requestId = requestId;
+            this.driveFolderName = driveFolderName;
+            this.driveFileName = driveFileName;
+            this.localPath = localPath;
+            this.callbackObjectName = callbackObjectName;
+        }
+
+        public int getAttempts() {
+            return attempts;
+        }
+
+        public String getUploadSessionUri() {
+            return uploadSessionUri;
+        }
+
+        public long getUploadedBytes() {
+            return uploadedBytes;
+        }
+
+        @Override
+        public String toString() {
+            return "Entry(" + id + ", '" + driveFolderName + "/" + driveFileName + "', attempts=" + attempts + ", uploaded=" + uploadedBytes + ")";
+        }
+    }
+
+    private final File file;
+    private final Map<Long, Entry> entries = new LinkedHashMap<>();
+    private FileOutputStream out;
+    private long nextId = 1;
+
+    public UploadJournal(File file) throws IOException {
+        this.file = file;
+        replay();
+        compact();
+    }
+
+    public synchronized Entry append(String requestId, String driveFolderName, String driveFileName, String localPath, String callbackObjectName) throws IOException {
+        Entry entry = new Entry(nextId++, requestId, driveFolderName, driveFileName, localPath, callbackObjectName);
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(256);
+        DataOutputStream record = new DataOutputStream(bytes);
+        writeAdd(record, entry);
+        write(bytes.toByteArray());
+        entries.put(entry.id, entry);
+        return entry;
+    }
+
+    public synchronized void recordAttempt(Entry entry) throws IOException {
+        if (!entries.containsKey(entry.id)) {
+            return;
+        }
+        entry.attempts++;
+        write(opRecord(OP_ATTEMPT, entry.id));
+    }
+
+    // remember how far a resumable upload got, sessionUri == null forgets the session
+    public synchronized void checkpoint(Entry entry, String sessionUri, long uploadedBytes) throws IOException {
+        if (!entries.containsKey(entry.id)) {
+            return;
+        }
+        entry.uploadSessionUri = sessionUri;
+        entry.uploadedBytes = sessionUri == null ? 0 : uploadedBytes;
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(256);
+        writeCheckpoint(new DataOutputStream(bytes), entry);
+        write(bytes.toByteArray());
+    }
+
+    public synchronized void remove(Entry entry) throws IOException {
+        if (entries.remove(entry.id) == null) {
+            return;
+        }
+        write(opRecord(OP_REMOVE, entry.id));
+        if (entries.isEmpty()) {
+            // nothing pending, start from an empty file so the journal never grows without bound
+            compact();
+        }
+    }
+
+    public synchronized boolean contains(Entry entry) {
+        return entries.containsKey(entry.id);
+    }
+
+    public synchronized List<Entry> pending() {
+        return new ArrayList<>(entries.values());
+    }
+
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    public synchronized void close() {
+        closeQuietly();
+    }
+
+    private void write(byte[] record) throws IOException {
+        if (out == null) {
+            out = new FileOutputStream(file, true);
+        }
+        out.write(record);
+        out.flush();
+        out.getFD().sync();
+    }
+
+    private void replay() throws IOException {
+        if (!file.exists()) {
+            return;
+        }
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            while (true) {
+                int op = in.read();
+                if (op == -1) {
+                    break;
+                }
+                long id = in.readLong();
+                nextId = Math.max(nextId, id + 1);
+                switch (op) {
+                    case OP_ADD: {
+                        String requestId = in.readUTF();
+                        Entry entry = new Entry(id, requestId.isEmpty() ? null : requestId, in.readUTF(), in.readUTF(), in.readUTF(), in.readUTF());
+                        entry.attempts = in.readInt();
+                        entries.put(id, entry);
+                        break;
+                    }
+                    case OP_ATTEMPT: {
+                        Entry entry = entries.get(id);
+                        if (entry != null) {
+                            entry.attempts++;
+                        }
+                        break;
+                    }
+                    case OP_REMOVE: {
+                        entries.remove(id);
+                        break;
+                    }
+                    case OP_CHECKPOINT: {
+                        String sessionUri = in.readUTF();
+                        long uploadedBytes = in.readLong();
+                        Entry entry = entries.get(id);
+                        if (entry != null) {
+                            entry.uploadSessionUri = sessionUri.isEmpty() ? null : sessionUri;
+                            entry.uploadedBytes = uploadedBytes;
+                        }
+                        break;
+                    }
+                    default:
+                        throw new IOException("Corrupt upload journal, unknown op " + op);
+                }
+            }
+        } catch (EOFException ex) {
+            // a record was only partially written when the process died, everything before it is still valid
+        }
+    }
+
+    private void compact() throws IOException {
+        closeQuietly();
+        File tmp = new File(file.getPath() + ".tmp");
+        try (FileOutputStream fos = new FileOutputStream(tmp)) {
+            DataOutputStream record = new DataOutputStream(new BufferedOutputStream(fos));
+            for (Entry entry : entries.values()) {
+                writeAdd(record, entry);
+                if (entry.uploadSessionUri != null) {
+                    writeCheckpoint(record, entry);
+                }
+            }
+            record.flush();
+            fos.getFD().sync();
+        }
+        if (!tmp.renameTo(file)) {
+            throw new IOException("Failed to replace upload journal " + file);
+        }
+    }
+
+    private void closeQuietly() {
+        if (out != null) {
+            try {
+                out.close();
+            } catch (IOException ignored) {
+            }
+            out = null;
+        }
+    }
+
+    private static void writeAdd(DataOutputStream record, Entry entry) throws IOException {
+        record.write(OP_ADD);
+        record.writeLong(entry.id);
+        record.writeUTF(entry.requestId == null ? "" : entry.requestId);
+        record.writeUTF(entry.driveFolderName);
+        record.writeUTF(entry.driveFileName);
+        record.writeUTF(entry.localPath);
+        record.writeUTF(entry.callbackObjectName);
+        record.writeInt(entry.attempts);
+    }
+
+    private static void writeCheckpoint(DataOutputStream record, Entry entry) throws IOException {
+        record.write(OP_CHECKPOINT);
+        record.writeLong(entry.id);
+        record.writeUTF(entry.uploadSessionUri == null ? "" : entry.uploadSessionUri);
+        record.writeLong(entry.uploadedBytes);
+    }
+
+    private static byte[] opRecord(int op, long id) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(9);
+        DataOutputStream record = new DataOutputStream(bytes);
+        record.write(op);
+        record.writeLong(id);
+        return bytes.toByteArray();
+    }
+}
@@ -0,0 +1,57 @@
+// Copyright 2016 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.androidexperiments.sprayscape.unitydriveplugin;
+
+/**
+ * Coalesces the byte-by-byte progress of one upload into at most one update per interval, with
+ * the throughput since the previous update. The first and the final (everything sent) reports
+ * always go through.
+ */
+public class UploadProgressThrottle implements ResumableUpload.ProgressListener {
+
+    public interface Sink {
+        void onProgress(long sentBytes, long totalBytes, long bytesPerSecond);
+    }
+
+    private final long intervalNanos;
+    private final Sink sink;
+    private boolean reported;
+    private long lastReportNanos;
+    private long lastReportBytes;
+
+    public UploadProgressThrottle(long intervalMs, Sink sink) {
+        this.intervalNanos = intervalMs * 1000000L;
+        this.sink = sink;
+    }
+
+    @Override
+    public synchronized void onProgress(long sentBytes, long totalBytes) {
+        long now = System.nanoTime();
+        long elapsed = now - lastReportNanos;
+        if (reported && elapsed < intervalNanos && sentBytes < totalBytes) {
+            return;
+        }
+
+        long bytesPerSecond = 0;
+        if (reported && elapsed > 0) {
+            // can go negative when drive kept less of a chunk than was sent, that's not throughput
+            bytesPerSecond = Math.max(0, (sentBytes - lastReportBytes) * 1000000000L / elapsed);
+        }
+        reported = true;
+        lastReportNanos = now;
+        lastReportBytes = sentBytes;
+        sink.onProgress(sentBytes, totalBytes, bytesPerSecond);
+    }
+}
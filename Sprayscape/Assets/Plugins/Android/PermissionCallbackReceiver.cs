@@ -22,17 +22,20 @@ public interface IPermissionCallbackReceiver
 	bool HasPermission(string permission);
 	bool ShouldShowRequestPermissionRationale (string permission);
 	void RequestPermission(string permission);
+	void RequestPermissions(string[] permissions);
 	void ShowDialog(string title, string message);
 	void EnsureRequiredPermission(string permission, string requiredTitle, string requiredText, string permissionInstructionsAfterNeverAskAgainOrHomeOut, System.Action grantedCallback);
 
 	void DialogCallback(string noOp);
 	void PermissionCallback(string res);
+	void PermissionsCallback(string res);
 }
 
 internal class PermissionCallbackReceiverAndroid : MonoBehaviour, IPermissionCallbackReceiver
 {
 	private static readonly string DefaultObjectName = "PermissionCallbackReceiver";
 	private static readonly string CallbackMethodName = "PermissionCallback";
+	private static readonly string BatchCallbackMethodName = "PermissionsCallback";
 	private static readonly string DialogCallbackMethodName = "DialogCallback";
 
 	public static Dictionary<string, bool> KnownPermissions = new Dictionary<string, bool>();
@@ -69,6 +72,14 @@ internal class PermissionCallbackReceiverAndroid : MonoBehaviour, IPermissionCal
 		permissionRequesterClass.CallStatic("requestPermission", permission, DefaultObjectName, CallbackMethodName);
 	}
 
+	public void RequestPermissions(string[] permissions)
+	{
+		if (Application.platform != RuntimePlatform.Android)
+			return;
+
+		permissionRequesterClass.CallStatic("requestPermissions", permissions, DefaultObjectName, BatchCallbackMethodName);
+	}
+
 	public void ShowDialog(string title, string message)
 	{
 		if (Application.platform != RuntimePlatform.Android)
@@ -145,6 +156,31 @@ internal class PermissionCallbackReceiverAndroid : MonoBehaviour, IPermissionCal
 
 		PermissionCallbackReceiver.DispatchPermissionRequestStatus (perm, granted);
 	}
+
+	// "permission,granted;permission,granted", all the results of one RequestPermissions call
+	public void PermissionsCallback(string res)
+	{
+		if (Debug.isDebugBuild)
+			Debug.Log("PermissionsCallback('" + res + "') called from Java/Android");
+
+		Dictionary<string, bool> results = new Dictionary<string, bool>();
+		foreach (string result in res.Split(';'))
+		{
+			string[] parts = result.Split(',');
+			if (parts.Length < 2)
+				continue;
+
+			bool granted = false;
+			bool.TryParse(parts[1], out granted);
+			KnownPermissions[parts[0]] = granted;
+			results[parts[0]] = granted;
+
+			// so anything only listening for single permissions still hears about these
+			PermissionCallbackReceiver.DispatchPermissionRequestStatus (parts[0], granted);
+		}
+
+		PermissionCallbackReceiver.DispatchPermissionsRequestStatus (results);
+	}
 }
 
 internal class PermissionCallbackReceiveriOS : MonoBehaviour, IPermissionCallbackReceiver
@@ -189,6 +225,14 @@ internal class PermissionCallbackReceiveriOS : MonoBehaviour, IPermissionCallbac
 		return;
 	}
 
+	public void RequestPermissions(string[] permissions)
+	{
+		if (Application.platform != RuntimePlatform.IPhonePlayer)
+			return;
+
+		return;
+	}
+
 	public void ShowDialog(string title, string message)
 	{
 		if (Application.platform != RuntimePlatform.IPhonePlayer)
@@ -285,6 +329,12 @@ internal class PermissionCallbackReceiveriOS : MonoBehaviour, IPermissionCallbac
 
 		PermissionCallbackReceiver.DispatchPermissionRequestStatus (perm, granted);
 	}
+
+	public void PermissionsCallback(string res)
+	{
+		if (Debug.isDebugBuild)
+			Debug.Log("PermissionsCallback('" + res + "') called from iOS");
+	}
 	
 	[DllImport("__Internal")]
 	private static extern void _PermissionCallbackReceiver_RequestCamera (string requireTitlte, string requireText, string objectName, string callbackName);
@@ -302,6 +352,8 @@ public class PermissionCallbackReceiver : MonoBehaviour, IPermissionCallbackRece
 
     public static Dictionary<string, bool> KnownPermissions = new Dictionary<string, bool>();
 	public static event System.Action<string, bool> PermissionRequestStatus;
+	// every result of one RequestPermissions call, keyed by permission
+	public static event System.Action<Dictionary<string, bool>> PermissionsRequestStatus;
     public static event System.Action DialogClosed;
 
 	#if UNITY_ANDROID
@@ -349,6 +401,14 @@ public class PermissionCallbackReceiver : MonoBehaviour, IPermissionCallbackRece
 		receiverImpl.RequestPermission (permission);
     }
 
+    public void RequestPermissions(string[] permissions)
+    {
+        if (Application.platform != RuntimePlatform.Android)
+            return;
+
+		receiverImpl.RequestPermissions (permissions);
+    }
+
     public void ShowDialog(string title, string message)
     {
         if (Application.platform != RuntimePlatform.Android)
@@ -382,6 +442,14 @@ public class PermissionCallbackReceiver : MonoBehaviour, IPermissionCallbackRece
 		}
 	}
 
+	public static void DispatchPermissionsRequestStatus(Dictionary<string, bool> results)
+	{
+		if (PermissionCallbackReceiver.PermissionsRequestStatus != null)
+		{
+			PermissionCallbackReceiver.PermissionsRequestStatus(results);
+		}
+	}
+
 	public static void DispatchDialogClosed() 
 	{
 		if (PermissionCallbackReceiver.DialogClosed != null)
@@ -406,4 +474,12 @@ public class PermissionCallbackReceiver : MonoBehaviour, IPermissionCallbackRece
 		receiverImpl.PermissionCallback (res);
 	}
 
+	public void PermissionsCallback(string res)
+	{
+		if (Debug.isDebugBuild)
+			Debug.Log("PermissionsCallback('" + res + "') called from native");
+
+		receiverImpl.PermissionsCallback (res);
+	}
+
 }
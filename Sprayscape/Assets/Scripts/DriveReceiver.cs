@@ -14,6 +14,7 @@
 
 ﻿using UnityEngine;
 using System.Collections;
+using System.Collections.Generic;
 using System.Runtime.InteropServices;
 
 public enum DriveFailureType
@@ -26,6 +27,8 @@ public enum DriveFailureType
 	DrivePermissionIssue, // (i.e. a google.com account was used...)
 	NoConnection,
 	AccountSelectionCanceled,
+	RateLimited, // drive asked us to slow down, try again later
+	DriveUnavailable, // drive kept failing, the plugin is holding off for a while
 }
 
 public struct DriveFileExistsResult 
@@ -69,11 +72,31 @@ public struct DrivePermissionsResult
 	}
 }
 
+public struct DriveProgress
+{
+	public string requestId; // empty for UploadCoroutine uploads
+	public long sentBytes;
+	public long totalBytes;
+	public long bytesPerSecond;
+
+	public float Fraction
+	{
+		get { return totalBytes > 0 ? (float)sentBytes / totalBytes : 0f; }
+	}
+
+	public override string ToString()
+	{
+		return "DriveProgress: " + requestId + ", " + sentBytes + "/" + totalBytes + ", " + bytesPerSecond + " B/s";
+	}
+}
+
 public struct DriveUploadResult
 {
 	public bool failed;
 	public string failedReason;
 	public string fileId;
+	// smaller copies uploaded alongside, "1024x512" / "512x256" to their file ids, null when there are none
+	public Dictionary<string, string> renditionIds;
 	public DriveFailureType failureType;
 
 	public override string ToString()
@@ -89,9 +112,34 @@ public struct DriveUploadResult
 	}
 }
 
+public struct DriveDownloadResult
+{
+	public bool failed;
+	public string failedReason;
+	public string localPath; // in the plugin's download cache, read it before asking for many more files
+	public DriveFailureType failureType;
+
+	public override string ToString()
+	{
+		if (failed)
+		{
+			return "DriveDownloadResult: FAILED, " + failureType.ToString() + ", reason: " + failedReason;
+		}
+		else
+		{
+			return "DriveDownloadResult: OK, " + localPath;
+		}
+	}
+}
+
 public class DriveReceiver : MonoBehaviour
 {
+	// uploads only time out when nothing has moved for this long, a slow upload that is still going carries on
 	public float timeOutInSeconds = 30.0f;
+	// at most one progress update per upload in this many ms
+	public int uploadProgressIntervalMs = 250;
+	// upload 1024x512 and 512x256 renditions with each spray, for previews that don't need the full image
+	public bool uploadRenditions = true;
 
 	public string iOSKeychainName;
 	public string iOSClientId;
@@ -111,10 +159,37 @@ public class DriveReceiver : MonoBehaviour
 	private bool fileExists = false;
 	private DriveFailureType failureType = DriveFailureType.GenericFailure;
 	private string fileId;
+	private Dictionary<string, string> renditionIds;
 	private string failedReason;
 	private string accountName;
 	private string token;
 
+	// raised with (localPath, fileId) when an upload queued while offline is finally sent
+	public event System.Action<string, string> QueuedFileUploaded;
+
+	// raised as uploads send their bytes, throttled by uploadProgressIntervalMs
+	public event System.Action<DriveProgress> UploadProgress;
+	// when each upload being waited on started or last reported progress, keyed by request id, "" for uploadFile().
+	// One still queued behind others isn't in here yet, it can't stall before it has started
+	private Dictionary<string, float> lastUploadProgressTimes = new Dictionary<string, float>();
+
+	// uploadFiles() requests still being waited on, and the results that came back for them
+	private HashSet<string> pendingRequests = new HashSet<string>();
+	private Dictionary<string, DriveUploadResult> requestResults = new Dictionary<string, DriveUploadResult>();
+
+	// raised as downloads come in, sentBytes is what has been received so far
+	public event System.Action<DriveProgress> DownloadProgress;
+
+	// downloadFile() requests still being waited on, and what came back for them
+	private HashSet<string> pendingDownloads = new HashSet<string>();
+	private Dictionary<string, DriveDownloadResult> downloadResults = new Dictionary<string, DriveDownloadResult>();
+	private Dictionary<string, string> downloadPreviews = new Dictionary<string, string>();
+	private Dictionary<string, float> lastDownloadProgressTimes = new Dictionary<string, float>();
+
+	// checkFileIds() batches, null until java gets back to us, and why the ones that failed as a whole did
+	private Dictionary<string, Dictionary<string, bool>> fileCheckResults = new Dictionary<string, Dictionary<string, bool>>();
+	private Dictionary<string, DriveFileExistsResult> fileCheckFailures = new Dictionary<string, DriveFileExistsResult>();
+
 	#region Drive Events
 
 	public void DriveAccountSelected(string accountName)
@@ -146,13 +221,221 @@ public class DriveReceiver : MonoBehaviour
 		waitingForPermissions = false;
 	}
 
-	public void DriveFileUploaded(string fileId)
+	// "<fileId>;<rendition>=<fileId>;...", the renditions only when some were uploaded
+	public void DriveFileUploaded(string ids)
 	{
-		Debug.Log("DriveFileUploaded('" + fileId + "')");
-		this.fileId = fileId;
+		Debug.Log("DriveFileUploaded('" + ids + "')");
+		this.fileId = ParseUploadedIds(ids, out this.renditionIds);
 		waitingForUpload = false;
 	}
 
+	// an upload that was queued while offline has made it to drive, the payload is "localPath,fileId;<renditions>"
+	public void DriveQueuedFileUploaded(string result)
+	{
+		Debug.Log("DriveQueuedFileUploaded('" + result + "')");
+		int split = result.LastIndexOf(',');
+		if (split < 0)
+			return;
+
+		Dictionary<string, string> renditions;
+		if (QueuedFileUploaded != null)
+			QueuedFileUploaded(result.Substring(0, split), ParseUploadedIds(result.Substring(split + 1), out renditions));
+	}
+
+	// the file id from "<fileId>;1024x512=<fileId>;512x256=<fileId>", the renditions into renditionIds (null if none)
+	private static string ParseUploadedIds(string ids, out Dictionary<string, string> renditionIds)
+	{
+		renditionIds = null;
+		string[] parts = ids.Split(';');
+		for (int i = 1; i < parts.Length; i++)
+		{
+			string[] pair = parts[i].Split('=');
+			if (pair.Length != 2)
+				continue;
+			if (renditionIds == null)
+				renditionIds = new Dictionary<string, string>();
+			renditionIds[pair[0]] = pair[1];
+		}
+		return parts[0];
+	}
+
+	// "<requestId>", empty for uploadFile(), once the upload has left the queue and is talking to drive
+	public void DriveUploadStarted(string requestId)
+	{
+		Debug.Log("DriveUploadStarted('" + requestId + "')");
+		if (requestId.Length == 0 ? uploading : pendingRequests.Contains(requestId))
+			lastUploadProgressTimes[requestId] = Time.time;
+	}
+
+	// "<requestId>:<sentBytes>:<totalBytes>:<bytesPerSecond>"
+	public void DriveUploadProgress(string result)
+	{
+		string[] parts = result.Split(':');
+		DriveProgress progress = new DriveProgress();
+		if (parts.Length < 4
+			|| !long.TryParse(parts[1], out progress.sentBytes)
+			|| !long.TryParse(parts[2], out progress.totalBytes)
+			|| !long.TryParse(parts[3], out progress.bytesPerSecond))
+			return;
+
+		progress.requestId = parts[0];
+		// only one upload's progress keeps only that upload from timing out
+		if (progress.requestId.Length == 0 ? uploading : pendingRequests.Contains(progress.requestId))
+			lastUploadProgressTimes[progress.requestId] = Time.time;
+		if (UploadProgress != null)
+			UploadProgress(progress);
+	}
+
+	// "<requestId>:<fileId>;<rendition>=<fileId>;..."
+	public void DriveRequestUploaded(string result)
+	{
+		Debug.Log("DriveRequestUploaded('" + result + "')");
+		string[] parts = result.Split(new char[] { ':' }, 2);
+		if (parts.Length < 2 || !pendingRequests.Remove(parts[0]))
+			return;
+
+		Dictionary<string, string> renditions;
+		string uploadedId = ParseUploadedIds(parts[1], out renditions);
+		requestResults[parts[0]] = new DriveUploadResult
+		{
+			failed = false,
+			fileId = uploadedId,
+			renditionIds = renditions
+		};
+	}
+
+	// "<requestId>:<failureType>:<reason>"
+	public void DriveRequestFailed(string result)
+	{
+		Debug.Log("DriveRequestFailed('" + result + "')");
+		string[] parts = result.Split(new char[] { ':' }, 3);
+		if (parts.Length < 3 || !pendingRequests.Remove(parts[0]))
+			return;
+
+		DriveFailureType type = DriveFailureType.GenericFailure;
+		try
+		{
+			type = (DriveFailureType)System.Enum.Parse(typeof(DriveFailureType), parts[1]);
+		}
+		catch (System.ArgumentException) { }
+
+		requestResults[parts[0]] = new DriveUploadResult
+		{
+			failed = true,
+			failedReason = parts[2],
+			failureType = type
+		};
+	}
+
+	// "<requestId>:<fileId>=True,<fileId>=False,...", without the files drive couldn't answer for
+	public void DriveFilesChecked(string result)
+	{
+		Debug.Log("DriveFilesChecked('" + result + "')");
+		string[] parts = result.Split(new char[] { ':' }, 2);
+		if (parts.Length < 2 || !fileCheckResults.ContainsKey(parts[0]))
+			return;
+
+		Dictionary<string, bool> exists = new Dictionary<string, bool>();
+		foreach (string check in parts[1].Split(','))
+		{
+			string[] pair = check.Split('=');
+			if (pair.Length == 2)
+				exists[pair[0]] = pair[1] == "True";
+		}
+		fileCheckResults[parts[0]] = exists;
+	}
+
+	// "<requestId>:<failureType>:<reason>"
+	public void DriveFilesCheckFailed(string result)
+	{
+		Debug.Log("DriveFilesCheckFailed('" + result + "')");
+		string[] parts = result.Split(new char[] { ':' }, 3);
+		if (parts.Length < 3 || !fileCheckResults.ContainsKey(parts[0]))
+			return;
+
+		DriveFailureType type = DriveFailureType.GenericFailure;
+		try
+		{
+			type = (DriveFailureType)System.Enum.Parse(typeof(DriveFailureType), parts[1]);
+		}
+		catch (System.ArgumentException) { }
+
+		fileCheckFailures[parts[0]] = new DriveFileExistsResult
+		{
+			failed = true,
+			failedReason = parts[2],
+			failureType = type
+		};
+		fileCheckResults[parts[0]] = new Dictionary<string, bool>();
+	}
+
+	// "<requestId>:<path>", a small version of the file to show while the rest comes in
+	public void DriveDownloadPreview(string result)
+	{
+		Debug.Log("DriveDownloadPreview('" + result + "')");
+		string[] parts = result.Split(new char[] { ':' }, 2);
+		if (parts.Length < 2 || !pendingDownloads.Contains(parts[0]))
+			return;
+
+		downloadPreviews[parts[0]] = parts[1];
+		lastDownloadProgressTimes[parts[0]] = Time.time;
+	}
+
+	// "<requestId>:<receivedBytes>:<totalBytes>:<bytesPerSecond>"
+	public void DriveDownloadProgress(string result)
+	{
+		string[] parts = result.Split(':');
+		DriveProgress progress = new DriveProgress();
+		if (parts.Length < 4 || !pendingDownloads.Contains(parts[0])
+			|| !long.TryParse(parts[1], out progress.sentBytes)
+			|| !long.TryParse(parts[2], out progress.totalBytes)
+			|| !long.TryParse(parts[3], out progress.bytesPerSecond))
+			return;
+
+		progress.requestId = parts[0];
+		lastDownloadProgressTimes[parts[0]] = Time.time;
+		if (DownloadProgress != null)
+			DownloadProgress(progress);
+	}
+
+	// "<requestId>:<path>"
+	public void DriveDownloaded(string result)
+	{
+		Debug.Log("DriveDownloaded('" + result + "')");
+		string[] parts = result.Split(new char[] { ':' }, 2);
+		if (parts.Length < 2 || !pendingDownloads.Remove(parts[0]))
+			return;
+
+		downloadResults[parts[0]] = new DriveDownloadResult
+		{
+			failed = false,
+			localPath = parts[1]
+		};
+	}
+
+	// "<requestId>:<failureType>:<reason>"
+	public void DriveDownloadFailed(string result)
+	{
+		Debug.Log("DriveDownloadFailed('" + result + "')");
+		string[] parts = result.Split(new char[] { ':' }, 3);
+		if (parts.Length < 3 || !pendingDownloads.Remove(parts[0]))
+			return;
+
+		DriveFailureType type = DriveFailureType.GenericFailure;
+		try
+		{
+			type = (DriveFailureType)System.Enum.Parse(typeof(DriveFailureType), parts[1]);
+		}
+		catch (System.ArgumentException) { }
+
+		downloadResults[parts[0]] = new DriveDownloadResult
+		{
+			failed = true,
+			failedReason = parts[2],
+			failureType = type
+		};
+	}
+
 	public void DriveFileExists(string exists)
 	{
 		Debug.Log("DriveFileExists('" + exists + "')");
@@ -290,6 +573,78 @@ public class DriveReceiver : MonoBehaviour
 			});
 	}
 
+	// Check if several drive fileIds still exist on drive without blocking the game loop. A file drive couldn't
+	// answer for, or a check that failed or timed out, comes back failed with why, the same as CheckFileId
+	public IEnumerator CheckFileIdsCoroutine(string[] fileIds, System.Action<Dictionary<string, DriveFileExistsResult>> resultCallback)
+	{
+		Debug.Log ("CheckFileIdsCoroutine(" + fileIds.Length + " files)");
+
+		Dictionary<string, DriveFileExistsResult> results = new Dictionary<string, DriveFileExistsResult>();
+		string requestId = null;
+		if (Application.platform == RuntimePlatform.Android)
+		{
+			#if UNITY_ANDROID
+			using (AndroidJavaClass activityClass = new AndroidJavaClass("com.androidexperiments.sprayscape.unitydriveplugin.GoogleDriveUnityPlayerActivity"))
+			{
+				using (AndroidJavaObject activity = activityClass.GetStatic<AndroidJavaObject>("activityInstance"))
+				{
+					requestId = activity.Call<string>("checkFileIds", fileIds, this.gameObject.name);
+				}
+			}
+			#endif
+		}
+		else
+		{
+			// no bulk check outside of android, fall back to one at a time
+			foreach (string fileId in fileIds)
+			{
+				string id = fileId;
+				yield return StartCoroutine(CheckFileId(id, (DriveFileExistsResult r) => results[id] = r));
+			}
+			resultCallback(results);
+			yield break;
+		}
+
+		if (requestId == null)
+		{
+			// no account, same as checkFileId: nothing is there to share
+			foreach (string fileId in fileIds)
+				results[fileId] = new DriveFileExistsResult { failed = false, exists = false };
+			resultCallback(results);
+			yield break;
+		}
+
+		fileCheckResults[requestId] = null;
+
+		float startTime = Time.time;
+		while (fileCheckResults[requestId] == null && Time.time - startTime < timeOutInSeconds)
+			yield return null;
+
+		Dictionary<string, bool> checks = fileCheckResults[requestId];
+		fileCheckResults.Remove(requestId);
+		DriveFileExistsResult failure;
+		if (!fileCheckFailures.TryGetValue(requestId, out failure))
+		{
+			failure = new DriveFileExistsResult
+			{
+				failed = true,
+				failedReason = checks == null ? "Operation timed-out" : "Drive couldn't check the file",
+				failureType = checks == null ? DriveFailureType.Timeout : DriveFailureType.GenericFailure
+			};
+		}
+		fileCheckFailures.Remove(requestId);
+
+		foreach (string fileId in fileIds)
+		{
+			bool exists;
+			if (checks != null && checks.TryGetValue(fileId, out exists))
+				results[fileId] = new DriveFileExistsResult { failed = false, exists = exists };
+			else
+				results[fileId] = failure;
+		}
+		resultCallback(results);
+	}
+
 	// Coroutine checking for all required permissions and checks if account is selected
 	public IEnumerator CheckPermissionsCoroutine( System.Action<DrivePermissionsResult> resultCallback)
 	{
@@ -392,6 +747,25 @@ public class DriveReceiver : MonoBehaviour
 	}
 
 
+	// the plugin's latency histograms, counters and queue gauges as json, null where there is no plugin
+	public string GetMetricsSnapshot()
+	{
+		string snapshot = null;
+#if UNITY_ANDROID
+		if (Application.platform == RuntimePlatform.Android)
+		{
+			using (AndroidJavaClass activityClass = new AndroidJavaClass("com.androidexperiments.sprayscape.unitydriveplugin.GoogleDriveUnityPlayerActivity"))
+			{
+				using (AndroidJavaObject activity = activityClass.GetStatic<AndroidJavaObject>("activityInstance"))
+				{
+					snapshot = activity.Call<string>("getMetricsSnapshot");
+				}
+			}
+		}
+#endif
+		return snapshot;
+	}
+
 	// Coroutine uploading a local file to drive
 	public IEnumerator UploadCoroutine(string driveFolderName, string driveFileName, string localPath, System.Action<DriveUploadResult> resultCallback)
 	{
@@ -415,6 +789,7 @@ public class DriveReceiver : MonoBehaviour
 		uploadFailed = false;
 		failureType = DriveFailureType.GenericFailure;
 		fileId = null;
+		renditionIds = null;
 
 		if (Application.platform == RuntimePlatform.Android)
 		{
@@ -423,7 +798,16 @@ public class DriveReceiver : MonoBehaviour
 			{
 				using (AndroidJavaObject activity = activityClass.GetStatic<AndroidJavaObject>("activityInstance"))
 				{
-					activity.Call<bool>("uploadFile", driveFolderName, driveFileName, localPath, this.gameObject.name);
+					activity.Call("setUploadProgressInterval", uploadProgressIntervalMs);
+					activity.Call("setRenditions", uploadRenditions);
+					if (!activity.Call<bool>("uploadFile", driveFolderName, driveFileName, localPath, this.gameObject.name))
+					{
+						// nothing will start, so nothing would time out either
+						waitingForUpload = false;
+						uploadFailed = true;
+						failedReason = "No drive account selected";
+						failureType = DriveFailureType.AuthFailed;
+					}
 				}
 			}
 #endif
@@ -433,6 +817,8 @@ public class DriveReceiver : MonoBehaviour
 #if UNITY_IOS
 			_GoogleDrivePlugin_UploadFile(driveFolderName, driveFileName, localPath, this.gameObject.name, this.iOSClientId, this.iOSKeychainName);
 #endif
+			// no started event from the ios plugin, it starts straight away
+			lastUploadProgressTimes[""] = Time.time;
 		}
 		else
 		{
@@ -445,18 +831,16 @@ public class DriveReceiver : MonoBehaviour
 			failureType = fakeFailureType;
 		}
 
-		float startTime = Time.time;
-
 		while (waitingForUpload)
 		{
-			// check for timeout
-			float ellapsed = Time.time - startTime;
-			if (ellapsed > timeOutInSeconds)
+			// check for a stall once it has started, this upload's progress events push the deadline back
+			float progressTime;
+			if (lastUploadProgressTimes.TryGetValue("", out progressTime) && Time.time - progressTime > timeOutInSeconds)
 			{
 				// force a time-out here, seems like java-land is not getting back to us...
 				waitingForUpload = false;
 				uploadFailed = true;
-				failedReason = "Operation timed-out";
+				failedReason = "Upload stalled";
 				fileId = null;
 				failureType = DriveFailureType.Timeout;
 			}
@@ -466,16 +850,187 @@ public class DriveReceiver : MonoBehaviour
 
 		// set this before the call back just in case
 		uploading = false;
+		lastUploadProgressTimes.Remove("");
 
 		resultCallback(new DriveUploadResult
 		{
 			failed = this.uploadFailed,
 			failedReason = this.failedReason,
 			fileId = this.fileId,
+			renditionIds = this.renditionIds,
 			failureType = this.failureType,
 		});
 	}
 
+	// Coroutine uploading several local files to drive in parallel, results are in the same order as localPaths
+	public IEnumerator UploadFilesCoroutine(string driveFolderName, string[] driveFileNames, string[] localPaths, System.Action<DriveUploadResult[]> resultCallback)
+	{
+		DriveUploadResult[] results = new DriveUploadResult[localPaths.Length];
+
+		if (Application.platform != RuntimePlatform.Android)
+		{
+			// no parallel upload support outside of android, go through them one at a time
+			for (int i = 0; i < localPaths.Length; i++)
+			{
+				int index = i;
+				yield return StartCoroutine(UploadCoroutine(driveFolderName, driveFileNames[i], localPaths[i], (DriveUploadResult r) => results[index] = r));
+			}
+			resultCallback(results);
+			yield break;
+		}
+
+		string[] requestIds = null;
+#if UNITY_ANDROID
+		using (AndroidJavaClass activityClass = new AndroidJavaClass("com.androidexperiments.sprayscape.unitydriveplugin.GoogleDriveUnityPlayerActivity"))
+		{
+			using (AndroidJavaObject activity = activityClass.GetStatic<AndroidJavaObject>("activityInstance"))
+			{
+				activity.Call("setUploadProgressInterval", uploadProgressIntervalMs);
+				activity.Call("setRenditions", uploadRenditions);
+				requestIds = activity.Call<string[]>("uploadFiles", driveFolderName, driveFileNames, localPaths, this.gameObject.name);
+			}
+		}
+#endif
+
+		if (requestIds == null)
+		{
+			for (int i = 0; i < results.Length; i++)
+				results[i] = new DriveUploadResult { failed = true, failedReason = "No drive account selected", failureType = DriveFailureType.AuthFailed };
+			resultCallback(results);
+			yield break;
+		}
+
+		foreach (string id in requestIds)
+			pendingRequests.Add(id);
+
+		// only time out when nothing in this batch has moved for a while, a batch of uploads takes longer than one.
+		// Uploads still queued behind the others haven't started and can't stall yet
+		float lastResultTime = 0;
+		int remaining = requestIds.Length;
+		while (remaining > 0)
+		{
+			int received = 0;
+			bool started = false;
+			float lastProgressTime = lastResultTime;
+			foreach (string id in requestIds)
+			{
+				float progressTime;
+				if (requestResults.ContainsKey(id))
+					received++;
+				else if (lastUploadProgressTimes.TryGetValue(id, out progressTime))
+				{
+					started = true;
+					lastProgressTime = Mathf.Max(lastProgressTime, progressTime);
+				}
+			}
+			if (requestIds.Length - received < remaining)
+				lastResultTime = Time.time;
+			remaining = requestIds.Length - received;
+
+			if (remaining > 0 && started && Time.time - Mathf.Max(lastProgressTime, lastResultTime) > timeOutInSeconds)
+				break;
+
+			yield return null;
+		}
+
+		for (int i = 0; i < requestIds.Length; i++)
+		{
+			string id = requestIds[i];
+			if (!requestResults.TryGetValue(id, out results[i]))
+			{
+				// force a time-out here, seems like java-land is not getting back to us...
+				results[i] = new DriveUploadResult
+				{
+					failed = true,
+					failedReason = "Operation timed-out",
+					failureType = DriveFailureType.Timeout
+				};
+			}
+			pendingRequests.Remove(id);
+			requestResults.Remove(id);
+			lastUploadProgressTimes.Remove(id);
+		}
+
+		resultCallback(results);
+	}
+
+	// Coroutine fetching a drive file into the plugin's download cache, a file that has been fetched before is a local read.
+	// previewCallback, if there is one, gets the path of a small preview first when the file has to come from drive
+	public IEnumerator DownloadCoroutine(string fileId, System.Action<string> previewCallback, System.Action<DriveDownloadResult> resultCallback)
+	{
+		Debug.Log ("DownloadCoroutine('" + fileId + "')");
+
+		if (Application.platform != RuntimePlatform.Android)
+		{
+			resultCallback(new DriveDownloadResult
+			{
+				failed = true,
+				failedReason = "Downloads are only supported on Android",
+				failureType = DriveFailureType.GenericFailure
+			});
+			yield break;
+		}
+
+		string requestId = null;
+#if UNITY_ANDROID
+		using (AndroidJavaClass activityClass = new AndroidJavaClass("com.androidexperiments.sprayscape.unitydriveplugin.GoogleDriveUnityPlayerActivity"))
+		{
+			using (AndroidJavaObject activity = activityClass.GetStatic<AndroidJavaObject>("activityInstance"))
+			{
+				requestId = activity.Call<string>("downloadFile", fileId, previewCallback != null, this.gameObject.name);
+			}
+		}
+#endif
+
+		if (requestId == null)
+		{
+			resultCallback(new DriveDownloadResult
+			{
+				failed = true,
+				failedReason = "No drive account selected, or too many downloads waiting",
+				failureType = DriveFailureType.AuthFailed
+			});
+			yield break;
+		}
+
+		pendingDownloads.Add(requestId);
+		lastDownloadProgressTimes[requestId] = Time.time;
+
+		// like uploads, only time out when nothing has come in for a while
+		DriveDownloadResult result;
+		while (!downloadResults.TryGetValue(requestId, out result))
+		{
+			string previewPath;
+			if (downloadPreviews.TryGetValue(requestId, out previewPath))
+			{
+				downloadPreviews.Remove(requestId);
+				if (previewCallback != null)
+					previewCallback(previewPath);
+			}
+
+			if (Time.time - lastDownloadProgressTimes[requestId] > timeOutInSeconds)
+			{
+				// force a time-out here, seems like java-land is not getting back to us...
+				result = new DriveDownloadResult
+				{
+					failed = true,
+					failedReason = "Download stalled",
+					failureType = DriveFailureType.Timeout
+				};
+				break;
+			}
+
+			yield return null;
+		}
+
+		pendingDownloads.Remove(requestId);
+		downloadResults.Remove(requestId);
+		downloadPreviews.Remove(requestId);
+		lastDownloadProgressTimes.Remove(requestId);
+
+		resultCallback(result);
+	}
+
 	#endregion
 #if UNITY_IOS
 	[DllImport("__Internal")]
@@ -17,6 +17,7 @@ using System.Collections;
 using System.Collections.Generic;
 using System.IO;
 using System;
+using System.Runtime.InteropServices;
 using UnityEngine.UI;
 
 public class PhotoIO {
@@ -34,6 +35,56 @@ public class PhotoIO {
 	// RenderTexture objects can't be used with PhotoIO.SaveWhatever.
 	static public Texture2D saveBuffer;
 
+	// on android the thumbnails are also kept as raw tiles in a java side store, so a save only writes its own tile
+	static AndroidJavaObject tileStore;
+	static AndroidJavaObject tileLoader;
+	static bool tileStoreFailed = false;
+	// one tile as RGBA32, read back from a save or loaded from the store, and copied into its region of the
+	// atlas on the gpu. The same pixels as Color32 for SetPixels32 where the gpu can't copy between textures
+	static Texture2D tileBuffer;
+	static Color32[] tilePixels;
+	// tiles set on the cpu side of the atlas that haven't been uploaded yet, see FinishThumbnailTiles
+	static bool thumbnailsDirty = false;
+
+	// on android the library is also kept in a java side index, so loading it is one read instead of a probe per slot
+	static AndroidJavaObject libraryIndex;
+	static bool libraryIndexFailed = false;
+
+	public enum UploadState {
+		NotUploaded = 0,
+		Queued = 1,
+		Uploading = 2,
+		Uploaded = 3,
+		Failed = 4,
+	}
+
+	/// what the library index had for a spray when the library was loaded (or the spray saved)
+	public struct LibraryEntry {
+		public bool indexed;
+		public DateTime savedAt;
+		// -1 until the file has been written
+		public long byteSize;
+		// hex md5 of the local file, null if not known
+		public string contentHash;
+		public string driveFileId;
+		public UploadState uploadState;
+		public int atlasSlot;
+	}
+
+	static LibraryEntry[] library = new LibraryEntry[MAX_FILES];
+
+	// record layout of LibraryIndex.java, readAll() is an int count followed by the records
+	const int INDEX_RECORD_BYTES = 256;
+	const int INDEX_ID = 4;
+	const int INDEX_TIMESTAMP = 16;
+	const int INDEX_BYTE_SIZE = 24;
+	const int INDEX_ATLAS_SLOT = 32;
+	const int INDEX_UPLOAD_STATE = 36;
+	const int INDEX_HASH = 40;
+	const int INDEX_PATH = 56;
+	const int INDEX_FILE_ID = 198;
+	static readonly DateTime Epoch = new DateTime(1970, 1, 1, 0, 0, 0, DateTimeKind.Utc);
+
 	public static int FileCount{
 		get{
 			if(!prefsLoaded){
@@ -198,25 +249,14 @@ ffd8 ffe0 0010 4a46 4946 0001 0100 0001
 		0x00
 	};
 
-	public static byte[] Append360Exif(byte[] bytes){
-		byte[] newBytes = new byte[bytes.Length + RicohEXIF.Length];
-
-		int index = 0;
-		for(int i=0; i<20; i++){
-			newBytes[index] = bytes[i];
-			index +=1;
+	/// writes the jpg with the exif block spliced in after the header, straight to disk rather than
+	/// copying the whole image into a bigger array first. Drive uploads add the GPano xmp on the java side.
+	public static void WriteWith360Exif(string filePath, byte[] bytes){
+		using(FileStream stream = new FileStream(filePath, FileMode.Create, FileAccess.Write)){
+			stream.Write(bytes, 0, 20);
+			stream.Write(RicohEXIF, 0, RicohEXIF.Length);
+			stream.Write(bytes, 20, bytes.Length - 20);
 		}
-
-		for(int i=0; i<RicohEXIF.Length; i++){
-			newBytes[index] = RicohEXIF[i];
-			index +=1;
-		}
-
-		for(int i=20; i<bytes.Length; i++){
-			newBytes[index] = bytes[i];
-			index +=1;
-		}
-		return newBytes;
 	}
 
     
@@ -226,31 +266,39 @@ ffd8 ffe0 0010 4a46 4946 0001 0100 0001
 			RenderTexture.active = tex;
 
 			if (PhotoIO.saveBuffer == null) {
-				PhotoIO.saveBuffer = new Texture2D(2048, 1024);
+				// RGBA32 so the raw data can go straight to the java encoder
+				PhotoIO.saveBuffer = new Texture2D(2048, 1024, TextureFormat.RGBA32, false);
 			}
 			// Copy the current spray into the texture buffer and thumbnail.
 			PhotoIO.saveBuffer.ReadPixels(new Rect(0, 0, 2048, 1024), 0, 0);
 
 			RenderTexture.active = previous;
 
+			Debug.Log(Application.persistentDataPath);
+			//------------------------------------------------
+			int nextID = GetNextID();
+			string filePath = Path(nextID);
+			// indexed before the file is written, the size is filled in once it has been
+			IndexSpray(nextID);
+			//------------------------------------------------
+			InsertThumbnail(tex, nextID);
+			SaveThumbnailImage();
+			//------------------------------------------------
+
+			// on android the jpg is encoded and written on a java worker thread
+			if(PhotoSaveReceiver.Instance.SaveAsync(PhotoIO.saveBuffer, filePath, 100)){
+				return nextID;
+			}
+
 			byte[] bytes = PhotoIO.saveBuffer.EncodeToJPG(100);
-			bytes = PhotoIO.Append360Exif(bytes);
 		
 			if(bytes != null){
 
-				Debug.Log(Application.persistentDataPath);
-				//------------------------------------------------
-				int nextID = GetNextID();
-				string filePath = Path(nextID);
-				//------------------------------------------------
-				InsertThumbnail(tex, nextID);
-				SaveThumbnailImage();
-				//------------------------------------------------
-
 				//SaveFilePaths();
 
 				try{
-					File.WriteAllBytes(filePath, bytes);
+					WriteWith360Exif(filePath, bytes);
+					IndexSpray(nextID);
 				}
 				catch(System.ArgumentException){
 					return -1;
@@ -280,19 +328,30 @@ ffd8 ffe0 0010 4a46 4946 0001 0100 0001
 	const string FILE_COUNT = "FileCount";
 	const string FILE_NAME = "Sprayscape_";
 	const string THUMBNAILS = "sprayscape_thumbnails";
+	const string THUMBNAIL_TILES = "sprayscape_thumbnail_tiles";
+	const string LIBRARY_INDEX = "sprayscape_library_index";
 
 	static bool prefsLoaded = false;
 
 	public static void LoadFilePaths(){
 		Debug.Log("load prefs");
-		
+
+		saveMap.Clear();
+		if(LoadLibraryIndex()){
+			prefsLoaded = true;
+			return;
+		}
+
 		string path;
 
 		for(int i=0; i<MAX_FILES; i++){
 			path = Path(i);
+			library[i] = new LibraryEntry();
 			if(File.Exists(path)){
 				saveSlots[i]= true;
 				saveMap.Add(i);
+				// a new (or reset) index is filled from what is on disk
+				IndexSpray(i);
 			}
 			else{
 				saveSlots[i]= false;
@@ -302,6 +361,129 @@ ffd8 ffe0 0010 4a46 4946 0001 0100 0001
 		prefsLoaded = true;
 	}
 
+	/// fills the save slots from the java index in one call, false if there is no index or it has just been created
+	static bool LoadLibraryIndex(){
+		AndroidJavaObject index = LibraryIndex();
+		if(index == null || index.Call<bool>("isNew")){
+			return false;
+		}
+
+		for(int i=0; i<MAX_FILES; i++){
+			saveSlots[i] = false;
+			library[i] = new LibraryEntry();
+		}
+
+		byte[] records = index.Call<byte[]>("readAll");
+		using(BinaryReader reader = new BinaryReader(new MemoryStream(records))){
+			int count = reader.ReadInt32();
+			for(int i=0; i<count; i++){
+				int record = 4 + i * INDEX_RECORD_BYTES;
+				reader.BaseStream.Position = record + INDEX_ID;
+				int id = reader.ReadInt32();
+				if(id < 0 || id >= MAX_FILES){
+					continue;
+				}
+
+				LibraryEntry entry = new LibraryEntry();
+				entry.indexed = true;
+				reader.BaseStream.Position = record + INDEX_TIMESTAMP;
+				entry.savedAt = Epoch.AddMilliseconds(reader.ReadInt64()).ToLocalTime();
+				entry.byteSize = reader.ReadInt64();
+				reader.BaseStream.Position = record + INDEX_ATLAS_SLOT;
+				entry.atlasSlot = reader.ReadInt32();
+				entry.uploadState = (UploadState)reader.ReadInt32();
+				reader.BaseStream.Position = record + INDEX_HASH;
+				entry.contentHash = ReadHash(reader.ReadBytes(16));
+				reader.BaseStream.Position = record + INDEX_PATH;
+				string path = ReadIndexString(reader);
+				reader.BaseStream.Position = record + INDEX_FILE_ID;
+				entry.driveFileId = ReadIndexString(reader);
+
+				if(entry.byteSize < 0 || path != Path(id)){
+					// saved just before the app went away, or the data path moved: only trust it if the file is there
+					if(!File.Exists(Path(id))){
+						index.Call("remove", id);
+						continue;
+					}
+					IndexSpray(id);
+					entry = library[id];
+				}
+
+				library[id] = entry;
+				saveSlots[id] = true;
+				saveMap.Add(id);
+			}
+		}
+		return true;
+	}
+
+	static string ReadIndexString(BinaryReader reader){
+		int length = reader.ReadInt16();
+		return length > 0 ? System.Text.Encoding.UTF8.GetString(reader.ReadBytes(length)) : null;
+	}
+
+	static string ReadHash(byte[] hash){
+		bool known = false;
+		for(int i=0; i<hash.Length; i++){
+			known |= hash[i] != 0;
+		}
+		return known ? BitConverter.ToString(hash).Replace("-", "").ToLowerInvariant() : null;
+	}
+
+	/// adds (or refreshes) a spray in the library index, the java side picks up its size and time if it is on disk already
+	static void IndexSpray(int idx){
+		LibraryEntry entry = new LibraryEntry();
+		entry.indexed = true;
+		entry.savedAt = File.Exists(Path(idx)) ? File.GetLastWriteTime(Path(idx)) : DateTime.Now;
+		entry.byteSize = -1;
+		entry.atlasSlot = idx;
+		library[idx] = entry;
+
+		AndroidJavaObject index = LibraryIndex();
+		if(index != null){
+			index.Call("put", idx, Path(idx), idx);
+		}
+	}
+
+	public static LibraryEntry GetLibraryEntry(int idx){
+		if(!prefsLoaded){
+			LoadFilePaths();
+		}
+		return library[idx];
+	}
+
+	/// when the spray was saved, from the index if it has it rather than asking the filesystem
+	public static DateTime SavedAt(int idx){
+		if(!prefsLoaded){
+			LoadFilePaths();
+		}
+		return library[idx].indexed ? library[idx].savedAt : File.GetLastWriteTime(Path(idx));
+	}
+
+	public static string LibraryIndexPath(){
+		return Application.persistentDataPath + "/" + LIBRARY_INDEX;
+	}
+
+	static AndroidJavaObject LibraryIndex(){
+		#if UNITY_ANDROID
+		if (libraryIndex == null && !libraryIndexFailed && Application.platform == RuntimePlatform.Android) {
+			using (AndroidJavaClass activityClass = new AndroidJavaClass("com.androidexperiments.sprayscape.unitydriveplugin.GoogleDriveUnityPlayerActivity"))
+			{
+				using (AndroidJavaObject activity = activityClass.GetStatic<AndroidJavaObject>("activityInstance"))
+				{
+					libraryIndex = activity.Call<AndroidJavaObject>("openLibraryIndex", LibraryIndexPath(), MAX_FILES);
+				}
+			}
+			if (libraryIndex == null) {
+				// fall back to probing the filesystem
+				Debug.LogError ("Failed to open library index");
+				libraryIndexFailed = true;
+			}
+		}
+		#endif
+		return libraryIndex;
+	}
+
 	/// fixed size array for files (128)
 	/// at each point, a file exists or not
 	/// load up a list with pointers into that array
@@ -327,10 +509,21 @@ ffd8 ffe0 0010 4a46 4946 0001 0100 0001
 	internal static string PhotoLabel(int idx)
 	{
 		string path = Path(idx);
-		DateTime d = File.GetLastWriteTime(path);
+		// a spray that is still being written was saved just now
+		DateTime d = IsSaving(path) ? DateTime.Now : SavedAt(idx);
 		return string.Format("{0:D2}/{1:D2}/{2:D4}\n{3}", d.Month, d.Day, d.Year, d.ToString("hh:mm tt"));
 	}
 
+	/// true while the jpg for a spray is still being written in the background
+	public static bool IsSaving(string path){
+		return PhotoSaveReceiver.Instance.IsSaving(path);
+	}
+
+	/// blocks until a background save of path has finished, does nothing if there isn't one
+	public static void WaitForSave(string path){
+		PhotoSaveReceiver.Instance.WaitForSave(path);
+	}
+
 	public static string ThumbnailPath(){
 		return Application.temporaryCachePath + "/" + THUMBNAILS+".jpg";
 	}
@@ -345,12 +538,25 @@ ffd8 ffe0 0010 4a46 4946 0001 0100 0001
 		}
 			
 		string path = Path(idx);
+		// otherwise the background save would bring it back
+		WaitForSave(path);
 		if(File.Exists(path)){
 			File.Delete(path);
 		}
 
 		if(idx >-1 && idx < saveSlots.Length){
 			saveSlots[idx] = false;
+			library[idx] = new LibraryEntry();
+
+			AndroidJavaObject index = LibraryIndex();
+			if(index != null){
+				index.Call("remove", idx);
+			}
+
+			AndroidJavaObject store = TileStore();
+			if(store != null){
+				store.Call("queueRemoveTile", idx);
+			}
 
 			for(int i=saveMap.Count-1; i>-1; i--){
 				if(saveMap[i] ==idx){
@@ -367,6 +573,7 @@ ffd8 ffe0 0010 4a46 4946 0001 0100 0001
 		}
 		
 		string path = Path(idx);
+		WaitForSave(path);
 		if(File.Exists(path)){
 			byte[] bytes = File.ReadAllBytes(path);
 			if(bytes != null){
@@ -406,11 +613,26 @@ ffd8 ffe0 0010 4a46 4946 0001 0100 0001
 		int startX = ThumbWidth * (idx % 8);
 		int startY = ThumbHeight * (idx / 8);
 
-		// TODO why was this commented out?
-		//Graphics.CopyTexture(rt, 0,0,0,0,rt.width, rt.height, thumbnails, 0,0,startX, startY);
-
-		thumbnails.ReadPixels(new Rect(0, 0, ThumbWidth, ThumbHeight), startX, startY);
-		thumbnails.Apply();
+		AndroidJavaObject store = TileStore();
+		if(store != null){
+			Texture2D tile = TileBuffer();
+			tile.ReadPixels(new Rect(0, 0, ThumbWidth, ThumbHeight), 0, 0);
+			// written and flushed on the store's worker, the save doesn't wait on flash
+			store.Call("queuePutTile", idx, tile.GetRawTextureData());
+			if(CopyTileRegions()){
+				// only this tile goes to the gpu, not the whole atlas
+				tile.Apply(false);
+				Graphics.CopyTexture(tile, 0, 0, 0, 0, ThumbWidth, ThumbHeight, thumbnails, 0, 0, startX, startY);
+			}
+			else{
+				thumbnails.ReadPixels(new Rect(0, 0, ThumbWidth, ThumbHeight), startX, startY);
+				thumbnails.Apply();
+			}
+		}
+		else{
+			thumbnails.ReadPixels(new Rect(0, 0, ThumbWidth, ThumbHeight), startX, startY);
+			thumbnails.Apply();
+		}
 	
 		RenderTexture.active = previous;
 
@@ -418,6 +640,11 @@ ffd8 ffe0 0010 4a46 4946 0001 0100 0001
 	}
 
 	static void SaveThumbnailImage(){
+		if(TileStore() != null){
+			// the tile was written as it was inserted, no need to re-encode the whole atlas
+			return;
+		}
+
 //		byte[] bytes = EncodeThumbnailToPNG();
 //		byte[] bytes = EncodeTextureRaw();
 		byte[] bytes = EncodeThumbnailToJPG();
@@ -446,6 +673,10 @@ ffd8 ffe0 0010 4a46 4946 0001 0100 0001
 		if (thumbnails == null || thumbnails.width != 4096) {
 			AllocateThumbnails ();
 		}
+
+		if (LoadThumbnailTiles ()) {
+			return;
+		}
 		
 		string path = ThumbnailPath();
 		if (File.Exists (path)) {
@@ -489,9 +720,120 @@ ffd8 ffe0 0010 4a46 4946 0001 0100 0001
 
 	}
 
+	public static string ThumbnailTilesPath(){
+		return Application.temporaryCachePath + "/" + THUMBNAIL_TILES;
+	}
+
+	static AndroidJavaObject TileStore(){
+		#if UNITY_ANDROID
+		if (tileStore == null && !tileStoreFailed && Application.platform == RuntimePlatform.Android) {
+			try {
+				tileStore = new AndroidJavaObject ("com.androidexperiments.sprayscape.unitydriveplugin.ThumbnailTileStore",
+					ThumbnailTilesPath (), MAX_FILES, ThumbWidth * ThumbHeight * 4);
+			} catch (System.Exception ex) {
+				// fall back to the jpg atlas
+				Debug.LogError ("Failed to open thumbnail tile store: " + ex);
+				tileStoreFailed = true;
+			}
+		}
+		#endif
+		return tileStore;
+	}
+
+	/// starts filling the atlas from the tile store in the background, tiles show up as they are ready
+	/// (see ApplyThumbnailTiles). false if there is no store
+	static bool LoadThumbnailTiles(){
+		AndroidJavaObject store = TileStore ();
+		if (store == null) {
+			return false;
+		}
+
+		if(!prefsLoaded){
+			LoadFilePaths();
+		}
+
+		if (tileLoader == null) {
+			tileLoader = new AndroidJavaObject ("com.androidexperiments.sprayscape.unitydriveplugin.ThumbnailTileLoader", store, ThumbWidth, ThumbHeight);
+		}
+
+		int[] indices = saveMap.ToArray ();
+		string[] paths = new string[indices.Length];
+		for (int i = 0; i < indices.Length; i++) {
+			paths [i] = Path (indices [i]);
+		}
+		tileLoader.Call ("load", indices, paths, PhotoSaveReceiver.Instance.gameObject.name);
+		return true;
+	}
+
+	/// copies tiles the loader has made ready into the atlas. Each is uploaded on its own and copied into its
+	/// region on the gpu, so the 64MB atlas isn't re-uploaded while the library fills in
+	internal static void ApplyThumbnailTiles(List<int> indices){
+		AndroidJavaObject store = TileStore ();
+		if (store == null || thumbnails == null) {
+			return;
+		}
+
+		bool copyRegions = CopyTileRegions ();
+		for (int i = 0; i < indices.Count; i++) {
+			int idx = indices [i];
+			// the store's pooled array, unity 5.4 can't read a java direct buffer so it still crosses jni as a copy
+			byte[] bytes = store.Call<byte[]> ("readTile", idx);
+			if (bytes == null) {
+				// deleted since the loader got to it
+				continue;
+			}
+
+			int x = GetThumbnailX (idx) * ThumbWidth;
+			int y = GetThumbnailY (idx) * ThumbHeight;
+			if (copyRegions) {
+				Texture2D tile = TileBuffer ();
+				tile.LoadRawTextureData (bytes);
+				tile.Apply (false);
+				Graphics.CopyTexture (tile, 0, 0, 0, 0, ThumbWidth, ThumbHeight, thumbnails, 0, 0, x, y);
+				continue;
+			}
+
+			// no copies between textures on this gpu, fill the atlas here and upload it once at the end
+			if (tilePixels == null) {
+				tilePixels = new Color32[ThumbWidth * ThumbHeight];
+			}
+			// straight copy, Color32 has the same layout as the RGBA32 bytes
+			GCHandle handle = GCHandle.Alloc (tilePixels, GCHandleType.Pinned);
+			try {
+				Marshal.Copy (bytes, 0, handle.AddrOfPinnedObject (), bytes.Length);
+			} finally {
+				handle.Free ();
+			}
+			thumbnails.SetPixels32 (x, y, ThumbWidth, ThumbHeight, tilePixels);
+			thumbnailsDirty = true;
+		}
+	}
+
+	/// once the loader is done, uploads the atlas if tiles had to be set on the cpu side of it
+	internal static void FinishThumbnailTiles(){
+		if (thumbnailsDirty && thumbnails != null) {
+			thumbnails.Apply ();
+		}
+		thumbnailsDirty = false;
+	}
+
+	static Texture2D TileBuffer(){
+		if (tileBuffer == null) {
+			tileBuffer = new Texture2D(ThumbWidth, ThumbHeight, TextureFormat.RGBA32, false);
+		}
+		return tileBuffer;
+	}
+
+	/// true if tiles can go to the gpu on their own, the atlas has to be RGBA32 like the tiles for that
+	static bool CopyTileRegions(){
+		return thumbnails != null && thumbnails.format == TextureFormat.RGBA32
+			&& (SystemInfo.copyTextureSupport & CopyTextureSupport.Basic) != 0;
+	}
+
 	static void AllocateThumbnails(){
 		Debug.Log("Allocating thumbnail texture");
-		thumbnails = new Texture2D(4096, 4096, TextureFormat.ARGB32, false);
+		// RGBA32 like the tiles, so they can be copied into it on the gpu
+		thumbnails = new Texture2D(4096, 4096, TextureFormat.RGBA32, false);
 		thumbnails.wrapMode = TextureWrapMode.Clamp;
 	}
 }
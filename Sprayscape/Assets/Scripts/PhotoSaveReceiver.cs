@@ -0,0 +1,194 @@
+// Copyright 2016 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+using UnityEngine;
+using System.Collections.Generic;
+using System.IO;
+
+/// Hands spray saves to the java plugin so the jpg encode and file write happen off the main thread.
+/// Keeps the raw pixels of each save until java reports back, so a failed save can still be written here.
+/// Also receives the thumbnail tiles the plugin gets ready in the background and feeds them to the atlas.
+public class PhotoSaveReceiver : MonoBehaviour {
+
+	private const string DefaultObjectName = "PhotoSaveReceiver";
+	// how long something that needs the file right now will wait for java to finish writing it
+	private const int WaitTimeoutMs = 5000;
+	// copying a tile into the atlas costs a millisecond or two, spread them out rather than stall a frame
+	private const int MaxTilesPerFrame = 8;
+
+	class PendingSave {
+		public string requestId;
+		public byte[] pixels;
+		public int width;
+		public int height;
+		public int quality;
+	}
+
+	private static PhotoSaveReceiver instance;
+
+	// keyed by file path
+	private Dictionary<string, PendingSave> pending = new Dictionary<string, PendingSave>();
+
+	private List<int> readyTiles = new List<int>();
+	private List<int> tileBatch = new List<int>(MaxTilesPerFrame);
+	// the loader has announced every tile, the atlas is finished once readyTiles is empty
+	private bool tilesLoaded = false;
+
+	public static PhotoSaveReceiver Instance {
+		get {
+			if (instance == null) {
+				GameObject go = new GameObject(DefaultObjectName);
+				DontDestroyOnLoad(go);
+				instance = go.AddComponent<PhotoSaveReceiver>();
+			}
+			return instance;
+		}
+	}
+
+	/// queue an RGBA32 texture to be saved as a jpg at filePath, false if it has to be saved synchronously instead
+	public bool SaveAsync(Texture2D texture, string filePath, int quality){
+		if (Application.platform != RuntimePlatform.Android || texture.format != TextureFormat.RGBA32)
+			return false;
+
+		string requestId = null;
+		byte[] pixels = texture.GetRawTextureData();
+		#if UNITY_ANDROID
+		using (AndroidJavaClass activityClass = new AndroidJavaClass("com.androidexperiments.sprayscape.unitydriveplugin.GoogleDriveUnityPlayerActivity"))
+		{
+			using (AndroidJavaObject activity = activityClass.GetStatic<AndroidJavaObject>("activityInstance"))
+			{
+				requestId = activity.Call<string>("saveJpeg", pixels, texture.width, texture.height, quality, filePath, gameObject.name);
+			}
+		}
+		#endif
+		if (requestId == null)
+			return false;
+
+		pending[filePath] = new PendingSave {
+			requestId = requestId,
+			pixels = pixels,
+			width = texture.width,
+			height = texture.height,
+			quality = quality,
+		};
+		return true;
+	}
+
+	public bool IsSaving(string filePath){
+		return pending.ContainsKey(filePath);
+	}
+
+	/// blocks until the file is on disk, only for the rare case it is needed straight after saving
+	public void WaitForSave(string filePath){
+		PendingSave save;
+		if (!pending.TryGetValue(filePath, out save))
+			return;
+
+		bool finished = false;
+		#if UNITY_ANDROID
+		using (AndroidJavaClass activityClass = new AndroidJavaClass("com.androidexperiments.sprayscape.unitydriveplugin.GoogleDriveUnityPlayerActivity"))
+		{
+			using (AndroidJavaObject activity = activityClass.GetStatic<AndroidJavaObject>("activityInstance"))
+			{
+				finished = activity.Call<bool>("awaitJpegSave", save.requestId, WaitTimeoutMs);
+			}
+		}
+		#endif
+		if (!finished || !File.Exists(filePath))
+			SaveSynchronously(filePath, save);
+
+		pending.Remove(filePath);
+	}
+
+	// "<requestId>:<path>"
+	public void JpegSaved(string result){
+		Debug.Log("JpegSaved('" + result + "')");
+		string[] parts = result.Split(new char[] { ':' }, 2);
+		if (parts.Length < 2)
+			return;
+
+		PendingSave save;
+		if (pending.TryGetValue(parts[1], out save) && save.requestId == parts[0])
+			pending.Remove(parts[1]);
+	}
+
+	// "<requestId>:<reason>"
+	public void JpegSaveFailed(string result){
+		Debug.LogError("JpegSaveFailed('" + result + "')");
+		string[] parts = result.Split(new char[] { ':' }, 2);
+
+		string filePath = null;
+		foreach (KeyValuePair<string, PendingSave> save in pending) {
+			if (save.Value.requestId == parts[0]) {
+				filePath = save.Key;
+				break;
+			}
+		}
+		if (filePath == null)
+			return;
+
+		SaveSynchronously(filePath, pending[filePath]);
+		pending.Remove(filePath);
+	}
+
+	// "<index>"
+	public void ThumbnailTileReady(string index){
+		int idx;
+		if (int.TryParse(index, out idx)) {
+			readyTiles.Add(idx);
+			tilesLoaded = false;
+		}
+	}
+
+	// "<index>:<reason>"
+	public void ThumbnailTileFailed(string result){
+		Debug.LogError("ThumbnailTileFailed('" + result + "')");
+	}
+
+	public void ThumbnailTilesLoaded(string noOp){
+		Debug.Log("ThumbnailTilesLoaded()");
+		tilesLoaded = true;
+	}
+
+	void LateUpdate(){
+		if (readyTiles.Count == 0) {
+			if (tilesLoaded) {
+				PhotoIO.FinishThumbnailTiles();
+				tilesLoaded = false;
+			}
+			return;
+		}
+
+		int count = Mathf.Min(readyTiles.Count, MaxTilesPerFrame);
+		tileBatch.Clear();
+		for (int i = 0; i < count; i++)
+			tileBatch.Add(readyTiles[i]);
+		readyTiles.RemoveRange(0, count);
+		PhotoIO.ApplyThumbnailTiles(tileBatch);
+	}
+
+	void SaveSynchronously(string filePath, PendingSave save){
+		Texture2D texture = new Texture2D(save.width, save.height, TextureFormat.RGBA32, false);
+		try {
+			texture.LoadRawTextureData(save.pixels);
+			PhotoIO.WriteWith360Exif(filePath, texture.EncodeToJPG(save.quality));
+		}
+		catch (System.Exception ex) {
+			Debug.LogError("Failed to save " + filePath + ": " + ex);
+		}
+		finally {
+			Destroy(texture);
+		}
+	}
+}
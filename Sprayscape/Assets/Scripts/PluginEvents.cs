@@ -0,0 +1,176 @@
+// Copyright 2016 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+using UnityEngine;
+using System;
+using System.Collections.Generic;
+using System.Reflection;
+using System.Text;
+
+/// Drains the java plugin's event queue once a frame, in one call, and hands each event to the
+/// same receiver method UnitySendMessage would have called. Receiver methods are looked up once
+/// per target and method and kept as delegates, so a busy frame costs one JNI call rather than one
+/// native message and reflection lookup per callback.
+public class PluginEvents : MonoBehaviour {
+
+	private const string QueueClass = "com.androidexperiments.sprayscape.unitydriveplugin.PluginEventQueue";
+
+	public struct PluginEvent {
+		public int type;
+		public int target;
+		public int code;
+		public string requestId;
+		public string payload;
+	}
+
+	private static PluginEvents instance;
+
+	#if UNITY_ANDROID
+	private AndroidJavaClass queue;
+	#endif
+	private string[] typeNames = new string[0];
+	private string[] targetNames = new string[0];
+	// keyed by target << 16 | type
+	private Dictionary<int, Action<string>> handlers = new Dictionary<int, Action<string>>();
+
+	[RuntimeInitializeOnLoadMethod]
+	static void Create(){
+		if (Application.platform != RuntimePlatform.Android || instance != null)
+			return;
+
+		GameObject go = new GameObject("PluginEvents");
+		DontDestroyOnLoad(go);
+		instance = go.AddComponent<PluginEvents>();
+	}
+
+	void Awake(){
+		#if UNITY_ANDROID
+		queue = new AndroidJavaClass(QueueClass);
+		queue.CallStatic("setEnabled", true);
+		#endif
+	}
+
+	void OnDestroy(){
+		#if UNITY_ANDROID
+		if (queue != null) {
+			// anything sent from now on goes back to UnitySendMessage
+			queue.CallStatic("setEnabled", false);
+			Drain();
+			queue.Dispose();
+			queue = null;
+		}
+		#endif
+	}
+
+	void Update(){
+		Drain();
+	}
+
+	void Drain(){
+		#if UNITY_ANDROID
+		byte[] events = queue.CallStatic<byte[]>("drainEvents");
+		if (events == null || events.Length == 0)
+			return;
+
+		int pos = 0;
+		int count = ReadInt(events, ref pos);
+		PluginEvent e;
+		for (int i = 0; i < count; i++) {
+			e.type = ReadShort(events, ref pos);
+			e.target = ReadShort(events, ref pos);
+			e.code = ReadInt(events, ref pos);
+			e.requestId = ReadString(events, ref pos);
+			e.payload = ReadString(events, ref pos);
+			Dispatch(e);
+		}
+		#endif
+	}
+
+	void Dispatch(PluginEvent e){
+		int key = e.target << 16 | e.type;
+		Action<string> handler;
+		if (!handlers.TryGetValue(key, out handler) || (handler.Target as UnityEngine.Object) == null) {
+			handler = FindHandler(e.target, e.type);
+			if (handler == null) {
+				Debug.LogWarning("No receiver for plugin event " + TypeName(e.type) + " on " + TargetName(e.target));
+				return;
+			}
+			handlers[key] = handler;
+		}
+
+		try {
+			handler(e.payload);
+		}
+		catch (Exception ex) {
+			// one bad handler shouldn't lose the rest of the frame's events
+			Debug.LogException(ex);
+		}
+	}
+
+	Action<string> FindHandler(int target, int type){
+		string targetName = TargetName(target);
+		string methodName = TypeName(type);
+		if (targetName == null || methodName == null)
+			return null;
+
+		GameObject go = GameObject.Find(targetName);
+		if (go == null)
+			return null;
+
+		foreach (MonoBehaviour behaviour in go.GetComponents<MonoBehaviour>()) {
+			MethodInfo method = behaviour.GetType().GetMethod(methodName, BindingFlags.Instance | BindingFlags.Public | BindingFlags.NonPublic,
+			                                                   null, new Type[] { typeof(string) }, null);
+			if (method != null && method.ReturnType == typeof(void))
+				return (Action<string>)Delegate.CreateDelegate(typeof(Action<string>), behaviour, method);
+		}
+		return null;
+	}
+
+	// ids are handed out by java as it first sees each name, so refresh when one is new to us
+	string TypeName(int type){
+		#if UNITY_ANDROID
+		if (type >= typeNames.Length)
+			typeNames = queue.CallStatic<string[]>("getTypeNames");
+		#endif
+		return type < typeNames.Length ? typeNames[type] : null;
+	}
+
+	string TargetName(int target){
+		#if UNITY_ANDROID
+		if (target >= targetNames.Length)
+			targetNames = queue.CallStatic<string[]>("getTargetNames");
+		#endif
+		return target < targetNames.Length ? targetNames[target] : null;
+	}
+
+	static int ReadShort(byte[] b, ref int pos){
+		int value = b[pos] << 8 | b[pos + 1];
+		pos += 2;
+		return value;
+	}
+
+	static int ReadInt(byte[] b, ref int pos){
+		int value = b[pos] << 24 | b[pos + 1] << 16 | b[pos + 2] << 8 | b[pos + 3];
+		pos += 4;
+		return value;
+	}
+
+	// an int byte length, then utf-8
+	static string ReadString(byte[] b, ref int pos){
+		int length = ReadInt(b, ref pos);
+		string value = length == 0 ? string.Empty : Encoding.UTF8.GetString(b, pos, length);
+		pos += length;
+		return value;
+	}
+}
@@ -88,7 +88,8 @@ public class SavedSpray : ISpray
 	public string DriveFileId
 	{
 		get{
-			return PlayerPrefs.GetString (id.ToString()+"_id");
+			// the library index also has it if the spray was uploaded by a drained upload
+			return PlayerPrefs.GetString (id.ToString()+"_id", PhotoIO.GetLibraryEntry(id).driveFileId);
 		}
 		set {
 			PlayerPrefs.SetString (id.ToString()+"_id", value);
@@ -99,8 +100,7 @@ public class SavedSpray : ISpray
 	{
 		get
 		{
-			string path = PhotoIO.Path(id);
-			DateTime d = File.GetLastWriteTime(path);
+			DateTime d = PhotoIO.SavedAt(id);
 			return string.Format("Sprayscape {0:D4}/{1:D2}/{2:D2} {3:D2}:{4:D2} {5}.jpg", d.Year, d.Month, d.Day, d.Hour, d.Minute, d.ToString("tt"));
 		}
 	}
@@ -310,13 +310,37 @@ public class SprayCam : MonoBehaviour, ISprayCam
 		if (Debug.isDebugBuild)
 			Debug.Log("Showing permissions explanation...");
 
-		if (Debug.isDebugBuild)
-			Debug.Log("Requesting CAMERA permission...");
-		receiver.EnsureRequiredPermission(PermissionCallbackReceiver.CAMERA_PERMISSION, cameraPermissionRequiredTitle, cameraPermissionRequiredMessage, permissionInstructionsAfterNeverAskAgainOrHomeOut, () =>
-			{
-				hasCameraPermission = true;
+		if (Application.platform == RuntimePlatform.Android)
+		{
+			// camera and accounts in one go, rather than a prompt and a round trip to java for each.
+			// the results also come through PermissionRequestStatus, which sets hasCameraPermission and friends
+			if (Debug.isDebugBuild)
+				Debug.Log("Requesting CAMERA and CONTACTS permissions...");
+
+			bool batchAnswered = false;
+			System.Action<Dictionary<string, bool>> batchCallback = (Dictionary<string, bool> results) => batchAnswered = true;
+			PermissionCallbackReceiver.PermissionsRequestStatus += batchCallback;
+			receiver.RequestPermissions(new string[] { PermissionCallbackReceiver.CAMERA_PERMISSION, PermissionCallbackReceiver.CONTACTS_PERMISSION });
+
+			while (!batchAnswered)
+				yield return null;
+			PermissionCallbackReceiver.PermissionsRequestStatus -= batchCallback;
+
+			if (hasCameraPermission == true)
 				googleAnalytics.LogEvent("Permissions", "Camera", "True", 1);
-			});
+		}
+
+		if (hasCameraPermission != true)
+		{
+			// the camera is required, keep asking with an explanation until it is granted
+			if (Debug.isDebugBuild)
+				Debug.Log("Requesting CAMERA permission...");
+			receiver.EnsureRequiredPermission(PermissionCallbackReceiver.CAMERA_PERMISSION, cameraPermissionRequiredTitle, cameraPermissionRequiredMessage, permissionInstructionsAfterNeverAskAgainOrHomeOut, () =>
+				{
+					hasCameraPermission = true;
+					googleAnalytics.LogEvent("Permissions", "Camera", "True", 1);
+				});
+		}
 
 		while (!hasCameraPermission.HasValue || hasCameraPermission.Value == false)
 			yield return null;
@@ -570,6 +594,8 @@ public class SprayCam : MonoBehaviour, ISprayCam
 		Debug.Log("Share spray as Image");
 
 		viewManager.ShowFacebookShareBackground();
+		// the other app needs the whole file, so wait out a save that is still being written
+		PhotoIO.WaitForSave(spray.Path);
 		nativeShare.ShareImage(spray.Path);
 
 		if (SprayShared != null)
@@ -838,6 +864,10 @@ public class SprayCam : MonoBehaviour, ISprayCam
 		};
 		;
 
+		// don't upload (or name the drive file after) a spray that is still being written
+		while (PhotoIO.IsSaving(spray.Path))
+			yield return null;
+
 		yield return driveReceiver.UploadCoroutine(driveFolderName, spray.DriveFileName, spray.Path, (DriveUploadResult result) =>
 		{
 				driveUploadResult.failed = result.failed;
@@ -893,7 +923,8 @@ public class SprayCam : MonoBehaviour, ISprayCam
 
 			if (spray.DriveFileId != null && spray.DriveFileId.Length > 0) {
 
-				// Create a DrivePermissionsResult to sattisfy compiler
+				// Check the file is still on Google Drive, without holding up the game loop while drive answers
+				string driveFileId = spray.DriveFileId;
 				DriveFileExistsResult driveFileExistsResult = new DriveFileExistsResult
 				{
 					failed = true,
@@ -901,16 +932,11 @@ public class SprayCam : MonoBehaviour, ISprayCam
 					failedReason = "No result",
 					failureType = DriveFailureType.GenericFailure,
 				};
-
-				// Check permissions on Google Drive
-				yield return driveReceiver.CheckFileId (spray.DriveFileId, (DriveFileExistsResult result) => {
-					driveFileExistsResult.failed = result.failed;
-					driveFileExistsResult.exists = result.exists;
-					driveFileExistsResult.failedReason = result.failedReason;
-					driveFileExistsResult.failureType = result.failureType;
-					driveFileExistsResult.accountName = result.accountName;
-				});
+				yield return StartCoroutine (driveReceiver.CheckFileIdsCoroutine (new string[] { driveFileId }, (Dictionary<string, DriveFileExistsResult> results) => {
+					driveFileExistsResult = results[driveFileId];
+				}));
 				fileExists = driveFileExistsResult.exists;
+				Debug.Log ("Drive file id " + driveFileId + " exists: " + fileExists);
 
 				if (driveFileExistsResult.failed)
 				{